@@ -23,6 +23,7 @@ import androidx.annotation.NonNull;
 
 import com.cmder.camera2egl.gles.EglCore;
 import com.cmder.camera2egl.gles.FullFrameRect;
+import com.cmder.camera2egl.gles.ProgramCache;
 import com.cmder.camera2egl.gles.Texture2dProgram;
 import com.cmder.camera2egl.gles.WindowSurface;
 
@@ -151,6 +152,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_continuous_capture);
+        ProgramCache.setCacheDir(getCacheDir());
 
         SurfaceView sv = (SurfaceView) findViewById(R.id.continuousCapture_surfaceView);
         SurfaceHolder sh = sv.getHolder();
@@ -372,8 +374,14 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         mDisplaySurface = new WindowSurface(mEglCore, holder.getSurface(), false);
         mDisplaySurface.makeCurrent();
 
+        // Program setup is the bulk of the startup GL work.  Compare the time on the first
+        // launch with the next one, when ProgramCache has the linked binary.
+        long programStartNsec = System.nanoTime();
         mFullFrameBlit = new FullFrameRect(
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        Log.d(TAG, "program setup took " +
+                (System.nanoTime() - programStartNsec) / 1000 / 1000.0 + " ms; " +
+                ProgramCache.getStats());
         mTextureId = mFullFrameBlit.createTextureObject();
         mCameraTexture = new SurfaceTexture(mTextureId);
         mCameraTexture.setOnFrameAvailableListener(this);
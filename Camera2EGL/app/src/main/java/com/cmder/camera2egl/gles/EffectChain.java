@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmder.camera2egl.gles;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An ordered list of {@link Effect}s, applied to the source one after another in a single
+ * fragment shader.
+ * <p>
+ * Drawing each effect as its own full-screen pass costs a framebuffer write and read per
+ * effect.  Fusing them means the whole chain runs once per pixel with no intermediate
+ * targets.
+ * <p>
+ * Generating the shader doesn't touch GL, so it can be checked off-device.  Use
+ * {@link FusedEffectCache} to get a pass that draws the chain.
+ */
+public class EffectChain {
+    private final ArrayList<Effect> mEffects = new ArrayList<Effect>();
+
+    /**
+     * Appends an effect.
+     */
+    public EffectChain add(Effect effect) {
+        mEffects.add(effect);
+        return this;
+    }
+
+    /**
+     * Returns the effects, in order.
+     */
+    public List<Effect> getEffects() {
+        return mEffects;
+    }
+
+    /**
+     * Returns a string that identifies the generated shader.  Chains with the same
+     * signature can share a program, whatever their parameters.
+     */
+    public String getSignature() {
+        if (mEffects.isEmpty()) {
+            return "copy";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Effect effect : mEffects) {
+            if (sb.length() != 0) {
+                sb.append('+');
+            }
+            sb.append(effect.getSignature());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates the fragment shader body for the chain, in the form FilterPass expects:
+     * everything but the precision statement and the declarations of sTexture and
+     * vTextureCoord.
+     */
+    public String getFragmentBody() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("vec4 effect0(vec2 tc) {\n");
+        sb.append("    return texture2D(sTexture, tc);\n");
+        sb.append("}\n");
+        for (int i = 0; i < mEffects.size(); i++) {
+            mEffects.get(i).appendShader(sb, i + 1);
+        }
+        sb.append("void main() {\n");
+        sb.append("    gl_FragColor = effect").append(mEffects.size())
+                .append("(vTextureCoord);\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getSignature();
+    }
+}
@@ -183,6 +183,10 @@ public final class EglCore {
      */
     public void release() {
         if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+            GlState state = GlState.get();
+            Log.d(TAG, state.toString());
+            state.setContext(EGL14.EGL_NO_CONTEXT);
+
             // Android is unusual in that it uses a reference-counted EGLDisplay.  So for
             // every eglInitialize() we need an eglTerminate().
             EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
@@ -273,6 +277,7 @@ public final class EglCore {
         if (!EGL14.eglMakeCurrent(mEGLDisplay, eglSurface, eglSurface, mEGLContext)) {
             throw new RuntimeException("eglMakeCurrent failed");
         }
+        GlState.get().setContext(mEGLContext);
     }
 
     /**
@@ -286,6 +291,7 @@ public final class EglCore {
         if (!EGL14.eglMakeCurrent(mEGLDisplay, drawSurface, readSurface, mEGLContext)) {
             throw new RuntimeException("eglMakeCurrent(draw,read) failed");
         }
+        GlState.get().setContext(mEGLContext);
     }
 
     /**
@@ -296,6 +302,7 @@ public final class EglCore {
                 EGL14.EGL_NO_CONTEXT)) {
             throw new RuntimeException("eglMakeCurrent failed");
         }
+        GlState.get().setContext(EGL14.EGL_NO_CONTEXT);
     }
 
     /**
@@ -44,6 +44,11 @@ public class EglSurfaceBase {
     private int mWidth = -1;
     private int mHeight = -1;
 
+    // Pixel buffer for saveFrame(), re-used across calls.  Callers that save frequently
+    // should use saveFrameAsync() instead, which doesn't stall the pipeline or compress
+    // on the calling thread.
+    private ByteBuffer mPixelBuf;
+
     protected EglSurfaceBase(EglCore eglCore) {
         mEglCore = eglCore;
     }
@@ -164,9 +169,6 @@ public class EglSurfaceBase {
         // constructor that takes an int[] wants little-endian ARGB (blue/red swapped), the
         // Bitmap "copy pixels" method wants the same format GL provides.
         //
-        // Ideally we'd have some way to re-use the ByteBuffer, especially if we're calling
-        // here often.
-        //
         // Making this even more interesting is the upside-down nature of GL, which means
         // our output will look upside down relative to what appears on screen if the
         // typical GL conventions are used.
@@ -175,16 +177,43 @@ public class EglSurfaceBase {
 
         int width = getWidth();
         int height = getHeight();
-        ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (mPixelBuf == null || mPixelBuf.capacity() != width * height * 4) {
+            mPixelBuf = ByteBuffer.allocateDirect(width * height * 4);
+            mPixelBuf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buf = mPixelBuf;
+        buf.clear();
         GLES20.glReadPixels(0, 0, width, height,
                 GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
         GlUtil.checkGlError("glReadPixels");
         buf.rewind();
 
+        writePng(buf, width, height, file);
+        Log.d(TAG, "Saved " + width + "x" + height + " frame as '" + filename + "'");
+    }
+
+    /**
+     * Starts saving the EGL surface to a file, using a FrameReader.  The readback is
+     * asynchronous on GLES 3, and the PNG is written on the reader's worker thread.
+     * <p>
+     * The reader must have been created with this surface's size and
+     * {@link FrameReader#PNG_WRITER}.  Expects that this object's EGL surface is current.
+     */
+    public void saveFrameAsync(FrameReader reader, File file) {
+        if (!mEglCore.isCurrent(mEGLSurface)) {
+            throw new RuntimeException("Expected EGL context/surface is not current");
+        }
+        reader.readFrame(file);
+    }
+
+    /**
+     * Writes RGBA pixels, as provided by glReadPixels(), to a PNG file.
+     */
+    static void writePng(ByteBuffer buf, int width, int height, File file)
+            throws IOException {
         BufferedOutputStream bos = null;
         try {
-            bos = new BufferedOutputStream(new FileOutputStream(filename));
+            bos = new BufferedOutputStream(new FileOutputStream(file));
             Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
             bmp.copyPixelsFromBuffer(buf);
             bmp.compress(Bitmap.CompressFormat.PNG, 90, bos);
@@ -192,6 +221,5 @@ public class EglSurfaceBase {
         } finally {
             if (bos != null) bos.close();
         }
-        Log.d(TAG, "Saved " + width + "x" + height + " frame as '" + filename + "'");
     }
 }
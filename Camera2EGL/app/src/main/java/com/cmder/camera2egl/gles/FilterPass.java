@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmder.camera2egl.gles;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * One full-screen pass of a {@link FilterGraph}.
+ * <p>
+ * A pass samples one texture and draws a full-screen quad into the next target.  The base
+ * class handles the program, the quad, and the texture matrix; subclasses supply the body of
+ * the fragment shader and any uniforms it needs.  The fragment shader can use
+ * "sTexture" and "vTextureCoord", and should set gl_FragColor.
+ * <p>
+ * The source may be a GL_TEXTURE_2D or a GL_TEXTURE_EXTERNAL_OES (for the first pass, when
+ * reading straight from a SurfaceTexture), so the program is built for whichever is needed,
+ * the first time it's needed.
+ * <p>
+ * The default implementation copies the source, resized by the scale factor.
+ */
+public class FilterPass {
+    private static final String TAG = GlUtil.TAG;
+
+    // Draws a full-screen quad; positions are already in clip space.
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    // highp, because mediump texture coordinates can't address individual texels in a
+    // full-HD frame.
+    private static final String FRAGMENT_HEADER_2D =
+            "precision highp float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n";
+    private static final String FRAGMENT_HEADER_EXT =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision highp float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n";
+
+    private static final String FRAGMENT_BODY_COPY =
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private static final Drawable2d RECT = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+
+    private final String mName;
+    private final float mScale;
+
+    // Programs for 2D and external sources, 0 until needed.
+    private final int[] mPrograms = new int[2];
+    private final int[] mTexMatrixLocs = new int[2];
+    private final int[] mAttribMasks = new int[2];
+    private final int[] mPositionLocs = new int[2];
+    private final int[] mTextureCoordLocs = new int[2];
+
+    /**
+     * Creates a pass that copies its input.
+     *
+     * @param name Name for logging and timing.
+     * @param scale Size of the output relative to the input, e.g. 0.5 to halve it.
+     */
+    public FilterPass(String name, float scale) {
+        mName = name;
+        mScale = scale;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the output dimension for an input dimension.
+     */
+    public int getOutputSize(int inputSize) {
+        return Math.max(1, Math.round(inputSize * mScale));
+    }
+
+    /**
+     * Returns the fragment shader, minus the declarations of sTexture and vTextureCoord and
+     * the precision statement.
+     *
+     * @param sourceType 0 for GL_TEXTURE_2D, 1 for GL_TEXTURE_EXTERNAL_OES.
+     */
+    protected String getFragmentBody(int sourceType) {
+        return FRAGMENT_BODY_COPY;
+    }
+
+    /**
+     * Called after the program is created, to look up uniform locations.  The program for
+     * each source type is created separately, so this may be called twice.
+     *
+     * @param sourceType 0 for GL_TEXTURE_2D, 1 for GL_TEXTURE_EXTERNAL_OES.
+     */
+    protected void onProgramCreated(int sourceType, int program) {
+    }
+
+    /**
+     * Called before drawing, with the program in use, to set uniforms.
+     *
+     * @param inputWidth Width of the source texture.
+     * @param inputHeight Height of the source texture.
+     */
+    protected void setUniforms(GlState state, int sourceType, int inputWidth,
+            int inputHeight) {
+    }
+
+    /**
+     * Draws the pass into the currently-bound framebuffer.  The caller sets the viewport.
+     *
+     * @param textureId Source texture.
+     * @param textureTarget GL_TEXTURE_2D or GL_TEXTURE_EXTERNAL_OES.
+     * @param texMatrix Texture matrix for the source.
+     * @param inputWidth Width of the source texture.
+     * @param inputHeight Height of the source texture.
+     */
+    public void draw(GlState state, int textureId, int textureTarget, float[] texMatrix,
+            int inputWidth, int inputHeight) {
+        int sourceType = (textureTarget == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) ? 1 : 0;
+        if (mPrograms[sourceType] == 0) {
+            createProgram(sourceType);
+        }
+
+        state.useProgram(mPrograms[sourceType]);
+        state.activeTexture(GLES20.GL_TEXTURE0);
+        state.bindTexture(textureTarget, textureId);
+        state.uniformMatrix4fv(mTexMatrixLocs[sourceType], texMatrix, 0);
+        setUniforms(state, sourceType, inputWidth, inputHeight);
+
+        state.setEnabledAttribs(mAttribMasks[sourceType]);
+        state.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        state.vertexAttribPointer(mPositionLocs[sourceType], RECT.getCoordsPerVertex(),
+                GLES20.GL_FLOAT, false, RECT.getVertexStride(), RECT.getVertexArray());
+        state.vertexAttribPointer(mTextureCoordLocs[sourceType], 2,
+                GLES20.GL_FLOAT, false, RECT.getTexCoordStride(), RECT.getTexCoordArray());
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, RECT.getVertexCount());
+        GlUtil.checkGlError("draw " + mName);
+    }
+
+    /**
+     * Deletes the programs.
+     */
+    public void release() {
+        for (int i = 0; i < mPrograms.length; i++) {
+            if (mPrograms[i] != 0) {
+                GlState.get().deleteProgram(mPrograms[i]);
+                mPrograms[i] = 0;
+            }
+        }
+    }
+
+    private void createProgram(int sourceType) {
+        String header = (sourceType == 1) ? FRAGMENT_HEADER_EXT : FRAGMENT_HEADER_2D;
+        int program = GlUtil.createProgram(VERTEX_SHADER, header + getFragmentBody(sourceType));
+        if (program == 0) {
+            throw new RuntimeException("Unable to create program for " + mName);
+        }
+        Log.d(TAG, "Created program " + program + " for pass " + mName +
+                (sourceType == 1 ? " (external)" : ""));
+
+        int positionLoc = GLES20.glGetAttribLocation(program, "aPosition");
+        GlUtil.checkLocation(positionLoc, "aPosition");
+        int textureCoordLoc = GLES20.glGetAttribLocation(program, "aTextureCoord");
+        GlUtil.checkLocation(textureCoordLoc, "aTextureCoord");
+        int texMatrixLoc = GLES20.glGetUniformLocation(program, "uTexMatrix");
+        GlUtil.checkLocation(texMatrixLoc, "uTexMatrix");
+
+        mPrograms[sourceType] = program;
+        mPositionLocs[sourceType] = positionLoc;
+        mTextureCoordLocs[sourceType] = textureCoordLoc;
+        mTexMatrixLocs[sourceType] = texMatrixLoc;
+        mAttribMasks[sourceType] = (1 << positionLoc) | (1 << textureCoordLoc);
+        onProgramCreated(sourceType, program);
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
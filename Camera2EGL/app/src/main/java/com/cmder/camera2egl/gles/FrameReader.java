@@ -0,0 +1,366 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmder.camera2egl.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads frames back from the current EGL surface without stalling the render thread, and
+ * hands the pixels to a worker thread.
+ * <p>
+ * A plain glReadPixels() waits for the GPU to finish everything queued so far, then copies
+ * the pixels, all while the render thread sits idle.  With GLES 3 we can instead read into
+ * a pixel-pack buffer object: glReadPixels() returns right away, the copy happens when the
+ * GPU gets to it, and a fence tells us when it's done.  We keep a ring of these buffers and
+ * map each one a frame or two later, by which time the data is usually ready.
+ * <p>
+ * The mapped pixels are copied into one of a few reusable ByteBuffers, and the
+ * {@link Listener} is called with it on a background thread, so slow work like PNG
+ * compression stays off the render thread.  If the listener falls behind, readFrame()
+ * blocks until a buffer frees up.
+ * <p>
+ * With GLES 2 the readback is synchronous, but the listener still runs in the background.
+ * <p>
+ * Create, use, and release on the thread with the EGL context current.  The pixels are
+ * RGBA, bottom row first, as glReadPixels() provides them.
+ */
+public class FrameReader {
+    private static final String TAG = GlUtil.TAG;
+    private static final boolean VERBOSE = false;
+
+    // Pixel-pack buffers in flight.  Three gives the GPU two frames to finish a readback
+    // before we have to wait for it.
+    private static final int RING_SIZE = 3;
+
+    // Buffers handed to (or waiting for) the listener.
+    private static final int BUFFER_COUNT = 3;
+
+    /**
+     * Receives the pixels.
+     */
+    public interface Listener {
+        /**
+         * Called on the worker thread, in the order the frames were read.  The buffer is
+         * reused after this returns.
+         *
+         * @param pixels RGBA pixels, width * height * 4 bytes, position 0.
+         * @param tag The object passed to readFrame().
+         */
+        void onFrameRead(ByteBuffer pixels, int width, int height, Object tag);
+    }
+
+    /**
+     * Listener that writes each frame to a PNG file.  The tag must be the File.
+     */
+    public static final Listener PNG_WRITER = new Listener() {
+        @Override
+        public void onFrameRead(ByteBuffer pixels, int width, int height, Object tag) {
+            File file = (File) tag;
+            try {
+                EglSurfaceBase.writePng(pixels, width, height, file);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to write " + file, ioe);
+            }
+        }
+    };
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mByteCount;
+    private final Listener mListener;
+    private final boolean mAsync;
+
+    // Pixel-pack buffer ring (GLES 3 only).  mNext is the slot for the next readFrame();
+    // the oldest pending one is mPendingCount slots behind it.
+    private final int[] mPackBuffers = new int[RING_SIZE];
+    private final long[] mFences = new long[RING_SIZE];
+    private final Object[] mTags = new Object[RING_SIZE];
+    private int mNext;
+    private int mPendingCount;
+
+    private final ArrayBlockingQueue<ByteBuffer> mFreeBuffers =
+            new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private volatile RuntimeException mListenerFailure;
+
+    private int mFrameCount;
+    private int mWaitCount;
+
+    /**
+     * Prepares to read frames of the given size.  The EGL context must be current.
+     */
+    public FrameReader(int width, int height, Listener listener) {
+        mWidth = width;
+        mHeight = height;
+        mByteCount = width * height * 4;
+        mListener = listener;
+
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(mByteCount);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            mFreeBuffers.add(buf);
+        }
+
+        mAsync = supportsPackBuffers();
+        if (mAsync) {
+            createPackBuffers();
+        }
+        Log.d(TAG, "FrameReader " + width + "x" + height + ": " +
+                (mAsync ? "pixel-pack buffers" : "synchronous glReadPixels"));
+    }
+
+    /**
+     * Returns true if readbacks are asynchronous (GLES 3).
+     */
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * Starts reading the current read surface.  The listener will get the pixels after a
+     * later poll() or finish().
+     *
+     * @param tag Passed to the listener, e.g. a File to write to.
+     */
+    public void readFrame(Object tag) {
+        checkListenerFailure();
+        if (!mAsync) {
+            ByteBuffer buf = takeBuffer();
+            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, buf);
+            GlUtil.checkGlError("glReadPixels");
+            dispatch(buf, tag);
+            return;
+        }
+
+        if (mPendingCount == RING_SIZE) {
+            // Ring is full; we have to wait for the oldest one.
+            mWaitCount++;
+            completeOldest(true);
+        }
+        readIntoPackBuffer(mNext, tag);
+        mNext = (mNext + 1) % RING_SIZE;
+        mPendingCount++;
+    }
+
+    /**
+     * Passes any finished readbacks to the listener, without waiting for the GPU.  Call
+     * once per frame.
+     */
+    public void poll() {
+        checkListenerFailure();
+        while (mPendingCount > 0 && completeOldest(false)) {
+            // keep going
+        }
+    }
+
+    /**
+     * Waits for every readback to finish and for the listener to handle them all.
+     */
+    public void finish() {
+        while (mPendingCount > 0) {
+            completeOldest(true);
+        }
+        try {
+            mExecutor.submit(new Runnable() {
+                @Override public void run() {}
+            }).get();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee);
+        }
+        checkListenerFailure();
+    }
+
+    /**
+     * Returns the number of frames that have been handed to the listener.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the number of times readFrame() had to wait for the GPU because every
+     * pixel-pack buffer was busy.
+     */
+    public int getWaitCount() {
+        return mWaitCount;
+    }
+
+    /**
+     * Finishes outstanding work, deletes the buffer objects, and stops the worker thread.
+     */
+    public void release() {
+        try {
+            finish();
+        } finally {
+            mExecutor.shutdown();
+            if (mAsync) {
+                GlState.get().deleteBuffers(RING_SIZE, mPackBuffers, 0);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the current context can read into buffer objects.
+     */
+    private static boolean supportsPackBuffers() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        // "OpenGL ES N.M vendor-specific-info"
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ") && version.length() >= 11 &&
+                version.charAt(10) >= '3';
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void createPackBuffers() {
+        GLES20.glGenBuffers(RING_SIZE, mPackBuffers, 0);
+        GlUtil.checkGlError("glGenBuffers");
+        GlState state = GlState.get();
+        for (int i = 0; i < RING_SIZE; i++) {
+            state.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffers[i]);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mByteCount, null,
+                    GLES30.GL_STREAM_READ);
+        }
+        state.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("create pixel-pack buffers");
+    }
+
+    /**
+     * Issues the readback into a pixel-pack buffer and fences it.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void readIntoPackBuffer(int slot, Object tag) {
+        GlState state = GlState.get();
+        state.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffers[slot]);
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        state.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("glReadPixels to buffer");
+
+        mFences[slot] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        mTags[slot] = tag;
+        if (VERBOSE) Log.d(TAG, "read frame into slot " + slot);
+    }
+
+    /**
+     * Maps the oldest pending pixel-pack buffer, if the GPU is done with it, and passes a
+     * copy to the listener.
+     *
+     * @param wait If set, block until the GPU is done.
+     * @return true if a buffer was handled.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private boolean completeOldest(boolean wait) {
+        int slot = (mNext - mPendingCount + RING_SIZE) % RING_SIZE;
+
+        // The flush bit makes sure the fence actually reaches the GPU; without it, an
+        // offscreen renderer that never swaps could wait forever.
+        long timeout = wait ? Long.MAX_VALUE : 0;
+        int status = GLES30.glClientWaitSync(mFences[slot],
+                GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, timeout);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+            return false;
+        } else if (status == GLES30.GL_WAIT_FAILED) {
+            throw new RuntimeException("glClientWaitSync failed");
+        }
+        GLES30.glDeleteSync(mFences[slot]);
+        mFences[slot] = 0;
+
+        ByteBuffer buf = takeBuffer();
+        GlState state = GlState.get();
+        state.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffers[slot]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, mByteCount, GLES30.GL_MAP_READ_BIT);
+        if (mapped == null) {
+            throw new RuntimeException("glMapBufferRange failed");
+        }
+        buf.put(mapped);
+        buf.position(0);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        state.bindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("map pixel-pack buffer");
+
+        Object tag = mTags[slot];
+        mTags[slot] = null;
+        mPendingCount--;
+        dispatch(buf, tag);
+        return true;
+    }
+
+    /**
+     * Gets a free buffer, waiting for the listener to finish with one if necessary.
+     */
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buf;
+        try {
+            buf = mFreeBuffers.take();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Hands the pixels to the listener on the worker thread.
+     */
+    private void dispatch(final ByteBuffer buf, final Object tag) {
+        mFrameCount++;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mListener.onFrameRead(buf, mWidth, mHeight, tag);
+                } catch (RuntimeException re) {
+                    Log.e(TAG, "FrameReader listener failed", re);
+                    if (mListenerFailure == null) {
+                        mListenerFailure = re;
+                    }
+                } finally {
+                    mFreeBuffers.add(buf);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rethrows, on the render thread, an exception thrown by the listener.
+     */
+    private void checkListenerFailure() {
+        RuntimeException failure = mListenerFailure;
+        if (failure != null) {
+            mListenerFailure = null;
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmder.camera2egl.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of framebuffer objects with RGBA texture color attachments, for one EGL context.
+ * <p>
+ * Multi-pass rendering needs a handful of intermediate targets every frame.  Creating and
+ * deleting them each time is slow (and on some drivers leaks memory until the next
+ * eglSwapBuffers), so finished targets go back to the pool and are handed out again to the
+ * next request for the same size.
+ * <p>
+ * The textures use linear filtering and clamp-to-edge wrapping, so they can be sampled at
+ * fractional offsets and resized by drawing.
+ * <p>
+ * Must be used with the EGL context current.
+ */
+public class FramebufferPool {
+    private static final String TAG = GlUtil.TAG;
+
+    /**
+     * A framebuffer and the texture it renders into.
+     */
+    public static class Framebuffer {
+        private final int mFramebuffer;
+        private final int mTexture;
+        private final int mWidth;
+        private final int mHeight;
+
+        private Framebuffer(int framebuffer, int texture, int width, int height) {
+            mFramebuffer = framebuffer;
+            mTexture = texture;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public int getFramebuffer() {
+            return mFramebuffer;
+        }
+
+        public int getTexture() {
+            return mTexture;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public String toString() {
+            return "[Framebuffer " + mFramebuffer + " tex=" + mTexture + " " +
+                    mWidth + "x" + mHeight + "]";
+        }
+    }
+
+    // Everything we've created, and the subset that's available.
+    private final ArrayList<Framebuffer> mAll = new ArrayList<Framebuffer>();
+    private final ArrayList<Framebuffer> mFree = new ArrayList<Framebuffer>();
+
+    /**
+     * Returns a framebuffer of the requested size, creating one if none is free.  The
+     * contents are undefined.
+     */
+    public Framebuffer acquire(int width, int height) {
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            Framebuffer fb = mFree.get(i);
+            if (fb.mWidth == width && fb.mHeight == height) {
+                mFree.remove(i);
+                return fb;
+            }
+        }
+
+        Framebuffer fb = create(width, height);
+        mAll.add(fb);
+        Log.d(TAG, "FramebufferPool: created " + fb + " (" + mAll.size() + " total)");
+        return fb;
+    }
+
+    /**
+     * Returns a framebuffer to the pool.
+     */
+    public void recycle(Framebuffer fb) {
+        if (!mAll.contains(fb) || mFree.contains(fb)) {
+            throw new IllegalArgumentException("Framebuffer " + fb + " not in use");
+        }
+        mFree.add(fb);
+    }
+
+    /**
+     * Returns the number of framebuffers the pool has created.
+     */
+    public int getAllocatedCount() {
+        return mAll.size();
+    }
+
+    /**
+     * Deletes every framebuffer and texture, including any that haven't been recycled.
+     */
+    public void release() {
+        GlState state = GlState.get();
+        int[] values = new int[1];
+        for (Framebuffer fb : mAll) {
+            values[0] = fb.mFramebuffer;
+            GLES20.glDeleteFramebuffers(1, values, 0);
+            values[0] = fb.mTexture;
+            state.deleteTextures(1, values, 0);
+        }
+        GlUtil.checkGlError("FramebufferPool release");
+        mAll.clear();
+        mFree.clear();
+    }
+
+    /**
+     * Creates a texture and a framebuffer that renders into it.  Same approach as
+     * RecordFBOActivity, minus the depth buffer.
+     */
+    private static Framebuffer create(int width, int height) {
+        GlState state = GlState.get();
+        int[] values = new int[1];
+
+        GLES20.glGenTextures(1, values, 0);
+        GlUtil.checkGlError("glGenTextures");
+        int texture = values[0];
+        state.bindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("glTexParameter");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        GlUtil.checkGlError("glGenFramebuffers");
+        int framebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GlUtil.checkGlError("prepare framebuffer");
+
+        return new Framebuffer(framebuffer, texture, width, height);
+    }
+}
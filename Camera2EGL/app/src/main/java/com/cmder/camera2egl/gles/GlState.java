@@ -0,0 +1,531 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmder.camera2egl.gles;
+
+import android.opengl.EGLContext;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Shadow copy of the GL state that our programs touch, used to skip calls that wouldn't
+ * change anything.
+ * <p>
+ * Every draw used to select its program, bind its texture, set up its vertex attributes,
+ * upload its uniforms, and then undo all of it.  When the same program draws the same
+ * texture frame after frame, nearly all of those calls are redundant, and each one is a
+ * trip through the driver.  Going through this class instead, a call is only issued if
+ * the value differs from what we last set.  The number of calls issued and elided is
+ * counted so the effect can be checked.
+ * <p>
+ * GL state belongs to the context, and a context is current on one thread at a time, so
+ * there's one instance per thread.  EglCore tells it when the current context changes,
+ * which throws the shadow state away.  Code that makes a context current some other way
+ * (e.g. GLSurfaceView) should call {@link #invalidate()} from onSurfaceCreated().  The
+ * same goes for code that changes any of this state with direct GLES20 calls.
+ * <p>
+ * Only the common cases are tracked: texture units 0-7 on the 2D and external targets,
+ * the array and element array buffers, vertex attributes 0-15, and uniforms set through
+ * the methods here.  Anything else is passed straight through.
+ */
+public final class GlState {
+    private static final int UNKNOWN = -1;
+    private static final int MAX_TEXTURE_UNITS = 8;
+    private static final int MAX_ATTRIBS = 16;
+    private static final int ALL_ATTRIBS = (1 << MAX_ATTRIBS) - 1;
+
+    private static final ThreadLocal<GlState> sState = new ThreadLocal<GlState>() {
+        @Override
+        protected GlState initialValue() {
+            return new GlState();
+        }
+    };
+
+    private EGLContext mContext;
+
+    private int mProgram = UNKNOWN;
+
+    // Uniform values, per program, indexed by location.  mUniforms is the current
+    // program's table, or null if we don't know what program is current.
+    private final HashMap<Integer, float[][]> mProgramUniforms =
+            new HashMap<Integer, float[][]>();
+    private float[][] mUniforms;
+    private final float[] mScratch = new float[1];
+
+    // Texture bindings, two targets per unit.
+    private int mActiveUnit = UNKNOWN;
+    private final int[] mTextures = new int[MAX_TEXTURE_UNITS * 2];
+
+    private int mArrayBuffer = UNKNOWN;
+    private int mElementBuffer = UNKNOWN;
+
+    // Vertex attributes.  A bit in mKnownAttribs means the matching bit in mEnabledAttribs
+    // reflects the real state.
+    private int mEnabledAttribs;
+    private int mKnownAttribs;
+    private final AttribPointer[] mPointers = new AttribPointer[MAX_ATTRIBS];
+
+    private long mIssued;
+    private long mElided;
+
+
+    private GlState() {
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            mPointers[i] = new AttribPointer();
+        }
+        invalidate();
+    }
+
+    /**
+     * Returns the state tracker for the current thread.
+     */
+    public static GlState get() {
+        return sState.get();
+    }
+
+    /**
+     * Notes the context that is now current on this thread.  If it isn't the one we've
+     * been tracking, the shadow state is discarded.
+     *
+     * @param context The current context, or EGL14.EGL_NO_CONTEXT.
+     */
+    public void setContext(EGLContext context) {
+        if (context == null ? mContext != null : !context.equals(mContext)) {
+            invalidate();
+            mContext = context;
+        }
+    }
+
+    /**
+     * Forgets everything we know about the GL state.  The next call to each method will
+     * be issued.
+     */
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mProgramUniforms.clear();
+        mUniforms = null;
+        mActiveUnit = UNKNOWN;
+        Arrays.fill(mTextures, UNKNOWN);
+        mArrayBuffer = mElementBuffer = UNKNOWN;
+        mEnabledAttribs = mKnownAttribs = 0;
+        for (AttribPointer ptr : mPointers) {
+            ptr.clear();
+        }
+    }
+
+    /**
+     * Selects a program (glUseProgram).
+     */
+    public void useProgram(int program) {
+        if (program == mProgram) {
+            mElided++;
+            return;
+        }
+        GLES20.glUseProgram(program);
+        mIssued++;
+        mProgram = program;
+        if (program == 0) {
+            mUniforms = null;
+        } else {
+            mUniforms = mProgramUniforms.get(program);
+            if (mUniforms == null) {
+                mUniforms = new float[8][];
+                mProgramUniforms.put(program, mUniforms);
+            }
+        }
+    }
+
+    /**
+     * Deletes a program, and forgets its uniforms so a later program that reuses the name
+     * doesn't inherit them.
+     */
+    public void deleteProgram(int program) {
+        GLES20.glDeleteProgram(program);
+        mProgramUniforms.remove(program);
+        if (program == mProgram) {
+            // Deleting the current program is deferred until something else is selected,
+            // so it's still in use, but its name is now free for reuse.
+            mProgram = UNKNOWN;
+            mUniforms = null;
+        }
+    }
+
+    /**
+     * Selects the active texture unit (glActiveTexture).
+     *
+     * @param unit GL_TEXTURE0, GL_TEXTURE1, ...
+     */
+    public void activeTexture(int unit) {
+        if (unit == mActiveUnit) {
+            mElided++;
+            return;
+        }
+        GLES20.glActiveTexture(unit);
+        mIssued++;
+        mActiveUnit = unit;
+    }
+
+    /**
+     * Binds a texture to the active texture unit (glBindTexture).
+     */
+    public void bindTexture(int target, int texture) {
+        int slot = textureSlot(mActiveUnit, target);
+        if (slot >= 0 && mTextures[slot] == texture) {
+            mElided++;
+            return;
+        }
+        GLES20.glBindTexture(target, texture);
+        mIssued++;
+        if (slot >= 0) {
+            mTextures[slot] = texture;
+        }
+    }
+
+    /**
+     * Deletes textures.  Any of them that are bound revert to texture 0.
+     */
+    public void deleteTextures(int n, int[] textures, int offset) {
+        GLES20.glDeleteTextures(n, textures, offset);
+        for (int i = offset; i < offset + n; i++) {
+            for (int j = 0; j < mTextures.length; j++) {
+                if (mTextures[j] == textures[i]) {
+                    mTextures[j] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds a buffer object (glBindBuffer).
+     */
+    public void bindBuffer(int target, int buffer) {
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            if (buffer == mArrayBuffer) {
+                mElided++;
+                return;
+            }
+            mArrayBuffer = buffer;
+        } else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+            if (buffer == mElementBuffer) {
+                mElided++;
+                return;
+            }
+            mElementBuffer = buffer;
+        }
+        GLES20.glBindBuffer(target, buffer);
+        mIssued++;
+    }
+
+    /**
+     * Deletes buffer objects.  Any of them that are bound revert to buffer 0, and
+     * attribute pointers into them are forgotten.
+     */
+    public void deleteBuffers(int n, int[] buffers, int offset) {
+        GLES20.glDeleteBuffers(n, buffers, offset);
+        for (int i = offset; i < offset + n; i++) {
+            int buffer = buffers[i];
+            if (mArrayBuffer == buffer) {
+                mArrayBuffer = 0;
+            }
+            if (mElementBuffer == buffer) {
+                mElementBuffer = 0;
+            }
+            for (AttribPointer ptr : mPointers) {
+                if (ptr.mBufferObject == buffer) {
+                    ptr.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Enables exactly the vertex attribute arrays in the mask, and disables the rest.
+     * Bit N of the mask is attribute location N.
+     * <p>
+     * Leaving an attribute array enabled after the draw is harmless as long as the next
+     * draw sets the arrays it wants this way.
+     */
+    public void setEnabledAttribs(int mask) {
+        if ((mask & ~ALL_ATTRIBS) != 0) {
+            throw new IllegalArgumentException("attribute mask out of range: " +
+                    Integer.toHexString(mask));
+        }
+        int change = ((mask ^ mEnabledAttribs) | ~mKnownAttribs) & ALL_ATTRIBS;
+        // Count the enables we skipped, not the disables nobody would have issued.
+        mElided += Integer.bitCount(mask & ~change);
+        for (int i = 0; change != 0; i++, change >>>= 1) {
+            if ((change & 1) == 0) {
+                continue;
+            }
+            if ((mask & (1 << i)) != 0) {
+                GLES20.glEnableVertexAttribArray(i);
+            } else {
+                GLES20.glDisableVertexAttribArray(i);
+            }
+            mIssued++;
+        }
+        mEnabledAttribs = mask;
+        mKnownAttribs = ALL_ATTRIBS;
+    }
+
+    /**
+     * Points an attribute at client-side vertex data (glVertexAttribPointer).
+     * <p>
+     * GL reads the data when we draw, not now, so the call can be skipped if it names the
+     * same buffer at the same position, even if the contents have changed.  Bind array
+     * buffer 0 first.
+     */
+    public void vertexAttribPointer(int index, int size, int type, boolean normalized,
+            int stride, Buffer buf) {
+        AttribPointer ptr = index < MAX_ATTRIBS ? mPointers[index] : null;
+        if (ptr != null && mArrayBuffer == 0 && ptr.mBufferObject == 0 &&
+                ptr.mClientBuffer == buf && ptr.mOffset == buf.position() &&
+                ptr.matches(size, type, normalized, stride)) {
+            mElided++;
+            return;
+        }
+        GLES20.glVertexAttribPointer(index, size, type, normalized, stride, buf);
+        mIssued++;
+        if (ptr != null) {
+            ptr.set(mArrayBuffer == 0 ? 0 : UNKNOWN, buf, buf.position(),
+                    size, type, normalized, stride);
+        }
+    }
+
+    /**
+     * Points an attribute at an offset in the bound array buffer (glVertexAttribPointer).
+     */
+    public void vertexAttribPointer(int index, int size, int type, boolean normalized,
+            int stride, int offset) {
+        AttribPointer ptr = index < MAX_ATTRIBS ? mPointers[index] : null;
+        if (ptr != null && mArrayBuffer > 0 && ptr.mBufferObject == mArrayBuffer &&
+                ptr.mOffset == offset && ptr.matches(size, type, normalized, stride)) {
+            mElided++;
+            return;
+        }
+        GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+        mIssued++;
+        if (ptr != null) {
+            ptr.set(mArrayBuffer, null, offset, size, type, normalized, stride);
+        }
+    }
+
+    /**
+     * Sets a mat4 uniform in the current program.
+     */
+    public void uniformMatrix4fv(int location, float[] value, int offset) {
+        if (!uniformChanged(location, value, offset, 16)) {
+            mElided++;
+            return;
+        }
+        GLES20.glUniformMatrix4fv(location, 1, false, value, offset);
+        mIssued++;
+    }
+
+    /**
+     * Sets a mat3 uniform in the current program.
+     */
+    public void uniformMatrix3fv(int location, float[] value, int offset) {
+        if (!uniformChanged(location, value, offset, 9)) {
+            mElided++;
+            return;
+        }
+        GLES20.glUniformMatrix3fv(location, 1, false, value, offset);
+        mIssued++;
+    }
+
+    /**
+     * Sets a vec4 (or vec4 array) uniform in the current program.
+     */
+    public void uniform4fv(int location, int count, float[] value, int offset) {
+        if (!uniformChanged(location, value, offset, count * 4)) {
+            mElided++;
+            return;
+        }
+        GLES20.glUniform4fv(location, count, value, offset);
+        mIssued++;
+    }
+
+    /**
+     * Sets a vec2 (or vec2 array) uniform in the current program.
+     */
+    public void uniform2fv(int location, int count, float[] value, int offset) {
+        if (!uniformChanged(location, value, offset, count * 2)) {
+            mElided++;
+            return;
+        }
+        GLES20.glUniform2fv(location, count, value, offset);
+        mIssued++;
+    }
+
+    /**
+     * Sets a float (or float array) uniform in the current program.
+     */
+    public void uniform1fv(int location, int count, float[] value, int offset) {
+        if (!uniformChanged(location, value, offset, count)) {
+            mElided++;
+            return;
+        }
+        GLES20.glUniform1fv(location, count, value, offset);
+        mIssued++;
+    }
+
+    /**
+     * Sets a float uniform in the current program.
+     */
+    public void uniform1f(int location, float value) {
+        mScratch[0] = value;
+        if (!uniformChanged(location, mScratch, 0, 1)) {
+            mElided++;
+            return;
+        }
+        GLES20.glUniform1f(location, value);
+        mIssued++;
+    }
+
+    /**
+     * Sets an int or sampler uniform in the current program.  The value is shadowed as a
+     * float, so it's only elided reliably for values below 2^24, which covers samplers and
+     * flags.
+     */
+    public void uniform1i(int location, int value) {
+        mScratch[0] = value;
+        if (!uniformChanged(location, mScratch, 0, 1)) {
+            mElided++;
+            return;
+        }
+        GLES20.glUniform1i(location, value);
+        mIssued++;
+    }
+
+    /**
+     * Returns the number of GL calls made through this object.
+     */
+    public long getIssuedCount() {
+        return mIssued;
+    }
+
+    /**
+     * Returns the number of GL calls skipped because they wouldn't have changed anything.
+     */
+    public long getElidedCount() {
+        return mElided;
+    }
+
+    /**
+     * Zeroes the issued / elided counters.
+     */
+    public void resetCounters() {
+        mIssued = mElided = 0;
+    }
+
+    @Override
+    public String toString() {
+        long total = mIssued + mElided;
+        return "GlState: issued=" + mIssued + " elided=" + mElided +
+                (total == 0 ? "" : " (" + (mElided * 100 / total) + "% saved)");
+    }
+
+    /**
+     * Compares a uniform value with the one we last set for the current program, and
+     * records it if it's different.
+     *
+     * @return True if the uniform must be set.
+     */
+    private boolean uniformChanged(int location, float[] value, int offset, int len) {
+        if (location < 0 || mUniforms == null) {
+            return true;
+        }
+        if (location >= mUniforms.length) {
+            mUniforms = Arrays.copyOf(mUniforms, Math.max(location + 1, mUniforms.length * 2));
+            mProgramUniforms.put(mProgram, mUniforms);
+        }
+        float[] cached = mUniforms[location];
+        if (cached != null && cached.length == len) {
+            boolean same = true;
+            for (int i = 0; i < len; i++) {
+                if (cached[i] != value[offset + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return false;
+            }
+        } else {
+            cached = new float[len];
+            mUniforms[location] = cached;
+        }
+        System.arraycopy(value, offset, cached, 0, len);
+        return true;
+    }
+
+    /**
+     * Maps a texture unit and target to an index in mTextures, or -1 if we don't track it.
+     */
+    private static int textureSlot(int unit, int target) {
+        int index = unit - GLES20.GL_TEXTURE0;
+        if (unit == UNKNOWN || index < 0 || index >= MAX_TEXTURE_UNITS) {
+            return -1;
+        }
+        if (target == GLES20.GL_TEXTURE_2D) {
+            return index * 2;
+        } else if (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
+            return index * 2 + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Last glVertexAttribPointer() for one attribute.  A client-side pointer has buffer
+     * object 0 and keeps a reference to the Buffer so it can't be collected and its address
+     * reused while GL still points at it.
+     */
+    private static class AttribPointer {
+        int mBufferObject;
+        Buffer mClientBuffer;
+        int mOffset;
+        int mSize;
+        int mType;
+        boolean mNormalized;
+        int mStride;
+
+        void clear() {
+            mBufferObject = UNKNOWN;
+            mClientBuffer = null;
+        }
+
+        void set(int bufferObject, Buffer clientBuffer, int offset, int size, int type,
+                boolean normalized, int stride) {
+            mBufferObject = bufferObject;
+            mClientBuffer = clientBuffer;
+            mOffset = offset;
+            mSize = size;
+            mType = type;
+            mNormalized = normalized;
+            mStride = stride;
+        }
+
+        boolean matches(int size, int type, boolean normalized, int stride) {
+            return mSize == size && mType == type && mNormalized == normalized &&
+                    mStride == stride;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmder.camera2egl.gles;
+
+import android.opengl.GLES20;
+
+import java.util.Locale;
+
+/**
+ * One direction of a separable convolution.
+ * <p>
+ * A symmetric 2D kernel that is the product of two 1D kernels (a Gaussian, a box) can be
+ * applied as a horizontal pass followed by a vertical pass, which takes 2*(2r+1) texture
+ * fetches per pixel instead of (2r+1)^2.  Use two of these, one each way.
+ * <p>
+ * When the source is one of our own (linearly filtered) textures, the fetch count is roughly
+ * halved again by sampling between pairs of texels: one bilinear fetch at the right
+ * fractional offset returns the weighted sum of both.  The SurfaceTexture's external texture
+ * is created with GL_NEAREST minification (see Texture2dProgram.createTextureObject()), so
+ * when the source is external every texel is fetched individually.
+ * <p>
+ * The weights and offsets are baked into the generated shader as constants, so a new
+ * kernel means a new pass.
+ */
+public class SeparableFilterPass extends FilterPass {
+    private final boolean mHorizontal;
+    private final float[] mWeights;
+
+    private final int[] mTexelStepLocs = new int[2];
+    private final float[] mTexelStep = new float[2];
+
+    /**
+     * Creates the pass.
+     *
+     * @param name Name for logging and timing.
+     * @param weights One side of the symmetric kernel: weights[0] is the center, weights[i]
+     *        applies to the texels i steps away on either side.  The radius is
+     *        weights.length - 1.  Should sum to 1 (counting the sides twice) to preserve
+     *        brightness; see {@link #gaussianWeights(int, float)}.
+     * @param horizontal True to filter along the texture's s axis, false for t.
+     */
+    public SeparableFilterPass(String name, float[] weights, boolean horizontal) {
+        super(name, 1.0f);
+        if (weights.length == 0) {
+            throw new IllegalArgumentException("Empty kernel");
+        }
+        mWeights = weights.clone();
+        mHorizontal = horizontal;
+    }
+
+    /**
+     * Returns one side of a normalized Gaussian kernel.
+     *
+     * @param radius Number of texels on either side of the center.
+     * @param sigma Standard deviation, in texels.  radius / 3 puts nearly all of the curve
+     *        inside the kernel.
+     */
+    public static float[] gaussianWeights(int radius, float sigma) {
+        float[] weights = new float[radius + 1];
+        double sum = 0;
+        for (int i = 0; i <= radius; i++) {
+            double w = Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            weights[i] = (float) w;
+            sum += (i == 0) ? w : 2 * w;
+        }
+        for (int i = 0; i <= radius; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    @Override
+    protected String getFragmentBody(int sourceType) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("uniform vec2 uTexelStep;\n");
+        sb.append("void main() {\n");
+        sb.append("    vec4 sum = texture2D(sTexture, vTextureCoord) * ")
+                .append(format(mWeights[0])).append(";\n");
+
+        int radius = mWeights.length - 1;
+        boolean pairTaps = (sourceType == 0);
+        for (int i = 1; i <= radius; i += pairTaps ? 2 : 1) {
+            float weight;
+            float offset;
+            if (pairTaps && i < radius) {
+                // Sample between texel i and i+1, weighted so the bilinear filter gives
+                // w[i]*t[i] + w[i+1]*t[i+1].
+                weight = mWeights[i] + mWeights[i + 1];
+                offset = (i * mWeights[i] + (i + 1) * mWeights[i + 1]) / weight;
+            } else {
+                weight = mWeights[i];
+                offset = i;
+            }
+            String w = format(weight);
+            String o = format(offset);
+            sb.append("    sum += texture2D(sTexture, vTextureCoord + uTexelStep * ").append(o)
+                    .append(") * ").append(w).append(";\n");
+            sb.append("    sum += texture2D(sTexture, vTextureCoord - uTexelStep * ").append(o)
+                    .append(") * ").append(w).append(";\n");
+        }
+        sb.append("    gl_FragColor = sum;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    @Override
+    protected void onProgramCreated(int sourceType, int program) {
+        int loc = GLES20.glGetUniformLocation(program, "uTexelStep");
+        GlUtil.checkLocation(loc, "uTexelStep");
+        mTexelStepLocs[sourceType] = loc;
+    }
+
+    @Override
+    protected void setUniforms(GlState state, int sourceType, int inputWidth,
+            int inputHeight) {
+        if (mHorizontal) {
+            mTexelStep[0] = 1.0f / inputWidth;
+            mTexelStep[1] = 0f;
+        } else {
+            mTexelStep[0] = 0f;
+            mTexelStep[1] = 1.0f / inputHeight;
+        }
+        state.uniform2fv(mTexelStepLocs[sourceType], 1, mTexelStep, 0);
+    }
+
+    /**
+     * Formats a float as a GLSL literal.  (Float.toString() can produce exponents, and the
+     * default locale might use a comma.)
+     */
+    private static String format(float value) {
+        return String.format(Locale.US, "%.7f", value);
+    }
+}
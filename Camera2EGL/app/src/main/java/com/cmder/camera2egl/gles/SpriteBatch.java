@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmder.camera2egl.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws many Sprite2d objects with few draw calls.
+ * <p>
+ * Sprite2d.draw() costs a draw call per sprite, plus a matrix upload.  Here each sprite's
+ * vertices are transformed by its model-view matrix on the CPU and appended to a single
+ * array, and consecutive sprites that use the same program and texture go out together in
+ * one glDrawArrays().  Sprites are drawn in the order they're added, so overlap works the
+ * same way it does with individual draws; interleaving textures just costs more calls.
+ * <p>
+ * The vertices are streamed through a VBO.  GLES 2/3 on Android doesn't offer persistently
+ * mapped buffers, so each flush "orphans" the buffer with glBufferData(null) and then fills
+ * it with glBufferSubData().  The driver can hand us fresh storage while the GPU is still
+ * reading the previous batch, instead of stalling until it's done.
+ * <p>
+ * Flat-shaded sprites use their color, textured sprites their texture (GL_TEXTURE_2D only);
+ * the choice is made per call, as with the two Sprite2d.draw() methods.
+ * <p>
+ * Usage: begin(), drawFlat() / drawTextured() for each sprite, end().  All calls must be
+ * made on the thread that owns the EGL context.
+ */
+public class SpriteBatch {
+    private static final String TAG = GlUtil.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int SIZEOF_FLOAT = 4;
+    // x, y, s, t, r, g, b, a
+    private static final int FLOATS_PER_VERTEX = 8;
+    private static final int VERTEX_STRIDE = FLOATS_PER_VERTEX * SIZEOF_FLOAT;
+    private static final int TEX_COORD_OFFSET = 2 * SIZEOF_FLOAT;
+    private static final int COLOR_OFFSET = 4 * SIZEOF_FLOAT;
+
+    // Largest shape we expect: a rectangle, which is two triangles.
+    private static final int VERTICES_PER_SPRITE = 6;
+
+    private static final int FLAT = -1;     // "texture" for flat-shaded batches
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTextureCoord;\n" +
+            "attribute vec4 aColor;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "varying vec4 vColor;\n" +
+            "void main() {\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "    vTextureCoord = aTextureCoord;\n" +
+            "    vColor = aColor;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_FLAT =
+            "precision mediump float;\n" +
+            "varying vec4 vColor;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = vColor;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_2D =
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private final GlState mState;
+    private final BatchProgram mFlatProgram;
+    private final BatchProgram mTexProgram;
+
+    private final int mMaxVertices;
+    private final float[] mVertices;
+    private final FloatBuffer mVertexBuffer;
+    private int mVbo;
+
+    private final float[] mProjectionMatrix = new float[16];
+    private int mVertexCount;
+    private int mBatchTexture;
+    private boolean mInBatch;
+
+    private int mDrawCalls;
+    private int mSpriteCount;
+
+
+    /**
+     * Prepares the batch in the current EGL context.
+     *
+     * @param maxSprites The number of rectangles that fit in one draw call.  More can be
+     *        drawn; they'll just take more calls.
+     */
+    public SpriteBatch(int maxSprites) {
+        mState = GlState.get();
+        mFlatProgram = new BatchProgram(FRAGMENT_SHADER_FLAT);
+        mTexProgram = new BatchProgram(FRAGMENT_SHADER_2D);
+
+        mMaxVertices = maxSprites * VERTICES_PER_SPRITE;
+        mVertices = new float[mMaxVertices * FLOATS_PER_VERTEX];
+        ByteBuffer bb = ByteBuffer.allocateDirect(mVertices.length * SIZEOF_FLOAT);
+        bb.order(ByteOrder.nativeOrder());
+        mVertexBuffer = bb.asFloatBuffer();
+
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        GlUtil.checkGlError("glGenBuffers");
+        mVbo = buffers[0];
+        Log.d(TAG, "Created sprite batch: " + maxSprites + " sprites, vbo=" + mVbo);
+    }
+
+    /**
+     * Releases GL resources.
+     */
+    public void release() {
+        mFlatProgram.release();
+        mTexProgram.release();
+        if (mVbo != 0) {
+            mState.deleteBuffers(1, new int[] { mVbo }, 0);
+            mVbo = 0;
+        }
+    }
+
+    /**
+     * Starts a batch.
+     *
+     * @param projectionMatrix Projection applied to every sprite.  Copied.
+     */
+    public void begin(float[] projectionMatrix) {
+        if (mInBatch) {
+            throw new IllegalStateException("begin() called twice");
+        }
+        System.arraycopy(projectionMatrix, 0, mProjectionMatrix, 0, 16);
+        mVertexCount = 0;
+        mBatchTexture = FLAT;
+        mDrawCalls = 0;
+        mSpriteCount = 0;
+        mInBatch = true;
+    }
+
+    /**
+     * Adds a sprite, drawn in its flat color.
+     */
+    public void drawFlat(Sprite2d sprite) {
+        add(sprite, FLAT);
+    }
+
+    /**
+     * Adds a sprite, drawn with its texture.
+     */
+    public void drawTextured(Sprite2d sprite) {
+        int texture = sprite.getTexture();
+        if (texture < 0) {
+            throw new IllegalArgumentException("sprite has no texture: " + sprite);
+        }
+        add(sprite, texture);
+    }
+
+    /**
+     * Draws anything still pending and ends the batch.
+     */
+    public void end() {
+        if (!mInBatch) {
+            throw new IllegalStateException("end() without begin()");
+        }
+        flush();
+        mInBatch = false;
+        if (VERBOSE) {
+            Log.d(TAG, "batch: " + mSpriteCount + " sprites in " + mDrawCalls + " calls");
+        }
+    }
+
+    /**
+     * Returns the number of draw calls issued by the last batch (or the current one, so far).
+     */
+    public int getDrawCallCount() {
+        return mDrawCalls;
+    }
+
+    /**
+     * Returns the number of sprites in the last batch (or the current one, so far).
+     */
+    public int getSpriteCount() {
+        return mSpriteCount;
+    }
+
+    /**
+     * Transforms a sprite's vertices and appends them to the pending batch, flushing first
+     * if the texture changes or there's no room.
+     */
+    private void add(Sprite2d sprite, int texture) {
+        if (!mInBatch) {
+            throw new IllegalStateException("draw without begin()");
+        }
+        Drawable2d drawable = sprite.getDrawable();
+        int count = drawable.getVertexCount();
+        int triVertices = (count - 2) * 3;      // triangle strip -> triangle list
+        if (triVertices > mMaxVertices) {
+            throw new IllegalArgumentException("shape too large for batch: " + count);
+        }
+        if (texture != mBatchTexture || mVertexCount + triVertices > mMaxVertices) {
+            flush();
+            mBatchTexture = texture;
+        }
+
+        float[] mv = sprite.getModelViewMatrix();
+        float[] color = sprite.getColor();
+        FloatBuffer pos = drawable.getVertexArray();
+        FloatBuffer tex = drawable.getTexCoordArray();
+        int posStep = drawable.getVertexStride() / SIZEOF_FLOAT;
+        int texStep = drawable.getTexCoordStride() / SIZEOF_FLOAT;
+        float[] out = mVertices;
+        int off = mVertexCount * FLOATS_PER_VERTEX;
+
+        for (int tri = 0; tri < count - 2; tri++) {
+            for (int v = tri; v < tri + 3; v++) {
+                // Only 2D affine transforms, so skip the z and w terms.
+                float x = pos.get(v * posStep);
+                float y = pos.get(v * posStep + 1);
+                out[off++] = mv[0] * x + mv[4] * y + mv[12];
+                out[off++] = mv[1] * x + mv[5] * y + mv[13];
+                out[off++] = tex.get(v * texStep);
+                out[off++] = tex.get(v * texStep + 1);
+                out[off++] = color[0];
+                out[off++] = color[1];
+                out[off++] = color[2];
+                out[off++] = color[3];
+            }
+        }
+        mVertexCount += triVertices;
+        mSpriteCount++;
+    }
+
+    /**
+     * Uploads and draws the pending vertices.
+     */
+    private void flush() {
+        if (mVertexCount == 0) {
+            return;
+        }
+        BatchProgram program = (mBatchTexture == FLAT) ? mFlatProgram : mTexProgram;
+        GlState state = mState;
+
+        state.useProgram(program.mHandle);
+        state.uniformMatrix4fv(program.muMVPMatrixLoc, mProjectionMatrix, 0);
+        if (mBatchTexture != FLAT) {
+            state.activeTexture(GLES20.GL_TEXTURE0);
+            state.bindTexture(GLES20.GL_TEXTURE_2D, mBatchTexture);
+            state.uniform1i(program.muTextureLoc, 0);
+        }
+
+        // Orphan the old storage, then fill the new.
+        int floats = mVertexCount * FLOATS_PER_VERTEX;
+        mVertexBuffer.clear();
+        mVertexBuffer.put(mVertices, 0, floats);
+        mVertexBuffer.position(0);
+        state.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVbo);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertices.length * SIZEOF_FLOAT, null,
+                GLES20.GL_STREAM_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, floats * SIZEOF_FLOAT, mVertexBuffer);
+        GlUtil.checkGlError("glBufferSubData");
+
+        state.setEnabledAttribs(program.mAttribMask);
+        state.vertexAttribPointer(program.maPositionLoc, 2, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE, 0);
+        if (program.maTextureCoordLoc >= 0) {
+            state.vertexAttribPointer(program.maTextureCoordLoc, 2, GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE, TEX_COORD_OFFSET);
+        }
+        if (program.maColorLoc >= 0) {
+            state.vertexAttribPointer(program.maColorLoc, 4, GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE, COLOR_OFFSET);
+        }
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mVertexCount);
+        GlUtil.checkGlError("glDrawArrays");
+
+        mDrawCalls++;
+        mVertexCount = 0;
+    }
+
+    /**
+     * One of the two programs, with its locations.  The compiler drops whichever of
+     * aTextureCoord / aColor the fragment shader doesn't use, so those may be -1.
+     */
+    private static class BatchProgram {
+        int mHandle;
+        int maPositionLoc;
+        int maTextureCoordLoc;
+        int maColorLoc;
+        int muMVPMatrixLoc;
+        int muTextureLoc;
+        int mAttribMask;
+
+        BatchProgram(String fragmentShader) {
+            mHandle = GlUtil.createProgram(VERTEX_SHADER, fragmentShader);
+            if (mHandle == 0) {
+                throw new RuntimeException("Unable to create program");
+            }
+            maPositionLoc = GLES20.glGetAttribLocation(mHandle, "aPosition");
+            GlUtil.checkLocation(maPositionLoc, "aPosition");
+            maTextureCoordLoc = GLES20.glGetAttribLocation(mHandle, "aTextureCoord");
+            maColorLoc = GLES20.glGetAttribLocation(mHandle, "aColor");
+            muMVPMatrixLoc = GLES20.glGetUniformLocation(mHandle, "uMVPMatrix");
+            GlUtil.checkLocation(muMVPMatrixLoc, "uMVPMatrix");
+            muTextureLoc = GLES20.glGetUniformLocation(mHandle, "sTexture");
+
+            mAttribMask = 1 << maPositionLoc;
+            if (maTextureCoordLoc >= 0) {
+                mAttribMask |= 1 << maTextureCoordLoc;
+            }
+            if (maColorLoc >= 0) {
+                mAttribMask |= 1 << maColorLoc;
+            }
+        }
+
+        void release() {
+            GlState.get().deleteProgram(mHandle);
+            mHandle = -1;
+        }
+    }
+}
@@ -12,11 +12,13 @@ import android.opengl.EGLSurface;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
+import android.util.Log;
 import android.view.Surface;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 public class VideoPlayer {
@@ -30,6 +32,7 @@ public class VideoPlayer {
         mVideoPath = videoPath;
         mSurfaces = surfaces;
         mContext = context;
+        ProgramCache.setCacheDir(context.getCacheDir());
         mMediaPlayer = new MediaPlayer();
         mMyGLThread = new MyGLThread(surfaces);
         mMyGLThread.start();
@@ -95,8 +98,10 @@ public class VideoPlayer {
         private FloatBuffer vertexBuffer;
         private FloatBuffer textureBuffer;
         private int program;
+        private int mvpMatrixHandle;
 
         private float[] mvpMatrix = new float[16];
+        private float[] lastMvpMatrix = new float[16];
         private float[] rotationMatrix = new float[16];
         private float[] scaleMatrix = new float[16];
         private float[] translationMatrix = new float[16];
@@ -187,6 +192,26 @@ public class VideoPlayer {
             textureBuffer.position(0);
 
             program = createProgram();
+
+            // This thread only ever draws one thing, with one program and one texture, so
+            // everything but the matrix can be set once here instead of on every frame.
+            GLES20.glUseProgram(program);
+
+            mvpMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
+
+            int positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+            GLES20.glEnableVertexAttribArray(positionHandle);
+            GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 0, vertexBuffer);
+
+            int texCoordHandle = GLES20.glGetAttribLocation(program, "aTexCoord");
+            GLES20.glEnableVertexAttribArray(texCoordHandle);
+            GLES20.glVertexAttribPointer(texCoordHandle, 2, GLES20.GL_FLOAT, false, 0, textureBuffer);
+
+            int textureHandle = GLES20.glGetUniformLocation(program, "sTexture");
+            GLES20.glUniform1i(textureHandle, 0);
+
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
         }
 
         private int createTexture() {
@@ -201,30 +226,20 @@ public class VideoPlayer {
             return textureId;
         }
 
-        private int loadShader(int type, String shaderCode) {
-            int shader = GLES20.glCreateShader(type);
-            GLES20.glShaderSource(shader, shaderCode);
-            GLES20.glCompileShader(shader);
-            return shader;
-        }
-
         private int createProgram() {
-            int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_CODE);
-            int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_CODE);
-
-            int program = GLES20.glCreateProgram();
-            GLES20.glAttachShader(program, vertexShader);
-            GLES20.glAttachShader(program, fragmentShader);
-            GLES20.glLinkProgram(program);
-
+            // Loads the linked binary from an earlier run if there is one; compare the time
+            // on a cold start with a warm one.
+            long startNsec = System.nanoTime();
+            int program = ProgramCache.createProgram(VERTEX_SHADER_CODE, FRAGMENT_SHADER_CODE);
+            Log.d("VideoPlayer", "program setup took " +
+                    (System.nanoTime() - startNsec) / 1000 / 1000.0 + " ms; " +
+                    ProgramCache.getStats());
             return program;
         }
 
         private void drawFrame() {
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
-            GLES20.glUseProgram(program);
-
             // Calculate transformation matrices
             Matrix.setIdentityM(mvpMatrix, 0);
             Matrix.setIdentityM(rotationMatrix, 0);
@@ -238,22 +253,12 @@ public class VideoPlayer {
             Matrix.multiplyMM(mvpMatrix, 0, rotationMatrix, 0, scaleMatrix, 0);
             Matrix.multiplyMM(mvpMatrix, 0, translationMatrix, 0, mvpMatrix, 0);
 
-            int mvpMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
-            GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
-
-            int positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
-            GLES20.glEnableVertexAttribArray(positionHandle);
-            GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 0, vertexBuffer);
-
-            int texCoordHandle = GLES20.glGetAttribLocation(program, "aTexCoord");
-            GLES20.glEnableVertexAttribArray(texCoordHandle);
-            GLES20.glVertexAttribPointer(texCoordHandle, 2, GLES20.GL_FLOAT, false, 0, textureBuffer);
-
-            int textureHandle = GLES20.glGetUniformLocation(program, "sTexture");
-            GLES20.glUniform1i(textureHandle, 0);
-
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+            // The program, attributes, and texture were set up in initGL().  Only upload the
+            // matrix when a gesture has changed it.
+            if (!Arrays.equals(mvpMatrix, lastMvpMatrix)) {
+                GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
+                System.arraycopy(mvpMatrix, 0, lastMvpMatrix, 0, mvpMatrix.length);
+            }
 
             for (EGLSurface eglSurface : eglSurfaces) {
                 EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext);
@@ -263,9 +268,6 @@ public class VideoPlayer {
 
                 EGL14.eglSwapBuffers(eglDisplay, eglSurface);
             }
-
-            GLES20.glDisableVertexAttribArray(positionHandle);
-            GLES20.glDisableVertexAttribArray(texCoordHandle);
         }
 
         public void onSurfaceChanged(int width, int height) {
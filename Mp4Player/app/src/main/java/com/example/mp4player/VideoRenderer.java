@@ -7,6 +7,7 @@ import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.util.Log;
 import android.view.Surface;
 
 import java.nio.ByteBuffer;
@@ -74,6 +75,7 @@ public class VideoRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnF
     };
 
     public VideoRenderer(Context context, GLSurfaceView glSurfaceView) {
+        ProgramCache.setCacheDir(context.getCacheDir());
         mMediaPlayer = MediaPlayer.create(context, R.raw.test);
         mGLSurfaceView = glSurfaceView;
         Matrix.setIdentityM(mMVPMatrix, 0);
@@ -125,13 +127,12 @@ public class VideoRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnF
         mMediaPlayer.setLooping(true);
         mMediaPlayer.start();
 
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
-        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
-
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragmentShader);
-        GLES20.glLinkProgram(mProgram);
+        // 有缓存的程序二进制时直接加载，比较冷启动和热启动的耗时
+        long startNsec = System.nanoTime();
+        mProgram = ProgramCache.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        Log.d("VideoRenderer", "program setup took " +
+                (System.nanoTime() - startNsec) / 1000 / 1000.0 + " ms; " +
+                ProgramCache.getStats());
 
         mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
         mTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
@@ -195,11 +196,4 @@ public class VideoRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnF
     public void scale(float scaleFactor) {
         currentScaleFactor *= scaleFactor;
     }
-
-    private int loadShader(int type, String shaderCode) {
-        int shader = GLES20.glCreateShader(type);
-        GLES20.glShaderSource(shader, shaderCode);
-        GLES20.glCompileShader(shader);
-        return shader;
-    }
 }
\ No newline at end of file
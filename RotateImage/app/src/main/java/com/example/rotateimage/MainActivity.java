@@ -6,6 +6,7 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.os.Bundle;
+import android.util.Log;
 import androidx.appcompat.app.AppCompatActivity;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -21,6 +22,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        ProgramCache.setCacheDir(getCacheDir());  // 缓存链接好的着色器程序，加快下次启动
 
         glSurfaceView = new GLSurfaceView(this);
         glSurfaceView.setEGLContextClientVersion(2);  // 使用OpenGL ES 2.0
@@ -95,15 +97,13 @@ public class MainActivity extends AppCompatActivity {
             GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
             bitmap.recycle();
 
-            // 加载和编译着色器
-            int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
-            int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
-
-            // 创建OpenGL程序并链接
-            int program = GLES20.glCreateProgram();
-            GLES20.glAttachShader(program, vertexShader);
-            GLES20.glAttachShader(program, fragmentShader);
-            GLES20.glLinkProgram(program);
+            // 创建OpenGL程序（有缓存的程序二进制时直接加载，否则编译并链接）
+            long startNsec = System.nanoTime();
+            int program = ProgramCache.createProgram(vertexShaderCode, fragmentShaderCode);
+            // 比较首次启动（编译）和再次启动（加载二进制）的耗时
+            Log.d("RotateImage", "program setup took " +
+                    (System.nanoTime() - startNsec) / 1000 / 1000.0 + " ms; " +
+                    ProgramCache.getStats());
             GLES20.glUseProgram(program);
 
             // 获取并启用顶点属性
@@ -135,14 +135,6 @@ public class MainActivity extends AppCompatActivity {
             GLES20.glDrawElements(GLES20.GL_TRIANGLES, indices.length, GLES20.GL_UNSIGNED_SHORT, indexBuffer);
         }
 
-        // 加载着色器
-        private int loadShader(int type, String shaderCode) {
-            int shader = GLES20.glCreateShader(type);
-            GLES20.glShaderSource(shader, shaderCode);
-            GLES20.glCompileShader(shader);
-            return shader;
-        }
-
         // 顶点着色器代码
         private final String vertexShaderCode =
                 "attribute vec4 vPosition;" +
@@ -0,0 +1,367 @@
+package com.example.rotateimage;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Creates GLES programs, reusing linked program binaries from earlier runs when it can.
+ * <p>
+ * Compiling and linking shaders from source can take tens of milliseconds per program,
+ * and it happens on every launch.  With GLES 3.0 we can ask the driver for the linked
+ * binary, save it, and hand it back next time with glProgramBinary().  Binaries are only
+ * good for the driver that made them, so the cache key is a hash of both shader sources
+ * plus the GL vendor, renderer, and version strings; a driver update changes the key.  The
+ * driver may still reject a binary (it's allowed to for any reason), in which case we
+ * delete it and compile from source.
+ * <p>
+ * Without GLES 3.0, or before {@link #setCacheDir(File)} is called, this just compiles.
+ * <p>
+ * Each call logs how long the program took, and whether it came from a binary, so the
+ * cold-start (compile) and warm-start (binary) costs can be compared in logcat.  The
+ * running totals are available from {@link #getStats()}.
+ * <p>
+ * Must be called with an EGL context current.  Thread-safe.
+ */
+public final class ProgramCache {
+    private static final String TAG = "ProgramCache";
+    private static final boolean VERBOSE = false;
+
+    private static final int MAGIC = 0x50726f67;    // "Prog"
+    private static final int VERSION = 1;
+
+    private static final Object sLock = new Object();
+    private static File sCacheDir;
+
+    // Stats, guarded by sLock.
+    private static int sBinaryLoads;
+    private static int sCompiles;
+    private static int sRejects;
+    private static long sBinaryNsec;
+    private static long sCompileNsec;
+
+    private ProgramCache() {}   // do not instantiate
+
+    /**
+     * Sets the directory that program binaries are kept in.  Until this is called, programs
+     * are always compiled from source.
+     */
+    public static void setCacheDir(File cacheDir) {
+        synchronized (sLock) {
+            sCacheDir = cacheDir;
+        }
+    }
+
+    /**
+     * Creates a new program from the supplied vertex and fragment shaders, or from a saved
+     * binary of the same program.
+     *
+     * @return A handle to the program, or 0 on failure.
+     */
+    public static int createProgram(String vertexSource, String fragmentSource) {
+        long startNsec = System.nanoTime();
+        File cacheFile = null;
+        if (supportsBinaries()) {
+            File cacheDir;
+            synchronized (sLock) {
+                cacheDir = sCacheDir;
+            }
+            if (cacheDir != null) {
+                cacheFile = new File(cacheDir, "prog-" + getKey(vertexSource, fragmentSource));
+            }
+        }
+
+        if (cacheFile != null && cacheFile.exists()) {
+            int program = loadBinary(cacheFile);
+            if (program != 0) {
+                long elapsedNsec = System.nanoTime() - startNsec;
+                Log.d(TAG, "Program " + cacheFile.getName() + " loaded from binary in " +
+                        (elapsedNsec / 1000) / 1000.0 + " ms");
+                synchronized (sLock) {
+                    sBinaryLoads++;
+                    sBinaryNsec += elapsedNsec;
+                }
+                return program;
+            }
+            Log.w(TAG, "Driver rejected program binary " + cacheFile + ", recompiling");
+            cacheFile.delete();
+            synchronized (sLock) {
+                sRejects++;
+            }
+        }
+
+        int program = compileProgram(vertexSource, fragmentSource, cacheFile != null);
+        if (program != 0 && cacheFile != null) {
+            saveBinary(program, cacheFile);
+        }
+        long elapsedNsec = System.nanoTime() - startNsec;
+        Log.d(TAG, "Program compiled from source in " + (elapsedNsec / 1000) / 1000.0 + " ms" +
+                (cacheFile != null ? " (saved as " + cacheFile.getName() + ")" : ""));
+        synchronized (sLock) {
+            sCompiles++;
+            sCompileNsec += elapsedNsec;
+        }
+        return program;
+    }
+
+    /**
+     * Returns a summary of the programs created so far, and what they cost.
+     */
+    public static String getStats() {
+        synchronized (sLock) {
+            return "programs: binary=" + sBinaryLoads + " (" + sBinaryNsec / 1000000 + " ms)" +
+                    " compiled=" + sCompiles + " (" + sCompileNsec / 1000000 + " ms)" +
+                    " rejected=" + sRejects;
+        }
+    }
+
+    /**
+     * Compiles and links a program.  If retrievable is set, the driver is told that we'll
+     * be asking for the binary.
+     *
+     * @return A handle to the program, or 0 on failure.
+     */
+    private static int compileProgram(String vertexSource, String fragmentSource,
+            boolean retrievable) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        if (vertexShader == 0) {
+            return 0;
+        }
+        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (pixelShader == 0) {
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        checkGlError("glCreateProgram");
+        if (program == 0) {
+            Log.e(TAG, "Could not create program");
+        }
+        GLES20.glAttachShader(program, vertexShader);
+        checkGlError("glAttachShader");
+        GLES20.glAttachShader(program, pixelShader);
+        checkGlError("glAttachShader");
+        if (retrievable) {
+            setRetrievableHint(program);
+        }
+        GLES20.glLinkProgram(program);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            Log.e(TAG, "Could not link program: ");
+            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            program = 0;
+        }
+        return program;
+    }
+
+    /**
+     * Compiles the provided shader source.
+     *
+     * @return A handle to the shader, or 0 on failure.
+     */
+    private static int loadShader(int shaderType, String source) {
+        int shader = GLES20.glCreateShader(shaderType);
+        checkGlError("glCreateShader type=" + shaderType);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.e(TAG, "Could not compile shader " + shaderType + ":");
+            Log.e(TAG, " " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            shader = 0;
+        }
+        return shader;
+    }
+
+    /**
+     * Checks to see if a GLES error has been raised.
+     */
+    private static void checkGlError(String op) {
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            String msg = op + ": glError 0x" + Integer.toHexString(error);
+            Log.e(TAG, msg);
+            throw new RuntimeException(msg);
+        }
+    }
+
+    /**
+     * Returns true if the current context can save and load program binaries.
+     */
+    private static boolean supportsBinaries() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        // "OpenGL ES N.M vendor-specific-info"
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES ") || version.length() < 11 ||
+                version.charAt(10) < '3') {
+            return false;
+        }
+        return getNumBinaryFormats() > 0;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static int getNumBinaryFormats() {
+        int[] values = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, values, 0);
+        return values[0];
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void setRetrievableHint(int program) {
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                GLES20.GL_TRUE);
+    }
+
+    /**
+     * Creates a program from a saved binary.
+     *
+     * @return A handle to the program, or 0 if the binary couldn't be read or was rejected.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static int loadBinary(File cacheFile) {
+        int format;
+        ByteBuffer binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return 0;
+            }
+            format = in.readInt();
+            int length = in.readInt();
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            binary.put(bytes).position(0);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to read program binary " + cacheFile, ioe);
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+
+        int program = GLES20.glCreateProgram();
+        checkGlError("glCreateProgram");
+        GLES30.glProgramBinary(program, format, binary, binary.capacity());
+        // A rejected binary may raise GL_INVALID_ENUM; the link status is what counts.
+        GLES20.glGetError();
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            if (VERBOSE) Log.d(TAG, "glProgramBinary: " + GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * Saves the binary of a linked program.  Failures are logged and otherwise ignored;
+     * we'll just compile again next time.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void saveBinary(int program, File cacheFile) {
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0) {
+            if (VERBOSE) Log.d(TAG, "Driver has no binary for program");
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        int[] lengthOut = new int[1];
+        int[] formatOut = new int[1];
+        GLES30.glGetProgramBinary(program, length, lengthOut, 0, formatOut, 0, binary);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || lengthOut[0] <= 0) {
+            Log.w(TAG, "glGetProgramBinary failed");
+            return;
+        }
+        byte[] bytes = new byte[lengthOut[0]];
+        binary.get(bytes);
+
+        // Write to a temporary file and rename, so a reader never sees a partial file.
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(cacheFile.getName(), ".tmp",
+                    cacheFile.getParentFile());
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(formatOut[0]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(cacheFile)) {
+                throw new IOException("rename to " + cacheFile + " failed");
+            }
+            tmpFile = null;
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to save program binary " + cacheFile, ioe);
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the cache key for a program: a hash of its sources and the GL driver strings.
+     */
+    private static String getKey(String vertexSource, String fragmentSource) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);   // every Android device has SHA-1
+        }
+        String[] parts = {
+                vertexSource, fragmentSource,
+                GLES20.glGetString(GLES20.GL_VENDOR),
+                GLES20.glGetString(GLES20.GL_RENDERER),
+                GLES20.glGetString(GLES20.GL_VERSION)
+        };
+        for (String part : parts) {
+            if (part != null) {
+                digest.update(part.getBytes());
+            }
+            digest.update((byte) 0);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            sb.append(String.format("%02x", hash[i] & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.grafika;
 
 import android.opengl.EGL14;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Build;
@@ -37,11 +38,18 @@ import android.widget.Button;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.widget.Toast;
 
+import com.android.grafika.gles.Effect;
+import com.android.grafika.gles.EffectChain;
+import com.android.grafika.gles.FilterGraph;
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.FusedEffectCache;
+import com.android.grafika.gles.FusedEffectPass;
+import com.android.grafika.gles.GlState;
 import com.android.grafika.gles.Texture2dProgram;
 
 import java.io.File;
@@ -137,6 +145,10 @@ public class CameraCaptureActivity extends Activity
     static final int FILTER_SHARPEN = 3;
     static final int FILTER_EDGE_DETECT = 4;
     static final int FILTER_EMBOSS = 5;
+    static final int FILTER_BLUR_LARGE = 6;
+    static final int FILTER_BLUR_PYRAMID = 7;
+    static final int FILTER_STACK_SHARPEN_BW_VIGNETTE = 8;
+    static final int FILTER_STACK_LUT_VIGNETTE = 9;
 
     private GLSurfaceView mGLView;
     private CameraSurfaceRenderer mRenderer;
@@ -176,7 +188,11 @@ public class CameraCaptureActivity extends Activity
         // Configure the GLSurfaceView.  This will start the Renderer thread, with an
         // appropriate EGL context.
         mGLView = (GLSurfaceView) findViewById(R.id.cameraPreview_surfaceView);
-        mGLView.setEGLContextClientVersion(2);     // select GLES 2.0
+        // Ask for GLES 3 where the device has it, so the multi-pass filters can use timer
+        // queries.  The shaders are all GLES 2, which GLES 3 accepts.
+        ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        int glesVersion = (am.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000) ? 3 : 2;
+        mGLView.setEGLContextClientVersion(glesVersion);
         mRenderer = new CameraSurfaceRenderer(mCameraHandler, sVideoEncoder, outputFile);
         mGLView.setRenderer(mRenderer);
         mGLView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
@@ -472,11 +488,18 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private static final int RECORDING_ON = 1;
     private static final int RECORDING_RESUMED = 2;
 
+    // How often to log the filter graph's per-pass GPU times.
+    private static final int TIMING_REPORT_FRAMES = 300;
+
     private CameraCaptureActivity.CameraHandler mCameraHandler;
     private TextureMovieEncoder mVideoEncoder;
     private File mOutputFile;
 
     private FullFrameRect mFullScreen;
+    private FilterGraph mFilterGraph;       // non-null for the multi-pass filters
+    private FusedEffectCache mEffectCache;
+    private FusedEffectPass mEffectPass;    // non-null for the stacked effects
+    private int mLutTexture;
 
     private final float[] mSTMatrix = new float[16];
     private int mTextureId;
@@ -485,12 +508,17 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private boolean mRecordingEnabled;
     private int mRecordingStatus;
     private int mFrameCount;
+    private int mGraphFrameCount;
 
     // width/height of the incoming camera preview frames
     private boolean mIncomingSizeUpdated;
     private int mIncomingWidth;
     private int mIncomingHeight;
 
+    // width/height of the GLSurfaceView
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+
     private int mCurrentFilter;
     private int mNewFilter;
 
@@ -537,6 +565,11 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
             mFullScreen = null;             //  to be destroyed
         }
+        mFilterGraph = null;                // same
+        mEffectCache = null;
+        mEffectPass = null;
+        mLutTexture = 0;
+        mCurrentFilter = -1;                // rebuild the filter in the new context
         mIncomingWidth = mIncomingHeight = -1;
     }
 
@@ -562,6 +595,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         Texture2dProgram.ProgramType programType;
         float[] kernel = null;
         float colorAdj = 0.0f;
+        FilterGraph filterGraph = null;
+        EffectChain effectChain = null;
 
         Log.d(TAG, "Updating filter to " + mNewFilter);
         switch (mNewFilter) {
@@ -603,6 +638,44 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                         0f, 0f, -1f };
                 colorAdj = 0.5f;
                 break;
+            case CameraCaptureActivity.FILTER_BLUR_LARGE:
+                // Full-resolution separable Gaussian, radius 12.  The horizontal pass reads
+                // the camera texture directly and takes 25 fetches per pixel; the vertical
+                // pass pairs up texels and takes 13.  A 25x25 kernel in one pass would take
+                // 625.
+                programType = Texture2dProgram.ProgramType.TEXTURE_EXT;
+                filterGraph = new FilterGraph().addGaussianBlur(12);
+                break;
+            case CameraCaptureActivity.FILTER_BLUR_PYRAMID:
+                // Halve three times, blur, and scale back up.  About the same radius as a
+                // 96-texel kernel, for a fraction of the cost of the one above.
+                programType = Texture2dProgram.ProgramType.TEXTURE_EXT;
+                filterGraph = new FilterGraph().addPyramidBlur(3, 12);
+                break;
+            case CameraCaptureActivity.FILTER_STACK_SHARPEN_BW_VIGNETTE:
+                // Three effects, fused into one shader and drawn in one pass.
+                programType = Texture2dProgram.ProgramType.TEXTURE_EXT;
+                effectChain = new EffectChain()
+                        .add(new Effect.Convolution(new float[] {
+                                0f, -1f, 0f,
+                                -1f, 5f, -1f,
+                                0f, -1f, 0f }, 0f))
+                        .add(Effect.ColorMatrix.blackWhite())
+                        .add(new Effect.Vignette(0.3f, 0.75f, 0.8f));
+                break;
+            case CameraCaptureActivity.FILTER_STACK_LUT_VIGNETTE:
+                // A "warm, faded" look from tone curves in a lookup table, plus a vignette.
+                programType = Texture2dProgram.ProgramType.TEXTURE_EXT;
+                if (mLutTexture == 0) {
+                    mLutTexture = Effect.Lut.createCurvesTexture(
+                            new float[] { 0.08f, 0.42f, 0.78f, 1.0f },
+                            new float[] { 0.05f, 0.33f, 0.70f, 0.95f },
+                            new float[] { 0.12f, 0.28f, 0.56f, 0.82f });
+                }
+                effectChain = new EffectChain()
+                        .add(new Effect.Lut(mLutTexture, 1.0f))
+                        .add(new Effect.Vignette(0.35f, 0.8f, 0.6f));
+                break;
             default:
                 throw new RuntimeException("Unknown filter mode " + mNewFilter);
         }
@@ -620,6 +693,20 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen.getProgram().setKernel(kernel, colorAdj);
         }
 
+        // Swap the filter graph (if any).
+        if (mFilterGraph != null) {
+            mFilterGraph.release();
+        }
+        mFilterGraph = filterGraph;
+
+        // Pick up the fused effect pass (if any).  The cache keeps the programs, so going
+        // back to a chain we've used before doesn't compile anything.
+        if (effectChain != null) {
+            mEffectPass = mEffectCache.getPass(effectChain);
+        } else {
+            mEffectPass = null;
+        }
+
         mCurrentFilter = mNewFilter;
     }
 
@@ -641,6 +728,9 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
         Log.d(TAG, "onSurfaceCreated");
 
+        // GLSurfaceView manages the context, so tell GlState it may be a fresh one.
+        GlState.get().invalidate();
+
         // We're starting up or coming back.  Either way we've got a new EGLContext that will
         // need to be shared with the video encoder, so figure out if a recording is already
         // in progress.
@@ -658,6 +748,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
 
         mTextureId = mFullScreen.createTextureObject();
 
+        mEffectCache = new FusedEffectCache();
+
         // Create a SurfaceTexture, with an external texture, in this EGL context.  We don't
         // have a Looper in this thread -- GLSurfaceView doesn't create one -- so the frame
         // available messages will arrive on the main thread.
@@ -671,6 +763,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         Log.d(TAG, "onSurfaceChanged " + width + "x" + height);
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR1)
@@ -752,7 +846,21 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
 
         // Draw the video frame.
         mSurfaceTexture.getTransformMatrix(mSTMatrix);
-        mFullScreen.drawFrame(mTextureId, mSTMatrix);
+        if (mFilterGraph != null) {
+            mFilterGraph.draw(mTextureId, GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mSTMatrix,
+                    mIncomingWidth, mIncomingHeight, mSurfaceWidth, mSurfaceHeight);
+            if (++mGraphFrameCount % TIMING_REPORT_FRAMES == 0) {
+                String report = mFilterGraph.getTimingReport();
+                if (report != null) {
+                    Log.d(TAG, "Filter GPU time (ms): " + report);
+                }
+            }
+        } else if (mEffectPass != null) {
+            mEffectPass.draw(GlState.get(), mTextureId, GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    mSTMatrix, mIncomingWidth, mIncomingHeight);
+        } else {
+            mFullScreen.drawFrame(mTextureId, mSTMatrix);
+        }
 
         // Draw a flashing box if we're recording.  This only appears on screen.
         showBox = (mRecordingStatus == RECORDING_ON);
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records audio from the microphone, encodes it as AAC, and keeps it in a circular buffer.
+ * <p>
+ * This is the audio half of {@link CircularEncoder}.  It runs its own thread, which reads
+ * PCM from an AudioRecord, feeds it to the encoder, and drains the encoded output into a
+ * CircularEncoderBuffer.  Every AAC frame can be decoded on its own, so all packets are
+ * marked as sync frames.
+ * <p>
+ * Presentation time stamps are on the System.nanoTime() time base, which uses the same
+ * clock as the camera's SurfaceTexture timestamps on most devices, so audio and video line
+ * up.  The clock is read once, at the first read; after that each buffer's time comes from
+ * the number of samples read so far, so scheduling jitter around AudioRecord.read() doesn't
+ * make the time stamps wander.
+ */
+public class CircularAudioEncoder {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String MIME_TYPE = "audio/mp4a-latm";    // AAC
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
+    private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int BIT_RATE = 64000;
+    private static final int BYTES_PER_FRAME = 1024 * 2;    // one AAC frame of 16-bit mono
+
+    private AudioRecord mAudioRecord;
+    private MediaCodec mEncoder;
+    private CircularEncoderBuffer mEncBuffer;
+    private Thread mThread;
+    private volatile boolean mStopRequested;
+    private volatile MediaFormat mEncodedFormat;
+
+    /**
+     * Configures the encoder and the audio source, and starts recording.
+     *
+     * @param desiredSpanSec How many seconds of audio we want to have in our buffer.
+     */
+    public CircularAudioEncoder(int desiredSpanSec) throws IOException {
+        // AAC produces one packet per 1024 samples.  Round the packet rate up so the
+        // meta-data never runs out before the data does.
+        int packetRate = (SAMPLE_RATE + 1023) / 1024;
+        mEncBuffer = new CircularEncoderBuffer(BIT_RATE, packetRate, desiredSpanSec);
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, BYTES_PER_FRAME);
+        if (VERBOSE) Log.d(TAG, "audio format: " + format);
+
+        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder.start();
+
+        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG,
+                AUDIO_FORMAT);
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, SAMPLE_RATE,
+                CHANNEL_CONFIG, AUDIO_FORMAT, Math.max(minBufferSize, BYTES_PER_FRAME * 8));
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            release();
+            throw new IOException("Unable to initialize AudioRecord");
+        }
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recordLoop();
+            }
+        }, "CircularAudioEncoder");
+        mThread.start();
+    }
+
+    /**
+     * Returns the circular buffer that holds the encoded audio.
+     */
+    public CircularEncoderBuffer getBuffer() {
+        return mEncBuffer;
+    }
+
+    /**
+     * Returns the encoder's output format, or null if the encoder hasn't produced one yet.
+     */
+    public MediaFormat getEncodedFormat() {
+        return mEncodedFormat;
+    }
+
+    /**
+     * Stops recording, and releases the encoder and audio source.
+     * <p>
+     * Does not return until the recording thread has stopped.
+     */
+    public void shutdown() {
+        mStopRequested = true;
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Audio thread join() was interrupted", ie);
+        }
+        release();
+    }
+
+    private void release() {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        if (mEncoder != null) {
+            mEncoder.stop();
+            mEncoder.release();
+            mEncoder = null;
+        }
+    }
+
+    /**
+     * Reads from the AudioRecord, feeds the encoder, and drains its output until we're
+     * told to stop.  Runs on the audio thread.
+     */
+    private void recordLoop() {
+        final int TIMEOUT_USEC = 10000;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
+        long anchorUsec = -1;           // capture time of the first sample
+        long totalSamples = 0;
+
+        mAudioRecord.startRecording();
+        while (!mStopRequested) {
+            int inputIndex = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+            if (inputIndex >= 0) {
+                ByteBuffer inputBuf = inputBuffers[inputIndex];
+                inputBuf.clear();
+                int len = mAudioRecord.read(inputBuf, Math.min(BYTES_PER_FRAME,
+                        inputBuf.capacity()));
+                if (len < 0) {
+                    Log.w(TAG, "AudioRecord.read failed: " + len);
+                    len = 0;
+                }
+                int samples = len / 2;
+                if (anchorUsec < 0) {
+                    // The first read just finished, so its first sample was captured one
+                    // buffer's duration ago.
+                    anchorUsec = System.nanoTime() / 1000 - samples * 1000000L / SAMPLE_RATE;
+                }
+                long ptsUsec = anchorUsec + totalSamples * 1000000L / SAMPLE_RATE;
+                totalSamples += samples;
+                mEncoder.queueInputBuffer(inputIndex, 0, len, ptsUsec, 0);
+            }
+            drainEncoder(info);
+        }
+        mAudioRecord.stop();
+        if (VERBOSE) Log.d(TAG, "audio thread exiting");
+    }
+
+    /**
+     * Drains all pending output from the encoder, and adds it to the circular buffer.
+     */
+    private void drainEncoder(MediaCodec.BufferInfo info) {
+        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+        while (true) {
+            int encoderStatus = mEncoder.dequeueOutputBuffer(info, 0);
+            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                encoderOutputBuffers = mEncoder.getOutputBuffers();
+            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mEncodedFormat = mEncoder.getOutputFormat();
+                Log.d(TAG, "audio encoder output format changed: " + mEncodedFormat);
+            } else if (encoderStatus < 0) {
+                Log.w(TAG, "unexpected result from audio encoder.dequeueOutputBuffer: " +
+                        encoderStatus);
+            } else {
+                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Already captured in the output format as csd-0.
+                    info.size = 0;
+                }
+                if (info.size != 0) {
+                    encodedData.position(info.offset);
+                    encodedData.limit(info.offset + info.size);
+                    mEncBuffer.add(encodedData,
+                            info.flags | MediaCodec.BUFFER_FLAG_SYNC_FRAME,
+                            info.presentationTimeUs);
+                }
+                mEncoder.releaseOutputBuffer(encoderStatus, false);
+            }
+        }
+    }
+}
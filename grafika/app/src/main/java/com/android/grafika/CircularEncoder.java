@@ -45,8 +45,14 @@ import java.nio.ByteBuffer;
  * the head of the list and the next sync frame, or have the file save function know that
  * it needs to scan forward for a sync frame before it can start saving data.
  * <p>
- * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * When we're told to save a snapshot, we pin the buffered frames and hand them to a
+ * separate thread, which creates a MediaMuxer and writes them out.  The encoder thread
+ * keeps draining the codec into the circular buffer while that happens.
+ * <p>
+ * Audio can optionally be recorded alongside the video, by a {@link CircularAudioEncoder}
+ * with its own circular buffer.  Audio older than the oldest buffered video sync frame is
+ * discarded, so both tracks cover the same span, and the save interleaves the two by
+ * presentation time starting at a video sync frame.
  */
 public class CircularEncoder {
     private static final String TAG = MainActivity.TAG;
@@ -58,6 +64,9 @@ public class CircularEncoder {
     private EncoderThread mEncoderThread;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
+    private CircularEncoderBuffer mEncBuffer;
+    private CircularAudioEncoder mAudioEncoder;
+    private final EncoderStats mStats = new EncoderStats("CircularEncoder");
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
@@ -65,7 +74,7 @@ public class CircularEncoder {
     public interface Callback {
         /**
          * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * output file.  May be called on the encoder thread or on the file save thread.
          *
          * @param status Zero means success, nonzero indicates failure.
          */
@@ -90,6 +99,27 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
             Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, null, false, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     * <p>
+     * If a backing file is provided, the encoded video is held in a memory-mapped view of
+     * it rather than on the heap.  Use this for long spans at high bit rates.
+     * <p>
+     * Recording audio requires the RECORD_AUDIO permission.
+     *
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param backingFile File to hold the buffered video, or null to use the heap.
+     * @param recordAudio If set, record an audio track from the microphone as well.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            File backingFile, boolean recordAudio, Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -104,7 +134,8 @@ public class CircularEncoder {
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
         CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
-                desiredSpanSec);
+                desiredSpanSec, backingFile);
+        mEncBuffer = encBuffer;
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -124,9 +155,13 @@ public class CircularEncoder {
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
 
+        if (recordAudio) {
+            mAudioEncoder = new CircularAudioEncoder(desiredSpanSec);
+        }
+
         // Start the encoder thread last.  That way we're sure it can see all of the state
         // we've initialized.
-        mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb);
+        mEncoderThread = new EncoderThread(mEncoder, encBuffer, mAudioEncoder, mStats, cb);
         mEncoderThread.start();
         mEncoderThread.waitUntilReady();
     }
@@ -159,6 +194,14 @@ public class CircularEncoder {
             mEncoder.release();
             mEncoder = null;
         }
+        if (mAudioEncoder != null) {
+            mAudioEncoder.shutdown();
+            mAudioEncoder = null;
+        }
+        if (mEncBuffer != null) {
+            mEncBuffer.release();
+            mEncBuffer = null;
+        }
     }
 
     /**
@@ -181,19 +224,76 @@ public class CircularEncoder {
                 EncoderThread.EncoderHandler.MSG_FRAME_AVAILABLE_SOON));
     }
 
+    /**
+     * Notifies the encoder statistics that a frame was just submitted to the input surface.
+     * Call right after swapBuffers(), from the thread that called it.
+     *
+     * @param presentationTimeNsec The time stamp passed to setPresentationTime().
+     */
+    public void frameSubmitted(long presentationTimeNsec) {
+        mStats.frameSubmitted(presentationTimeNsec);
+    }
+
+    /**
+     * Returns the encoder statistics.  Safe to call from any thread.
+     */
+    public EncoderStats getStats() {
+        return mStats;
+    }
+
     /**
      * Initiates saving the currently-buffered frames to the specified output file.  The
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file generation is performed on a separate thread, so the encoder keeps draining
+     * while it runs.  Only one save may be in progress at a time.
      */
     public void saveVideo(File outputFile) {
+        saveVideo(outputFile, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Initiates saving the buffered frames in a time range, expressed as presentation time
+     * stamps.  The saved video starts at the sync frame at or before startPtsUsec, so it
+     * may begin a little early.  Otherwise behaves like {@link #saveVideo(File)}.
+     */
+    public void saveVideo(File outputFile, long startPtsUsec, long endPtsUsec) {
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(
-                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, startPtsUsec, endPtsUsec, 0)));
+    }
+
+    /**
+     * Initiates saving the most recent frames, covering at least the requested duration
+     * (the save starts at a sync frame).  Otherwise behaves like {@link #saveVideo(File)}.
+     */
+    public void saveLastVideo(File outputFile, long durationUsec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, 0, Long.MAX_VALUE, durationUsec)));
+    }
+
+    /**
+     * Parameters for a file save, passed to the encoder thread.
+     * <p>
+     * If durationUsec is nonzero, the start time is computed from the newest buffered frame
+     * when the request is handled.
+     */
+    private static class SaveRequest {
+        final File mOutputFile;
+        final long mStartPtsUsec;
+        final long mEndPtsUsec;
+        final long mDurationUsec;
+
+        SaveRequest(File outputFile, long startPtsUsec, long endPtsUsec, long durationUsec) {
+            mOutputFile = outputFile;
+            mStartPtsUsec = startPtsUsec;
+            mEndPtsUsec = endPtsUsec;
+            mDurationUsec = durationUsec;
+        }
     }
 
     /**
@@ -203,9 +303,9 @@ public class CircularEncoder {
      * arrives at the encoder, because the other thread is sending frames directly to the
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
-     * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * calling app wake us.  Buffer management is local to this thread; the only other
+     * reader is the file save thread, which works from a pinned snapshot.  So, it's best to
+     * sleep on an object and do something appropriate when awakened.
      * <p>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
      * should be fully started before the thread is created, and not shut down until this
@@ -218,16 +318,22 @@ public class CircularEncoder {
 
         private EncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
+        private CircularAudioEncoder mAudioEncoder;     // may be null
+        private EncoderStats mStats;
         private CircularEncoder.Callback mCallback;
         private int mFrameNum;
+        private Thread mSaveThread;
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
         public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
+                CircularAudioEncoder audioEncoder, EncoderStats stats,
                 CircularEncoder.Callback callback) {
             mEncoder = mediaCodec;
             mEncBuffer = encBuffer;
+            mAudioEncoder = audioEncoder;
+            mStats = stats;
             mCallback = callback;
 
             mBufferInfo = new MediaCodec.BufferInfo();
@@ -291,9 +397,11 @@ public class CircularEncoder {
         public void drainEncoder() {
             final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
 
+            mStats.drainStarted();
             ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
             while (true) {
                 int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                mStats.dequeueResult(encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER);
                 if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                     break;
@@ -333,8 +441,11 @@ public class CircularEncoder {
                         encodedData.position(mBufferInfo.offset);
                         encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                        mEncBuffer.add(encodedData, mBufferInfo.flags,
-                                mBufferInfo.presentationTimeUs);
+                        mStats.frameEncoded(mBufferInfo.presentationTimeUs, mBufferInfo.size);
+                        if (!mEncBuffer.add(encodedData, mBufferInfo.flags,
+                                mBufferInfo.presentationTimeUs)) {
+                            mStats.frameDropped();
+                        }
 
                         if (VERBOSE) {
                             Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
@@ -350,6 +461,7 @@ public class CircularEncoder {
                     }
                 }
             }
+            mStats.drainFinished();
         }
 
         /**
@@ -361,6 +473,14 @@ public class CircularEncoder {
             if (VERBOSE) Log.d(TAG, "frameAvailableSoon");
             drainEncoder();
 
+            if (mAudioEncoder != null) {
+                // Audio from before the oldest video sync frame can never be saved.
+                long firstPtsUsec = mEncBuffer.getFirstSyncPtsUsec();
+                if (firstPtsUsec >= 0) {
+                    mAudioEncoder.getBuffer().discardBefore(firstPtsUsec);
+                }
+            }
+
             mFrameNum++;
             if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
                 mCallback.bufferStatus(mEncBuffer.computeTimeSpanUsec());
@@ -368,65 +488,70 @@ public class CircularEncoder {
         }
 
         /**
-         * Saves the encoder output to a .mp4 file.
+         * Starts saving the encoder output to a .mp4 file.
          * <p>
-         * We'll drain the encoder to get any lingering data, but we're not going to shut
-         * the encoder down or use other tricks to try to "flush" the encoder.  This may
-         * mean we miss the last couple of submitted frames if they're still working their
-         * way through.
+         * We're not going to shut the encoder down or use other tricks to try to "flush"
+         * the encoder.  This may mean we miss the last couple of submitted frames if they're
+         * still working their way through.
          * <p>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * The buffered frames are pinned in a snapshot and written by a SaveTask on its own
+         * thread, so we can return to draining the encoder right away.  If the buffer fills
+         * while the save is running, new frames are dropped rather than evicting ones the
+         * SaveTask hasn't written yet.
          */
-        void saveVideo(File outputFile) {
+        void saveVideo(SaveRequest request) {
+            File outputFile = request.mOutputFile;
             if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
 
-            int index = mEncBuffer.getFirstIndex();
+            long startPtsUsec = request.mStartPtsUsec;
+            if (request.mDurationUsec != 0) {
+                startPtsUsec = mEncBuffer.getLastPtsUsec() - request.mDurationUsec;
+            }
+            int index = mEncBuffer.beginSnapshot(startPtsUsec, request.mEndPtsUsec);
             if (index < 0) {
                 Log.w(TAG, "Unable to get first index");
                 mCallback.fileSaveComplete(1);
                 return;
             }
 
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            MediaMuxer muxer = null;
-            int result = -1;
-            try {
-                muxer = new MediaMuxer(outputFile.getPath(),
-                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
-                muxer.start();
-
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
-                    if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
-                    }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
-                result = 0;
-            } catch (IOException ioe) {
-                Log.w(TAG, "muxer failed", ioe);
-                result = 2;
-            } finally {
-                if (muxer != null) {
-                    muxer.stop();
-                    muxer.release();
+            // Pin the audio that goes with the video.  If there isn't any yet, save the video
+            // by itself.
+            CircularEncoderBuffer audioBuffer = null;
+            MediaFormat audioFormat = null;
+            int audioIndex = -1;
+            if (mAudioEncoder != null && mAudioEncoder.getEncodedFormat() != null) {
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                mEncBuffer.getChunk(index, info);
+                audioBuffer = mAudioEncoder.getBuffer();
+                audioIndex = audioBuffer.beginSnapshot(info.presentationTimeUs,
+                        mEncBuffer.getSnapshotLastPtsUsec());
+                if (audioIndex >= 0) {
+                    audioFormat = mAudioEncoder.getEncodedFormat();
+                } else {
+                    Log.w(TAG, "no audio available for save");
+                    audioBuffer = null;
                 }
             }
 
-            if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
-            }
-            mCallback.fileSaveComplete(result);
+            SaveTask task = new SaveTask(mEncBuffer, mEncodedFormat, index,
+                    audioBuffer, audioFormat, audioIndex, outputFile, mCallback);
+            mSaveThread = new Thread(task, "CircularEncoder save");
+            mSaveThread.start();
         }
 
         /**
-         * Tells the Looper to quit.
+         * Tells the Looper to quit.  Waits for any file save in progress to finish first.
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            if (mSaveThread != null) {
+                try {
+                    mSaveThread.join();
+                } catch (InterruptedException ie) {
+                    Log.w(TAG, "Save thread join() was interrupted", ie);
+                }
+                mSaveThread = null;
+            }
             Looper.myLooper().quit();
         }
 
@@ -470,7 +595,7 @@ public class CircularEncoder {
                         encoderThread.frameAvailableSoon();
                         break;
                     case MSG_SAVE_VIDEO:
-                        encoderThread.saveVideo((File) msg.obj);
+                        encoderThread.saveVideo((SaveRequest) msg.obj);
                         break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
@@ -481,4 +606,103 @@ public class CircularEncoder {
             }
         }
     }
+
+    /**
+     * Writes a pinned snapshot of the circular buffer to a .mp4 file.
+     * <p>
+     * If an audio snapshot is provided, audio and video samples are interleaved in
+     * presentation time order.
+     * <p>
+     * Runs on its own thread.  Releases the snapshots when done, whether or not the write
+     * succeeded.
+     */
+    private static class SaveTask implements Runnable {
+        private final CircularEncoderBuffer mEncBuffer;
+        private final MediaFormat mEncodedFormat;
+        private final int mFirstIndex;
+        private final CircularEncoderBuffer mAudioBuffer;   // may be null
+        private final MediaFormat mAudioFormat;
+        private final int mAudioFirstIndex;
+        private final File mOutputFile;
+        private final CircularEncoder.Callback mCallback;
+
+        public SaveTask(CircularEncoderBuffer encBuffer, MediaFormat encodedFormat,
+                int firstIndex, CircularEncoderBuffer audioBuffer, MediaFormat audioFormat,
+                int audioFirstIndex, File outputFile, CircularEncoder.Callback callback) {
+            mEncBuffer = encBuffer;
+            mEncodedFormat = encodedFormat;
+            mFirstIndex = firstIndex;
+            mAudioBuffer = audioBuffer;
+            mAudioFormat = audioFormat;
+            mAudioFirstIndex = audioFirstIndex;
+            mOutputFile = outputFile;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
+            MediaMuxer muxer = null;
+            int index = mFirstIndex;
+            int audioIndex = mAudioBuffer != null ? mAudioFirstIndex : -1;
+            int result = -1;
+            try {
+                muxer = new MediaMuxer(mOutputFile.getPath(),
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                int videoTrack = muxer.addTrack(mEncodedFormat);
+                int audioTrack = -1;
+                if (audioIndex >= 0) {
+                    audioTrack = muxer.addTrack(mAudioFormat);
+                }
+                muxer.start();
+
+                ByteBuffer buf = mEncBuffer.getChunk(index, info);
+                ByteBuffer audioBuf = null;
+                if (audioIndex >= 0) {
+                    audioBuf = mAudioBuffer.getChunk(audioIndex, audioInfo);
+                }
+                while (index >= 0 || audioIndex >= 0) {
+                    boolean writeVideo = audioIndex < 0 || (index >= 0 &&
+                            info.presentationTimeUs <= audioInfo.presentationTimeUs);
+                    if (writeVideo) {
+                        if (VERBOSE) {
+                            Log.d(TAG, "SAVE " + index + " flags=0x" +
+                                    Integer.toHexString(info.flags));
+                        }
+                        muxer.writeSampleData(videoTrack, buf, info);
+                        index = mEncBuffer.getSnapshotNextIndex(index);
+                        if (index >= 0) {
+                            buf = mEncBuffer.getChunk(index, info);
+                        }
+                    } else {
+                        muxer.writeSampleData(audioTrack, audioBuf, audioInfo);
+                        audioIndex = mAudioBuffer.getSnapshotNextIndex(audioIndex);
+                        if (audioIndex >= 0) {
+                            audioBuf = mAudioBuffer.getChunk(audioIndex, audioInfo);
+                        }
+                    }
+                }
+                result = 0;
+            } catch (IOException ioe) {
+                Log.w(TAG, "muxer failed", ioe);
+                result = 2;
+            } finally {
+                if (muxer != null) {
+                    muxer.stop();
+                    muxer.release();
+                }
+                mEncBuffer.endSnapshot();
+                if (mAudioBuffer != null) {
+                    mAudioBuffer.endSnapshot();
+                }
+            }
+
+            if (VERBOSE) {
+                Log.d(TAG, "muxer stopped, result=" + result + " padding=" +
+                        mEncBuffer.getPaddingBytes());
+            }
+            mCallback.fileSaveComplete(result);
+        }
+    }
 }
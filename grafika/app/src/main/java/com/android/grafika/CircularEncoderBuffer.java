@@ -19,7 +19,11 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Holds encoded video data in a circular buffer.
@@ -27,7 +31,15 @@ import java.nio.ByteBuffer;
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
  * (flags and PTS).
  * <p>
- * Not thread-safe.
+ * Packets are normally added and read on a single thread.  To let a file save proceed
+ * while encoding continues, a snapshot can be taken with {@link #beginSnapshot()}: the
+ * packets it covers are pinned until {@link #endSnapshot()}, and may be read from another
+ * thread in the meantime.  The public methods are synchronized so the two threads see a
+ * consistent head and tail.
+ * <p>
+ * The encoded data normally lives on the Java heap.  For long spans at high bit rates that
+ * gets expensive, so the data can instead be kept in a memory-mapped file; the kernel page
+ * cache then holds it, and the heap footprint is just the (small) meta-data arrays.
  */
 public class CircularEncoderBuffer {
     private static final String TAG = MainActivity.TAG;
@@ -41,12 +53,23 @@ public class CircularEncoderBuffer {
     // JNI functions to access the backing byte[] (which, in the current VM, is done without
     // copying the data).
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
+    // The storage is either a heap byte[] or a MappedByteBuffer over a file.  add() writes
+    // through mDataBuffer, and getChunk() hands out mDataBufferWrapper, a duplicate of it
+    // with its own position and limit, so the file save thread can't disturb the writer.
+    //
+    // A packet is never split across the end of the buffer: if it won't fit in the space
+    // that's left, we skip to the start and leave the end unused.  That costs us at most one
+    // packet's worth of space, but it means every packet can be handed to the muxer straight
+    // out of the wrapper, without an allocation and data copy.
     private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    private ByteBuffer mDataBuffer;
+    private int mDataLength;
+
+    // Set if the data is held in a memory-mapped file.
+    private RandomAccessFile mBackingFile;
+
+    // Total bytes skipped at the end of the data buffer to keep packets contiguous.
+    private long mPaddingBytes;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -60,17 +83,56 @@ public class CircularEncoderBuffer {
     private int mMetaHead;
     private int mMetaTail;
 
+    // Meta-data indices of the sync frames currently in the buffer, oldest first.  This is
+    // another circular buffer, with the same head/tail convention; it has one entry per
+    // meta-data slot, so it can't fill up before the meta-data does.  Because presentation
+    // times increase, we can binary-search it by PTS.
+    private int[] mSyncIndex;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Snapshot state.  While a snapshot is held, the packets in [mSnapshotStart, mSnapshotEnd)
+    // are pinned: the tail may not advance past mSnapshotStart.  If the buffer fills up we
+    // have to drop incoming packets instead, and once we've dropped one we keep dropping
+    // until the next sync frame so the data we do keep is still decodable.
+    private boolean mSnapshotActive;
+    private int mSnapshotStart;
+    private int mSnapshotEnd;
+    private boolean mDropUntilSync;
+    private int mDroppedPackets;
+
     /**
-     * Allocates the circular buffers we use for encoded data and meta-data.
+     * Allocates the circular buffers we use for encoded data and meta-data.  The encoded
+     * data is held on the Java heap.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
+        this(bitRate, frameRate, desiredSpanSec, null);
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param backingFile If non-null, the encoded data is stored in a memory-mapped view
+     *     of this file, which is created or resized as needed.  Call {@link #release()}
+     *     when done with the buffer.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            File backingFile) {
         // For the encoded data, we assume the encoded bit rate is close to what we request.
         //
         // There would be a minor performance advantage to using a power of two here, because
         // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        long dataBufferSize = (long) bitRate * desiredSpanSec / 8;
+        if (dataBufferSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("Buffer too large: " + dataBufferSize);
+        }
+        mDataLength = (int) dataBufferSize;
+        if (backingFile == null) {
+            mDataBuffer = ByteBuffer.wrap(new byte[mDataLength]);
+        } else {
+            mDataBuffer = mapBackingFile(backingFile, mDataLength);
+        }
+        mDataBufferWrapper = mDataBuffer.duplicate();
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
@@ -80,11 +142,45 @@ public class CircularEncoderBuffer {
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mSyncIndex = new int[metaBufferCount];
 
         if (VERBOSE) {
             Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
                     " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
-                " metaBufferCount=" + metaBufferCount);
+                " metaBufferCount=" + metaBufferCount + " file=" + backingFile);
+        }
+    }
+
+    /**
+     * Creates the backing file at the requested size and maps it.
+     * <p>
+     * We extend the file up front so that stores into the mapping never have to grow it.
+     * The mapping stays valid after the channel is closed, but we hold the file open until
+     * release() so nobody can truncate it out from under us.
+     */
+    private ByteBuffer mapBackingFile(File file, int size) {
+        try {
+            mBackingFile = new RandomAccessFile(file, "rw");
+            mBackingFile.setLength(size);
+            FileChannel channel = mBackingFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ioe) {
+            release();
+            throw new RuntimeException("Unable to map " + file, ioe);
+        }
+    }
+
+    /**
+     * Releases the backing file, if any.  The buffer must not be used afterward.
+     */
+    public synchronized void release() {
+        if (mBackingFile != null) {
+            try {
+                mBackingFile.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing backing file", ioe);
+            }
+            mBackingFile = null;
         }
     }
 
@@ -92,7 +188,7 @@ public class CircularEncoderBuffer {
      * Computes the amount of time spanned by the buffered data, based on the presentation
      * time stamps.
      */
-    public long computeTimeSpanUsec() {
+    public synchronized long computeTimeSpanUsec() {
         final int metaLen = mPacketStart.length;
 
         if (mMetaHead == mMetaTail) {
@@ -113,37 +209,53 @@ public class CircularEncoderBuffer {
      * @param size Number of bytes in the packet.
      * @param flags MediaCodec.BufferInfo flags.
      * @param ptsUsec Presentation time stamp, in microseconds.
+     * @return False if the packet was dropped because a snapshot is holding the space.
      */
-    public void add(ByteBuffer buf, int flags, long ptsUsec) {
+    public synchronized boolean add(ByteBuffer buf, int flags, long ptsUsec) {
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
             Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
                     " pts=" + ptsUsec);
         }
+        if (mDropUntilSync) {
+            if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                mDroppedPackets++;
+                return false;
+            }
+            mDropUntilSync = false;
+        }
         while (!canAdd(size)) {
+            if (mSnapshotActive && mMetaTail == mSnapshotStart) {
+                // Can't make room without evicting packets the snapshot reader still needs.
+                if (VERBOSE) Log.v(TAG, "buffer full while snapshot held, dropping packet");
+                mDropUntilSync = true;
+                mDroppedPackets++;
+                return false;
+            }
             removeTail();
         }
 
-        final int dataLen = mDataBuffer.length;
         final int metaLen = mPacketStart.length;
-        int packetStart = getHeadStart();
+        int headStart = getHeadStart();
+        int packetStart = getPacketStart(headStart, size);
+        if (packetStart != headStart) {
+            if (VERBOSE) { Log.v(TAG, "wrap, skipping " + (mDataLength - headStart)); }
+            mPaddingBytes += mDataLength - headStart;
+        }
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
         mPacketLength[mMetaHead] = size;
-
-        // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
-            // one chunk
-            buf.get(mDataBuffer, packetStart, size);
-        } else {
-            // two chunks
-            int firstSize = dataLen - packetStart;
-            if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncHead = (mSyncHead + 1) % mSyncIndex.length;
         }
 
+        // Copy the data in.  Packets are always stored in one piece.
+        mDataBuffer.limit(packetStart + size);
+        mDataBuffer.position(packetStart);
+        mDataBuffer.put(buf);
+
         mMetaHead = (mMetaHead + 1) % metaLen;
 
         if (EXTRA_DEBUG) {
@@ -153,35 +265,96 @@ public class CircularEncoderBuffer {
             mPacketStart[mMetaHead] = -100000;
             mPacketLength[mMetaHead] = Integer.MAX_VALUE;
         }
+        return true;
     }
 
     /**
-     * Returns the index of the oldest sync frame.  Valid until the next add().
-     * <p>
-     * When sending output to a MediaMuxer, start here.
+     * Returns the presentation time stamp of the most recently added packet, or -1 if the
+     * buffer is empty.
      */
-    public int getFirstIndex() {
+    public synchronized long getLastPtsUsec() {
+        if (mMetaHead == mMetaTail) {
+            return -1;
+        }
         final int metaLen = mPacketStart.length;
+        return mPacketPtsUsec[(mMetaHead + metaLen - 1) % metaLen];
+    }
+
+    /**
+     * Returns the presentation time stamp of the oldest sync frame, or -1 if there are no
+     * sync frames in the buffer.
+     */
+    public synchronized long getFirstSyncPtsUsec() {
+        if (mSyncHead == mSyncTail) {
+            return -1;
+        }
+        return mPacketPtsUsec[mSyncIndex[mSyncTail]];
+    }
 
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+    /**
+     * Removes packets with presentation times earlier than ptsUsec.  Packets pinned by a
+     * snapshot are kept.
+     * <p>
+     * Used to keep a companion track from holding data older than anything we could save.
+     */
+    public synchronized void discardBefore(long ptsUsec) {
+        while (mMetaHead != mMetaTail && mPacketPtsUsec[mMetaTail] < ptsUsec) {
+            if (mSnapshotActive && mMetaTail == mSnapshotStart) {
                 break;
             }
-            index = (index + 1) % metaLen;
+            removeTail();
         }
+    }
 
-        if (index == mMetaHead) {
+    /**
+     * Returns the index of the oldest sync frame.  Valid until the next add().
+     * <p>
+     * When sending output to a MediaMuxer, start here.
+     */
+    public synchronized int getFirstIndex() {
+        if (mSyncHead == mSyncTail) {
             Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+            return -1;
         }
-        return index;
+        return mSyncIndex[mSyncTail];
+    }
+
+    /**
+     * Returns the index of the newest sync frame whose presentation time is at or before
+     * the specified time.  If the time precedes every sync frame in the buffer, the oldest
+     * sync frame is returned instead.  Valid until the next add().
+     *
+     * @return The packet index, or -1 if there are no sync frames in the buffer.
+     */
+    public synchronized int getSyncIndexAtOrBefore(long ptsUsec) {
+        final int syncLen = mSyncIndex.length;
+        int count = (mSyncHead + syncLen - mSyncTail) % syncLen;
+        if (count == 0) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
+        }
+
+        // Find the last entry with pts <= ptsUsec.
+        int lo = 0;
+        int hi = count - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int index = mSyncIndex[(mSyncTail + mid) % syncLen];
+            if (mPacketPtsUsec[index] <= ptsUsec) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return mSyncIndex[(mSyncTail + found) % syncLen];
     }
 
     /**
      * Returns the index of the next packet, or -1 if we've reached the end.
      */
-    public int getNextIndex(int index) {
+    public synchronized int getNextIndex(int index) {
         final int metaLen = mPacketStart.length;
         int next = (index + 1) % metaLen;
         if (next == mMetaHead) {
@@ -191,34 +364,127 @@ public class CircularEncoderBuffer {
     }
 
     /**
-     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
-     * BufferInfo.
+     * Returns a reference to a ByteBuffer with the data, and fills in the BufferInfo.
+     * <p>
+     * The same ByteBuffer is returned for every packet; info.offset and info.size locate
+     * the packet within it.  No data is copied and nothing is allocated.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
      * the position and limit is allowed.
      */
-    public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
-        int packetStart = mPacketStart[index];
-        int length = mPacketLength[index];
-
+    public synchronized ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
         info.flags = mPacketFlags[index];
-        info.offset = packetStart;
+        info.offset = mPacketStart[index];
         info.presentationTimeUs = mPacketPtsUsec[index];
-        info.size = length;
+        info.size = mPacketLength[index];
+        return mDataBufferWrapper;
+    }
 
-        if (packetStart + length <= dataLen) {
-            // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
-        } else {
-            // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
-            int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
-            info.offset = 0;
-            return tempBuf;
+    /**
+     * Returns the total number of bytes left unused at the end of the data buffer so that
+     * packets don't have to be split.
+     */
+    public synchronized long getPaddingBytes() {
+        return mPaddingBytes;
+    }
+
+    /**
+     * Pins the packets from the oldest sync frame through the most recently added packet, so
+     * they can be read while add() continues.  Pinned packets won't be evicted until
+     * endSnapshot() is called.
+     * <p>
+     * Walk the snapshot with {@link #getSnapshotNextIndex(int)} and {@link #getChunk}.
+     *
+     * @return The index of the first packet in the snapshot, or -1 if there's no sync frame
+     *     in the buffer or a snapshot is already held.
+     */
+    public synchronized int beginSnapshot() {
+        return beginSnapshot(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Pins the packets in a time range, like {@link #beginSnapshot()}.
+     * <p>
+     * The snapshot starts at the sync frame at or before startPtsUsec, so the first frames
+     * may precede the requested range, and ends with the last packet whose presentation
+     * time is at or before endPtsUsec.  Either end is clamped to what's in the buffer.
+     *
+     * @return The index of the first packet in the snapshot, or -1 if the range doesn't
+     *     include any packets or a snapshot is already held.
+     */
+    public synchronized int beginSnapshot(long startPtsUsec, long endPtsUsec) {
+        if (mSnapshotActive) {
+            Log.w(TAG, "HEY: snapshot already in progress");
+            return -1;
         }
+        int index = getSyncIndexAtOrBefore(startPtsUsec);
+        if (index < 0 || mPacketPtsUsec[index] > endPtsUsec) {
+            return -1;
+        }
+        mSnapshotActive = true;
+        mSnapshotStart = index;
+        mSnapshotEnd = getIndexAfter(index, endPtsUsec);
+        return index;
+    }
+
+    /**
+     * Returns the index of the next packet in the current snapshot, or -1 if we've reached
+     * the end of it.
+     */
+    public synchronized int getSnapshotNextIndex(int index) {
+        if (!mSnapshotActive) {
+            throw new RuntimeException("no snapshot held");
+        }
+        final int metaLen = mPacketStart.length;
+        int next = (index + 1) % metaLen;
+        if (next == mSnapshotEnd) {
+            next = -1;
+        }
+        return next;
+    }
+
+    /**
+     * Returns the presentation time stamp of the last packet in the current snapshot.
+     */
+    public synchronized long getSnapshotLastPtsUsec() {
+        if (!mSnapshotActive) {
+            throw new RuntimeException("no snapshot held");
+        }
+        final int metaLen = mPacketStart.length;
+        return mPacketPtsUsec[(mSnapshotEnd + metaLen - 1) % metaLen];
+    }
+
+    /**
+     * Releases the current snapshot, allowing its packets to be evicted.
+     */
+    public synchronized void endSnapshot() {
+        if (!mSnapshotActive) {
+            throw new RuntimeException("no snapshot held");
+        }
+        mSnapshotActive = false;
+        if (mDroppedPackets != 0) {
+            Log.w(TAG, "dropped " + mDroppedPackets + " packets while snapshot was held");
+            mDroppedPackets = 0;
+        }
+    }
+
+    /**
+     * Returns the index of the first packet, at or after "start", whose presentation time is
+     * later than ptsUsec.  Returns mMetaHead if there is no such packet.
+     */
+    private int getIndexAfter(int start, long ptsUsec) {
+        final int metaLen = mPacketStart.length;
+        int lo = 0;
+        int hi = (mMetaHead + metaLen - start) % metaLen;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mPacketPtsUsec[(start + mid) % metaLen] <= ptsUsec) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return (start + lo) % metaLen;
     }
 
     /**
@@ -232,13 +498,27 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLength;
         final int metaLen = mPacketStart.length;
 
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
         return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen;
     }
 
+    /**
+     * Returns the data buffer offset at which a packet of the given size will be stored.
+     * <p>
+     * This is normally the head start, but if the packet would run off the end of the
+     * buffer we start it at zero instead.
+     */
+    private int getPacketStart(int headStart, int size) {
+        if (headStart + size <= mDataLength) {
+            return headStart;
+        } else {
+            return 0;
+        }
+    }
+
     /**
      * Determines whether this is enough space to fit "size" bytes in the data buffer, and
      * one more packet in the meta-data buffer.
@@ -246,7 +526,7 @@ public class CircularEncoderBuffer {
      * @return True if there is enough space to add without removing anything.
      */
     private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLength;
         final int metaLen = mPacketStart.length;
 
         if (size > dataLen) {
@@ -268,14 +548,20 @@ public class CircularEncoderBuffer {
         }
 
         // Need the byte offset of the start of the "tail" packet, and the byte offset where
-        // "head" will store its data.
+        // "head" will store its data.  If the packet has to skip to the start of the buffer,
+        // the unused space at the end counts against it too.  The packet can't fill the
+        // free space completely, because getHeadStart() leaves a one-byte gap after it.
         int headStart = getHeadStart();
         int tailStart = mPacketStart[mMetaTail];
         int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
+        int required = size;
+        if (getPacketStart(headStart, size) != headStart) {
+            required += dataLen - headStart;
+        }
+        if (required >= freeSpace) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
-                    " req=" + size + " free=" + freeSpace + ")");
+                    " req=" + required + " free=" + freeSpace + ")");
             }
             return false;
         }
@@ -295,6 +581,9 @@ public class CircularEncoderBuffer {
         if (mMetaHead == mMetaTail) {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
+        if (mSyncHead != mSyncTail && mSyncIndex[mSyncTail] == mMetaTail) {
+            mSyncTail = (mSyncTail + 1) % mSyncIndex.length;
+        }
         final int metaLen = mPacketStart.length;
         mMetaTail = (mMetaTail + 1) % metaLen;
     }
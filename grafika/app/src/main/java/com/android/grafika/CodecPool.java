@@ -0,0 +1,446 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Pool of warm video decoders, shared by all the players in the process.
+ * <p>
+ * Creating a MediaCodec is slow (see CodecOpenActivity), and when several players start and
+ * stop all the time, most of that work can be avoided.  A player leases a decoder with
+ * {@link #lease}, and hands it back with {@link #giveBack} instead of releasing it.  The
+ * pool flushes returned decoders and keeps them running.  The next lease, in order of
+ * preference:
+ * <ul>
+ * <li>takes an idle decoder already configured for the same stream (same MIME type, size,
+ *     and codec-specific data), and just points it at the new Surface;
+ * <li>takes an idle decoder of the same MIME type and resolution class, and reconfigures it;
+ * <li>creates a new decoder, if the cap allows;
+ * <li>releases the least-recently-used idle decoder of the same MIME type (but another
+ *     resolution class), and creates one;
+ * <li>waits for a decoder to be returned.
+ * </ul>
+ * The cap applies to each MIME type.  Unless set with {@link #setMaxInstances}, it's the
+ * number of concurrent instances the first decoder created for that type says it supports
+ * (API 23+), or {@link #DEFAULT_MAX_INSTANCES} before that.
+ * <p>
+ * Leased decoders are started, in synchronous (polling) mode, and have no buffers queued.
+ * Everything here is thread-safe.
+ */
+public class CodecPool {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** Cap used when the platform can't tell us its limit. */
+    public static final int DEFAULT_MAX_INSTANCES = 4;
+
+    // How long lease() waits for a decoder to be returned when the pool is full.
+    private static final long LEASE_TIMEOUT_MSEC = 2000;
+
+    private static final Object sLock = new Object();
+    private static CodecPool sInstance;
+
+    /**
+     * One decoder, and what it's currently set up for.
+     */
+    private static class Entry {
+        MediaCodec codec;
+        String mime;
+        int resolutionClass;
+        MediaFormat format;
+        Surface surface;
+        boolean leased;
+        boolean needsConfigure;     // leased for a different stream; not reconfigured yet
+        long lastUsedNsec;
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final HashMap<String, Integer> mLearnedCaps = new HashMap<String, Integer>();
+    private int mMaxInstances;          // override for every type; 0 if not set
+
+    // Stats.
+    private int mReuseCount;
+    private int mReconfigureCount;
+    private int mCreateCount;
+    private int mEvictCount;
+
+    /**
+     * Returns the singleton instance.
+     */
+    public static CodecPool getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new CodecPool();
+            }
+            return sInstance;
+        }
+    }
+
+    private CodecPool() {}
+
+    /**
+     * Overrides the per-MIME-type cap on decoders, for every type.  Pass 0 to go back to
+     * the caps learned from the codecs.
+     */
+    public synchronized void setMaxInstances(int maxInstances) {
+        mMaxInstances = maxInstances;
+        notifyAll();        // the cap may have gone up
+    }
+
+    /**
+     * Returns a started decoder, configured for the format and sending output to surface.
+     * May block for a while if every decoder is in use.
+     *
+     * @throws IOException If no decoder could be created, or none came free in time.
+     */
+    public MediaCodec lease(MediaFormat format, Surface surface) throws IOException {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int resolutionClass = getResolutionClass(format);
+        long startNsec = System.nanoTime();
+        long deadlineNsec = startNsec + LEASE_TIMEOUT_MSEC * 1000000L;
+
+        Entry entry;
+        synchronized (this) {
+            while (true) {
+                entry = takeIdle(format, surface, mime, resolutionClass);
+                if (entry != null) {
+                    break;
+                }
+                if (countLive(mime) < getCap(mime) || evictIdle(mime)) {
+                    entry = new Entry();
+                    entry.mime = mime;
+                    entry.resolutionClass = resolutionClass;
+                    entry.leased = true;
+                    mEntries.add(entry);    // holds our place against the cap
+                    break;
+                }
+                long remainingMsec = (deadlineNsec - System.nanoTime()) / 1000000L;
+                if (remainingMsec <= 0) {
+                    throw new IOException("No " + mime + " decoder available (" +
+                            mEntries.size() + " in use)");
+                }
+                try {
+                    wait(remainingMsec);
+                } catch (InterruptedException ie) {
+                    throw new IOException("Interrupted waiting for decoder");
+                }
+            }
+        }
+
+        if (entry.needsConfigure) {
+            // Different stream: stop() takes it back to the uninitialized state, which is
+            // much cheaper than creating a new one.  The entry is marked as leased, so
+            // nobody else will touch it while we work on it outside the lock.
+            entry.needsConfigure = false;
+            try {
+                entry.codec.stop();
+                entry.codec.configure(format, surface, null, 0);
+                entry.codec.start();
+                entry.format = format;
+                entry.surface = surface;
+                synchronized (this) {
+                    mReconfigureCount++;
+                }
+            } catch (RuntimeException re) {
+                // Drop it, and create a new one in its place (which still counts against
+                // the cap, so nobody can take it).
+                Log.w(TAG, "CodecPool: reconfigure failed, releasing decoder", re);
+                entry.codec.release();
+                entry.codec = null;
+            }
+        }
+
+        if (entry.codec == null) {
+            // Create outside the lock; this is the slow part.
+            boolean success = false;
+            try {
+                entry.codec = MediaCodec.createDecoderByType(mime);
+                entry.codec.configure(format, surface, null, 0);
+                entry.codec.start();
+                success = true;
+            } finally {
+                if (!success) {
+                    if (entry.codec != null) {
+                        entry.codec.release();
+                    }
+                    synchronized (this) {
+                        mEntries.remove(entry);
+                        notifyAll();
+                    }
+                }
+            }
+            entry.format = format;
+            entry.surface = surface;
+            synchronized (this) {
+                mCreateCount++;
+                learnCap(entry.codec, mime);
+            }
+        }
+
+        if (VERBOSE) {
+            Log.d(TAG, "CodecPool: leased " + mime + " class " + resolutionClass + " in " +
+                    (System.nanoTime() - startNsec) / 1000 + "us; " + this);
+        }
+        return entry.codec;
+    }
+
+    /**
+     * Returns a leased decoder to the pool.  The decoder is flushed, and any output buffers
+     * the caller still holds are discarded.  If the decoder is in a bad state, call
+     * {@link #discard} instead.
+     */
+    public void giveBack(MediaCodec codec) {
+        synchronized (this) {
+            Entry entry = findLeased(codec);
+            try {
+                codec.flush();
+            } catch (IllegalStateException ise) {
+                Log.w(TAG, "CodecPool: flush failed, releasing decoder", ise);
+                mEntries.remove(entry);
+                codec.release();
+                notifyAll();
+                return;
+            }
+            entry.leased = false;
+            entry.lastUsedNsec = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Releases a leased decoder instead of returning it to the pool.
+     */
+    public void discard(MediaCodec codec) {
+        synchronized (this) {
+            mEntries.remove(findLeased(codec));
+            notifyAll();
+        }
+        codec.release();
+    }
+
+    /**
+     * Releases all idle decoders.  Decoders that are out on lease aren't affected.
+     */
+    public synchronized void releaseIdle() {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            if (!entry.leased && entry.codec != null) {
+                releaseEntry(entry);
+                mEntries.remove(i);
+            }
+        }
+        Log.d(TAG, "CodecPool: released idle decoders; " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        int leased = 0;
+        for (Entry entry : mEntries) {
+            if (entry.leased) {
+                leased++;
+            }
+        }
+        return "CodecPool: live=" + mEntries.size() + " leased=" + leased +
+                " cap=" + (mMaxInstances != 0 ? mMaxInstances : mLearnedCaps) +
+                " reused=" + mReuseCount +
+                " reconfigured=" + mReconfigureCount + " created=" + mCreateCount +
+                " evicted=" + mEvictCount;
+    }
+
+    /**
+     * Buckets the video size, so decoders set up for similar sizes are interchangeable.
+     * Codecs often pick different components (or buffer sizes) for SD, HD, and 4K.
+     */
+    private static int getResolutionClass(MediaFormat format) {
+        int pixels = format.getInteger(MediaFormat.KEY_WIDTH) *
+                format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (pixels <= 720 * 576) {
+            return 0;
+        } else if (pixels <= 1920 * 1088) {
+            return 1;
+        } else {
+            return 2;
+        }
+    }
+
+    /**
+     * Finds an idle decoder that can be used for the format, and leases it.  If it was set
+     * up for a different stream, it's marked as needing to be reconfigured, which the caller
+     * does after releasing the lock.  Must be called with the lock held.
+     */
+    private Entry takeIdle(MediaFormat format, Surface surface, String mime,
+            int resolutionClass) {
+        Entry match = null;
+        for (Entry entry : mEntries) {
+            if (entry.leased || !entry.mime.equals(mime) ||
+                    entry.resolutionClass != resolutionClass) {
+                continue;
+            }
+            if (sameStream(entry.format, format) &&
+                    (entry.surface == surface || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)) {
+                match = entry;
+                break;      // can't do better than this
+            }
+            if (match == null || entry.lastUsedNsec > match.lastUsedNsec) {
+                match = entry;
+            }
+        }
+        if (match == null) {
+            return null;
+        }
+
+        match.leased = true;
+        if (sameStream(match.format, format) && match.surface == surface) {
+            mReuseCount++;      // flushed in giveBack(); ready to go
+        } else if (sameStream(match.format, format) &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            setOutputSurface(match.codec, surface);
+            match.surface = surface;
+            mReuseCount++;
+        } else {
+            match.needsConfigure = true;
+        }
+        return match;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void setOutputSurface(MediaCodec codec, Surface surface) {
+        codec.setOutputSurface(surface);
+    }
+
+    /**
+     * Returns true if a decoder configured with a can decode b without reconfiguring.
+     */
+    private static boolean sameStream(MediaFormat a, MediaFormat b) {
+        return a.getInteger(MediaFormat.KEY_WIDTH) == b.getInteger(MediaFormat.KEY_WIDTH) &&
+                a.getInteger(MediaFormat.KEY_HEIGHT) == b.getInteger(MediaFormat.KEY_HEIGHT) &&
+                sameBuffer(a, b, "csd-0") && sameBuffer(a, b, "csd-1");
+    }
+
+    private static boolean sameBuffer(MediaFormat a, MediaFormat b, String key) {
+        ByteBuffer bufA = a.containsKey(key) ? a.getByteBuffer(key) : null;
+        ByteBuffer bufB = b.containsKey(key) ? b.getByteBuffer(key) : null;
+        if (bufA == null || bufB == null) {
+            return bufA == bufB;
+        }
+        return bufA.equals(bufB);       // compares the remaining bytes
+    }
+
+    /**
+     * Releases the least-recently-used idle decoder of the given MIME type.  Must be called
+     * with the lock held.
+     *
+     * @return True if a decoder was released.
+     */
+    private boolean evictIdle(String mime) {
+        Entry victim = null;
+        for (Entry entry : mEntries) {
+            if (!entry.leased && entry.codec != null && entry.mime.equals(mime) &&
+                    (victim == null || entry.lastUsedNsec < victim.lastUsedNsec)) {
+                victim = entry;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        if (VERBOSE) Log.d(TAG, "CodecPool: evicting " + victim.mime);
+        releaseEntry(victim);
+        mEntries.remove(victim);
+        mEvictCount++;
+        return true;
+    }
+
+    private static void releaseEntry(Entry entry) {
+        try {
+            entry.codec.stop();
+        } catch (IllegalStateException ise) {
+            // already broken; release anyway
+        }
+        entry.codec.release();
+    }
+
+    private int countLive(String mime) {
+        int count = 0;
+        for (Entry entry : mEntries) {
+            if (entry.mime.equals(mime)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int getCap(String mime) {
+        if (mMaxInstances != 0) {
+            return mMaxInstances;
+        }
+        Integer learned = mLearnedCaps.get(mime);
+        if (learned != null) {
+            return learned;
+        }
+        // Until we've created one and asked it, allow one at a time.
+        return Math.max(1, countLive(mime));
+    }
+
+    /**
+     * Asks the codec how many instances of its type it supports, if we haven't asked one
+     * of that type already.  Must be called with the lock held.
+     */
+    private void learnCap(MediaCodec codec, String mime) {
+        if (mLearnedCaps.containsKey(mime)) {
+            return;
+        }
+        int cap = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            cap = getMaxSupportedInstances(codec, mime);
+        }
+        if (cap <= 0) {
+            cap = DEFAULT_MAX_INSTANCES;
+        }
+        mLearnedCaps.put(mime, cap);
+        Log.d(TAG, "CodecPool: cap is " + cap + " " + mime + " decoders" +
+                (mMaxInstances != 0 ? " (overridden: " + mMaxInstances + ")" : ""));
+        notifyAll();
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static int getMaxSupportedInstances(MediaCodec codec, String mime) {
+        MediaCodecInfo.CodecCapabilities caps =
+                codec.getCodecInfo().getCapabilitiesForType(mime);
+        return caps.getMaxSupportedInstances();
+    }
+
+    private Entry findLeased(MediaCodec codec) {
+        for (Entry entry : mEntries) {
+            if (entry.codec == codec && entry.leased) {
+                return entry;
+            }
+        }
+        throw new RuntimeException("codec " + codec + " not leased from this pool");
+    }
+}
@@ -37,6 +37,7 @@ import android.app.Activity;
 
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.ProgramCache;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
 
@@ -101,7 +102,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             mWeakActivity = new WeakReference<ContinuousCaptureActivity>(activity);
         }
 
-        // CircularEncoder.Callback, called on encoder thread
+        // CircularEncoder.Callback, called on encoder or file save thread
         @Override
         public void fileSaveComplete(int status) {
             sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, null));
@@ -355,6 +356,15 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
 
         if (status == 0) {
             str = getString(R.string.recordingSucceeded);
+            // Keep the encoder numbers next to the clip, so stalls can be diagnosed later.
+            if (mCircEncoder != null) {
+                try {
+                    mCircEncoder.getStats().dumpToFile(
+                            new File(getFilesDir(), "continuous-capture-stats.txt"));
+                } catch (IOException ioe) {
+                    Log.w(TAG, "Unable to write encoder stats", ioe);
+                }
+            }
         } else {
             str = getString(R.string.recordingFailed, status);
         }
@@ -386,8 +396,14 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         mDisplaySurface = new WindowSurface(mEglCore, holder.getSurface(), false);
         mDisplaySurface.makeCurrent();
 
+        // Program setup is the bulk of the startup GL work.  Compare the time on the first
+        // launch with the next one, when ProgramCache has the linked binary.
+        long programStartNsec = System.nanoTime();
         mFullFrameBlit = new FullFrameRect(
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        Log.d(TAG, "program setup took " +
+                (System.nanoTime() - programStartNsec) / 1000 / 1000.0 + " ms; " +
+                ProgramCache.getStats());
         mTextureId = mFullFrameBlit.createTextureObject();
         mCameraTexture = new SurfaceTexture(mTextureId);
         mCameraTexture.setOnFrameAvailableListener(this);
@@ -410,8 +426,10 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         // TODO: adjust video width/height based on what we're getting from the camera preview?
         //       (can we guarantee that camera preview size is compatible with AVC video encoder?)
         try {
+            // Record audio too if we've been granted permission.
+            boolean recordAudio = PermissionHelper.hasRecordAudioPermission(this);
             mCircEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, 6000000,
-                    mCameraPreviewThousandFps / 1000, 7, mHandler);
+                    mCameraPreviewThousandFps / 1000, 7, null, recordAudio, mHandler);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -489,8 +507,10 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
             drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
             mCircEncoder.frameAvailableSoon();
-            mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
+            long timestampNanos = mCameraTexture.getTimestamp();
+            mEncoderSurface.setPresentationTime(timestampNanos);
             mEncoderSurface.swapBuffers();
+            mCircEncoder.frameSubmitted(timestampNanos);
         }
 
         mFrameNum++;
@@ -34,6 +34,9 @@ import java.io.IOException;
  * the Activity is pausing because it's "finished" (indicating that we're leaving the Activity
  * for a nontrivial amount of time), the video decoders are shut down.
  * <p>
+ * The decoders are leased from the process-wide CodecPool, so restarting a stream (or
+ * starting another one of the same kind) doesn't pay the cost of creating a decoder.
+ * <p>
  * TODO: consider shutting down when the screen is turned off, to preserve battery.
  */
 public class DoubleDecodeActivity extends Activity {
@@ -231,11 +234,16 @@ public class DoubleDecodeActivity extends Activity {
             try {
                 mMoviePlayer = new MoviePlayer(mFile, mSurface, mCallback);
                 mMoviePlayer.setLoopMode(true);
+                mMoviePlayer.setCodecPool(CodecPool.getInstance());
                 mMoviePlayer.play();
             } catch (IOException ioe) {
                 Log.e(TAG, "movie playback failed", ioe);
             } finally {
                 mSurface.release();
+                if (!sVideoRunning) {
+                    // The activity is finishing, so nobody's going to want these soon.
+                    CodecPool.getInstance().releaseIdle();
+                }
                 Log.d(TAG, "PlayMovieThread stopping");
             }
         }
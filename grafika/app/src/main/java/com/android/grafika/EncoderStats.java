@@ -0,0 +1,287 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Per-frame statistics for a Surface-input video encoder.
+ * <p>
+ * The producer calls {@link #frameSubmitted(long)} right after swapBuffers() on the encoder's
+ * input surface.  The thread that drains the encoder calls {@link #drainStarted()},
+ * {@link #dequeueResult(boolean)} after every dequeueOutputBuffer(), {@link #frameEncoded}
+ * for each packet, and {@link #drainFinished()}.  Submitted frames are matched to encoded
+ * packets by presentation time, which gives the swap-to-output latency.  That assumes the
+ * encoder emits frames in presentation order (no B-frames), which is the case for the
+ * camera-style configurations used here; a frame that's passed over is counted as dropped.
+ * <p>
+ * Everything is preallocated, and the recording methods don't allocate.  The methods are
+ * synchronized, because the producer, the drain thread, and whoever asks for the numbers
+ * are often three different threads; the lock is almost never contended.
+ */
+public class EncoderStats {
+    private static final String TAG = MainActivity.TAG;
+
+    // Frames can't be in flight longer than this; any more and we stop tracking the oldest.
+    private static final int MAX_PENDING = 64;
+
+    private final String mName;
+
+    // Submitted frames waiting for output: ring of (pts, submit time).
+    private final long[] mPendingPtsUsec = new long[MAX_PENDING];
+    private final long[] mPendingSubmitNsec = new long[MAX_PENDING];
+    private int mPendingHead;
+    private int mPendingCount;
+    private int mMaxPendingCount;
+
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final LatencyHistogram mDrainTime = new LatencyHistogram();
+    private long mDrainStartNsec;
+
+    private long mFramesSubmitted;
+    private long mFramesEncoded;
+    private long mFramesDropped;
+    private long mDequeueCalls;
+    private long mDequeueEmpty;
+
+    private long mTotalBytes;
+    private long mFirstOutputNsec = -1;
+    private long mLastOutputNsec;
+    private long mWindowStartNsec;
+    private long mWindowBytes;
+    private long mLastWindowBytesPerSec;
+
+    /**
+     * @param name Name used in dumps, e.g. "CircularEncoder".
+     */
+    public EncoderStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public synchronized void reset() {
+        mPendingHead = mPendingCount = mMaxPendingCount = 0;
+        mLatency.reset();
+        mDrainTime.reset();
+        mFramesSubmitted = mFramesEncoded = mFramesDropped = 0;
+        mDequeueCalls = mDequeueEmpty = 0;
+        mTotalBytes = 0;
+        mFirstOutputNsec = -1;
+        mLastOutputNsec = 0;
+        mWindowStartNsec = 0;
+        mWindowBytes = 0;
+        mLastWindowBytesPerSec = 0;
+    }
+
+    /**
+     * Records a frame submitted to the encoder's input surface.  Call right after
+     * swapBuffers().
+     *
+     * @param presentationTimeNsec The time stamp passed to setPresentationTime().
+     */
+    public synchronized void frameSubmitted(long presentationTimeNsec) {
+        if (mPendingCount == MAX_PENDING) {
+            // The encoder is hopelessly backed up, or it's discarding frames without
+            // telling us.  Give up on the oldest.
+            mPendingCount--;
+            mFramesDropped++;
+        }
+        int index = (mPendingHead + mPendingCount) % MAX_PENDING;
+        mPendingPtsUsec[index] = presentationTimeNsec / 1000;
+        mPendingSubmitNsec[index] = System.nanoTime();
+        mPendingCount++;
+        if (mPendingCount > mMaxPendingCount) {
+            mMaxPendingCount = mPendingCount;
+        }
+        mFramesSubmitted++;
+    }
+
+    /**
+     * Records the start of a drainEncoder() pass.
+     */
+    public synchronized void drainStarted() {
+        mDrainStartNsec = System.nanoTime();
+    }
+
+    /**
+     * Records the end of a drainEncoder() pass.
+     */
+    public synchronized void drainFinished() {
+        mDrainTime.record((System.nanoTime() - mDrainStartNsec) / 1000);
+    }
+
+    /**
+     * Records the outcome of a dequeueOutputBuffer() call.
+     *
+     * @param empty True if it returned INFO_TRY_AGAIN_LATER.
+     */
+    public synchronized void dequeueResult(boolean empty) {
+        mDequeueCalls++;
+        if (empty) {
+            mDequeueEmpty++;
+        }
+    }
+
+    /**
+     * Records an encoded frame coming out of the encoder.
+     */
+    public synchronized void frameEncoded(long presentationTimeUsec, int size) {
+        long nowNsec = System.nanoTime();
+        mFramesEncoded++;
+        mTotalBytes += size;
+        if (mFirstOutputNsec < 0) {
+            mFirstOutputNsec = nowNsec;
+            mWindowStartNsec = nowNsec;
+        }
+        mLastOutputNsec = nowNsec;
+
+        // Roll the one-second rate window.
+        long windowNsec = nowNsec - mWindowStartNsec;
+        if (windowNsec >= 1000000000L) {
+            mLastWindowBytesPerSec = mWindowBytes * 1000000000L / windowNsec;
+            mWindowStartNsec = nowNsec;
+            mWindowBytes = 0;
+        }
+        mWindowBytes += size;
+
+        // Anything submitted before this frame that's still pending was skipped.
+        while (mPendingCount > 0) {
+            long pendingPts = mPendingPtsUsec[mPendingHead];
+            if (pendingPts > presentationTimeUsec + 1) {
+                break;      // frame we don't know about; leave the queue alone
+            }
+            long submitNsec = mPendingSubmitNsec[mPendingHead];
+            mPendingHead = (mPendingHead + 1) % MAX_PENDING;
+            mPendingCount--;
+            if (pendingPts >= presentationTimeUsec - 1) {
+                mLatency.record((nowNsec - submitNsec) / 1000);
+                break;
+            }
+            mFramesDropped++;
+        }
+    }
+
+    /**
+     * Records a frame that was encoded but then thrown away (e.g. no room in a buffer).
+     */
+    public synchronized void frameDropped() {
+        mFramesDropped++;
+    }
+
+    /** Returns the number of frames submitted to the input surface. */
+    public synchronized long getFramesSubmitted() {
+        return mFramesSubmitted;
+    }
+
+    /** Returns the number of encoded frames received from the encoder. */
+    public synchronized long getFramesEncoded() {
+        return mFramesEncoded;
+    }
+
+    /** Returns the number of frames that were submitted or encoded, but not kept. */
+    public synchronized long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    /** Returns the number of frames submitted but not yet seen on the output. */
+    public synchronized int getQueueDepth() {
+        return mPendingCount;
+    }
+
+    /** Returns the largest queue depth seen. */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxPendingCount;
+    }
+
+    /** Returns the fraction of dequeueOutputBuffer() calls that came back empty. */
+    public synchronized float getEmptyDequeueFraction() {
+        return mDequeueCalls == 0 ? 0.0f : (float) mDequeueEmpty / mDequeueCalls;
+    }
+
+    /** Returns the average output rate since the first encoded frame, in bytes/sec. */
+    public synchronized long getAverageBytesPerSec() {
+        long elapsedNsec = mLastOutputNsec - mFirstOutputNsec;
+        if (mFirstOutputNsec < 0 || elapsedNsec <= 0) {
+            return 0;
+        }
+        return mTotalBytes * 1000000000L / elapsedNsec;
+    }
+
+    /** Returns the output rate over the most recent complete one-second window. */
+    public synchronized long getRecentBytesPerSec() {
+        return mLastWindowBytesPerSec;
+    }
+
+    /**
+     * Returns the swap-to-output latency at the given percentile, in microseconds.
+     */
+    public synchronized long getLatencyPercentileUsec(double percentile) {
+        return mLatency.getPercentileUsec(percentile);
+    }
+
+    /**
+     * Returns the longest drainEncoder() pass, in microseconds.
+     */
+    public synchronized long getMaxDrainUsec() {
+        return mDrainTime.getMaxUsec();
+    }
+
+    /**
+     * Writes the current values in human-readable form.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        pw.println(mName + " encoder stats");
+        pw.println("frames: submitted=" + mFramesSubmitted + " encoded=" + mFramesEncoded +
+                " dropped=" + mFramesDropped);
+        pw.println("queue depth: current=" + mPendingCount + " max=" + mMaxPendingCount);
+        pw.println("dequeueOutputBuffer: calls=" + mDequeueCalls + " empty=" + mDequeueEmpty);
+        pw.println("output: bytes=" + mTotalBytes + " avg=" + getAverageBytesPerSec() +
+                " B/s recent=" + mLastWindowBytesPerSec + " B/s");
+        mLatency.dump(pw, "swap-to-output latency");
+        mLatency.dumpBuckets(pw);
+        mDrainTime.dump(pw, "drain time");
+    }
+
+    /**
+     * Writes the current values to a file, replacing its contents.
+     */
+    public void dumpToFile(File file) throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(file));
+        try {
+            dump(pw);
+        } finally {
+            pw.close();
+        }
+        Log.d(TAG, "Encoder stats written to " + file);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": enc=" + mFramesEncoded + " drop=" + mFramesDropped +
+                " q=" + mPendingCount + "/" + mMaxPendingCount +
+                " lat p50/p99=" + mLatency.getPercentileUsec(50) / 1000 + "/" +
+                mLatency.getPercentileUsec(99) / 1000 + "ms" +
+                " " + getRecentBytesPerSec() * 8 / 1000 + "kbps";
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SampleSource that reads the first video track of a file through MediaExtractor.
+ */
+public class ExtractorSampleSource implements SampleSource {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private MediaExtractor mExtractor;
+    private int mTrackIndex;
+    private MediaFormat mFormat;
+
+    /**
+     * Opens the file and selects its first video track.
+     */
+    public ExtractorSampleSource(File sourceFile) throws IOException {
+        mExtractor = new MediaExtractor();
+        boolean success = false;
+        try {
+            mExtractor.setDataSource(sourceFile.toString());
+            mTrackIndex = selectTrack(mExtractor);
+            if (mTrackIndex < 0) {
+                throw new RuntimeException("No video track found in " + sourceFile);
+            }
+            mExtractor.selectTrack(mTrackIndex);
+            mFormat = mExtractor.getTrackFormat(mTrackIndex);
+            success = true;
+        } finally {
+            if (!success) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Selects the video track, if any.
+     *
+     * @return the track index, or -1 if no video track is found.
+     */
+    private static int selectTrack(MediaExtractor extractor) {
+        // Select the first video track we find, ignore the rest.
+        int numTracks = extractor.getTrackCount();
+        for (int i = 0; i < numTracks; i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime.startsWith("video/")) {
+                if (VERBOSE) {
+                    Log.d(TAG, "Extractor selected track " + i + " (" + mime + "): " + format);
+                }
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buf, int offset) {
+        int chunkSize = mExtractor.readSampleData(buf, offset);
+        if (chunkSize >= 0 && mExtractor.getSampleTrackIndex() != mTrackIndex) {
+            Log.w(TAG, "WEIRD: got sample from track " +
+                    mExtractor.getSampleTrackIndex() + ", expected " + mTrackIndex);
+        }
+        return chunkSize;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public void release() {
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+    }
+}
@@ -0,0 +1,763 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes H.264 and AAC samples to a fragmented MP4 (ISO BMFF) file.
+ * <p>
+ * This is a streaming alternative to MediaMuxer.  MediaMuxer keeps the sample tables in
+ * memory and writes them out in stop(), so memory use grows with the length of the
+ * recording and a crash loses the whole file.  Here the "moov" box written at start()
+ * describes the tracks but no samples; samples are written in "moof"+"mdat" fragments as
+ * we go.  A fragment is closed at a video sync frame once it's at least
+ * FRAGMENT_DURATION_USEC long, so memory use is bounded by one fragment, and everything up
+ * to the last complete fragment survives a crash.
+ * <p>
+ * The calls mirror MediaMuxer: add tracks, start(), writeSampleData(), stop(), release().
+ * Tracks can be described with a MediaFormat from an encoder, or directly with the codec
+ * configuration data, and samples can be passed with a BufferInfo or as plain values.
+ * The latter forms don't touch any Android classes, so the writer can be exercised on a
+ * desktop JVM with synthetic samples.
+ * <p>
+ * Video samples are expected in Annex B form (start code delimited), which is what
+ * MediaCodec produces; they're converted to length-prefixed NAL units as they're written.
+ * We assume there are no B-frames, so decode order and presentation order are the same.
+ * <p>
+ * Not thread-safe.
+ */
+public class FragmentedMp4Writer {
+    private static final String TAG = MainActivity.TAG;
+
+    private static final long FRAGMENT_DURATION_USEC = 1000000;
+    private static final int MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_TRACKS = 2;
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    // Sample flags, as used in the "trun" box.
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;        // depends on no others
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;    // depends, non-sync
+
+    private FileOutputStream mOutputStream;
+    private FileChannel mChannel;
+    private Track[] mTracks = new Track[MAX_TRACKS];
+    private int mTrackCount;
+    private int mVideoTrack = -1;
+    private boolean mStarted;
+    private int mSequenceNumber;
+    private long mFragmentStartUsec;
+    private int mFragmentBytes;
+    private long mBasePtsUsec = -1;
+
+    // Scratch space for box headers.  Grows as needed, and then is reused.
+    private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+    private int[] mBoxStack = new int[16];
+    private int mBoxDepth;
+
+    // Header offsets of each track's "trun" data offset field, filled in once we know the
+    // size of the "moof".
+    private int[] mTrunPatch = new int[MAX_TRACKS];
+
+    /**
+     * Per-track state.  The sample arrays and data buffer hold the current fragment, and
+     * are reused for each fragment after they've grown to size.
+     */
+    private static class Track {
+        final boolean mIsVideo;
+        final int mTimescale;
+        final int mWidth, mHeight;
+        final byte[] mSps, mPps;            // video
+        final int mSampleRate, mChannels;
+        final byte[] mAudioConfig;          // audio
+        long mDefaultDuration;              // used when the next sample's time is unknown
+
+        ByteBuffer mData = ByteBuffer.allocate(64 * 1024);
+        int[] mSizes = new int[64];
+        long[] mTimes = new long[64];
+        int[] mFlags = new int[64];
+        int mCount;
+        long mNextTime = -1;                // time of the sample after the fragment, if known
+
+        Track(int width, int height, byte[] sps, byte[] pps) {
+            mIsVideo = true;
+            mTimescale = VIDEO_TIMESCALE;
+            mWidth = width;
+            mHeight = height;
+            mSps = sps;
+            mPps = pps;
+            mSampleRate = mChannels = 0;
+            mAudioConfig = null;
+            mDefaultDuration = VIDEO_TIMESCALE / 30;
+        }
+
+        Track(int sampleRate, int channels, byte[] audioConfig) {
+            mIsVideo = false;
+            mTimescale = sampleRate;
+            mWidth = mHeight = 0;
+            mSps = mPps = null;
+            mSampleRate = sampleRate;
+            mChannels = channels;
+            mAudioConfig = audioConfig;
+            mDefaultDuration = 1024;        // samples per AAC frame
+        }
+
+        void ensureCapacity(int extraBytes) {
+            if (mCount == mSizes.length) {
+                int len = mSizes.length * 2;
+                mSizes = copyOf(mSizes, len);
+                mTimes = copyOf(mTimes, len);
+                mFlags = copyOf(mFlags, len);
+            }
+            if (mData.remaining() < extraBytes) {
+                int len = Math.max(mData.capacity() * 2, mData.position() + extraBytes);
+                ByteBuffer data = ByteBuffer.allocate(len);
+                mData.flip();
+                data.put(mData);
+                mData = data;
+            }
+        }
+    }
+
+    /**
+     * Creates the output file.
+     */
+    public FragmentedMp4Writer(File outputFile) throws IOException {
+        mOutputStream = new FileOutputStream(outputFile);
+        mChannel = mOutputStream.getChannel();
+        mHeader.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Adds a track described by an encoder's output format.  Supports "video/avc" and
+     * "audio/mp4a-latm".
+     *
+     * @return The track index, for use with writeSampleData().
+     */
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if ("video/avc".equals(mime)) {
+            return addVideoTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    stripStartCode(format.getByteBuffer("csd-0")),
+                    stripStartCode(format.getByteBuffer("csd-1")));
+        } else if ("audio/mp4a-latm".equals(mime)) {
+            ByteBuffer csd = format.getByteBuffer("csd-0");
+            byte[] config = new byte[csd.remaining()];
+            csd.duplicate().get(config);
+            return addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), config);
+        } else {
+            throw new IllegalArgumentException("Unsupported track type: " + mime);
+        }
+    }
+
+    /**
+     * Adds an H.264 video track.
+     *
+     * @param sps Sequence parameter set NAL unit, without start code.
+     * @param pps Picture parameter set NAL unit, without start code.
+     */
+    public int addVideoTrack(int width, int height, byte[] sps, byte[] pps) {
+        int index = addTrack(new Track(width, height, sps, pps));
+        if (mVideoTrack < 0) {
+            mVideoTrack = index;
+        }
+        return index;
+    }
+
+    /**
+     * Adds an AAC audio track.
+     *
+     * @param audioSpecificConfig The AudioSpecificConfig, i.e. the encoder's csd-0.
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        return addTrack(new Track(sampleRate, channelCount, audioSpecificConfig));
+    }
+
+    private int addTrack(Track track) {
+        if (mStarted) {
+            throw new IllegalStateException("Can't add tracks after start()");
+        }
+        if (mTrackCount == MAX_TRACKS) {
+            throw new IllegalStateException("Too many tracks");
+        }
+        mTracks[mTrackCount] = track;
+        return mTrackCount++;
+    }
+
+    /**
+     * Writes the file header.  All tracks must have been added.
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("Already started");
+        }
+        if (mTrackCount == 0) {
+            throw new IllegalStateException("No tracks");
+        }
+        mHeader.clear();
+        writeFtyp();
+        writeMoov();
+        mHeader.flip();
+        writeFully(mHeader);
+        mStarted = true;
+    }
+
+    /**
+     * Writes an encoded sample.  Same arguments as MediaMuxer#writeSampleData().
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer buf, MediaCodec.BufferInfo info)
+            throws IOException {
+        writeSampleData(trackIndex, buf, info.offset, info.size, info.presentationTimeUs,
+                info.flags);
+    }
+
+    /**
+     * Writes an encoded sample.
+     *
+     * @param buf Buffer holding the sample.  Its position and limit are not changed.
+     * @param offset Offset of the sample data in buf.
+     * @param size Size of the sample data.
+     * @param ptsUsec Presentation time stamp, in microseconds.
+     * @param flags MediaCodec.BufferInfo flags.  BUFFER_FLAG_SYNC_FRAME is honored for
+     *     video; every audio sample is a sync sample.
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer buf, int offset, int size,
+            long ptsUsec, int flags) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started");
+        }
+        Track track = mTracks[trackIndex];
+        // Every AAC frame can be decoded on its own, but encoders don't flag them as sync.
+        boolean sync = !track.mIsVideo || (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+        if (mBasePtsUsec < 0) {
+            mBasePtsUsec = ptsUsec;
+            mFragmentStartUsec = ptsUsec;
+        }
+        long relUsec = ptsUsec - mBasePtsUsec;
+        if (relUsec < 0) {
+            Log.w(TAG, "sample precedes start of file, clamping: " + relUsec);
+            relUsec = 0;
+        }
+        long time = relUsec * track.mTimescale / 1000000;
+
+        // Close the current fragment at a sync frame on the primary track, or if it's
+        // getting too big.  The size limit covers all tracks, so if video stalls while
+        // audio keeps coming we still don't buffer without bound.
+        boolean primary = (mVideoTrack < 0 || trackIndex == mVideoTrack);
+        if ((primary && sync && ptsUsec - mFragmentStartUsec >= FRAGMENT_DURATION_USEC) ||
+                mFragmentBytes + size > MAX_FRAGMENT_BYTES) {
+            track.mNextTime = time;
+            flushFragment();
+            mFragmentStartUsec = ptsUsec;
+        }
+
+        // Annex B start codes become 4-byte lengths, so allow a little extra room.
+        track.ensureCapacity(size + 64);
+        int start = track.mData.position();
+        if (track.mIsVideo) {
+            appendAnnexB(track, buf, offset, size);
+        } else {
+            for (int i = 0; i < size; i++) {
+                track.mData.put(buf.get(offset + i));
+            }
+        }
+        int written = track.mData.position() - start;
+
+        track.mSizes[track.mCount] = written;
+        track.mTimes[track.mCount] = time;
+        track.mFlags[track.mCount] = sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        track.mCount++;
+        mFragmentBytes += written;
+    }
+
+    /**
+     * Writes out any buffered samples.  The file is complete after this returns.
+     */
+    public void stop() throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started");
+        }
+        flushFragment();
+        mStarted = false;
+    }
+
+    /**
+     * Closes the output file.
+     */
+    public void release() {
+        if (mOutputStream != null) {
+            try {
+                mOutputStream.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing output", ioe);
+            }
+            mOutputStream = null;
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Copies an Annex B access unit into the track's data buffer as length-prefixed NAL
+     * units.  If we don't find a start code, the whole thing is treated as one NAL unit.
+     */
+    private static void appendAnnexB(Track track, ByteBuffer buf, int offset, int size) {
+        ByteBuffer data = track.mData;
+        int end = offset + size;
+        int nalStart = findNalStart(buf, offset, end);
+        if (nalStart < 0) {
+            nalStart = offset;
+        }
+        while (nalStart < end) {
+            int next = findNalStart(buf, nalStart, end);
+            int nalEnd = end;
+            if (next >= 0) {
+                // Back up over the start code, which is 3 or 4 bytes.
+                nalEnd = next - 3;
+                if (nalEnd > nalStart && buf.get(nalEnd - 1) == 0) {
+                    nalEnd--;
+                }
+            }
+            if (data.remaining() < 4 + nalEnd - nalStart) {
+                track.ensureCapacity(4 + nalEnd - nalStart);
+                data = track.mData;
+            }
+            data.putInt(nalEnd - nalStart);
+            for (int i = nalStart; i < nalEnd; i++) {
+                data.put(buf.get(i));
+            }
+            nalStart = (next >= 0) ? next : end;
+        }
+    }
+
+    /**
+     * Returns the offset of the first byte after the next 00 00 01 start code at or after
+     * "from", or -1 if there isn't one.
+     */
+    private static int findNalStart(ByteBuffer buf, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copies a parameter set out of a csd buffer, dropping the leading start code.
+     */
+    private static byte[] stripStartCode(ByteBuffer csd) {
+        ByteBuffer buf = csd.duplicate();
+        int start = findNalStart(buf, buf.position(), buf.limit());
+        if (start >= 0) {
+            buf.position(start);
+        }
+        byte[] out = new byte[buf.remaining()];
+        buf.get(out);
+        return out;
+    }
+
+    /**
+     * Writes a "moof" box describing the buffered samples, followed by an "mdat" box holding
+     * them, then resets the tracks for the next fragment.
+     */
+    private void flushFragment() throws IOException {
+        int dataSize = 0;
+        for (int i = 0; i < mTrackCount; i++) {
+            dataSize += mTracks[i].mData.position();
+        }
+        if (dataSize == 0) {
+            return;
+        }
+
+        mHeader.clear();
+        int[] trunPatch = mTrunPatch;
+        beginBox("moof");
+        beginFullBox("mfhd", 0, 0);
+        putInt(++mSequenceNumber);
+        endBox();
+        for (int i = 0; i < mTrackCount; i++) {
+            Track track = mTracks[i];
+            trunPatch[i] = -1;
+            if (track.mCount == 0) {
+                continue;
+            }
+            beginBox("traf");
+            beginFullBox("tfhd", 0, 0x020000);      // default-base-is-moof
+            putInt(i + 1);
+            endBox();
+            beginFullBox("tfdt", 1, 0);
+            putLong(track.mTimes[0]);
+            endBox();
+            // data-offset, sample-duration, sample-size, and sample-flags present
+            beginFullBox("trun", 0, 0x000701);
+            putInt(track.mCount);
+            trunPatch[i] = mHeader.position();
+            putInt(0);                              // data offset, patched below
+            for (int j = 0; j < track.mCount; j++) {
+                long duration;
+                if (j + 1 < track.mCount) {
+                    duration = track.mTimes[j + 1] - track.mTimes[j];
+                } else if (track.mNextTime >= 0) {
+                    duration = track.mNextTime - track.mTimes[j];
+                } else {
+                    duration = track.mDefaultDuration;
+                }
+                if (duration > 0) {
+                    track.mDefaultDuration = duration;
+                }
+                putInt((int) duration);
+                putInt(track.mSizes[j]);
+                putInt(track.mFlags[j]);
+            }
+            endBox();
+            endBox();
+        }
+        endBox();
+
+        // Data offsets are relative to the start of the moof, which is at zero.
+        int moofSize = mHeader.position();
+        int dataOffset = moofSize + 8;
+        for (int i = 0; i < mTrackCount; i++) {
+            if (trunPatch[i] >= 0) {
+                mHeader.putInt(trunPatch[i], dataOffset);
+            }
+            dataOffset += mTracks[i].mData.position();
+        }
+        putInt(8 + dataSize);
+        putFourCC("mdat");
+        mHeader.flip();
+        writeFully(mHeader);
+
+        for (int i = 0; i < mTrackCount; i++) {
+            Track track = mTracks[i];
+            track.mData.flip();
+            writeFully(track.mData);
+            track.mData.clear();
+            track.mCount = 0;
+            track.mNextTime = -1;
+        }
+        mFragmentBytes = 0;
+    }
+
+    private void writeFtyp() {
+        beginBox("ftyp");
+        putFourCC("iso5");
+        putInt(512);
+        putFourCC("iso5");
+        putFourCC("iso6");
+        putFourCC("mp41");
+        endBox();
+    }
+
+    private void writeMoov() {
+        beginBox("moov");
+        beginFullBox("mvhd", 0, 0);
+        putInt(0);                      // creation time
+        putInt(0);                      // modification time
+        putInt(1000);                   // timescale
+        putInt(0);                      // duration, unknown
+        putInt(0x00010000);             // rate 1.0
+        putShort(0x0100);               // volume 1.0
+        putZeros(10);
+        putMatrix();
+        putZeros(24);
+        putInt(mTrackCount + 1);        // next track ID
+        endBox();
+
+        for (int i = 0; i < mTrackCount; i++) {
+            writeTrak(mTracks[i], i + 1);
+        }
+
+        beginBox("mvex");
+        for (int i = 0; i < mTrackCount; i++) {
+            beginFullBox("trex", 0, 0);
+            putInt(i + 1);              // track ID
+            putInt(1);                  // sample description index
+            putInt(0);                  // default duration
+            putInt(0);                  // default size
+            putInt(0);                  // default flags
+            endBox();
+        }
+        endBox();
+        endBox();
+    }
+
+    private void writeTrak(Track track, int trackId) {
+        beginBox("trak");
+        beginFullBox("tkhd", 0, 0x000003);      // enabled, in movie
+        putInt(0);
+        putInt(0);
+        putInt(trackId);
+        putInt(0);
+        putInt(0);                      // duration
+        putZeros(8);
+        putShort(0);                    // layer
+        putShort(0);                    // alternate group
+        putShort(track.mIsVideo ? 0 : 0x0100);
+        putShort(0);
+        putMatrix();
+        putInt(track.mWidth << 16);
+        putInt(track.mHeight << 16);
+        endBox();
+
+        beginBox("mdia");
+        beginFullBox("mdhd", 0, 0);
+        putInt(0);
+        putInt(0);
+        putInt(track.mTimescale);
+        putInt(0);                      // duration
+        putShort(0x55c4);               // language "und"
+        putShort(0);
+        endBox();
+        beginFullBox("hdlr", 0, 0);
+        putInt(0);
+        putFourCC(track.mIsVideo ? "vide" : "soun");
+        putZeros(12);
+        putCString(track.mIsVideo ? "VideoHandler" : "SoundHandler");
+        endBox();
+
+        beginBox("minf");
+        if (track.mIsVideo) {
+            beginFullBox("vmhd", 0, 1);
+            putZeros(8);
+        } else {
+            beginFullBox("smhd", 0, 0);
+            putZeros(4);
+        }
+        endBox();
+        beginBox("dinf");
+        beginFullBox("dref", 0, 0);
+        putInt(1);
+        beginFullBox("url ", 0, 1);     // data is in this file
+        endBox();
+        endBox();
+        endBox();
+
+        beginBox("stbl");
+        beginFullBox("stsd", 0, 0);
+        putInt(1);
+        if (track.mIsVideo) {
+            writeAvc1(track);
+        } else {
+            writeMp4a(track);
+        }
+        endBox();
+        // The sample tables are empty; the samples are described in the fragments.
+        beginFullBox("stts", 0, 0);
+        putInt(0);
+        endBox();
+        beginFullBox("stsc", 0, 0);
+        putInt(0);
+        endBox();
+        beginFullBox("stsz", 0, 0);
+        putInt(0);
+        putInt(0);
+        endBox();
+        beginFullBox("stco", 0, 0);
+        putInt(0);
+        endBox();
+        endBox();   // stbl
+        endBox();   // minf
+        endBox();   // mdia
+        endBox();   // trak
+    }
+
+    private void writeAvc1(Track track) {
+        beginBox("avc1");
+        putZeros(6);
+        putShort(1);                    // data reference index
+        putZeros(16);
+        putShort(track.mWidth);
+        putShort(track.mHeight);
+        putInt(0x00480000);             // 72 dpi
+        putInt(0x00480000);
+        putInt(0);
+        putShort(1);                    // frame count
+        putZeros(32);                   // compressor name
+        putShort(0x0018);               // depth
+        putShort(-1);
+
+        byte[] sps = track.mSps;
+        byte[] pps = track.mPps;
+        beginBox("avcC");
+        putByte(1);                     // configuration version
+        putByte(sps[1]);                // profile
+        putByte(sps[2]);                // profile compatibility
+        putByte(sps[3]);                // level
+        putByte(0xff);                  // 4-byte NAL lengths
+        putByte(0xe1);                  // one SPS
+        putShort(sps.length);
+        putBytes(sps);
+        putByte(1);                     // one PPS
+        putShort(pps.length);
+        putBytes(pps);
+        endBox();
+        endBox();
+    }
+
+    private void writeMp4a(Track track) {
+        beginBox("mp4a");
+        putZeros(6);
+        putShort(1);                    // data reference index
+        putZeros(8);
+        putShort(track.mChannels);
+        putShort(16);                   // sample size
+        putInt(0);
+        putInt(track.mSampleRate << 16);
+
+        byte[] config = track.mAudioConfig;
+        beginFullBox("esds", 0, 0);
+        putByte(0x03);                  // ES_Descriptor
+        putByte(3 + (2 + 13 + 2 + config.length) + 3);
+        putShort(0);                    // ES_ID
+        putByte(0);
+        putByte(0x04);                  // DecoderConfigDescriptor
+        putByte(13 + 2 + config.length);
+        putByte(0x40);                  // MPEG-4 audio
+        putByte(0x15);                  // audio stream
+        putZeros(3);                    // buffer size
+        putInt(0);                      // max bit rate
+        putInt(0);                      // avg bit rate
+        putByte(0x05);                  // DecoderSpecificInfo
+        putByte(config.length);
+        putBytes(config);
+        putByte(0x06);                  // SLConfigDescriptor
+        putByte(1);
+        putByte(0x02);
+        endBox();
+        endBox();
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+    }
+
+    //
+    // Box-building helpers.  These append to mHeader, growing it if needed.
+    //
+
+    private void beginBox(String type) {
+        mBoxStack[mBoxDepth++] = mHeader.position();
+        putInt(0);                      // size, patched in endBox()
+        putFourCC(type);
+    }
+
+    private void beginFullBox(String type, int version, int flags) {
+        beginBox(type);
+        putInt((version << 24) | flags);
+    }
+
+    private void endBox() {
+        int start = mBoxStack[--mBoxDepth];
+        mHeader.putInt(start, mHeader.position() - start);
+    }
+
+    private void ensureHeader(int bytes) {
+        if (mHeader.remaining() < bytes) {
+            ByteBuffer header = ByteBuffer.allocate(Math.max(mHeader.capacity() * 2,
+                    mHeader.position() + bytes));
+            mHeader.flip();
+            header.put(mHeader);
+            mHeader = header;
+        }
+    }
+
+    private void putByte(int value) {
+        ensureHeader(1);
+        mHeader.put((byte) value);
+    }
+
+    private void putShort(int value) {
+        ensureHeader(2);
+        mHeader.putShort((short) value);
+    }
+
+    private void putInt(int value) {
+        ensureHeader(4);
+        mHeader.putInt(value);
+    }
+
+    private void putLong(long value) {
+        ensureHeader(8);
+        mHeader.putLong(value);
+    }
+
+    private void putBytes(byte[] bytes) {
+        ensureHeader(bytes.length);
+        mHeader.put(bytes);
+    }
+
+    private void putZeros(int count) {
+        ensureHeader(count);
+        for (int i = 0; i < count; i++) {
+            mHeader.put((byte) 0);
+        }
+    }
+
+    private void putFourCC(String type) {
+        ensureHeader(4);
+        for (int i = 0; i < 4; i++) {
+            mHeader.put((byte) type.charAt(i));
+        }
+    }
+
+    private void putCString(String str) {
+        ensureHeader(str.length() + 1);
+        for (int i = 0; i < str.length(); i++) {
+            mHeader.put((byte) str.charAt(i));
+        }
+        mHeader.put((byte) 0);
+    }
+
+    private void putMatrix() {
+        putInt(0x00010000);
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putInt(0x00010000);
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putInt(0x40000000);
+    }
+
+    private static int[] copyOf(int[] array, int len) {
+        int[] out = new int[len];
+        System.arraycopy(array, 0, out, 0, Math.min(array.length, len));
+        return out;
+    }
+
+    private static long[] copyOf(long[] array, int len) {
+        long[] out = new long[len];
+        System.arraycopy(array, 0, out, 0, Math.min(array.length, len));
+        return out;
+    }
+}
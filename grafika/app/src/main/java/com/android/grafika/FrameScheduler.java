@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides when each decoded video frame should be released, and which frames to drop.
+ * <p>
+ * Every frame's target time is computed from a single anchor (the monotonic time at which
+ * the first frame was shown, plus the PTS delta from that frame), so errors never
+ * accumulate the way they do when each sleep is measured from the previous wake-up.  When
+ * the display's vsync timing is known, the target is snapped to the nearest vsync, and the
+ * frame is released {@link #setLatchLeadNsec one latch lead} ahead of it.  A frame whose slot
+ * has already gone by, or whose slot is already taken by an earlier frame, is dropped.
+ * <p>
+ * The class has no Android dependencies.  Time comes from an injected {@link Clock}, so the
+ * scheduling decisions can be driven by a fake clock on a plain JVM.
+ * <p>
+ * {@link #schedule} is called from the decode thread; {@link #setVsync} may be called from
+ * any thread (typically a Choreographer callback); the stats getters may be called from
+ * anywhere.  All of them take the object lock, but schedule() drops it while sleeping.
+ */
+public class FrameScheduler {
+    private static final long ONE_MILLION = 1000000L;
+    private static final long ONE_BILLION = 1000000000L;
+
+    /** Returned by {@link #schedule} when the frame should not be rendered. */
+    public static final long DROP = -1;
+
+    // Never drop more than this many frames in a row, so a slow device still shows something.
+    private static final int MAX_CONSECUTIVE_DROPS = 8;
+
+    /**
+     * Source of monotonic time.  The default implementation uses System.nanoTime() and
+     * Thread.sleep().
+     */
+    public interface Clock {
+        /** Returns the current monotonic time, in nanoseconds. */
+        long nanoTime();
+
+        /**
+         * Sleeps for approximately the given time.  May return early; the scheduler will
+         * check the time and call again.
+         */
+        void sleepNsec(long durationNsec);
+    }
+
+    /** Clock backed by System.nanoTime(), which shares a time base with Choreographer. */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNsec(long durationNsec) {
+            try {
+                Thread.sleep(durationNsec / ONE_MILLION, (int) (durationNsec % ONE_MILLION));
+            } catch (InterruptedException ie) {}
+        }
+    };
+
+    private final Clock mClock;
+
+    // Display timing; mVsyncPeriodNsec == 0 means unknown, and we don't snap.
+    private long mVsyncTimeNsec;
+    private long mVsyncPeriodNsec;
+    private long mLatchLeadNsec;
+
+    private long mFixedFrameDurationUsec;
+
+    // Anchor: frame with PTS mAnchorPtsUsec is due at mAnchorNsec.
+    private boolean mAnchored;
+    private long mAnchorNsec;
+    private long mAnchorPtsUsec;
+    private long mFrameIndex;           // frames since anchor, for fixed-rate mode
+    private long mPrevPtsUsec;
+    private long mPrevFrameDeltaUsec;
+    private long mLastSlotNsec;
+    private boolean mLoopReset;
+    private int mConsecutiveDrops;
+
+    // Stats.
+    private long mFramesRendered;
+    private long mFramesDroppedLate;
+    private long mFramesDroppedSlot;
+    private final LatencyHistogram mError = new LatencyHistogram();
+    private final LatencyHistogram mEarlyError = new LatencyHistogram();
+    private final LatencyHistogram mLateError = new LatencyHistogram();
+    private final LatencyHistogram mWakeLateness = new LatencyHistogram();
+
+    /**
+     * @param clock Time source; use {@link #SYSTEM_CLOCK} outside of tests.
+     */
+    public FrameScheduler(Clock clock) {
+        mClock = clock;
+        mPrevFrameDeltaUsec = ONE_MILLION / 30;
+    }
+
+    /**
+     * Reports a vsync.  The most recent report is used to lay out the grid of slots, so
+     * this only needs to be called often enough to correct for the period being slightly
+     * off.
+     *
+     * @param vsyncTimeNsec Time of the vsync, on the System.nanoTime() time base.
+     * @param periodNsec Refresh period, or zero if unknown.
+     */
+    public synchronized void setVsync(long vsyncTimeNsec, long periodNsec) {
+        mVsyncTimeNsec = vsyncTimeNsec;
+        mVsyncPeriodNsec = periodNsec;
+    }
+
+    /**
+     * Sets how long before its vsync a frame must be released in order to make it.  This
+     * covers the trip through SurfaceTexture or the compositor.  Defaults to zero.
+     */
+    public synchronized void setLatchLeadNsec(long leadNsec) {
+        mLatchLeadNsec = leadNsec;
+    }
+
+    /**
+     * Sets a fixed playback rate.  If set, this will ignore the presentation time stamps.
+     * Pass 0 to go back to following the time stamps.
+     */
+    public synchronized void setFixedPlaybackRate(int fps) {
+        mFixedFrameDurationUsec = fps == 0 ? 0 : ONE_MILLION / fps;
+        mAnchored = false;
+    }
+
+    /**
+     * Tells the scheduler that the PTS sequence is about to restart (e.g. the movie looped).
+     * The next frame is scheduled one frame duration after the last one.
+     */
+    public synchronized void loopReset() {
+        mLoopReset = true;
+    }
+
+    /**
+     * Forgets the anchor; the next frame is shown as soon as possible.  Stats are kept.
+     */
+    public synchronized void reset() {
+        mAnchored = false;
+        mLoopReset = false;
+        mConsecutiveDrops = 0;
+    }
+
+    /**
+     * Decides what to do with a decoded frame, and waits until it's time to release it.
+     *
+     * @param presentationTimeUsec The frame's PTS.
+     * @return The time at which the frame is expected on-screen, in nanoseconds, or
+     *      {@link #DROP} if it should be discarded.
+     */
+    public long schedule(long presentationTimeUsec) {
+        long slotNsec;
+        long releaseNsec;
+        synchronized (this) {
+            long nowNsec = mClock.nanoTime();
+            long desiredNsec;
+            if (!mAnchored) {
+                anchor(nowNsec, presentationTimeUsec);
+                desiredNsec = mAnchorNsec;
+            } else {
+                if (mLoopReset) {
+                    // Re-anchor so the new PTS sequence picks up one frame after the old one.
+                    long nextNsec;
+                    if (mFixedFrameDurationUsec != 0) {
+                        nextNsec = targetTimeNsec(0);
+                    } else {
+                        nextNsec = targetTimeNsec(mPrevPtsUsec) + mPrevFrameDeltaUsec * 1000;
+                    }
+                    mAnchorNsec = nextNsec;
+                    mAnchorPtsUsec = presentationTimeUsec;
+                    mFrameIndex = 0;
+                    mLoopReset = false;
+                } else if (mFixedFrameDurationUsec == 0) {
+                    long deltaUsec = presentationTimeUsec - mPrevPtsUsec;
+                    if (deltaUsec > 0 && deltaUsec < 5 * ONE_MILLION) {
+                        mPrevFrameDeltaUsec = deltaUsec;
+                    } else if (deltaUsec != 0) {
+                        // Time went backward, or there's a long gap.  Rather than drop
+                        // everything or sit on one frame for ages, start over.
+                        anchor(nowNsec, presentationTimeUsec);
+                    }
+                }
+                desiredNsec = targetTimeNsec(presentationTimeUsec);
+            }
+            mPrevPtsUsec = presentationTimeUsec;
+            mFrameIndex++;
+
+            slotNsec = snapToVsync(desiredNsec);
+            if (mFramesRendered != 0 && mVsyncPeriodNsec != 0 &&
+                    slotNsec <= mLastSlotNsec) {
+                // Frame rate is higher than the refresh rate; an earlier frame has this slot.
+                mFramesDroppedSlot++;
+                return DROP;
+            }
+            releaseNsec = slotNsec - mLatchLeadNsec;
+            // With vsync timing, any lateness means the slot is gone.  Without it, we only
+            // give up on a frame once the next one is due.
+            long lateLimitNsec = mVsyncPeriodNsec != 0 ? 0 : mPrevFrameDeltaUsec * 1000;
+            if (nowNsec - releaseNsec > lateLimitNsec && mFramesRendered != 0 &&
+                    mConsecutiveDrops < MAX_CONSECUTIVE_DROPS) {
+                // Too late to make its slot; skipping it lets the next frame catch up.
+                mFramesDroppedLate++;
+                mConsecutiveDrops++;
+                return DROP;
+            }
+            mConsecutiveDrops = 0;
+            if (slotNsec < nowNsec + mLatchLeadNsec) {
+                // Rendering anyway (first frame, or we've dropped too many); it'll go out on
+                // the next vsync we can make.
+                slotNsec = firstVsyncAtOrAfter(nowNsec + mLatchLeadNsec);
+                releaseNsec = nowNsec;
+            }
+            long errorNsec = slotNsec - desiredNsec;
+            if (errorNsec < 0) {
+                mEarlyError.record(-errorNsec / 1000);
+            } else {
+                mLateError.record(errorNsec / 1000);
+            }
+            mError.record(Math.abs(errorNsec) / 1000);
+            mLastSlotNsec = slotNsec;
+            mFramesRendered++;
+        }
+
+        // Sleep without holding the lock, so vsync reports and stats queries aren't blocked.
+        long nowNsec = mClock.nanoTime();
+        while (nowNsec < releaseNsec - 100000) {
+            // Wake at least every half second; see SpeedControlCallback.
+            mClock.sleepNsec(Math.min(releaseNsec - nowNsec, ONE_BILLION / 2));
+            nowNsec = mClock.nanoTime();
+        }
+        synchronized (this) {
+            mWakeLateness.record(Math.max(0, nowNsec - releaseNsec) / 1000);
+        }
+        return slotNsec;
+    }
+
+    private void anchor(long nowNsec, long presentationTimeUsec) {
+        // Earliest slot the frame can make if it's released now.
+        mAnchorNsec = firstVsyncAtOrAfter(nowNsec + mLatchLeadNsec);
+        mAnchorPtsUsec = presentationTimeUsec;
+        mFrameIndex = 0;
+        mAnchored = true;
+    }
+
+    /**
+     * Computes the ideal on-screen time, from the anchor.
+     */
+    private long targetTimeNsec(long presentationTimeUsec) {
+        if (mFixedFrameDurationUsec != 0) {
+            return mAnchorNsec + mFrameIndex * mFixedFrameDurationUsec * 1000;
+        }
+        return mAnchorNsec + (presentationTimeUsec - mAnchorPtsUsec) * 1000;
+    }
+
+    /**
+     * Returns the vsync closest to the given time, or the time itself if we don't know the
+     * display timing.
+     */
+    private long snapToVsync(long timeNsec) {
+        long period = mVsyncPeriodNsec;
+        if (period == 0) {
+            return timeNsec;
+        }
+        long offset = timeNsec - mVsyncTimeNsec;
+        long slots = offset >= 0 ? (offset + period / 2) / period :
+                -((-offset + period / 2) / period);
+        return mVsyncTimeNsec + slots * period;
+    }
+
+    /**
+     * Returns the first vsync at or after the given time, or the time itself if we don't
+     * know the display timing.
+     */
+    private long firstVsyncAtOrAfter(long timeNsec) {
+        long slotNsec = snapToVsync(timeNsec);
+        if (slotNsec < timeNsec) {
+            slotNsec += mVsyncPeriodNsec;
+        }
+        return slotNsec;
+    }
+
+    /** Returns the number of frames rendered. */
+    public synchronized long getFramesRendered() {
+        return mFramesRendered;
+    }
+
+    /** Returns the number of frames dropped because they would have missed their slot. */
+    public synchronized long getFramesDroppedLate() {
+        return mFramesDroppedLate;
+    }
+
+    /** Returns the number of frames dropped because an earlier frame had the same slot. */
+    public synchronized long getFramesDroppedSlot() {
+        return mFramesDroppedSlot;
+    }
+
+    /**
+     * Returns the presentation error at the given percentile, in microseconds.  This is
+     * the distance between a frame's ideal time and the slot it was given, in either
+     * direction.
+     */
+    public synchronized long getErrorPercentileUsec(double percentile) {
+        return mError.getPercentileUsec(percentile);
+    }
+
+    /**
+     * Writes the current values in human-readable form.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("frames: rendered=" + mFramesRendered + " droppedLate=" + mFramesDroppedLate +
+                " droppedSlot=" + mFramesDroppedSlot);
+        pw.println("vsync period=" + mVsyncPeriodNsec + "ns lead=" + mLatchLeadNsec + "ns");
+        mError.dump(pw, "presentation error");
+        mEarlyError.dump(pw, "presented early");
+        mLateError.dump(pw, "presented late");
+        mWakeLateness.dump(pw, "wake-up lateness");
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameScheduler: rendered=" + mFramesRendered +
+                " drop late/slot=" + mFramesDroppedLate + "/" + mFramesDroppedSlot +
+                " err p50/p99=" + getErrorPercentileUsec(50) + "/" +
+                getErrorPercentileUsec(99) + "us";
+    }
+}
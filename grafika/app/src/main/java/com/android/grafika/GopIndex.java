@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Index of the frames in a video track, for seeking.
+ * <p>
+ * Holds the presentation time of every sample, and of every sync sample (the start of each
+ * GOP), both sorted.  Building one means reading through every sample header in the file,
+ * which for MediaExtractor can take a noticeable fraction of a second on a long movie, so
+ * the index can be saved to a small cache file and loaded next time.  The cache file records
+ * the source file's length and modification time, and is ignored if they've changed.
+ */
+public class GopIndex {
+    private static final String TAG = MainActivity.TAG;
+
+    private static final int MAGIC = 0x476f7049;    // "GopI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    private final long[] mFramePtsUsec;     // every sample, sorted
+    private final long[] mSyncPtsUsec;      // sync samples, sorted
+
+    private GopIndex(long[] framePtsUsec, long[] syncPtsUsec) {
+        mFramePtsUsec = framePtsUsec;
+        mSyncPtsUsec = syncPtsUsec;
+    }
+
+    /**
+     * Builds an index by reading through a source from its current position to the end.
+     * The source is left at the end.
+     */
+    public static GopIndex build(SampleSource source) {
+        long[] frames = new long[1024];
+        long[] syncs = new long[64];
+        int frameCount = 0;
+        int syncCount = 0;
+        long ptsUsec;
+        while ((ptsUsec = source.getSampleTime()) >= 0) {
+            if (frameCount == frames.length) {
+                frames = Arrays.copyOf(frames, frameCount * 2);
+            }
+            frames[frameCount++] = ptsUsec;
+            if ((source.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (syncCount == syncs.length) {
+                    syncs = Arrays.copyOf(syncs, syncCount * 2);
+                }
+                syncs[syncCount++] = ptsUsec;
+            }
+            if (!source.advance()) {
+                break;
+            }
+        }
+        frames = Arrays.copyOf(frames, frameCount);
+        syncs = Arrays.copyOf(syncs, syncCount);
+        // Samples are in decode order; with B-frames that's not presentation order.
+        Arrays.sort(frames);
+        Arrays.sort(syncs);
+        return new GopIndex(frames, syncs);
+    }
+
+    /**
+     * Returns the cache file for an index of the given movie.
+     */
+    public static File getCacheFile(File cacheDir, File sourceFile) {
+        String path = sourceFile.getAbsolutePath();
+        return new File(cacheDir, sourceFile.getName() + "-" +
+                Integer.toHexString(path.hashCode()) + ".gopidx");
+    }
+
+    /**
+     * Loads a cached index for sourceFile.  The counts and times are checked, so a truncated
+     * or corrupt file is treated like a missing one.
+     *
+     * @return The index, or null if there isn't a usable one.
+     */
+    public static GopIndex load(File cacheFile, File sourceFile) {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    in.readLong() != sourceFile.length() ||
+                    in.readLong() != sourceFile.lastModified()) {
+                Log.d(TAG, "Ignoring stale GOP index " + cacheFile);
+                return null;
+            }
+            // Don't trust the counts until they're checked against the file length.
+            long remaining = cacheFile.length() - HEADER_SIZE;
+            long[] frames = readSortedArray(in, remaining - 4 - 4);
+            remaining -= 4 + frames.length * 8L;
+            long[] syncs = readSortedArray(in, remaining - 4);
+            if (remaining != 4 + syncs.length * 8L) {
+                throw new IOException("trailing data");
+            }
+            return new GopIndex(frames, syncs);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to read GOP index " + cacheFile, ioe);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a count followed by that many ascending times.
+     *
+     * @param maxBytes Bytes left in the file for the times.
+     */
+    private static long[] readSortedArray(DataInputStream in, long maxBytes)
+            throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count * 8L > maxBytes) {
+            throw new IOException("bad count " + count);
+        }
+        long[] array = new long[count];
+        for (int i = 0; i < count; i++) {
+            array[i] = in.readLong();
+            if (i > 0 && array[i] < array[i - 1]) {
+                throw new IOException("times out of order at " + i);
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Writes the index to a cache file, tagged with sourceFile's length and modification
+     * time.
+     */
+    public void save(File cacheFile, File sourceFile) throws IOException {
+        // Write to a temporary file and rename, so a reader never sees a partial file.
+        File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp",
+                cacheFile.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(sourceFile.length());
+                out.writeLong(sourceFile.lastModified());
+                out.writeInt(mFramePtsUsec.length);
+                for (long pts : mFramePtsUsec) {
+                    out.writeLong(pts);
+                }
+                out.writeInt(mSyncPtsUsec.length);
+                for (long pts : mSyncPtsUsec) {
+                    out.writeLong(pts);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(cacheFile)) {
+                throw new IOException("rename to " + cacheFile + " failed");
+            }
+            tmpFile = null;
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /** Returns the number of frames in the track. */
+    public int getFrameCount() {
+        return mFramePtsUsec.length;
+    }
+
+    /** Returns the number of GOPs (sync samples) in the track. */
+    public int getGopCount() {
+        return mSyncPtsUsec.length;
+    }
+
+    /**
+     * Returns the time of the frame that's on screen at ptsUsec: the last one that starts
+     * at or before it.  Times before the first frame give the first frame.
+     */
+    public long getFrameTimeAtOrBefore(long ptsUsec) {
+        return atOrBefore(mFramePtsUsec, ptsUsec);
+    }
+
+    /**
+     * Returns the time of the sync sample that starts the GOP holding ptsUsec.
+     */
+    public long getSyncTimeAtOrBefore(long ptsUsec) {
+        return atOrBefore(mSyncPtsUsec, ptsUsec);
+    }
+
+    private static long atOrBefore(long[] sorted, long ptsUsec) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(sorted, ptsUsec);
+        if (index < 0) {
+            index = -index - 2;     // insertion point - 1
+        }
+        return sorted[Math.max(index, 0)];
+    }
+}
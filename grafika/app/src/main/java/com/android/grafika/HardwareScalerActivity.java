@@ -36,11 +36,10 @@ import android.graphics.Rect;
 
 import com.android.grafika.gles.Drawable2d;
 import com.android.grafika.gles.EglCore;
-import com.android.grafika.gles.FlatShadedProgram;
 import com.android.grafika.gles.GeneratedTexture;
 import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.Sprite2d;
-import com.android.grafika.gles.Texture2dProgram;
+import com.android.grafika.gles.SpriteBatch;
 import com.android.grafika.gles.WindowSurface;
 
 import java.lang.ref.WeakReference;
@@ -323,8 +322,7 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
         private volatile SurfaceHolder mSurfaceHolder;  // contents may be updated by UI thread
         private EglCore mEglCore;
         private WindowSurface mWindowSurface;
-        private FlatShadedProgram mFlatProgram;
-        private Texture2dProgram mTexProgram;
+        private SpriteBatch mSpriteBatch;
         private int mCoarseTexture;
         private int mFineTexture;
         private boolean mUseFlatShading;
@@ -440,9 +438,8 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
             mWindowSurface = new WindowSurface(mEglCore, surface, false);
             mWindowSurface.makeCurrent();
 
-            // Programs used for drawing onto the screen.
-            mFlatProgram = new FlatShadedProgram();
-            mTexProgram = new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D);
+            // Used for drawing onto the screen.  We only have six sprites.
+            mSpriteBatch = new SpriteBatch(8);
             mCoarseTexture = GeneratedTexture.createTestTexture(GeneratedTexture.Image.COARSE);
             mFineTexture = GeneratedTexture.createTestTexture(GeneratedTexture.Image.FINE);
 
@@ -540,13 +537,9 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
                 mWindowSurface.release();
                 mWindowSurface = null;
             }
-            if (mFlatProgram != null) {
-                mFlatProgram.release();
-                mFlatProgram = null;
-            }
-            if (mTexProgram != null) {
-                mTexProgram.release();
-                mTexProgram = null;
+            if (mSpriteBatch != null) {
+                mSpriteBatch.release();
+                mSpriteBatch = null;
             }
             GlUtil.checkGlError("releaseGl done");
 
@@ -663,18 +656,23 @@ public class HardwareScalerActivity extends Activity implements SurfaceHolder.Ca
             // Textures may include alpha, so turn blending on.
             GLES20.glEnable(GLES20.GL_BLEND);
             GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            mSpriteBatch.begin(mDisplayProjectionMatrix);
             if (mUseFlatShading) {
-                mTri.draw(mFlatProgram, mDisplayProjectionMatrix);
-                mRect.draw(mFlatProgram, mDisplayProjectionMatrix);
+                mSpriteBatch.drawFlat(mTri);
+                mSpriteBatch.drawFlat(mRect);
             } else {
-                mTri.draw(mTexProgram, mDisplayProjectionMatrix);
-                mRect.draw(mTexProgram, mDisplayProjectionMatrix);
+                mSpriteBatch.drawTextured(mTri);
+                mSpriteBatch.drawTextured(mRect);
             }
+            mSpriteBatch.end();
             GLES20.glDisable(GLES20.GL_BLEND);
 
+            // The four edges go out in a single draw call.
+            mSpriteBatch.begin(mDisplayProjectionMatrix);
             for (int i = 0; i < 4; i++) {
-                mEdges[i].draw(mFlatProgram, mDisplayProjectionMatrix);
+                mSpriteBatch.drawFlat(mEdges[i]);
             }
+            mSpriteBatch.end();
 
             GlUtil.checkGlError("draw done");
         }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-size histogram of latency values, in microseconds.
+ * <p>
+ * Buckets are log-linear, in the style of HdrHistogram: each power of two is split into
+ * SUB_BUCKETS/2 equal slices, so any recorded value is accurate to within about 6% however
+ * large it is.  Values from 0 up to 2^40 usec (about 12 days) fit in ~600 longs, which are
+ * allocated up front.  record() does no allocation, and is cheap enough to call per frame.
+ * <p>
+ * Not thread-safe; callers synchronize.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;    // 32
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private final long[] mCounts = new long[getBucketCount()];
+    private long mTotalCount;
+    private long mTotalUsec;
+    private long mMinUsec;
+    private long mMaxUsec;
+
+    public LatencyHistogram() {
+        reset();
+    }
+
+    /**
+     * Discards all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCount = 0;
+        mTotalUsec = 0;
+        mMinUsec = Long.MAX_VALUE;
+        mMaxUsec = 0;
+    }
+
+    /**
+     * Records one value.  Negative values are recorded as zero; huge ones are clamped.
+     */
+    public void record(long valueUsec) {
+        if (valueUsec < 0) {
+            valueUsec = 0;
+        } else if (valueUsec > MAX_VALUE) {
+            valueUsec = MAX_VALUE;
+        }
+        mCounts[bucketIndex(valueUsec)]++;
+        mTotalCount++;
+        mTotalUsec += valueUsec;
+        if (valueUsec < mMinUsec) {
+            mMinUsec = valueUsec;
+        }
+        if (valueUsec > mMaxUsec) {
+            mMaxUsec = valueUsec;
+        }
+    }
+
+    /** Returns the number of values recorded. */
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    /** Returns the smallest value recorded, or 0 if there are none. */
+    public long getMinUsec() {
+        return mTotalCount == 0 ? 0 : mMinUsec;
+    }
+
+    /** Returns the largest value recorded. */
+    public long getMaxUsec() {
+        return mMaxUsec;
+    }
+
+    /** Returns the mean of the recorded values, or 0 if there are none. */
+    public long getMeanUsec() {
+        return mTotalCount == 0 ? 0 : mTotalUsec / mTotalCount;
+    }
+
+    /**
+     * Returns the value at the given percentile (0-100).  The result is the top of the
+     * bucket that holds it, so it may overstate the real value by a few percent, but
+     * never more than the recorded maximum.
+     */
+    public long getPercentileUsec(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(mTotalCount * percentile / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), mMaxUsec);
+            }
+        }
+        return mMaxUsec;
+    }
+
+    /**
+     * Adds the counts from another histogram into this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mTotalUsec += other.mTotalUsec;
+        mMinUsec = Math.min(mMinUsec, other.mMinUsec);
+        mMaxUsec = Math.max(mMaxUsec, other.mMaxUsec);
+    }
+
+    /**
+     * Adds count values that fall in the given bucket.  This lets callers keep the counts
+     * somewhere else (e.g. in atomics, see PlaybackStats) and still use the reporting
+     * methods here.  Values are taken to be at the bottom of the bucket, so the mean, min
+     * and max are only as accurate as the buckets.
+     */
+    void addBucketCount(int index, long count) {
+        if (count == 0) {
+            return;
+        }
+        long lowUsec = bucketLowerBound(index);
+        mCounts[index] += count;
+        mTotalCount += count;
+        mTotalUsec += lowUsec * count;
+        mMinUsec = Math.min(mMinUsec, lowUsec);
+        mMaxUsec = Math.max(mMaxUsec, bucketUpperBound(index));
+    }
+
+    /** Returns the number of buckets, for use with addBucketCount(). */
+    static int getBucketCount() {
+        return (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the bucket a value is recorded in, for use with addBucketCount().  Values are
+     * clamped as in record().
+     */
+    static int getBucketIndex(long valueUsec) {
+        if (valueUsec < 0) {
+            valueUsec = 0;
+        } else if (valueUsec > MAX_VALUE) {
+            valueUsec = MAX_VALUE;
+        }
+        return bucketIndex(valueUsec);
+    }
+
+    /**
+     * Writes a one-line summary: count, mean, and the usual percentiles.
+     */
+    public void dump(PrintWriter pw, String name) {
+        pw.println(name + ": count=" + mTotalCount +
+                " min=" + getMinUsec() +
+                " mean=" + getMeanUsec() +
+                " p50=" + getPercentileUsec(50) +
+                " p90=" + getPercentileUsec(90) +
+                " p99=" + getPercentileUsec(99) +
+                " p99.9=" + getPercentileUsec(99.9) +
+                " max=" + mMaxUsec + " (usec)");
+    }
+
+    /**
+     * Writes the non-empty buckets, one per line, as "lowerBound count".
+     */
+    public void dumpBuckets(PrintWriter pw) {
+        for (int i = 0; i < mCounts.length; i++) {
+            if (mCounts[i] != 0) {
+                pw.println("  " + bucketLowerBound(i) + " " + mCounts[i]);
+            }
+        }
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        return (long) (index - shift * HALF_SUB_BUCKETS) << shift;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        return bucketLowerBound(index) + (1L << shift) - 1;
+    }
+}
@@ -26,6 +26,8 @@ import android.view.View;
 import android.widget.ListView;
 import android.widget.SimpleAdapter;
 
+import com.android.grafika.gles.ProgramCache;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -91,6 +93,9 @@ public class MainActivity extends ListActivity {
         { "Texture from Camera",
             "Resize and zoom the camera preview",
             "TextureFromCameraActivity" },
+        { "{bench} Sprite batch speed test",
+            "Draw calls and frame time, individual vs. batched sprites",
+            "SpriteBatchActivity" },
         { "{bench} glReadPixels speed test",
             "Tests glReadPixels() performance with 720p frames",
             "ReadPixelsActivity" },
@@ -135,6 +140,7 @@ public class MainActivity extends ListActivity {
 
         // One-time singleton initialization; requires activity context to get file location.
         ContentManager.initialize(this);
+        ProgramCache.setCacheDir(getCacheDir());
 
         setListAdapter(new SimpleAdapter(this, createActivityList(),
                 android.R.layout.two_line_list_item, new String[] { TITLE, DESCRIPTION },
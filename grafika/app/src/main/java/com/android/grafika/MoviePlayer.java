@@ -16,10 +16,13 @@
 
 package com.android.grafika;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
@@ -39,6 +42,19 @@ public class MoviePlayer {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
+    /** Slowest rate accepted by setPlaybackRate(). */
+    public static final float MIN_PLAYBACK_RATE = 0.25f;
+    /** Fastest rate accepted by setPlaybackRate(). */
+    public static final float MAX_PLAYBACK_RATE = 16.0f;
+    /** At or above this rate, only sync samples (key frames) are decoded. */
+    public static final float KEYFRAME_ONLY_RATE = SampleFeeder.KEYFRAME_ONLY_RATE;
+
+    // Samples read ahead by the I/O thread, unless changed with setReadAheadSamples().
+    private static final int DEFAULT_READ_AHEAD_SAMPLES = 8;
+
+    // Rate changes are spread out so the rate at most doubles (or halves) this often.
+    private static final long RATE_DOUBLING_USEC = 100000;
+
     // Declare this here to reduce allocations.
     private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
@@ -49,8 +65,58 @@ public class MoviePlayer {
     private Surface mOutputSurface;
     FrameCallback mFrameCallback;
     private boolean mLoop;
+    private boolean mUseJavaDemuxer;
+    private boolean mAsyncDecode;
+    private int mPrerollFrames;
+    private int mReadAheadSamples = DEFAULT_READ_AHEAD_SAMPLES;
     private int mVideoWidth;
     private int mVideoHeight;
+    private long mDurationUsec = -1;
+    private File mIndexCacheDir;
+    private CodecPool mCodecPool;
+
+    // Decoder state.  Set up by prepare(), torn down by release().
+    private SampleSource mSource;
+    private SampleFeeder mFeeder;                   // picks and counts decoder input
+    private MediaCodec mDecoder;
+    private boolean mDecoderLeased;                 // mDecoder belongs to mCodecPool
+    private HandlerThread mCodecThread;             // async mode only
+    private volatile AsyncDecodeCallback mAsyncCallback;    // async mode only
+    private boolean mInputDone;
+    private long mFirstInputTimeNsec;
+    private int mPrerolledIndex = -1;               // decoded buffer held by the pre-roll
+    private LoopTimeline mLoopTimeline;             // loop mode only
+    private final InputTimes mInputTimes = new InputTimes();    // polling mode only
+    private final PlaybackStats mStats = new PlaybackStats();
+
+    // Playback rate.  The target is set by anyone; the rest is player thread only.  Frames
+    // are handed to the FrameCallback with time stamps on a "playback" time line, which
+    // runs at mRate relative to the media time line, and is continuous across rate changes.
+    private volatile float mTargetRate = 1.0f;
+    private float mRate;
+    private boolean mRateRebase;
+    private long mRateBaseMediaUsec;
+    private long mRateBasePlaybackUsec;
+    private long mPrevMediaUsec;
+
+    // Seeking.  The request is posted by anyone, under mSeekLock, and picked up by the
+    // player thread; the rest is player thread only, except the latency stats.
+    private final Object mSeekLock = new Object();
+    private boolean mSeekPending;
+    private long mSeekTargetUsec;
+    private boolean mSeekExact;
+    private long mSeekRequestNsec;
+    private final LatencyHistogram mSeekLatency = new LatencyHistogram();  // mSeekLock
+    private volatile long mLastSeekLatencyUsec = -1;
+    private GopIndex mGopIndex;
+    private long mSeekDiscardUntilUsec = -1;    // decode but don't show frames before this
+    private long mSeekStartNsec;                // nonzero while a seek is in progress
+    private long mLastOutputUsec = -1;          // PTS of the last buffer out of the decoder
+
+    // Startup timing.  Written by the player thread, read by anyone.
+    private long mPlayStartNsec;
+    private volatile long mPrepareTimeUsec = -1;
+    private volatile long mTimeToFirstFrameUsec = -1;
 
 
     /**
@@ -69,10 +135,12 @@ public class MoviePlayer {
      */
     public interface FrameCallback {
         /**
-         * Called immediately before the frame is rendered.
+         * Called immediately before the frame is rendered.  The callback may block until
+         * it's time to show the frame, or decide the frame is too late to show at all.
          * @param presentationTimeUsec The desired presentation time, in microseconds.
+         * @return True to render the frame, false to drop it.
          */
-        void preRender(long presentationTimeUsec);
+        boolean preRender(long presentationTimeUsec);
 
         /**
          * Called immediately after the frame render call returns.  The frame may not have
@@ -82,8 +150,9 @@ public class MoviePlayer {
         void postRender();
 
         /**
-         * Called after the last frame of a looped movie has been rendered.  This allows the
-         * callback to adjust its expectations of the next presentation time stamp.
+         * Called when the presentation time stamps jump, e.g. after a seek.  This allows the
+         * callback to adjust its expectations of the next presentation time stamp.  (Looping
+         * doesn't need it; the time stamps keep increasing across the loop point.)
          */
         void loopReset();
     }
@@ -107,26 +176,19 @@ public class MoviePlayer {
         // TODO: consider leaving the extractor open.  Should be able to just seek back to
         //       the start after each iteration of play.  Need to rearrange the API a bit --
         //       currently play() is taking an all-in-one open+work+release approach.
-        MediaExtractor extractor = null;
+        SampleSource source = new ExtractorSampleSource(sourceFile);
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(sourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
-            }
-            extractor.selectTrack(trackIndex);
-
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            MediaFormat format = source.getFormat();
             mVideoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
             mVideoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                mDurationUsec = format.getLong(MediaFormat.KEY_DURATION);
+            }
             if (VERBOSE) {
                 Log.d(TAG, "Video size is " + mVideoWidth + "x" + mVideoHeight);
             }
         } finally {
-            if (extractor != null) {
-                extractor.release();
-            }
+            source.release();
         }
     }
 
@@ -144,6 +206,13 @@ public class MoviePlayer {
         return mVideoHeight;
     }
 
+    /**
+     * Returns the duration of the video, in microseconds, or -1 if the file doesn't say.
+     */
+    public long getDurationUsec() {
+        return mDurationUsec;
+    }
+
     /**
      * Sets the loop mode.  If true, playback will loop forever.
      */
@@ -151,6 +220,153 @@ public class MoviePlayer {
         mLoop = loopMode;
     }
 
+    /**
+     * Selects the demuxer used by play().  If true, samples are read with the pure-Java
+     * {@link Mp4Demuxer}, which memory-maps the file; otherwise MediaExtractor is used.
+     * The Java demuxer only handles H.264 in MP4.
+     */
+    public void setUseJavaDemuxer(boolean useJavaDemuxer) {
+        mUseJavaDemuxer = useJavaDemuxer;
+    }
+
+    /**
+     * Selects the decode mode used by play().  If true, the decoder runs asynchronously,
+     * driven by MediaCodec.Callback on a dedicated thread; otherwise play() polls the
+     * decoder's input and output queues.  Asynchronous mode requires API 23, and is
+     * ignored on older devices.
+     */
+    public void setAsyncDecode(boolean asyncDecode) {
+        mAsyncDecode = asyncDecode;
+    }
+
+    /**
+     * Sets the number of samples to pre-roll.  If nonzero, prepare() submits this many
+     * samples to the decoder as fast as it will take them, and keeps going until the first
+     * frame has been decoded.  That frame is held until play() presents it, so play()
+     * doesn't pay for decoder startup.
+     */
+    public void setPrerollFrames(int prerollFrames) {
+        mPrerollFrames = prerollFrames;
+    }
+
+    /**
+     * Sets the playback rate, e.g. 2.0 for double speed.  May be called at any time, from
+     * any thread; during playback the change is eased in over a few frames.
+     * <p>
+     * At {@link #KEYFRAME_ONLY_RATE} and above, the player switches to "trick play": it
+     * skips from one sync sample to the next, without giving the non-sync samples to the
+     * decoder, so decoding cost doesn't grow with the rate.
+     *
+     * @param rate Rate, from {@link #MIN_PLAYBACK_RATE} to {@link #MAX_PLAYBACK_RATE}.
+     */
+    public void setPlaybackRate(float rate) {
+        if (!(rate >= MIN_PLAYBACK_RATE && rate <= MAX_PLAYBACK_RATE)) {
+            throw new IllegalArgumentException("rate " + rate + " out of range");
+        }
+        mTargetRate = rate;
+        AsyncDecodeCallback callback = mAsyncCallback;
+        if (callback != null) {
+            callback.setPlaybackRate(rate);
+        }
+    }
+
+    /**
+     * Returns the playback rate most recently requested.
+     */
+    public float getPlaybackRate() {
+        return mTargetRate;
+    }
+
+    /**
+     * Sets how many samples are read ahead of the decoder.  If nonzero, a dedicated thread
+     * reads the file into a ring of this many preallocated buffers (see
+     * {@link ReadAheadSampleSource}), so slow storage doesn't stall the decode loop.  Zero
+     * reads samples on the thread that feeds the decoder.  Takes effect in prepare().
+     */
+    public void setReadAheadSamples(int samples) {
+        mReadAheadSamples = samples;
+    }
+
+    /**
+     * Sets a pool to lease the decoder from.  If set, prepare() takes a warm decoder from
+     * the pool instead of creating one, and release() gives it back instead of releasing
+     * it.  Only used in polling mode; async mode needs a decoder it can set a callback on.
+     */
+    public void setCodecPool(CodecPool pool) {
+        mCodecPool = pool;
+    }
+
+    /**
+     * Sets the directory where seek indexes are cached.  The first seek in a file needs an
+     * index of its GOPs, which means scanning the whole file; with a cache directory, that
+     * only happens once per file.  If not set, the index is rebuilt by every player.
+     */
+    public void setIndexCacheDir(File cacheDir) {
+        mIndexCacheDir = cacheDir;
+    }
+
+    /**
+     * Asks the player to seek.  Returns immediately; the player thread carries out the
+     * seek before it shows its next frame.  A newer request replaces one that hasn't
+     * started yet.  Playback continues from the new position at the current rate.
+     * <p>
+     * The player starts decoding at the sync sample at or before the target.  If exact is
+     * true, it decodes (without showing) up to the frame that's on-screen at the target
+     * time; otherwise the sync sample is shown.  Forward seeks within the GOP being
+     * decoded don't flush the decoder, they just decode ahead.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void seekTo(long ptsUsec, boolean exact) {
+        synchronized (mSeekLock) {
+            mSeekPending = true;
+            mSeekTargetUsec = ptsUsec;
+            mSeekExact = exact;
+            mSeekRequestNsec = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns the time from the most recent completed seekTo() call until the target frame
+     * was released, in microseconds, or -1 if there hasn't been one.
+     */
+    public long getLastSeekLatencyUsec() {
+        return mLastSeekLatencyUsec;
+    }
+
+    /**
+     * Returns the seek latency at the given percentile, in microseconds, over all seeks
+     * done by this player.
+     */
+    public long getSeekLatencyPercentileUsec(double percentile) {
+        synchronized (mSeekLock) {
+            return mSeekLatency.getPercentileUsec(percentile);
+        }
+    }
+
+    /**
+     * Returns how long prepare() took, in microseconds, or -1 if it hasn't run.
+     */
+    public long getPrepareTimeUsec() {
+        return mPrepareTimeUsec;
+    }
+
+    /**
+     * Returns the time from the start of play() until the first frame was released to the
+     * output Surface, in microseconds, or -1 if no frame has been shown.
+     */
+    public long getTimeToFirstFrameUsec() {
+        return mTimeToFirstFrameUsec;
+    }
+
+    /**
+     * Returns the playback quality counters.  They're updated as the movie plays, and may
+     * be read from any thread.
+     */
+    public PlaybackStats getPlaybackStats() {
+        return mStats;
+    }
+
     /**
      * Asks the player to stop.  Returns without waiting for playback to halt.
      * <p>
@@ -161,14 +377,17 @@ public class MoviePlayer {
     }
 
     /**
-     * Decodes the video stream, sending frames to the surface.
+     * Opens the file, and creates and starts the decoder.  If a pre-roll was requested with
+     * setPrerollFrames(), this also decodes the first frame and holds it, ready to show.
      * <p>
-     * Does not return until video playback is complete, or we get a "stop" signal from
-     * frameCallback.
+     * Calling this is optional; play() does it if it hasn't been done.  It may block for a
+     * while, so don't call it on the UI thread.  If play() is never called, call release().
      */
-    public void play() throws IOException {
-        MediaExtractor extractor = null;
-        MediaCodec decoder = null;
+    public void prepare() throws IOException {
+        if (mDecoder != null) {
+            return;     // already prepared
+        }
+        long startNsec = System.nanoTime();
 
         // The MediaExtractor error messages aren't very useful.  Check to see if the input
         // file exists so we can throw a better one if it's not there.
@@ -176,66 +395,442 @@ public class MoviePlayer {
             throw new FileNotFoundException("Unable to read " + mSourceFile);
         }
 
+        boolean success = false;
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(mSourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
+            mSource = openSource();
+            if (mReadAheadSamples > 0) {
+                mSource = new ReadAheadSampleSource(mSource, mReadAheadSamples);
             }
-            extractor.selectTrack(trackIndex);
-
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            mFeeder = new SampleFeeder(mSource);
+            MediaFormat format = mSource.getFormat();
 
             // Create a MediaCodec decoder, and configure it with the MediaFormat from the
-            // extractor.  It's very important to use the format from the extractor because
+            // source.  It's very important to use the format from the source because
             // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
             String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, mOutputSurface, null, 0);
-            decoder.start();
+            boolean async = mAsyncDecode;
+            if (async && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                Log.w(TAG, "Async decode requires API 23, using polling loop");
+                async = false;
+            }
+            if (mCodecPool != null && async) {
+                // Pooled decoders are already configured, so we can't set a callback.
+                Log.w(TAG, "Codec pool only works in polling mode, not using it");
+            }
+            if (mCodecPool != null && !async) {
+                mDecoder = mCodecPool.lease(format, mOutputSurface);
+                mDecoderLeased = true;
+            } else {
+                mDecoder = MediaCodec.createDecoderByType(mime);
+                mDecoderLeased = false;
+            }
+            mLoopTimeline = mLoop ? new LoopTimeline(format) : null;
+            if (async) {
+                // The callback must be set before configure().
+                mCodecThread = new HandlerThread("MoviePlayer codec");
+                mCodecThread.start();
+                mAsyncCallback = new AsyncDecodeCallback(mFeeder, mLoopTimeline, mStats);
+                // Catch a setPlaybackRate() that came in before mAsyncCallback was set.
+                mAsyncCallback.setPlaybackRate(mTargetRate);
+                mDecoder.setCallback(mAsyncCallback, new Handler(mCodecThread.getLooper()));
+            }
+            if (!mDecoderLeased) {
+                mDecoder.configure(format, mOutputSurface, null, 0);
+                mDecoder.start();
+            }
+            mInputDone = false;
+            mFirstInputTimeNsec = -1;
+            mPrerolledIndex = -1;
+            mRate = mTargetRate;
+            mRateRebase = true;
+            mSeekDiscardUntilUsec = -1;
+            mSeekStartNsec = 0;
+            mLastOutputUsec = -1;
+            if (mGopIndex == null && mIndexCacheDir != null) {
+                // Cheap, and saves a scan on the first seek.
+                mGopIndex = GopIndex.load(
+                        GopIndex.getCacheFile(mIndexCacheDir, mSourceFile), mSourceFile);
+            }
 
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
+            if (mPrerollFrames > 0) {
+                preroll();
+            }
+            success = true;
         } finally {
-            // release everything we grabbed
-            if (decoder != null) {
-                decoder.stop();
-                decoder.release();
-                decoder = null;
+            if (!success) {
+                release();
             }
-            if (extractor != null) {
-                extractor.release();
-                extractor = null;
+        }
+
+        mPrepareTimeUsec = (System.nanoTime() - startNsec) / 1000;
+        Log.d(TAG, "prepare took " + (mPrepareTimeUsec / 1000.0) + " ms" +
+                (mPrerollFrames > 0 ? " (with pre-roll)" : ""));
+    }
+
+    /**
+     * Decodes the video stream, sending frames to the surface.
+     * <p>
+     * Does not return until video playback is complete, or we get a "stop" signal from
+     * frameCallback.  Everything is released on the way out.
+     */
+    public void play() throws IOException {
+        mPlayStartNsec = System.nanoTime();
+        mTimeToFirstFrameUsec = -1;
+        try {
+            prepare();
+            if (mAsyncCallback != null) {
+                doExtractAsync(mDecoder, mAsyncCallback, mFrameCallback);
+            } else {
+                doExtract(mSource, mDecoder, mFrameCallback);
             }
+            // Decode work, for comparing normal and trick play.
+            int samples = mAsyncCallback != null ?
+                    mAsyncCallback.getInputChunk() : mFeeder.getSampleCount();
+            Log.d(TAG, "decoder was given " + samples + " samples (rate " + mTargetRate + "x)");
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Opens a new SampleSource on the file, using the selected demuxer.
+     */
+    private SampleSource openSource() throws IOException {
+        if (mUseJavaDemuxer) {
+            return new Mp4Demuxer(mSourceFile);
+        } else {
+            return new ExtractorSampleSource(mSourceFile);
         }
     }
 
     /**
-     * Selects the video track, if any.
+     * Returns the GOP index, building it (and caching it, if we can) if necessary.
+     */
+    private GopIndex getGopIndex() throws IOException {
+        if (mGopIndex != null) {
+            return mGopIndex;
+        }
+        long startNsec = System.nanoTime();
+        SampleSource scan = openSource();
+        try {
+            mGopIndex = GopIndex.build(scan);
+        } finally {
+            scan.release();
+        }
+        Log.d(TAG, "built GOP index (" + mGopIndex.getFrameCount() + " frames, " +
+                mGopIndex.getGopCount() + " GOPs) in " +
+                (System.nanoTime() - startNsec) / 1000000.0 + " ms");
+        if (mIndexCacheDir != null) {
+            File cacheFile = GopIndex.getCacheFile(mIndexCacheDir, mSourceFile);
+            try {
+                mGopIndex.save(cacheFile, mSourceFile);
+            } catch (IOException ioe) {
+                Log.w(TAG, "Unable to save GOP index to " + cacheFile, ioe);
+            }
+        }
+        return mGopIndex;
+    }
+
+    /**
+     * Carries out a pending seek request, if there is one.  Called from the work loops
+     * before each output buffer is dequeued.
      *
-     * @return the track index, or -1 if no video track is found.
+     * @param callback The async callback, or null in polling mode.
      */
-    private static int selectTrack(MediaExtractor extractor) {
-        // Select the first video track we find, ignore the rest.
-        int numTracks = extractor.getTrackCount();
-        for (int i = 0; i < numTracks; i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime.startsWith("video/")) {
-                if (VERBOSE) {
-                    Log.d(TAG, "Extractor selected track " + i + " (" + mime + "): " + format);
+    private void handleSeek(MediaCodec decoder, AsyncDecodeCallback callback,
+            FrameCallback frameCallback) {
+        long targetUsec;
+        boolean exact;
+        long requestNsec;
+        synchronized (mSeekLock) {
+            if (!mSeekPending) {
+                return;
+            }
+            mSeekPending = false;
+            targetUsec = mSeekTargetUsec;
+            exact = mSeekExact;
+            requestNsec = mSeekRequestNsec;
+        }
+
+        GopIndex index;
+        try {
+            index = getGopIndex();
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to index file, ignoring seek", ioe);
+            return;
+        }
+        long syncUsec = index.getSyncTimeAtOrBefore(targetUsec);
+        long frameUsec = exact ? index.getFrameTimeAtOrBefore(targetUsec) : syncUsec;
+
+        // If the decoder is already working through the target's GOP, and hasn't passed the
+        // target yet, keep going.  The input side is always ahead of the output, so the
+        // target frame will come out.  Trick play skips samples, so it can't do this.
+        boolean reuse = mLastOutputUsec >= 0 && mLastOutputUsec < frameUsec &&
+                index.getSyncTimeAtOrBefore(mLastOutputUsec) == syncUsec &&
+                mTargetRate < KEYFRAME_ONLY_RATE && !mInputDone;
+        if (!reuse) {
+            if (callback != null) {
+                callback.beginFlush();
+                decoder.flush();
+                if (mLoopTimeline != null) {
+                    mLoopTimeline.reset();
+                }
+                callback.endFlush(syncUsec);
+                decoder.start();
+            } else {
+                decoder.flush();
+                if (mLoopTimeline != null) {
+                    mLoopTimeline.reset();
                 }
-                return i;
+                mSource.seekTo(syncUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                mInputDone = false;
+                mPrerolledIndex = -1;   // flushed along with everything else
+            }
+        }
+        Log.d(TAG, "seek to " + targetUsec + (exact ? " (exact)" : "") + ": GOP at " +
+                syncUsec + ", frame at " + frameUsec + (reuse ? ", no flush" : ""));
+
+        mSeekDiscardUntilUsec = frameUsec;
+        mSeekStartNsec = requestNsec;
+        mRateRebase = true;
+        if (frameCallback != null) {
+            frameCallback.loopReset();
+        }
+    }
+
+    /**
+     * Checks a decoded frame against the seek in progress, if any.
+     *
+     * @return False if the frame comes before the seek target, and shouldn't be shown.
+     */
+    private boolean checkSeekFrame(long ptsUsec) {
+        mLastOutputUsec = ptsUsec;
+        if (mSeekStartNsec == 0) {
+            return true;
+        }
+        if (ptsUsec < mSeekDiscardUntilUsec) {
+            if (VERBOSE) Log.d(TAG, "seek: discarding " + ptsUsec);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the seek latency, if the frame just released finished a seek.
+     */
+    private void checkSeekDone() {
+        if (mSeekStartNsec == 0) {
+            return;
+        }
+        long latencyUsec = (System.nanoTime() - mSeekStartNsec) / 1000;
+        mSeekStartNsec = 0;
+        mSeekDiscardUntilUsec = -1;
+        mLastSeekLatencyUsec = latencyUsec;
+        synchronized (mSeekLock) {
+            mSeekLatency.record(latencyUsec);
+        }
+        Log.d(TAG, "seek took " + (latencyUsec / 1000.0) + " ms");
+    }
+
+    /**
+     * Releases the decoder and the file.  play() does this when it finishes; it only needs
+     * to be called directly if prepare() was called and play() wasn't.
+     */
+    public void release() {
+        if (mDecoder != null) {
+            if (mDecoderLeased) {
+                mCodecPool.giveBack(mDecoder);
+            } else {
+                mDecoder.stop();
+                mDecoder.release();
+            }
+            mDecoder = null;
+        }
+        if (mCodecThread != null) {
+            // Make sure no callback is still using the source before we release it.
+            mCodecThread.quit();
+            try {
+                mCodecThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "codec thread join() was interrupted", ie);
+            }
+            mCodecThread = null;
+            mAsyncCallback = null;
+        }
+        if (mSource != null) {
+            mSource.release();
+            if (mSource instanceof ReadAheadSampleSource) {
+                Log.d(TAG, mSource.toString());
             }
+            mSource = null;
+            mFeeder = null;
         }
+        if (mStats.getFramesDecoded() != 0) {
+            Log.d(TAG, mStats.toString());
+        }
+    }
+
+    /**
+     * "Primes the pump": gets the decoder to the point where the first frame is ready.
+     * <p>
+     * In polling mode, we submit the first mPrerollFrames samples back to back without
+     * waiting for output, then alternate input and output until a frame comes out.  That
+     * frame is held, unrendered, for doExtract().  The samples we pre-roll are the start
+     * of the stream we're about to play, so there's no need to rewind afterward.
+     * <p>
+     * In async mode the codec thread already feeds input as fast as the decoder takes it,
+     * so we just wait for the first output buffer to be queued.
+     */
+    private void preroll() {
+        final int TIMEOUT_USEC = 10000;
+        final long MAX_PREROLL_MSEC = 2000;
+        long startNsec = System.nanoTime();
 
-        return -1;
+        if (mAsyncCallback != null) {
+            if (!mAsyncCallback.waitForOutputBuffer(MAX_PREROLL_MSEC)) {
+                Log.w(TAG, "pre-roll timed out");
+            }
+            return;
+        }
+
+        ByteBuffer[] decoderInputBuffers = mDecoder.getInputBuffers();
+        while (mPrerolledIndex < 0) {
+            if (System.nanoTime() - startNsec > MAX_PREROLL_MSEC * 1000000L) {
+                Log.w(TAG, "pre-roll timed out");
+                break;
+            }
+            while (!mInputDone && feedInputBuffer(decoderInputBuffers, 0) &&
+                    mFeeder.getSampleCount() < mPrerollFrames) {
+                // keep stuffing
+            }
+            int decoderStatus = mDecoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (decoderStatus >= 0) {
+                long nowNsec = System.nanoTime();
+                Log.d(TAG, "startup lag " + ((nowNsec - mFirstInputTimeNsec) / 1000000.0) +
+                        " ms (pre-roll, " + mFeeder.getSampleCount() + " samples)");
+                mFirstInputTimeNsec = 0;
+                mPrerolledIndex = decoderStatus;
+                frameDecoded(mBufferInfo);
+            } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (VERBOSE) Log.d(TAG, "decoder output format changed: " +
+                        mDecoder.getOutputFormat());
+            }
+        }
+    }
+
+    /**
+     * Submits the next sample to the decoder, or EOS if we've run out.  In loop mode we never
+     * run out; the source wraps around to the start.  Used in polling mode.
+     *
+     * @return False if no input buffer was available.
+     */
+    private boolean feedInputBuffer(ByteBuffer[] decoderInputBuffers, long timeoutUsec) {
+        int inputBufIndex = mDecoder.dequeueInputBuffer(timeoutUsec);
+        if (inputBufIndex < 0) {
+            if (VERBOSE) Log.d(TAG, "input buffer not available");
+            return false;
+        }
+        if (mFirstInputTimeNsec == -1) {
+            mFirstInputTimeNsec = System.nanoTime();
+        }
+        ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
+        // Read the sample data into the ByteBuffer.  This neither respects nor
+        // updates inputBuf's position, limit, etc.
+        long readStartNsec = System.nanoTime();
+        int chunkSize = mSource.readSampleData(inputBuf, 0);
+        if (chunkSize < 0 && mLoopTimeline != null && mLoopTimeline.wrap(mSource)) {
+            chunkSize = mSource.readSampleData(inputBuf, 0);
+        }
+        long nowNsec = System.nanoTime();
+        mStats.recordStarvation((nowNsec - readStartNsec) / 1000);
+        if (chunkSize < 0) {
+            // End of stream -- send empty frame with EOS flag set.
+            mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputDone = true;
+            if (VERBOSE) Log.d(TAG, "sent input EOS");
+        } else {
+            long presentationTimeUs = mSource.getSampleTime();
+            long queuedTimeUs = mLoopTimeline == null ? presentationTimeUs :
+                    mLoopTimeline.sampleQueued(presentationTimeUs, mTargetRate);
+            mDecoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                    queuedTimeUs, 0 /*flags*/);
+            mInputTimes.queued(queuedTimeUs, nowNsec);
+            if (VERBOSE) {
+                Log.d(TAG, "submitted frame " + mFeeder.getSampleCount() + " to dec, size=" +
+                        chunkSize);
+            }
+            mFeeder.sampleQueued(presentationTimeUs, mTargetRate);
+        }
+        return true;
+    }
+
+    /**
+     * Maps a media time stamp onto the playback time line, and eases the rate toward
+     * the most recently requested one.  Called for each frame, in presentation order.
+     */
+    private long toPlaybackTimeUsec(long mediaUsec) {
+        if (mRateRebase) {
+            // Start of playback, or a seek; the time lines start together.
+            mRateBaseMediaUsec = mRateBasePlaybackUsec = mPrevMediaUsec = mediaUsec;
+            mRateRebase = false;
+            return mediaUsec;
+        }
+        float target = mTargetRate;
+        if (mRate != target) {
+            // Rebase at the previous frame, then step the rate, by no more than the
+            // doubling limit allows for the time since that frame.
+            long prevPlaybackUsec = mRateBasePlaybackUsec +
+                    (long) ((mPrevMediaUsec - mRateBaseMediaUsec) / mRate);
+            long elapsedUsec = (long) ((mediaUsec - mPrevMediaUsec) / mRate);
+            double maxFactor = Math.pow(2.0, (double) elapsedUsec / RATE_DOUBLING_USEC);
+            if (target > mRate) {
+                mRate = (float) Math.min(target, mRate * maxFactor);
+            } else {
+                mRate = (float) Math.max(target, mRate / maxFactor);
+            }
+            mRateBaseMediaUsec = mPrevMediaUsec;
+            mRateBasePlaybackUsec = prevPlaybackUsec;
+        }
+        mPrevMediaUsec = mediaUsec;
+        return mRateBasePlaybackUsec + (long) ((mediaUsec - mRateBaseMediaUsec) / mRate);
+    }
+
+    /**
+     * Maps a time stamp from the decoder back into the movie, undoing the offset added to
+     * each pass through a looped movie.
+     */
+    private long toMediaTimeUsec(long ptsUsec) {
+        return mLoopTimeline == null ? ptsUsec : mLoopTimeline.toMediaTime(ptsUsec);
+    }
+
+    /**
+     * Updates the stats for a buffer just dequeued from the decoder.  Used in polling mode.
+     */
+    private void frameDecoded(MediaCodec.BufferInfo info) {
+        long latencyUsec = mInputTimes.takeLatencyUsec(info.presentationTimeUs);
+        if (info.size != 0) {
+            mStats.frameDecoded();
+            if (latencyUsec >= 0) {
+                mStats.recordDecodeLatency(latencyUsec);
+            }
+        }
+    }
+
+    /**
+     * Records the time to first frame, if this is the first frame shown.
+     */
+    private void checkFirstFrame() {
+        if (mTimeToFirstFrameUsec < 0) {
+            mTimeToFirstFrameUsec = (System.nanoTime() - mPlayStartNsec) / 1000;
+            Log.d(TAG, "time to first frame " + (mTimeToFirstFrameUsec / 1000.0) + " ms");
+        }
     }
 
     /**
      * Work loop.  We execute here until we run out of video or are told to stop.
      */
-    private void doExtract(MediaExtractor extractor, int trackIndex, MediaCodec decoder,
+    private void doExtract(SampleSource extractor, MediaCodec decoder,
             FrameCallback frameCallback) {
         // We need to strike a balance between providing input and reading output that
         // operates efficiently without delays on the output side.
@@ -269,7 +864,8 @@ public class MoviePlayer {
         // If you have tight startup latency requirements, it would probably be best to
         // "prime the pump" with a sequence of frames that aren't actually shown (e.g.
         // grab the first 10 NAL units and shove them through, then rewind to the start of
-        // the first key frame).
+        // the first key frame).  setPrerollFrames() does a variant of this in prepare():
+        // it shoves the first few samples through and holds the first decoded frame.
         //
         // The actual latency seems to depend on strongly on the nature of the video (e.g.
         // resolution).
@@ -297,11 +893,8 @@ public class MoviePlayer {
 
         final int TIMEOUT_USEC = 10000;
         ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
-        int inputChunk = 0;
-        long firstInputTimeNsec = -1;
 
         boolean outputDone = false;
-        boolean inputDone = false;
         while (!outputDone) {
             if (VERBOSE) Log.d(TAG, "loop");
             if (mIsStopRequested) {
@@ -309,45 +902,25 @@ public class MoviePlayer {
                 return;
             }
 
+            handleSeek(decoder, null, frameCallback);
+
             // Feed more data to the decoder.
-            if (!inputDone) {
-                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
-                if (inputBufIndex >= 0) {
-                    if (firstInputTimeNsec == -1) {
-                        firstInputTimeNsec = System.nanoTime();
-                    }
-                    ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
-                    // Read the sample data into the ByteBuffer.  This neither respects nor
-                    // updates inputBuf's position, limit, etc.
-                    int chunkSize = extractor.readSampleData(inputBuf, 0);
-                    if (chunkSize < 0) {
-                        // End of stream -- send empty frame with EOS flag set.
-                        decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
-                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        inputDone = true;
-                        if (VERBOSE) Log.d(TAG, "sent input EOS");
-                    } else {
-                        if (extractor.getSampleTrackIndex() != trackIndex) {
-                            Log.w(TAG, "WEIRD: got sample from track " +
-                                    extractor.getSampleTrackIndex() + ", expected " + trackIndex);
-                        }
-                        long presentationTimeUs = extractor.getSampleTime();
-                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
-                                presentationTimeUs, 0 /*flags*/);
-                        if (VERBOSE) {
-                            Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" +
-                                    chunkSize);
-                        }
-                        inputChunk++;
-                        extractor.advance();
-                    }
-                } else {
-                    if (VERBOSE) Log.d(TAG, "input buffer not available");
-                }
+            if (!mInputDone) {
+                feedInputBuffer(decoderInputBuffers, TIMEOUT_USEC);
             }
 
             if (!outputDone) {
-                int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                int decoderStatus;
+                if (mPrerolledIndex >= 0) {
+                    // Decoded by the pre-roll; mBufferInfo is still filled in.
+                    decoderStatus = mPrerolledIndex;
+                    mPrerolledIndex = -1;
+                } else {
+                    decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                    if (decoderStatus >= 0) {
+                        frameDecoded(mBufferInfo);
+                    }
+                }
                 if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                     if (VERBOSE) Log.d(TAG, "no output from decoder available");
@@ -362,47 +935,494 @@ public class MoviePlayer {
                             "unexpected result from decoder.dequeueOutputBuffer: " +
                                     decoderStatus);
                 } else { // decoderStatus >= 0
-                    if (firstInputTimeNsec != 0) {
+                    if (mFirstInputTimeNsec != 0) {
                         // Log the delay from the first buffer of input to the first buffer
                         // of output.
                         long nowNsec = System.nanoTime();
-                        Log.d(TAG, "startup lag " + ((nowNsec-firstInputTimeNsec) / 1000000.0) + " ms");
-                        firstInputTimeNsec = 0;
+                        Log.d(TAG, "startup lag " + ((nowNsec-mFirstInputTimeNsec) / 1000000.0) + " ms");
+                        mFirstInputTimeNsec = 0;
                     }
-                    boolean doLoop = false;
                     if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
                             " (size=" + mBufferInfo.size + ")");
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         if (VERBOSE) Log.d(TAG, "output EOS");
-                        if (mLoop) {
-                            doLoop = true;
-                        } else {
-                            outputDone = true;
-                        }
+                        outputDone = true;
                     }
 
                     boolean doRender = (mBufferInfo.size != 0);
+                    boolean seekFrame = doRender &&
+                            checkSeekFrame(toMediaTimeUsec(mBufferInfo.presentationTimeUs));
+                    if (!seekFrame) {
+                        doRender = false;
+                    }
 
                     // As soon as we call releaseOutputBuffer, the buffer will be forwarded
                     // to SurfaceTexture to convert to a texture.  We can't control when it
                     // appears on-screen, but we can manage the pace at which we release
                     // the buffers.
                     if (doRender && frameCallback != null) {
-                        frameCallback.preRender(mBufferInfo.presentationTimeUs);
+                        doRender = frameCallback.preRender(
+                                toPlaybackTimeUsec(mBufferInfo.presentationTimeUs));
+                        if (!doRender) {
+                            mStats.frameDropped();
+                        }
                     }
                     decoder.releaseOutputBuffer(decoderStatus, doRender);
+                    if (doRender) {
+                        checkFirstFrame();
+                        mStats.frameRendered();
+                    }
+                    if (seekFrame) {
+                        checkSeekDone();
+                    }
                     if (doRender && frameCallback != null) {
                         frameCallback.postRender();
                     }
+                }
+            }
+        }
+    }
+
+    /**
+     * Work loop for asynchronous decoding.
+     * <p>
+     * The codec thread feeds input as soon as the codec frees a buffer, so there's no
+     * polling and no timeout to tune on the input side.  Output buffers are queued up for
+     * us, and we release them here, paced by the FrameCallback, the same way doExtract()
+     * does.  The "startup lag" log message matches doExtract()'s, so the two modes can be
+     * compared directly.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void doExtractAsync(MediaCodec decoder, AsyncDecodeCallback callback,
+            FrameCallback frameCallback) {
+        final long TIMEOUT_MSEC = 10;   // how often we check for a stop request
+        boolean firstOutput = true;
+
+        while (true) {
+            if (mIsStopRequested) {
+                Log.d(TAG, "Stop requested");
+                return;
+            }
+            handleSeek(decoder, callback, frameCallback);
+            int decoderStatus = callback.takeOutputBuffer(mBufferInfo, TIMEOUT_MSEC);
+            if (decoderStatus < 0) {
+                if (VERBOSE) Log.d(TAG, "no output from decoder available");
+                continue;
+            }
+
+            if (firstOutput) {
+                long nowNsec = System.nanoTime();
+                Log.d(TAG, "startup lag " +
+                        ((nowNsec - callback.getFirstInputTimeNsec()) / 1000000.0) +
+                        " ms (async)");
+                firstOutput = false;
+            }
+            boolean outputDone = false;
+            if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
+                    " (size=" + mBufferInfo.size + ")");
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "output EOS");
+                outputDone = true;
+            }
+
+            boolean doRender = (mBufferInfo.size != 0);
+            boolean seekFrame = doRender &&
+                    checkSeekFrame(toMediaTimeUsec(mBufferInfo.presentationTimeUs));
+            if (!seekFrame) {
+                doRender = false;
+            }
+            if (doRender && frameCallback != null) {
+                doRender = frameCallback.preRender(
+                        toPlaybackTimeUsec(mBufferInfo.presentationTimeUs));
+                if (!doRender) {
+                    mStats.frameDropped();
+                }
+            }
+            decoder.releaseOutputBuffer(decoderStatus, doRender);
+            if (doRender) {
+                checkFirstFrame();
+                mStats.frameRendered();
+            }
+            if (seekFrame) {
+                checkSeekDone();
+            }
+            if (doRender && frameCallback != null) {
+                frameCallback.postRender();
+            }
+            if (outputDone) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * When recent samples were queued, so we can tell how long the decoder took with each.
+     * A small ring, searched by time stamp; samples the decoder never returns (e.g. after a
+     * flush) are overwritten eventually.  Not thread-safe.
+     */
+    private static class InputTimes {
+        private static final int SIZE = 64;     // comfortably more than a decoder holds
+
+        private final long[] mPtsUsec = new long[SIZE];
+        private final long[] mQueuedNsec = new long[SIZE];
+        private int mNext;
+
+        InputTimes() {
+            for (int i = 0; i < SIZE; i++) {
+                mPtsUsec[i] = -1;
+            }
+        }
+
+        void queued(long ptsUsec, long nowNsec) {
+            mPtsUsec[mNext] = ptsUsec;
+            mQueuedNsec[mNext] = nowNsec;
+            mNext = (mNext + 1) % SIZE;
+        }
+
+        /**
+         * Returns the time since the sample with the given time stamp was queued, in
+         * microseconds, or -1 if we don't know about it.
+         */
+        long takeLatencyUsec(long ptsUsec) {
+            for (int i = 0; i < SIZE; i++) {
+                if (mPtsUsec[i] == ptsUsec) {
+                    mPtsUsec[i] = -1;
+                    return (System.nanoTime() - mQueuedNsec[i]) / 1000;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Time stamp bookkeeping for gapless looping.
+     * <p>
+     * Rather than sending EOS at the end of the movie, waiting for the decoder to drain, and
+     * flushing it, the input side seeks back to the start and keeps going.  Each pass through
+     * the movie is queued with its time stamps offset by the length of the movie, so the
+     * decoder and the FrameCallback see one long movie, and the decoder's pipeline stays
+     * full across the loop point.  The length is the span from the first frame to the last,
+     * plus the duration of the last frame, which we take from the gap between the last two
+     * frames (the container's duration is often rounded, or covers other tracks).
+     * <p>
+     * Used from whichever thread feeds the decoder, and from the player thread.
+     */
+    private static class LoopTimeline {
+        // Used if we didn't see the last two frames (trick play skips samples).
+        private final long mDefaultFrameUsec;
+
+        private long mFirstUsec = -1;       // time stamp of the first sample in the movie
+        private long mPeriodUsec;           // length of one pass; 0 until the first wrap
+        private long mOffsetUsec;           // added to the time stamps of the current pass
+
+        // The two latest frames queued in this pass, in presentation order.
+        private long mLastUsec = -1;
+        private long mPrevUsec = -1;
+        private boolean mSkipped;           // samples were skipped in this pass
+
+        LoopTimeline(MediaFormat format) {
+            int frameRate = 30;
+            if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                frameRate = Math.max(format.getInteger(MediaFormat.KEY_FRAME_RATE), 1);
+            }
+            mDefaultFrameUsec = 1000000 / frameRate;
+        }
+
+        /**
+         * Notes a sample that's about to be queued.
+         *
+         * @param rate Playback rate the sample is queued at, which decides whether the next
+         *     sample will follow directly.
+         * @return The time stamp to queue the sample with.
+         */
+        synchronized long sampleQueued(long ptsUsec, float rate) {
+            // Samples arrive in decode order.  By the end of the movie, the two largest time
+            // stamps are the last two frames.
+            if (ptsUsec > mLastUsec) {
+                mPrevUsec = mLastUsec;
+                mLastUsec = ptsUsec;
+            } else if (ptsUsec > mPrevUsec && ptsUsec != mLastUsec) {
+                mPrevUsec = ptsUsec;
+            }
+            if (rate >= KEYFRAME_ONLY_RATE) {
+                mSkipped = true;
+            }
+            return ptsUsec + mOffsetUsec;
+        }
+
+        /**
+         * Moves the source back to the start of the movie, and starts a new pass.
+         *
+         * @return False if the source can't be looped (e.g. nothing was read from it).
+         */
+        synchronized boolean wrap(SampleSource source) {
+            if (mLastUsec < 0) {
+                return false;
+            }
+            source.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            if (mPeriodUsec == 0) {
+                long firstUsec = source.getSampleTime();
+                if (firstUsec < 0) {
+                    return false;
+                }
+                long lastFrameUsec = (mSkipped || mPrevUsec < 0) ?
+                        mDefaultFrameUsec : mLastUsec - mPrevUsec;
+                mFirstUsec = firstUsec;
+                mPeriodUsec = Math.max(mLastUsec + lastFrameUsec - firstUsec, 1);
+                Log.d(TAG, "looping every " + mPeriodUsec + " us (last frame " +
+                        lastFrameUsec + " us)");
+            }
+            mOffsetUsec += mPeriodUsec;
+            startPass();
+            if (VERBOSE) Log.d(TAG, "loop: offset now " + mOffsetUsec);
+            return true;
+        }
+
+        /**
+         * Maps a time stamp from the decoder back into the movie.
+         */
+        synchronized long toMediaTime(long ptsUsec) {
+            if (mPeriodUsec == 0 || ptsUsec < mFirstUsec) {
+                return ptsUsec;
+            }
+            return mFirstUsec + (ptsUsec - mFirstUsec) % mPeriodUsec;
+        }
+
+        /**
+         * Drops the offset.  Call when the decoder is flushed, before anything more is
+         * queued.
+         */
+        synchronized void reset() {
+            mOffsetUsec = 0;
+            startPass();
+        }
+
+        private void startPass() {
+            mLastUsec = mPrevUsec = -1;
+            mSkipped = false;
+        }
+    }
+
+    /**
+     * MediaCodec callbacks for asynchronous decoding.  Runs on the codec thread.
+     * <p>
+     * Input is read from the SampleSource and queued the moment the codec offers a buffer.
+     * Output buffers are handed to the player thread through a small preallocated queue, so
+     * the FrameCallback's pacing (which sleeps) never holds up the codec thread.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static class AsyncDecodeCallback extends MediaCodec.Callback {
+        private static final int MAX_OUTPUT = 32;   // more than any codec hands out
+
+        private final Object mLock = new Object();
+        private final SampleSource mSource;
+        private final SampleFeeder mFeeder;
+        private final LoopTimeline mLoopTimeline;       // null unless looping
+        private final PlaybackStats mStats;
+        private final InputTimes mInputTimes = new InputTimes();
+
+        // Queue of output buffers waiting to be rendered.
+        private final int[] mOutIndex = new int[MAX_OUTPUT];
+        private final int[] mOutOffset = new int[MAX_OUTPUT];
+        private final int[] mOutSize = new int[MAX_OUTPUT];
+        private final long[] mOutPtsUsec = new long[MAX_OUTPUT];
+        private final int[] mOutFlags = new int[MAX_OUTPUT];
+        private int mOutHead;
+        private int mOutCount;
+
+        private boolean mInputDone;
+        private boolean mFlushing;
+        private long mFirstInputTimeNsec = -1;
+        private MediaCodec.CodecException mError;
+        private volatile float mPlaybackRate = 1.0f;
+
+        AsyncDecodeCallback(SampleFeeder feeder, LoopTimeline loopTimeline,
+                PlaybackStats stats) {
+            mSource = feeder.getSource();
+            mFeeder = feeder;
+            mLoopTimeline = loopTimeline;
+            mStats = stats;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (mLock) {
+                if (mFlushing || mInputDone) {
+                    // We get every buffer back after the flush completes.
+                    return;
+                }
+                if (mFirstInputTimeNsec == -1) {
+                    mFirstInputTimeNsec = System.nanoTime();
+                }
+                ByteBuffer inputBuf = codec.getInputBuffer(index);
+                long readStartNsec = System.nanoTime();
+                int chunkSize = mSource.readSampleData(inputBuf, 0);
+                if (chunkSize < 0 && mLoopTimeline != null && mLoopTimeline.wrap(mSource)) {
+                    chunkSize = mSource.readSampleData(inputBuf, 0);
+                }
+                long nowNsec = System.nanoTime();
+                mStats.recordStarvation((nowNsec - readStartNsec) / 1000);
+                if (chunkSize < 0) {
+                    codec.queueInputBuffer(index, 0, 0, 0L,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mInputDone = true;
+                    if (VERBOSE) Log.d(TAG, "sent input EOS");
+                } else {
+                    long presentationTimeUs = mSource.getSampleTime();
+                    long queuedTimeUs = mLoopTimeline == null ? presentationTimeUs :
+                            mLoopTimeline.sampleQueued(presentationTimeUs, mPlaybackRate);
+                    codec.queueInputBuffer(index, 0, chunkSize, queuedTimeUs, 0);
+                    mInputTimes.queued(queuedTimeUs, nowNsec);
+                    if (VERBOSE) {
+                        Log.d(TAG, "submitted frame " + mFeeder.getSampleCount() +
+                                " to dec, size=" + chunkSize);
+                    }
+                    mFeeder.sampleQueued(presentationTimeUs, mPlaybackRate);
+                }
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            synchronized (mLock) {
+                if (mFlushing) {
+                    return;
+                }
+                long latencyUsec = mInputTimes.takeLatencyUsec(info.presentationTimeUs);
+                if (info.size != 0) {
+                    mStats.frameDecoded();
+                    if (latencyUsec >= 0) {
+                        mStats.recordDecodeLatency(latencyUsec);
+                    }
+                }
+                if (mOutCount == MAX_OUTPUT) {
+                    Log.w(TAG, "output queue full, dropping frame");
+                    codec.releaseOutputBuffer(index, false);
+                    mStats.frameDropped();
+                    return;
+                }
+                int slot = (mOutHead + mOutCount) % MAX_OUTPUT;
+                mOutIndex[slot] = index;
+                mOutOffset[slot] = info.offset;
+                mOutSize[slot] = info.size;
+                mOutPtsUsec[slot] = info.presentationTimeUs;
+                mOutFlags[slot] = info.flags;
+                mOutCount++;
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "decoder error", e);
+            synchronized (mLock) {
+                mError = e;
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "decoder output format changed: " + format);
+        }
+
+        /**
+         * Waits up to timeoutMsec for a decoded buffer.  Called from the player thread.
+         *
+         * @return The output buffer index, with info filled in, or -1 if nothing arrived.
+         */
+        int takeOutputBuffer(MediaCodec.BufferInfo info, long timeoutMsec) {
+            synchronized (mLock) {
+                if (mOutCount == 0 && mError == null) {
+                    try {
+                        mLock.wait(timeoutMsec);
+                    } catch (InterruptedException ie) {
+                        // fall through and report what we have
+                    }
+                }
+                if (mError != null) {
+                    throw new RuntimeException("decoder failed", mError);
+                }
+                if (mOutCount == 0) {
+                    return -1;
+                }
+                int slot = mOutHead;
+                mOutHead = (mOutHead + 1) % MAX_OUTPUT;
+                mOutCount--;
+                info.set(mOutOffset[slot], mOutSize[slot], mOutPtsUsec[slot], mOutFlags[slot]);
+                return mOutIndex[slot];
+            }
+        }
 
-                    if (doLoop) {
-                        Log.d(TAG, "Reached EOS, looping");
-                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                        inputDone = false;
-                        decoder.flush();    // reset decoder state
-                        frameCallback.loopReset();
+        /**
+         * Waits up to timeoutMsec for a decoded buffer to be queued, without taking it.
+         *
+         * @return True if a buffer (or an error) is waiting.
+         */
+        boolean waitForOutputBuffer(long timeoutMsec) {
+            long deadline = System.nanoTime() + timeoutMsec * 1000000L;
+            synchronized (mLock) {
+                while (mOutCount == 0 && mError == null) {
+                    long remainingMsec = (deadline - System.nanoTime()) / 1000000L;
+                    if (remainingMsec <= 0) {
+                        return false;
+                    }
+                    try {
+                        mLock.wait(remainingMsec);
+                    } catch (InterruptedException ie) {
+                        return false;
                     }
                 }
+                return true;
+            }
+        }
+
+        /**
+         * Sets the rate used to decide whether to skip to the next sync sample.
+         */
+        void setPlaybackRate(float rate) {
+            mPlaybackRate = rate;
+        }
+
+        /**
+         * Returns the number of samples given to the decoder.
+         */
+        int getInputChunk() {
+            synchronized (mLock) {
+                return mFeeder.getSampleCount();
+            }
+        }
+
+        /**
+         * Returns the time the first input buffer was queued.
+         */
+        long getFirstInputTimeNsec() {
+            synchronized (mLock) {
+                return mFirstInputTimeNsec;
+            }
+        }
+
+        /**
+         * Stops handling callbacks and discards queued output.  Call before flush().
+         */
+        void beginFlush() {
+            synchronized (mLock) {
+                mFlushing = true;
+                mOutCount = 0;
+            }
+        }
+
+        /**
+         * Moves the source to the sync sample at or before timeUs (0 rewinds to the start),
+         * and resumes handling callbacks.  Call after flush() and before start().
+         */
+        void endFlush(long timeUs) {
+            synchronized (mLock) {
+                mSource.seekTo(timeUs, timeUs == 0 ? MediaExtractor.SEEK_TO_CLOSEST_SYNC :
+                        MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                mInputDone = false;
+                mFlushing = false;
             }
         }
     }
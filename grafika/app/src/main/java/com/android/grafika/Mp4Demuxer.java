@@ -0,0 +1,775 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the H.264 video track from an MP4 file, in pure Java.
+ * <p>
+ * The file is memory-mapped, and the "moov" box is parsed once up front.  The sample table
+ * (file offset, size, presentation time, and sync flag for every sample) is flattened into
+ * primitive arrays, so reading a sample is just an array lookup.  Fragmented files, such as
+ * the ones {@link FragmentedMp4Writer} produces, are handled by walking the "moof" boxes.
+ * <p>
+ * {@link #getSampleData(int)} returns the sample as a view of the mapped file, without
+ * copying.  As a {@link SampleSource} it can stand in for MediaExtractor in MoviePlayer;
+ * in that role readSampleData() copies the sample into the codec's buffer, rewriting the
+ * length-prefixed NAL units as Annex B start codes the way MediaExtractor does.
+ * <p>
+ * Only the parts of the format we need are handled.  Edit lists are ignored, and files
+ * larger than 2GB can't be mapped.  Apart from getFormat(), nothing here touches Android
+ * classes, so the parser can be run on a desktop JVM.
+ * <p>
+ * Not thread-safe.
+ */
+public class Mp4Demuxer implements SampleSource {
+    private static final String TAG = MainActivity.TAG;
+
+    private MappedByteBuffer mMapped;
+    private ByteBuffer mView;           // reusable view for getSampleData()
+
+    // Track properties.
+    private int mTrackId;
+    private int mTimescale;
+    private int mWidth;
+    private int mHeight;
+    private byte[] mSps;
+    private byte[] mPps;
+    private int mNalLengthSize;
+    private long mDurationUsec;
+
+    // trex defaults, for fragments.
+    private int mDefaultDuration;
+    private int mDefaultSize;
+    private int mDefaultFlags;
+
+    // Sample table, in decode order.
+    private int mSampleCount;
+    private long[] mOffsets = new long[256];
+    private int[] mSizes = new int[256];
+    private long[] mPtsUsec = new long[256];
+    private boolean[] mSync = new boolean[256];
+    private int[] mSyncSamples;         // indices of sync samples, ascending
+    private int mMaxSampleSize;
+
+    // Decode time, in track timescale units, of the next sample appended.
+    private long mNextDts;
+
+    // Cursor for the SampleSource interface.
+    private int mCurrent;
+
+    /**
+     * Maps the file and parses its first video track.
+     *
+     * @throws IOException if the file can't be read, or has no H.264 track we understand.
+     */
+    public Mp4Demuxer(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + size);
+            }
+            mMapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();    // the mapping stays valid
+        }
+        mMapped.order(ByteOrder.BIG_ENDIAN);
+        mView = mMapped.duplicate();
+
+        parseTopLevel();
+        if (mSps == null) {
+            throw new IOException("No H.264 video track found in " + file);
+        }
+        buildSyncIndex();
+    }
+
+    /** Returns the number of samples in the track. */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /** Returns the size, in bytes, of the sample as stored in the file. */
+    public int getSampleSize(int index) {
+        return mSizes[index];
+    }
+
+    /** Returns the size of the largest sample. */
+    public int getMaxSampleSize() {
+        return mMaxSampleSize;
+    }
+
+    /** Returns the presentation time of the sample, in microseconds. */
+    public long getSamplePtsUsec(int index) {
+        return mPtsUsec[index];
+    }
+
+    /** Returns true if the sample is a sync frame. */
+    public boolean isSyncSample(int index) {
+        return mSync[index];
+    }
+
+    /** Returns the width of the video, in pixels. */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /** Returns the height of the video, in pixels. */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Returns the duration of the track, in microseconds. */
+    public long getDurationUsec() {
+        return mDurationUsec;
+    }
+
+    /**
+     * Returns the sample data as stored in the file (length-prefixed NAL units).  The
+     * returned buffer is a view of the mapped file, positioned at the sample, and is reused
+     * by the next call.
+     */
+    public ByteBuffer getSampleData(int index) {
+        int start = (int) mOffsets[index];
+        mView.limit(start + mSizes[index]);
+        mView.position(start);
+        return mView;
+    }
+
+    /**
+     * Returns the index of the last sync sample whose presentation time is at or before
+     * timeUs, or the first sync sample if there isn't one.  Binary search.
+     */
+    public int getSyncSampleAtOrBefore(long timeUs) {
+        int lo = 0;
+        int hi = mSyncSamples.length - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mPtsUsec[mSyncSamples[mid]] <= timeUs) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return mSyncSamples.length == 0 ? 0 : mSyncSamples[found];
+    }
+
+    /**
+     * Returns the index of the first sync sample whose presentation time is at or after
+     * timeUs, or -1 if there isn't one.
+     */
+    public int getSyncSampleAtOrAfter(long timeUs) {
+        int lo = 0;
+        int hi = mSyncSamples.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mPtsUsec[mSyncSamples[mid]] < timeUs) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == mSyncSamples.length ? -1 : mSyncSamples[lo];
+    }
+
+    /** Returns the index of the current sample, for the SampleSource interface. */
+    public int getCurrentIndex() {
+        return mCurrent;
+    }
+
+    /** Moves the SampleSource cursor to the specified sample. */
+    public void setCurrentIndex(int index) {
+        mCurrent = index;
+    }
+
+    //
+    // SampleSource interface.
+    //
+
+    @Override
+    public MediaFormat getFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", mWidth, mHeight);
+        format.setByteBuffer("csd-0", withStartCode(mSps));
+        format.setByteBuffer("csd-1", withStartCode(mPps));
+        format.setLong(MediaFormat.KEY_DURATION, mDurationUsec);
+        // With 1- or 2-byte length fields, start codes make the samples bigger.  A NAL unit
+        // of n bytes grows from L + n to 4 + n, which is at most 4 / L times as big.
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE,
+                mMaxSampleSize * 4 / mNalLengthSize + 64);
+        return format;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buf, int offset) {
+        if (mCurrent >= mSampleCount) {
+            return -1;
+        }
+        // Rewrite each length prefix as a 00 00 00 01 start code.  Shorter length fields
+        // make the sample grow, so make sure it fits before writing anything.
+        ByteBuffer src = getSampleData(mCurrent);
+        int end = src.limit();
+        int outSize = getAnnexBSize(src);
+        if (outSize > buf.capacity() - offset) {
+            throw new IllegalArgumentException("sample " + mCurrent + " is " + outSize +
+                    " bytes, buffer has " + (buf.capacity() - offset) + " after offset " +
+                    offset);
+        }
+        int pos = src.position();
+        int out = offset;
+        int savedPosition = buf.position();
+        int savedLimit = buf.limit();
+        buf.limit(buf.capacity());
+        while (pos + mNalLengthSize <= end) {
+            int nalLen = 0;
+            for (int i = 0; i < mNalLengthSize; i++) {
+                nalLen = (nalLen << 8) | (src.get(pos + i) & 0xff);
+            }
+            pos += mNalLengthSize;
+            if (nalLen > end - pos) {
+                nalLen = end - pos;     // truncated sample; take what's there
+            }
+            buf.put(out, (byte) 0);
+            buf.put(out + 1, (byte) 0);
+            buf.put(out + 2, (byte) 0);
+            buf.put(out + 3, (byte) 1);
+            out += 4;
+            src.limit(pos + nalLen);
+            src.position(pos);
+            buf.position(out);
+            buf.put(src);
+            src.limit(end);
+            out += nalLen;
+            pos += nalLen;
+        }
+        buf.limit(savedLimit);
+        buf.position(savedPosition);
+        return out - offset;
+    }
+
+    /**
+     * Returns the size of a sample once its length prefixes are rewritten as start codes.
+     */
+    private int getAnnexBSize(ByteBuffer src) {
+        int end = src.limit();
+        int pos = src.position();
+        int size = 0;
+        while (pos + mNalLengthSize <= end) {
+            int nalLen = 0;
+            for (int i = 0; i < mNalLengthSize; i++) {
+                nalLen = (nalLen << 8) | (src.get(pos + i) & 0xff);
+            }
+            pos += mNalLengthSize;
+            nalLen = Math.min(nalLen, end - pos);
+            size += 4 + nalLen;
+            pos += nalLen;
+        }
+        return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mCurrent < mSampleCount ? mPtsUsec[mCurrent] : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        if (mCurrent < mSampleCount && mSync[mCurrent]) {
+            return MediaExtractor.SAMPLE_FLAG_SYNC;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mCurrent < mSampleCount) {
+            mCurrent++;
+        }
+        return mCurrent < mSampleCount;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        if (mode == MediaExtractor.SEEK_TO_NEXT_SYNC) {
+            int index = getSyncSampleAtOrAfter(timeUs);
+            mCurrent = index < 0 ? mSampleCount : index;
+        } else if (mode == MediaExtractor.SEEK_TO_CLOSEST_SYNC) {
+            int before = getSyncSampleAtOrBefore(timeUs);
+            int after = getSyncSampleAtOrAfter(timeUs);
+            if (after >= 0 && mSampleCount > 0 &&
+                    after != before &&
+                    mPtsUsec[after] - timeUs < timeUs - mPtsUsec[before]) {
+                mCurrent = after;
+            } else {
+                mCurrent = before;
+            }
+        } else {
+            mCurrent = getSyncSampleAtOrBefore(timeUs);
+        }
+    }
+
+    @Override
+    public void release() {
+        // Nothing to close; the mapping goes away when it's garbage collected.
+        mMapped = null;
+        mView = null;
+    }
+
+    //
+    // Parsing.  Offsets are absolute positions in the mapped file.
+    //
+
+    private void parseTopLevel() throws IOException {
+        int pos = 0;
+        int end = mMapped.limit();
+        while (pos + 8 <= end) {
+            int type = mMapped.getInt(pos + 4);
+            int size = boxSize(pos, end);
+            int header = headerSize(pos);
+            if (type == fourCC("moov")) {
+                parseMoov(pos + header, pos + size);
+            } else if (type == fourCC("moof") && mSps != null) {
+                parseMoof(pos, pos + header, pos + size);
+            }
+            pos += size;
+        }
+    }
+
+    private void parseMoov(int start, int end) throws IOException {
+        for (int pos = start; pos + 8 <= end; pos += boxSize(pos, end)) {
+            int type = mMapped.getInt(pos + 4);
+            int body = pos + headerSize(pos);
+            int boxEnd = pos + boxSize(pos, end);
+            if (type == fourCC("trak") && mSps == null) {
+                parseTrak(body, boxEnd);
+            } else if (type == fourCC("mvex")) {
+                parseMvex(body, boxEnd);
+            }
+        }
+    }
+
+    private void parseMvex(int start, int end) {
+        for (int pos = start; pos + 8 <= end; pos += boxSize(pos, end)) {
+            if (mMapped.getInt(pos + 4) == fourCC("trex")) {
+                int body = pos + headerSize(pos) + 4;
+                if (mMapped.getInt(body) == mTrackId || mTrackId == 0) {
+                    mDefaultDuration = mMapped.getInt(body + 8);
+                    mDefaultSize = mMapped.getInt(body + 12);
+                    mDefaultFlags = mMapped.getInt(body + 16);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a "trak".  If it isn't an H.264 video track, leaves no trace.
+     *
+     * @throws IOException If it's a video track, but is missing a box we need.
+     */
+    private void parseTrak(int start, int end) throws IOException {
+        int tkhd = findBox(start, end, "tkhd");
+        int mdia = findBox(start, end, "mdia");
+        if (tkhd < 0 || mdia < 0) {
+            return;
+        }
+        int mdiaBody = mdia + headerSize(mdia);
+        int mdiaEnd = mdia + boxSize(mdia, end);
+        int hdlr = findBox(mdiaBody, mdiaEnd, "hdlr");
+        if (hdlr < 0 || mMapped.getInt(hdlr + headerSize(hdlr) + 8) != fourCC("vide")) {
+            return;
+        }
+        // It's a video track, so from here on anything missing means a broken file.
+        int minf = findBox(mdiaBody, mdiaEnd, "minf");
+        if (minf < 0) {
+            throw new IOException("No minf in video track");
+        }
+        int minfEnd = minf + boxSize(minf, mdiaEnd);
+        int stbl = findBox(minf + headerSize(minf), minfEnd, "stbl");
+        if (stbl < 0) {
+            throw new IOException("No stbl in video track");
+        }
+        int stblBody = stbl + headerSize(stbl);
+        int stblEnd = stbl + boxSize(stbl, minfEnd);
+        int stsd = findBox(stblBody, stblEnd, "stsd");
+        if (stsd < 0) {
+            throw new IOException("No stsd in video track");
+        }
+        if (!parseStsd(stsd + headerSize(stsd) + 8, stsd + boxSize(stsd, stblEnd))) {
+            return;     // not H.264
+        }
+
+        int tkhdBody = tkhd + headerSize(tkhd);
+        mTrackId = mMapped.getInt(tkhdBody + (mMapped.get(tkhdBody) == 1 ? 20 : 12));
+
+        int mdhd = findBox(mdiaBody, mdiaEnd, "mdhd");
+        if (mdhd < 0) {
+            throw new IOException("No mdhd in video track");
+        }
+        int mdhdBody = mdhd + headerSize(mdhd);
+        long duration;
+        if (mMapped.get(mdhdBody) == 1) {
+            mTimescale = mMapped.getInt(mdhdBody + 20);
+            duration = mMapped.getLong(mdhdBody + 24);
+        } else {
+            mTimescale = mMapped.getInt(mdhdBody + 12);
+            duration = mMapped.getInt(mdhdBody + 16) & 0xffffffffL;
+        }
+        mDurationUsec = duration * 1000000 / mTimescale;
+
+        parseSampleTable(stblBody, stblEnd);
+    }
+
+    /**
+     * Parses the first sample entry.  Returns false, leaving the fields alone, if it isn't
+     * avc1/avc3 or its avcC lacks an SPS or PPS.
+     */
+    private boolean parseStsd(int entry, int end) {
+        int type = mMapped.getInt(entry + 4);
+        if (type != fourCC("avc1") && type != fourCC("avc3")) {
+            return false;
+        }
+        int entryEnd = entry + boxSize(entry, end);
+        int body = entry + headerSize(entry);
+        int avcC = findBox(body + 78, entryEnd, "avcC");
+        if (avcC < 0) {
+            return false;
+        }
+        int pos = avcC + headerSize(avcC);
+        int nalLengthSize = (mMapped.get(pos + 4) & 0x03) + 1;
+        int numSps = mMapped.get(pos + 5) & 0x1f;
+        pos += 6;
+        byte[] sps = null;
+        for (int i = 0; i < numSps; i++) {
+            int len = mMapped.getShort(pos) & 0xffff;
+            if (i == 0) {
+                sps = copyBytes(pos + 2, len);
+            }
+            pos += 2 + len;
+        }
+        int numPps = mMapped.get(pos) & 0xff;
+        pos++;
+        byte[] pps = null;
+        for (int i = 0; i < numPps; i++) {
+            int len = mMapped.getShort(pos) & 0xffff;
+            if (i == 0) {
+                pps = copyBytes(pos + 2, len);
+            }
+            pos += 2 + len;
+        }
+        if (sps == null || pps == null) {
+            Log.w(TAG, "Skipping avcC with " + numSps + " SPS, " + numPps + " PPS");
+            return false;
+        }
+
+        // Only now is this the track we'll use; later traks are skipped once mSps is set.
+        mWidth = mMapped.getShort(body + 24) & 0xffff;
+        mHeight = mMapped.getShort(body + 26) & 0xffff;
+        mNalLengthSize = nalLengthSize;
+        mSps = sps;
+        mPps = pps;
+        return true;
+    }
+
+    /**
+     * Flattens stts/ctts/stss/stsz/stsc/stco into the sample arrays.  For a fragmented file
+     * the tables are empty and this adds nothing.
+     */
+    private void parseSampleTable(int start, int end) throws IOException {
+        int stts = findBox(start, end, "stts");
+        int ctts = findBox(start, end, "ctts");
+        int stss = findBox(start, end, "stss");
+        int stsz = findBox(start, end, "stsz");
+        int stsc = findBox(start, end, "stsc");
+        int stco = findBox(start, end, "stco");
+        int co64 = findBox(start, end, "co64");
+        if (stts < 0 || stsz < 0 || stsc < 0 || (stco < 0 && co64 < 0)) {
+            throw new IOException("Incomplete sample table");
+        }
+
+        // Sizes.
+        int stszBody = stsz + headerSize(stsz) + 4;
+        int fixedSize = mMapped.getInt(stszBody);
+        int count = mMapped.getInt(stszBody + 4);
+        ensureSampleCapacity(count);
+        for (int i = 0; i < count; i++) {
+            mSizes[i] = fixedSize != 0 ? fixedSize : mMapped.getInt(stszBody + 8 + i * 4);
+            mMaxSampleSize = Math.max(mMaxSampleSize, mSizes[i]);
+        }
+
+        // Decode times, plus composition offsets, give presentation times.
+        int sttsBody = stts + headerSize(stts) + 4;
+        int entries = mMapped.getInt(sttsBody);
+        int sample = 0;
+        long dts = 0;
+        for (int i = 0; i < entries && sample < count; i++) {
+            int n = mMapped.getInt(sttsBody + 4 + i * 8);
+            int delta = mMapped.getInt(sttsBody + 8 + i * 8);
+            for (int j = 0; j < n && sample < count; j++) {
+                mPtsUsec[sample++] = dts;
+                dts += delta;
+            }
+        }
+        mNextDts = dts;
+        if (ctts >= 0) {
+            int cttsBody = ctts + headerSize(ctts) + 4;
+            entries = mMapped.getInt(cttsBody);
+            sample = 0;
+            for (int i = 0; i < entries && sample < count; i++) {
+                int n = mMapped.getInt(cttsBody + 4 + i * 8);
+                int offset = mMapped.getInt(cttsBody + 8 + i * 8);
+                for (int j = 0; j < n && sample < count; j++) {
+                    mPtsUsec[sample++] += offset;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            mPtsUsec[i] = mPtsUsec[i] * 1000000 / mTimescale;
+        }
+
+        // Sync samples.  No stss means every sample is a sync sample.
+        if (stss < 0) {
+            for (int i = 0; i < count; i++) {
+                mSync[i] = true;
+            }
+        } else {
+            int stssBody = stss + headerSize(stss) + 4;
+            entries = mMapped.getInt(stssBody);
+            for (int i = 0; i < entries; i++) {
+                int n = mMapped.getInt(stssBody + 4 + i * 4) - 1;
+                if (n >= 0 && n < count) {
+                    mSync[n] = true;
+                }
+            }
+        }
+
+        // Chunk offsets, combined with samples-per-chunk, give sample offsets.
+        boolean wide = stco < 0;
+        int chunkBody = (wide ? co64 + headerSize(co64) : stco + headerSize(stco)) + 4;
+        int chunkCount = mMapped.getInt(chunkBody);
+        int stscBody = stsc + headerSize(stsc) + 4;
+        int stscEntries = mMapped.getInt(stscBody);
+        sample = 0;
+        for (int e = 0; e < stscEntries; e++) {
+            int firstChunk = mMapped.getInt(stscBody + 4 + e * 12) - 1;
+            int perChunk = mMapped.getInt(stscBody + 8 + e * 12);
+            int lastChunk = (e + 1 < stscEntries) ?
+                    mMapped.getInt(stscBody + 4 + (e + 1) * 12) - 1 : chunkCount;
+            for (int c = firstChunk; c < lastChunk && sample < count; c++) {
+                long offset = wide ? mMapped.getLong(chunkBody + 4 + c * 8) :
+                        mMapped.getInt(chunkBody + 4 + c * 4) & 0xffffffffL;
+                for (int j = 0; j < perChunk && sample < count; j++) {
+                    mOffsets[sample] = offset;
+                    offset += mSizes[sample];
+                    sample++;
+                }
+            }
+        }
+        mSampleCount = count;
+    }
+
+    /**
+     * Appends the samples described by a "moof" for our track.
+     */
+    private void parseMoof(int moofStart, int start, int end) {
+        for (int pos = start; pos + 8 <= end; pos += boxSize(pos, end)) {
+            if (mMapped.getInt(pos + 4) != fourCC("traf")) {
+                continue;
+            }
+            int trafBody = pos + headerSize(pos);
+            int trafEnd = pos + boxSize(pos, end);
+            int tfhd = findBox(trafBody, trafEnd, "tfhd");
+            if (tfhd < 0) {
+                continue;
+            }
+            int p = tfhd + headerSize(tfhd);
+            int tfhdFlags = mMapped.getInt(p) & 0xffffff;
+            if (mMapped.getInt(p + 4) != mTrackId) {
+                continue;
+            }
+            p += 8;
+            long baseOffset = moofStart;
+            if ((tfhdFlags & 0x01) != 0) {
+                baseOffset = mMapped.getLong(p);
+                p += 8;
+            }
+            if ((tfhdFlags & 0x02) != 0) p += 4;      // sample description index
+            int defDuration = mDefaultDuration;
+            int defSize = mDefaultSize;
+            int defFlags = mDefaultFlags;
+            if ((tfhdFlags & 0x08) != 0) { defDuration = mMapped.getInt(p); p += 4; }
+            if ((tfhdFlags & 0x10) != 0) { defSize = mMapped.getInt(p); p += 4; }
+            if ((tfhdFlags & 0x20) != 0) { defFlags = mMapped.getInt(p); p += 4; }
+
+            int tfdt = findBox(trafBody, trafEnd, "tfdt");
+            if (tfdt >= 0) {
+                int body = tfdt + headerSize(tfdt);
+                mNextDts = (mMapped.get(body) == 1) ? mMapped.getLong(body + 4) :
+                        mMapped.getInt(body + 4) & 0xffffffffL;
+            }
+
+            long dataOffset = baseOffset;
+            for (int r = trafBody; r + 8 <= trafEnd; r += boxSize(r, trafEnd)) {
+                if (mMapped.getInt(r + 4) != fourCC("trun")) {
+                    continue;
+                }
+                int q = r + headerSize(r);
+                int version = mMapped.get(q) & 0xff;
+                int flags = mMapped.getInt(q) & 0xffffff;
+                int count = mMapped.getInt(q + 4);
+                q += 8;
+                if ((flags & 0x01) != 0) {
+                    dataOffset = baseOffset + mMapped.getInt(q);
+                    q += 4;
+                }
+                int firstFlags = -1;
+                if ((flags & 0x04) != 0) {
+                    firstFlags = mMapped.getInt(q);
+                    q += 4;
+                }
+                ensureSampleCapacity(mSampleCount + count);
+                for (int i = 0; i < count; i++) {
+                    int duration = defDuration;
+                    int size = defSize;
+                    int sampleFlags = (i == 0 && firstFlags != -1) ? firstFlags : defFlags;
+                    long cto = 0;
+                    if ((flags & 0x100) != 0) { duration = mMapped.getInt(q); q += 4; }
+                    if ((flags & 0x200) != 0) { size = mMapped.getInt(q); q += 4; }
+                    if ((flags & 0x400) != 0) {
+                        int f = mMapped.getInt(q);
+                        q += 4;
+                        if (i != 0 || firstFlags == -1) {
+                            sampleFlags = f;
+                        }
+                    }
+                    if ((flags & 0x800) != 0) {
+                        cto = (version == 0) ? mMapped.getInt(q) & 0xffffffffL : mMapped.getInt(q);
+                        q += 4;
+                    }
+                    int n = mSampleCount++;
+                    mOffsets[n] = dataOffset;
+                    mSizes[n] = size;
+                    mPtsUsec[n] = (mNextDts + cto) * 1000000 / mTimescale;
+                    mSync[n] = (sampleFlags & 0x00010000) == 0;     // !sample_is_non_sync
+                    mMaxSampleSize = Math.max(mMaxSampleSize, size);
+                    dataOffset += size;
+                    mNextDts += duration & 0xffffffffL;
+                }
+            }
+            long fragmentEndUsec = mNextDts * 1000000 / mTimescale;
+            if (fragmentEndUsec > mDurationUsec) {
+                mDurationUsec = fragmentEndUsec;
+            }
+        }
+    }
+
+    private void buildSyncIndex() {
+        int count = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            if (mSync[i]) count++;
+        }
+        mSyncSamples = new int[count];
+        count = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            if (mSync[i]) mSyncSamples[count++] = i;
+        }
+    }
+
+    private void ensureSampleCapacity(int count) {
+        if (count <= mSizes.length) {
+            return;
+        }
+        int len = Math.max(count, mSizes.length * 2);
+        long[] offsets = new long[len];
+        int[] sizes = new int[len];
+        long[] pts = new long[len];
+        boolean[] sync = new boolean[len];
+        System.arraycopy(mOffsets, 0, offsets, 0, mSampleCount);
+        System.arraycopy(mSizes, 0, sizes, 0, mSampleCount);
+        System.arraycopy(mPtsUsec, 0, pts, 0, mSampleCount);
+        System.arraycopy(mSync, 0, sync, 0, mSampleCount);
+        mOffsets = offsets;
+        mSizes = sizes;
+        mPtsUsec = pts;
+        mSync = sync;
+    }
+
+    /**
+     * Returns the size of the box at pos, clamped to end.
+     */
+    private int boxSize(int pos, int end) {
+        long size = mMapped.getInt(pos) & 0xffffffffL;
+        if (size == 1) {
+            size = mMapped.getLong(pos + 8);
+        } else if (size == 0) {
+            size = end - pos;
+        }
+        if (size < 8 || pos + size > end) {
+            size = end - pos;   // malformed; stop at the end of the parent
+        }
+        return (int) size;
+    }
+
+    private int headerSize(int pos) {
+        return (mMapped.getInt(pos) == 1) ? 16 : 8;
+    }
+
+    /**
+     * Returns the position of the first child box of the given type, or -1.
+     */
+    private int findBox(int start, int end, String type) {
+        int want = fourCC(type);
+        for (int pos = start; pos + 8 <= end; pos += boxSize(pos, end)) {
+            if (mMapped.getInt(pos + 4) == want) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] copyBytes(int pos, int len) {
+        byte[] out = new byte[len];
+        for (int i = 0; i < len; i++) {
+            out[i] = mMapped.get(pos + i);
+        }
+        return out;
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer buf = ByteBuffer.allocate(nal.length + 4);
+        buf.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1).put(nal);
+        buf.flip();
+        return buf;
+    }
+
+    private static int fourCC(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) |
+                type.charAt(3);
+    }
+}
@@ -41,6 +41,10 @@ class PermissionHelper {
     return ContextCompat.checkSelfPermission(activity,
             Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED;
   }
+  public static boolean hasRecordAudioPermission(Activity activity) {
+    return ContextCompat.checkSelfPermission(activity,
+            Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED;
+  }
   public static void requestCameraPermission(Activity activity, boolean requestWritePermission) {
 
     boolean showRationale = ActivityCompat.shouldShowRequestPermissionRationale(activity,
@@ -17,6 +17,7 @@
 package com.android.grafika;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.app.Activity;
 import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
@@ -28,7 +29,9 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.SeekBar;
 import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.AdapterView.OnItemSelectedListener;
 
 import java.io.File;
@@ -47,18 +50,39 @@ import java.io.IOException;
  *       to have onPause() wait for playback to stop)
  */
 public class PlayMovieActivity extends Activity implements OnItemSelectedListener,
-        TextureView.SurfaceTextureListener, MoviePlayer.PlayerFeedback {
+        TextureView.SurfaceTextureListener, SeekBar.OnSeekBarChangeListener,
+        MoviePlayer.PlayerFeedback {
     private static final String TAG = MainActivity.TAG;
 
+    // Playback rates; match with playbackRateNames.  Speeds of 4x and up use trick play.
+    private static final float[] PLAYBACK_RATES = { 0.25f, 0.5f, 1.0f, 2.0f, 4.0f, 8.0f, 16.0f };
+    private static final int DEFAULT_RATE_INDEX = 2;
+
+    // How often the stats overlay is refreshed.
+    private static final long STATS_UPDATE_MSEC = 500;
+
     private TextureView mTextureView;
     private String[] mMovieFiles;
     private int mSelectedMovie;
+    private int mSelectedRate = DEFAULT_RATE_INDEX;
+    private MoviePlayer mPlayer;
     private boolean mShowStopLabel;
     private MoviePlayer.PlayTask mPlayTask;
+    private VsyncFrameCallback mFrameCallback;
     private boolean mSurfaceTextureReady = false;
 
     private final Object mStopper = new Object();   // used to signal stop
 
+    private final Handler mHandler = new Handler();
+    private final LatencyHistogram mStatsHistogram = new LatencyHistogram();
+    private final Runnable mStatsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateStatsOverlay();
+            mHandler.postDelayed(this, STATS_UPDATE_MSEC);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -79,6 +103,19 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         spinner.setAdapter(adapter);
         spinner.setOnItemSelectedListener(this);
 
+        // Seek bar, for scrubbing through the movie while it plays.
+        SeekBar seekBar = (SeekBar) findViewById(R.id.movieSeek_seekbar);
+        seekBar.setOnSeekBarChangeListener(this);
+
+        // Playback-rate spinner.  This one works while the movie is playing.
+        spinner = (Spinner) findViewById(R.id.playbackRate_spinner);
+        ArrayAdapter<CharSequence> rateAdapter = ArrayAdapter.createFromResource(this,
+                R.array.playbackRateNames, android.R.layout.simple_spinner_item);
+        rateAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinner.setAdapter(rateAdapter);
+        spinner.setSelection(mSelectedRate);
+        spinner.setOnItemSelectedListener(this);
+
         updateControls();
     }
 
@@ -102,6 +139,11 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
             stopPlayback();
             mPlayTask.waitForStop();
         }
+        if (mFrameCallback != null) {
+            mFrameCallback.stop();
+            mFrameCallback = null;
+        }
+        mHandler.removeCallbacks(mStatsUpdater);
     }
 
     @Override
@@ -133,11 +175,19 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
     }
 
     /*
-     * Called when the movie Spinner gets touched.
+     * Called when the movie or rate Spinner gets touched.
      */
     @Override
     public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
         Spinner spinner = (Spinner) parent;
+        if (parent.getId() == R.id.playbackRate_spinner) {
+            mSelectedRate = spinner.getSelectedItemPosition();
+            Log.d(TAG, "onItemSelected [rate]: " + PLAYBACK_RATES[mSelectedRate]);
+            if (mPlayer != null) {
+                mPlayer.setPlaybackRate(PLAYBACK_RATES[mSelectedRate]);
+            }
+            return;
+        }
         mSelectedMovie = spinner.getSelectedItemPosition();
 
         Log.d(TAG, "onItemSelected: " + mSelectedMovie + " '" + mMovieFiles[mSelectedMovie] + "'");
@@ -145,6 +195,27 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
 
     @Override public void onNothingSelected(AdapterView<?> parent) {}
 
+    @Override   // SeekBar.OnSeekBarChangeListener
+    public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+        if (!fromUser || mPlayer == null || mPlayer.getDurationUsec() <= 0) {
+            return;
+        }
+        // Ask for every position as we're dragged; the player just takes the latest.
+        long targetUsec = mPlayer.getDurationUsec() * progress / seekBar.getMax();
+        mPlayer.seekTo(targetUsec, true);
+    }
+
+    @Override   // SeekBar.OnSeekBarChangeListener
+    public void onStartTrackingTouch(SeekBar seekBar) {}
+
+    @Override   // SeekBar.OnSeekBarChangeListener
+    public void onStopTrackingTouch(SeekBar seekBar) {
+        if (mPlayer != null && mPlayer.getLastSeekLatencyUsec() >= 0) {
+            Log.d(TAG, "seek latency: last=" + mPlayer.getLastSeekLatencyUsec() / 1000 +
+                    "ms p50=" + mPlayer.getSeekLatencyPercentileUsec(50) / 1000 + "ms");
+        }
+    }
+
     /**
      * onClick handler for "play"/"stop" button.
      */
@@ -162,7 +233,8 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
                 return;
             }
             Log.d(TAG, "starting movie");
-            SpeedControlCallback callback = new SpeedControlCallback();
+            float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+            VsyncFrameCallback callback = new VsyncFrameCallback(refreshRate);
             if (((CheckBox) findViewById(R.id.locked60fps_checkbox)).isChecked()) {
                 // TODO: consider changing this to be "free running" mode
                 callback.setFixedPlaybackRate(60);
@@ -178,6 +250,12 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
                 surface.release();
                 return;
             }
+            if (((CheckBox) findViewById(R.id.asyncDecode_checkbox)).isChecked()) {
+                player.setAsyncDecode(true);
+            }
+            player.setPlaybackRate(PLAYBACK_RATES[mSelectedRate]);
+            player.setIndexCacheDir(getCacheDir());
+            callback.setPlaybackStats(player.getPlaybackStats());
             adjustAspectRatio(player.getVideoWidth(), player.getVideoHeight());
 
             mPlayTask = new MoviePlayer.PlayTask(player, this);
@@ -185,8 +263,13 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
                 mPlayTask.setLoopMode(true);
             }
 
+            mPlayer = player;
+            mFrameCallback = callback;
+            callback.start();
+
             mShowStopLabel = true;
             updateControls();
+            updateStatsUpdater();
             mPlayTask.execute();
         }
     }
@@ -203,9 +286,68 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
     @Override   // MoviePlayer.PlayerFeedback
     public void playbackStopped() {
         Log.d(TAG, "playback stopped");
+        if (mFrameCallback != null) {
+            mFrameCallback.stop();
+            mFrameCallback = null;
+        }
+        // Leave the final numbers up.
+        updateStatsOverlay();
         mShowStopLabel = false;
         mPlayTask = null;
+        mPlayer = null;
         updateControls();
+        updateStatsUpdater();
+    }
+
+    /**
+     * onClick handler for "stats" checkbox.
+     */
+    public void clickShowStats(@SuppressWarnings("unused") View unused) {
+        CheckBox check = (CheckBox) findViewById(R.id.playbackStats_checkbox);
+        TextView text = (TextView) findViewById(R.id.playbackStats_text);
+        text.setVisibility(check.isChecked() ? View.VISIBLE : View.GONE);
+        updateStatsOverlay();
+        updateStatsUpdater();
+    }
+
+    /**
+     * Starts or stops the periodic overlay refresh, depending on whether there's something
+     * to show.
+     */
+    private void updateStatsUpdater() {
+        mHandler.removeCallbacks(mStatsUpdater);
+        CheckBox check = (CheckBox) findViewById(R.id.playbackStats_checkbox);
+        if (mPlayer != null && check.isChecked()) {
+            mHandler.postDelayed(mStatsUpdater, STATS_UPDATE_MSEC);
+        }
+    }
+
+    /**
+     * Copies the current playback stats into the overlay.
+     */
+    private void updateStatsOverlay() {
+        if (mPlayer == null) {
+            return;
+        }
+        PlaybackStats stats = mPlayer.getPlaybackStats();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%.1f fps  decoded %d  rendered %d  dropped %d",
+                stats.getFps(), stats.getFramesDecoded(), stats.getFramesRendered(),
+                stats.getFramesDropped()));
+        stats.getLateness(mStatsHistogram);
+        appendPercentiles(sb, "late", mStatsHistogram);
+        stats.getDecodeLatency(mStatsHistogram);
+        appendPercentiles(sb, "decode", mStatsHistogram);
+        stats.getStarvation(mStatsHistogram);
+        appendPercentiles(sb, "starve", mStatsHistogram);
+        ((TextView) findViewById(R.id.playbackStats_text)).setText(sb.toString());
+    }
+
+    private static void appendPercentiles(StringBuilder sb, String name,
+            LatencyHistogram hist) {
+        sb.append(String.format("\n%-6s p50 %.1f  p99 %.1f  max %.1f ms", name,
+                hist.getPercentileUsec(50) / 1000.0, hist.getPercentileUsec(99) / 1000.0,
+                hist.getMaxUsec() / 1000.0));
     }
 
     /**
@@ -258,5 +400,7 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         check.setEnabled(!mShowStopLabel);
         check = (CheckBox) findViewById(R.id.loopPlayback_checkbox);
         check.setEnabled(!mShowStopLabel);
+        check = (CheckBox) findViewById(R.id.asyncDecode_checkbox);
+        check.setEnabled(!mShowStopLabel);
     }
 }
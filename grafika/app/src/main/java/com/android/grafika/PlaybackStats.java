@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Playback quality counters for MoviePlayer and its FrameCallbacks.
+ * <p>
+ * Tracks frames decoded, rendered, and dropped, the effective frame rate, and three
+ * distributions:
+ * <ul>
+ * <li>presentation lateness: how long after its due time each frame was released to the
+ *     display, as measured by the FrameCallback;
+ * <li>decode latency: time from queueing a sample to getting the decoded frame back;
+ * <li>input starvation: time spent waiting on the SampleSource for each sample, during
+ *     which the decoder had a free input buffer and nothing to put in it.
+ * </ul>
+ * Everything is kept in atomics, so the decode and codec threads can record without taking
+ * a lock, and the UI thread can read at any time without holding them up.  The values read
+ * aren't a consistent snapshot (a frame may be counted as decoded but not yet rendered),
+ * which is fine for a display that's refreshed a few times a second.
+ */
+public class PlaybackStats {
+    private static final long FPS_WINDOW_NSEC = 1000000000L;
+
+    private final AtomicLong mFramesDecoded = new AtomicLong();
+    private final AtomicLong mFramesRendered = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+
+    private final Histogram mLateness = new Histogram();
+    private final Histogram mDecodeLatency = new Histogram();
+    private final Histogram mStarvation = new Histogram();
+
+    // Frame rate, measured over about a second.  The window is only touched by the thread
+    // that renders; the result is published through mFpsBits.
+    private long mWindowStartNsec;
+    private long mWindowFrames;
+    private final AtomicLong mFpsBits = new AtomicLong(Double.doubleToLongBits(0.0));
+
+    /** Counts a frame that came out of the decoder. */
+    public void frameDecoded() {
+        mFramesDecoded.incrementAndGet();
+    }
+
+    /**
+     * Counts a frame that was sent to the display.  Call from one thread only (the one
+     * releasing output buffers).
+     */
+    public void frameRendered() {
+        mFramesRendered.incrementAndGet();
+
+        long nowNsec = System.nanoTime();
+        if (mWindowFrames == 0) {
+            mWindowStartNsec = nowNsec;
+        }
+        mWindowFrames++;
+        long elapsedNsec = nowNsec - mWindowStartNsec;
+        if (elapsedNsec >= FPS_WINDOW_NSEC) {
+            // N+1 frames span N frame intervals.
+            mFpsBits.set(Double.doubleToLongBits(
+                    (mWindowFrames - 1) * 1000000000.0 / elapsedNsec));
+            mWindowStartNsec = nowNsec;
+            mWindowFrames = 1;
+        }
+    }
+
+    /** Counts a decoded frame that the FrameCallback decided not to show. */
+    public void frameDropped() {
+        mFramesDropped.incrementAndGet();
+    }
+
+    /** Records how late a frame was released, relative to when it was due. */
+    public void recordLateness(long lateUsec) {
+        mLateness.record(lateUsec);
+    }
+
+    /** Records the time from queueing a sample to receiving the decoded frame. */
+    public void recordDecodeLatency(long latencyUsec) {
+        mDecodeLatency.record(latencyUsec);
+    }
+
+    /** Records the time spent waiting for a sample to feed to the decoder. */
+    public void recordStarvation(long waitUsec) {
+        mStarvation.record(waitUsec);
+    }
+
+    public long getFramesDecoded() {
+        return mFramesDecoded.get();
+    }
+
+    public long getFramesRendered() {
+        return mFramesRendered.get();
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    /**
+     * Returns the rate at which frames were rendered over the last second or so.
+     */
+    public double getFps() {
+        return Double.longBitsToDouble(mFpsBits.get());
+    }
+
+    /**
+     * Copies the presentation lateness distribution into a histogram.  Pass the same one
+     * each time to avoid allocations.
+     */
+    public void getLateness(LatencyHistogram out) {
+        mLateness.copyTo(out);
+    }
+
+    /** Copies the decode latency distribution into a histogram. */
+    public void getDecodeLatency(LatencyHistogram out) {
+        mDecodeLatency.copyTo(out);
+    }
+
+    /** Copies the input starvation distribution into a histogram. */
+    public void getStarvation(LatencyHistogram out) {
+        mStarvation.copyTo(out);
+    }
+
+    /**
+     * Writes the current values in human-readable form.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("playback: decoded=" + getFramesDecoded() +
+                " rendered=" + getFramesRendered() +
+                " dropped=" + getFramesDropped() +
+                " fps=" + String.format("%.1f", getFps()));
+        LatencyHistogram hist = new LatencyHistogram();
+        getLateness(hist);
+        hist.dump(pw, "presentation lateness");
+        getDecodeLatency(hist);
+        hist.dump(pw, "decode latency");
+        getStarvation(hist);
+        hist.dump(pw, "input starvation");
+    }
+
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    /**
+     * Lock-free histogram, using LatencyHistogram's buckets.
+     */
+    private static class Histogram {
+        private final AtomicLongArray mCounts =
+                new AtomicLongArray(LatencyHistogram.getBucketCount());
+
+        void record(long valueUsec) {
+            mCounts.incrementAndGet(LatencyHistogram.getBucketIndex(valueUsec));
+        }
+
+        void copyTo(LatencyHistogram out) {
+            out.reset();
+            for (int i = 0; i < mCounts.length(); i++) {
+                out.addBucketCount(i, mCounts.get(i));
+            }
+        }
+    }
+}
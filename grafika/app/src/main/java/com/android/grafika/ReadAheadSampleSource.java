@@ -0,0 +1,350 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * SampleSource that reads ahead of its consumer on a thread of its own.
+ * <p>
+ * Without this, the thread that feeds the decoder also does the file I/O, so a slow read
+ * (SD card, network mount, a cold page cache) holds up everything behind it, including
+ * presentation.  Here a producer thread reads samples from the wrapped source into a fixed
+ * ring of preallocated buffers, and the consumer copies them out.  The consumer only
+ * waits if the ring runs dry.
+ * <p>
+ * seekTo() discards whatever has been read ahead and returns right away; the next call
+ * that needs a sample waits for the producer to seek and read it.  Every access to the
+ * wrapped source happens on the producer thread (apart from getFormat(), which is called
+ * once, up front, and release()).
+ * <p>
+ * If the wrapped source throws, the producer stops, and the exception is rethrown (wrapped)
+ * to the consumer once it has taken the samples read before the failure.
+ * <p>
+ * The consumer side may be used from any one thread at a time.  The statistics can be
+ * read from anywhere.
+ */
+public class ReadAheadSampleSource implements SampleSource {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final SampleSource mSource;
+    private final MediaFormat mFormat;
+    private final Thread mThread;
+
+    private final Object mLock = new Object();
+
+    // Ring of samples.  Slots from mHead to mHead+mCount-1 belong to the consumer; the
+    // producer fills the one after that.
+    private final ByteBuffer[] mData;
+    private final int[] mSize;
+    private final long[] mPtsUsec;
+    private final int[] mFlags;
+    private int mHead;
+    private int mCount;
+    private boolean mEndOfStream;       // producer has read everything
+    private RuntimeException mError;    // thrown by the wrapped source; producer has stopped
+    private boolean mQuit;
+
+    // Seek request, and a counter that invalidates a read in progress when it changes.
+    private boolean mSeekPending;
+    private long mSeekTimeUs;
+    private int mSeekMode;
+    private int mGeneration;
+
+    // Stats, guarded by mLock.
+    private final long[] mDepthCounts;
+    private final LatencyHistogram mReadTime = new LatencyHistogram();
+    private final LatencyHistogram mConsumerWait = new LatencyHistogram();
+    private long mProducerIdleNsec;
+    private long mConsumerWaitNsec;
+    private long mSamplesRead;
+
+    /**
+     * Wraps a source and starts the producer thread.  The new object owns the source.
+     *
+     * @param source Source to read from.  Must be positioned at the first sample to read.
+     * @param capacity Number of samples to read ahead.
+     */
+    public ReadAheadSampleSource(SampleSource source, int capacity) {
+        mSource = source;
+        mFormat = source.getFormat();
+
+        // The largest sample is either declared, or smaller than an uncompressed frame.
+        int bufSize;
+        if (mFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            bufSize = mFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        } else {
+            bufSize = mFormat.getInteger(MediaFormat.KEY_WIDTH) *
+                    mFormat.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+        }
+        mData = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mData[i] = ByteBuffer.allocateDirect(bufSize);
+        }
+        mSize = new int[capacity];
+        mPtsUsec = new long[capacity];
+        mFlags = new int[capacity];
+        mDepthCounts = new long[capacity + 1];
+        if (VERBOSE) Log.d(TAG, "read-ahead: " + capacity + " x " + bufSize + " bytes");
+
+        mThread = new Thread("ReadAhead") {
+            @Override
+            public void run() {
+                produce();
+            }
+        };
+        mThread.start();
+    }
+
+    @Override
+    public MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buf, int offset) {
+        synchronized (mLock) {
+            if (!waitForSample()) {
+                return -1;
+            }
+            int size = mSize[mHead];
+            if (size > buf.capacity() - offset) {
+                throw new IllegalArgumentException("sample is " + size + " bytes, buffer has " +
+                        (buf.capacity() - offset) + " after offset " + offset);
+            }
+            ByteBuffer src = mData[mHead];
+            src.limit(size).position(0);
+            int savedPosition = buf.position();
+            int savedLimit = buf.limit();
+            buf.limit(buf.capacity()).position(offset);
+            buf.put(src);
+            buf.limit(savedLimit).position(savedPosition);
+            return size;
+        }
+    }
+
+    @Override
+    public long getSampleTime() {
+        synchronized (mLock) {
+            return waitForSample() ? mPtsUsec[mHead] : -1;
+        }
+    }
+
+    @Override
+    public int getSampleFlags() {
+        synchronized (mLock) {
+            return waitForSample() ? mFlags[mHead] : 0;
+        }
+    }
+
+    @Override
+    public boolean advance() {
+        synchronized (mLock) {
+            if (!waitForSample()) {
+                return false;
+            }
+            mDepthCounts[mCount]++;
+            mHead = (mHead + 1) % mData.length;
+            mCount--;
+            mLock.notifyAll();
+            // Don't wait to find out if there's another one; assume so unless we know.
+            return mCount > 0 || !mEndOfStream;
+        }
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        synchronized (mLock) {
+            mCount = 0;
+            mEndOfStream = false;
+            mSeekPending = true;
+            mSeekTimeUs = timeUs;
+            mSeekMode = mode;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            mQuit = true;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "read-ahead thread join() was interrupted", ie);
+        }
+        mSource.release();
+    }
+
+    /**
+     * Waits until the sample at the head of the ring is available.  Call with mLock held.
+     *
+     * @return False if there are no more samples.
+     * @throws RuntimeException If the ring is empty because the wrapped source failed.
+     */
+    private boolean waitForSample() {
+        if (mCount > 0) {
+            return true;
+        }
+        long startNsec = System.nanoTime();
+        while (mCount == 0 && !mEndOfStream && mError == null && !mQuit) {
+            try {
+                mLock.wait();
+            } catch (InterruptedException ie) {
+                return false;
+            }
+        }
+        long waitNsec = System.nanoTime() - startNsec;
+        mConsumerWaitNsec += waitNsec;
+        mConsumerWait.record(waitNsec / 1000);
+        if (mCount == 0 && mError != null) {
+            throw new RuntimeException("read-ahead failed", mError);
+        }
+        return mCount > 0;
+    }
+
+    /**
+     * Producer thread body.  If the wrapped source throws, records the exception for the
+     * consumer and stops.
+     */
+    private void produce() {
+        try {
+            produceLoop();
+        } catch (RuntimeException re) {
+            Log.w(TAG, "read-ahead: source failed", re);
+            synchronized (mLock) {
+                mError = re;
+                mEndOfStream = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Producer thread loop.
+     */
+    private void produceLoop() {
+        while (true) {
+            int slot;
+            int generation;
+            synchronized (mLock) {
+                long idleStartNsec = System.nanoTime();
+                while (!mQuit && !mSeekPending && (mCount == mData.length || mEndOfStream)) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // keep going until told to quit
+                    }
+                }
+                mProducerIdleNsec += System.nanoTime() - idleStartNsec;
+                if (mQuit) {
+                    break;
+                }
+                if (mSeekPending) {
+                    mSource.seekTo(mSeekTimeUs, mSeekMode);
+                    mSeekPending = false;
+                }
+                slot = (mHead + mCount) % mData.length;
+                generation = mGeneration;
+            }
+
+            // Do the I/O without holding the lock.  Nobody else touches this slot.
+            long startNsec = System.nanoTime();
+            ByteBuffer buf = mData[slot];
+            int size = mSource.readSampleData(buf, 0);
+            long ptsUsec = mSource.getSampleTime();
+            int flags = mSource.getSampleFlags();
+            if (size >= 0) {
+                mSource.advance();
+            }
+            long readUsec = (System.nanoTime() - startNsec) / 1000;
+
+            synchronized (mLock) {
+                mReadTime.record(readUsec);
+                if (generation != mGeneration) {
+                    // A seek came in while we were reading; this sample is stale.
+                    continue;
+                }
+                if (size < 0) {
+                    mEndOfStream = true;
+                } else {
+                    mSize[slot] = size;
+                    mPtsUsec[slot] = ptsUsec;
+                    mFlags[slot] = flags;
+                    mCount++;
+                    mSamplesRead++;
+                }
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the total time the consumer spent waiting for samples, in microseconds.  If
+     * this is significant, the read-ahead is too shallow for the storage.
+     */
+    public long getConsumerWaitUsec() {
+        synchronized (mLock) {
+            return mConsumerWaitNsec / 1000;
+        }
+    }
+
+    /**
+     * Returns the number of samples read from the wrapped source.
+     */
+    public long getSamplesRead() {
+        synchronized (mLock) {
+            return mSamplesRead;
+        }
+    }
+
+    /**
+     * Writes the current values in human-readable form.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("read-ahead: capacity=" + mData.length + " samples=" + mSamplesRead +
+                    " producer idle=" + mProducerIdleNsec / 1000000 + "ms" +
+                    " consumer wait=" + mConsumerWaitNsec / 1000000 + "ms");
+            StringBuilder sb = new StringBuilder("queue depth at advance():");
+            for (int i = 0; i < mDepthCounts.length; i++) {
+                sb.append(' ').append(i).append('=').append(mDepthCounts[i]);
+            }
+            pw.println(sb.toString());
+            mReadTime.dump(pw, "sample read time");
+            mConsumerWait.dump(pw, "consumer wait");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+}
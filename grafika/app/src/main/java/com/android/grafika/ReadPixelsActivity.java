@@ -31,16 +31,19 @@ import android.content.DialogInterface;
 import android.content.res.Resources;
 
 import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.FrameReader;
 import com.android.grafika.gles.OffscreenSurface;
 
 import java.io.File;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 
 /**
  * Basic glReadPixels() speed test.
+ * <p>
+ * Also measures readback throughput: frames per second when every rendered frame is read
+ * back, with plain glReadPixels() and with a FrameReader (pixel-pack buffers on GLES 3).
  */
 public class ReadPixelsActivity extends Activity {
     private static final String TAG = MainActivity.TAG;
@@ -48,6 +51,7 @@ public class ReadPixelsActivity extends Activity {
     private static final int WIDTH = 1280;
     private static final int HEIGHT = 720;
     private static final int ITERATIONS = 100;
+    private static final int THROUGHPUT_FRAMES = 100;
 
     private volatile boolean mIsCanceled;
 
@@ -94,6 +98,7 @@ public class ReadPixelsActivity extends Activity {
         Resources res = getResources();
         String running = res.getString(R.string.state_running);
         setMessage(R.id.gfxResult_text, running);
+        setMessage(R.id.readbackResult_text, running);
 
         AlertDialog dialog = showProgressDialog();
         ReadPixelsTask task = new ReadPixelsTask(dialog, R.id.gfxResult_text,
@@ -111,6 +116,7 @@ public class ReadPixelsActivity extends Activity {
         private int mIterations;
         private int mResultTextId;
         private AlertDialog mDialog;
+        private String mThroughput;
 
         private ProgressBar mProgressBar;
 
@@ -126,7 +132,7 @@ public class ReadPixelsActivity extends Activity {
             mIterations = iterations;
 
             mProgressBar = (ProgressBar) dialog.findViewById(R.id.work_progress);
-            mProgressBar.setMax(mIterations);
+            mProgressBar.setMax(mIterations + THROUGHPUT_FRAMES * 2);
         }
 
         @Override
@@ -142,10 +148,14 @@ public class ReadPixelsActivity extends Activity {
             Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
 
             try {
-                eglCore = new EglCore(null, 0);
+                // GLES 3 if available, so FrameReader can use pixel-pack buffers.
+                eglCore = new EglCore(null, EglCore.FLAG_TRY_GLES3);
                 surface = new OffscreenSurface(eglCore, mWidth, mHeight);
                 Log.d(TAG, "Buffer size " + mWidth + "x" + mHeight);
                 result = runGfxTest(surface);
+                if (result >= 0) {
+                    mThroughput = runThroughputTest();
+                }
             } finally {
                 if (surface != null) {
                     surface.release();
@@ -175,6 +185,11 @@ public class ReadPixelsActivity extends Activity {
                 setMessage(mResultTextId, (result / 1000) +
                         res.getString(R.string.usec_per_iteration));
             }
+            if (mThroughput == null) {
+                setMessage(R.id.readbackResult_text, res.getString(R.string.did_not_complete));
+            } else {
+                setMessage(R.id.readbackResult_text, mThroughput);
+            }
         }
 
         /**
@@ -202,19 +217,7 @@ public class ReadPixelsActivity extends Activity {
                     publishProgress(i);
                 }
 
-                // Clear the screen to a solid color, then add a rectangle.  Change the color
-                // each time.
-                float r = i * colorMult;
-                float g = 1.0f - r;
-                float b = (r + g) / 2.0f;
-                GLES20.glClearColor(r, g, b, 1.0f);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-
-                GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-                GLES20.glScissor(mWidth / 4, mHeight / 4, mWidth / 2, mHeight / 2);
-                GLES20.glClearColor(b, g, r, 1.0f);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-                GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                drawFrame(i * colorMult);
 
                 // Try to ensure that rendering has finished.
                 GLES20.glFinish();
@@ -232,18 +235,104 @@ public class ReadPixelsActivity extends Activity {
             Log.d(TAG, "done");
 
             if (true) {
-                // save the last one off into a file
+                // save the last one off into a file; the PNG is written on the reader's thread
                 long startWhen = System.nanoTime();
+                FrameReader reader = new FrameReader(mWidth, mHeight, FrameReader.PNG_WRITER);
                 try {
-                    eglSurface.saveFrame(new File(Environment.getExternalStorageDirectory(),
-                            "test.png"));
-                } catch (IOException ioe) {
-                    throw new RuntimeException(ioe);
+                    eglSurface.saveFrameAsync(reader,
+                            new File(Environment.getExternalStorageDirectory(), "test.png"));
+                    Log.d(TAG, "Started save in " +
+                            ((System.nanoTime() - startWhen) / 1000000) + "ms");
+                    reader.finish();
+                } finally {
+                    reader.release();
                 }
                 Log.d(TAG, "Saved frame in " + ((System.nanoTime() - startWhen) / 1000000) + "ms");
             }
 
             return totalTime;
         }
+
+        /**
+         * Renders frames and reads every one back, first with glReadPixels() and then with
+         * a FrameReader.  Unlike runGfxTest(), nothing waits for rendering to finish before
+         * the readback, so the sync numbers include the pipeline stall.
+         *
+         * @return Human-readable frame rates, or null if canceled.
+         */
+        private String runThroughputTest() {
+            ByteBuffer pixelBuf = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
+            pixelBuf.order(ByteOrder.LITTLE_ENDIAN);
+            float colorMult = 1.0f / THROUGHPUT_FRAMES;
+            int progressBase = mIterations;
+
+            long startWhen = System.nanoTime();
+            for (int i = 0; i < THROUGHPUT_FRAMES; i++) {
+                if (mIsCanceled) {
+                    return null;
+                }
+                if ((i % (THROUGHPUT_FRAMES / 8)) == 0) {
+                    publishProgress(progressBase + i);
+                }
+                drawFrame(i * colorMult);
+                GLES20.glReadPixels(0, 0, mWidth, mHeight,
+                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuf);
+            }
+            long syncNsec = System.nanoTime() - startWhen;
+            progressBase += THROUGHPUT_FRAMES;
+
+            // The listener doesn't do anything with the pixels; we're measuring how fast
+            // they can be delivered.
+            FrameReader reader = new FrameReader(mWidth, mHeight, new FrameReader.Listener() {
+                @Override
+                public void onFrameRead(ByteBuffer pixels, int width, int height, Object tag) {}
+            });
+            long asyncNsec;
+            try {
+                startWhen = System.nanoTime();
+                for (int i = 0; i < THROUGHPUT_FRAMES; i++) {
+                    if (mIsCanceled) {
+                        return null;
+                    }
+                    if ((i % (THROUGHPUT_FRAMES / 8)) == 0) {
+                        publishProgress(progressBase + i);
+                    }
+                    drawFrame(i * colorMult);
+                    reader.readFrame(null);
+                    reader.poll();
+                }
+                reader.finish();
+                asyncNsec = System.nanoTime() - startWhen;
+                Log.d(TAG, "FrameReader: " + reader.getFrameCount() + " frames, " +
+                        reader.getWaitCount() + " waits");
+            } finally {
+                reader.release();
+            }
+
+            String result = String.format("%.1f fps sync, %.1f fps %s",
+                    THROUGHPUT_FRAMES * 1000000000.0 / syncNsec,
+                    THROUGHPUT_FRAMES * 1000000000.0 / asyncNsec,
+                    reader.isAsync() ? "PBO" : "(no PBO, GLES 2)");
+            Log.d(TAG, "Readback throughput: " + result);
+            return result;
+        }
+
+        /**
+         * Clears the screen to a solid color, then adds a rectangle.  The color depends on
+         * the value, so each frame is different.
+         */
+        private void drawFrame(float value) {
+            float r = value;
+            float g = 1.0f - r;
+            float b = (r + g) / 2.0f;
+            GLES20.glClearColor(r, g, b, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+            GLES20.glScissor(mWidth / 4, mHeight / 4, mWidth / 2, mHeight / 2);
+            GLES20.glClearColor(b, g, r, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        }
     }
 }
@@ -30,6 +30,7 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.RadioButton;
 import android.widget.TextView;
 import android.app.Activity;
@@ -39,6 +40,7 @@ import com.android.grafika.gles.Drawable2d;
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FlatShadedProgram;
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.GlState;
 import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.Sprite2d;
 import com.android.grafika.gles.Texture2dProgram;
@@ -107,6 +109,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
     private boolean mRecordingEnabled = false;          // controls button state
     private boolean mBlitFramebufferAllowed = false;    // requires GLES3
     private int mSelectedRecordMethod;                  // current radio button
+    private boolean mFragmentedOutput = false;          // write with FragmentedMp4Writer
 
     private RenderThread mRenderThread;
 
@@ -267,10 +270,18 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         if (rh != null) {
             mRecordingEnabled = !mRecordingEnabled;
             updateControls();
-            rh.setRecordingEnabled(mRecordingEnabled);
+            rh.setRecordingEnabled(mRecordingEnabled, mFragmentedOutput);
         }
     }
 
+    /**
+     * onClick handler for "fragmented MP4" checkbox.  Takes effect when recording starts.
+     */
+    public void onFragmentedClicked(@SuppressWarnings("unused") View unused) {
+        CheckBox cb = (CheckBox) findViewById(R.id.fragmentedMp4_checkbox);
+        mFragmentedOutput = cb.isChecked();
+    }
+
     /**
      * onClick handler for radio buttons.
      */
@@ -320,6 +331,10 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         rb.setChecked(mSelectedRecordMethod == RECMETHOD_BLIT_FRAMEBUFFER);
         rb.setEnabled(mBlitFramebufferAllowed);
 
+        CheckBox cb = (CheckBox) findViewById(R.id.fragmentedMp4_checkbox);
+        cb.setChecked(mFragmentedOutput);
+        cb.setEnabled(!mRecordingEnabled);
+
         TextView tv = (TextView) findViewById(R.id.nowRecording_text);
         if (mRecordingEnabled) {
             tv.setText(getString(R.string.nowRecording));
@@ -649,7 +664,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             GLES20.glGenTextures(1, values, 0);
             GlUtil.checkGlError("glGenTextures");
             mOffscreenTexture = values[0];   // expected > 0
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOffscreenTexture);
+            GlState.get().bindTexture(GLES20.GL_TEXTURE_2D, mOffscreenTexture);
             GlUtil.checkGlError("glBindTexture " + mOffscreenTexture);
 
             // Create texture storage.
@@ -727,7 +742,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             }
             if (mOffscreenTexture > 0) {
                 values[0] = mOffscreenTexture;
-                GLES20.glDeleteTextures(1, values, 0);
+                GlState.get().deleteTextures(1, values, 0);
                 mOffscreenTexture = -1;
             }
             if (mFramebuffer > 0) {
@@ -752,13 +767,15 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
 
         /**
          * Updates the recording state.  Stops or starts recording as needed.
+         *
+         * @param fragmented If starting, write a fragmented MP4 instead of using MediaMuxer.
          */
-        private void setRecordingEnabled(boolean enabled) {
+        private void setRecordingEnabled(boolean enabled, boolean fragmented) {
             if (enabled == mRecordingEnabled) {
                 return;
             }
             if (enabled) {
-                startEncoder();
+                startEncoder(fragmented);
             } else {
                 stopEncoder();
             }
@@ -776,9 +793,12 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         /**
          * Creates the video encoder object and starts the encoder thread.  Creates an EGL
          * surface for encoder input.
+         *
+         * @param fragmented Write a fragmented MP4, which is playable up to the last
+         *     complete fragment even if recording is cut short.
          */
-        private void startEncoder() {
-            Log.d(TAG, "starting to record");
+        private void startEncoder(boolean fragmented) {
+            Log.d(TAG, "starting to record" + (fragmented ? " (fragmented)" : ""));
             // Record at 1280x720, regardless of the window dimensions.  The encoder may
             // explode if given "strange" dimensions, e.g. a width that is not a multiple
             // of 16.  We can box it as needed to preserve dimensions.
@@ -808,7 +828,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             VideoEncoderCore encoderCore;
             try {
                 encoderCore = new VideoEncoderCore(VIDEO_WIDTH, VIDEO_HEIGHT,
-                        BIT_RATE, mOutputFile);
+                        BIT_RATE, mOutputFile, fragmented);
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
             }
@@ -912,6 +932,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
                     mInputWindowSurface.setPresentationTime(timeStampNanos);
                     mInputWindowSurface.swapBuffers();
+                    mVideoEncoder.frameSubmitted(timeStampNanos);
 
                     // Restore.
                     GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
@@ -945,6 +966,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     }
                     mInputWindowSurface.setPresentationTime(timeStampNanos);
                     mInputWindowSurface.swapBuffers();
+                    mVideoEncoder.frameSubmitted(timeStampNanos);
 
                     // Now swap the display buffer.
                     mWindowSurface.makeCurrent();
@@ -973,6 +995,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix);
                     mInputWindowSurface.setPresentationTime(timeStampNanos);
                     mInputWindowSurface.swapBuffers();
+                    mVideoEncoder.frameSubmitted(timeStampNanos);
 
                     // Restore previous values.
                     GLES20.glViewport(0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight());
@@ -1164,12 +1187,14 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         }
 
         /**
-         * Enable or disable recording.
+         * Enable or disable recording.  If enabling, fragmented selects FragmentedMp4Writer
+         * over MediaMuxer.
          * <p>
          * Call from non-UI thread.
          */
-        public void setRecordingEnabled(boolean enabled) {
-            sendMessage(obtainMessage(MSG_RECORDING_ENABLED, enabled ? 1 : 0, 0));
+        public void setRecordingEnabled(boolean enabled, boolean fragmented) {
+            sendMessage(obtainMessage(MSG_RECORDING_ENABLED, enabled ? 1 : 0,
+                    fragmented ? 1 : 0));
         }
 
         /**
@@ -1214,7 +1239,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     renderThread.doFrame(timestamp);
                     break;
                 case MSG_RECORDING_ENABLED:
-                    renderThread.setRecordingEnabled(msg.arg1 != 0);
+                    renderThread.setRecordingEnabled(msg.arg1 != 0, msg.arg2 != 0);
                     break;
                 case MSG_RECORD_METHOD:
                     renderThread.setRecordMethod(msg.arg1);
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaExtractor;
+
+/**
+ * Decides which samples from a SampleSource are handed to the decoder, and counts them.
+ * <p>
+ * Below {@link #KEYFRAME_ONLY_RATE}, every sample is fed in decode order.  At and above it
+ * ("trick play"), after each sample the source skips to the first sync sample at least
+ * 1/{@link #MAX_KEYFRAMES_PER_SEC} of a second of playback later, so the decoder only sees
+ * sync samples, and no more of them per second than it would at a lower rate.
+ * <p>
+ * The caller reads the current sample from the source, queues it, and then calls
+ * {@link #sampleQueued}.  Seeks and loop wraps go to the source directly.  Not thread-safe;
+ * use it from whichever thread feeds the decoder.
+ */
+public class SampleFeeder {
+    /** At or above this rate, only sync samples (key frames) are decoded. */
+    public static final float KEYFRAME_ONLY_RATE = 4.0f;
+
+    /**
+     * In key-frame-only mode, decode at most this many frames per second of playback, so
+     * the decoder's load stays flat however fast we go.
+     */
+    public static final int MAX_KEYFRAMES_PER_SEC = 15;
+
+    private final SampleSource mSource;
+    private int mSampleCount;
+
+    public SampleFeeder(SampleSource source) {
+        mSource = source;
+    }
+
+    /**
+     * Returns the source samples are read from.
+     */
+    public SampleSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * Returns the number of samples handed to the decoder so far.
+     */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Counts the sample that was just queued, and moves the source past it.  Normally
+     * that's the next sample; in trick-play mode it's the first sync sample far enough
+     * along to be worth showing.
+     *
+     * @param presentationTimeUs Time stamp of the queued sample, as read from the source.
+     * @param rate Current playback rate.
+     */
+    public void sampleQueued(long presentationTimeUs, float rate) {
+        mSampleCount++;
+        if (rate < KEYFRAME_ONLY_RATE) {
+            mSource.advance();
+            return;
+        }
+        long targetUsec = presentationTimeUs + (long) (rate * 1000000 / MAX_KEYFRAMES_PER_SEC);
+        mSource.seekTo(targetUsec, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        if (mSource.getSampleTime() <= presentationTimeUs) {
+            // No sync sample past the target.  MediaExtractor may leave us where we were;
+            // either way, there's nothing left to show, so run to the end of the stream.
+            while (mSource.advance()) {
+                // skip
+            }
+        }
+    }
+}
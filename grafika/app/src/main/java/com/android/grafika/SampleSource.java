@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A source of encoded samples from a single video track, read in decode order.
+ * <p>
+ * This is the subset of MediaExtractor that MoviePlayer uses, so that it can read either
+ * through MediaExtractor ({@link ExtractorSampleSource}) or through the pure-Java
+ * {@link Mp4Demuxer}.  Method semantics match the MediaExtractor methods of the same name.
+ */
+public interface SampleSource {
+    /**
+     * Returns the format of the track, suitable for configuring a decoder.
+     */
+    MediaFormat getFormat();
+
+    /**
+     * Copies the current sample into buf, starting at offset.  Does not respect or update
+     * the buffer's position and limit.
+     *
+     * @return The sample size, or -1 if there are no more samples.
+     */
+    int readSampleData(ByteBuffer buf, int offset);
+
+    /**
+     * Returns the presentation time of the current sample, in microseconds, or -1 if there
+     * are no more samples.
+     */
+    long getSampleTime();
+
+    /**
+     * Returns the MediaExtractor.SAMPLE_FLAG_* flags for the current sample.
+     */
+    int getSampleFlags();
+
+    /**
+     * Moves to the next sample.
+     *
+     * @return False if there are no more samples.
+     */
+    boolean advance();
+
+    /**
+     * Seeks to a sync sample near the given time.
+     *
+     * @param mode One of the MediaExtractor.SEEK_TO_* constants.
+     */
+    void seekTo(long timeUs, int mode);
+
+    /**
+     * Releases resources.
+     */
+    void release();
+}
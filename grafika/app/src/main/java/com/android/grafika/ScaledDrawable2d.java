@@ -15,9 +15,13 @@
  */
 package com.android.grafika;
 
+import android.opengl.GLES20;
 import android.util.Log;
 
 import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.GlState;
+import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.PrefabBuffers;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -26,6 +30,10 @@ import java.nio.FloatBuffer;
 /**
  * Tweaked version of Drawable2d that rescales the texture coordinates to provide a
  * "zoom" effect.
+ * <p>
+ * In buffer mode the vertices come from the shared prefab buffer, but the texture
+ * coordinates are ours, so we keep them in a buffer object of our own and update it with
+ * glBufferSubData() when the scale changes.
  */
 public class ScaledDrawable2d extends Drawable2d {
     private static final String TAG = MainActivity.TAG;
@@ -36,6 +44,9 @@ public class ScaledDrawable2d extends Drawable2d {
     private float mScale = 1.0f;
     private boolean mRecalculate;
 
+    private int mTexCoordBuffer;        // our buffer object, or 0 if not in buffer mode
+    private boolean mBufferDirty;
+
 
     /**
      * Trivial constructor.
@@ -52,8 +63,60 @@ public class ScaledDrawable2d extends Drawable2d {
         if (scale < 0.0f || scale > 1.0f) {
             throw new RuntimeException("invalid scale " + scale);
         }
+        if (scale == mScale) {
+            return;
+        }
         mScale = scale;
         mRecalculate = true;
+        mBufferDirty = true;
+    }
+
+    /**
+     * Switches buffer mode on or off.  Turning it off deletes our texture coordinate buffer,
+     * so do that (with the EGL context current) before discarding the drawable.
+     */
+    @Override
+    public void setBuffers(PrefabBuffers buffers) {
+        super.setBuffers(buffers);
+        if (buffers == null) {
+            if (mTexCoordBuffer != 0) {
+                GlState.get().deleteBuffers(1, new int[] { mTexCoordBuffer }, 0);
+                mTexCoordBuffer = 0;
+            }
+        } else if (mTexCoordBuffer == 0) {
+            int[] handles = new int[1];
+            GLES20.glGenBuffers(1, handles, 0);
+            GlUtil.checkGlError("glGenBuffers");
+            mTexCoordBuffer = handles[0];
+
+            // Allocate the storage now; after this it's only ever updated in place.
+            FloatBuffer coords = getTexCoordArray();
+            GlState.get().bindBuffer(GLES20.GL_ARRAY_BUFFER, mTexCoordBuffer);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, coords.capacity() * SIZEOF_FLOAT,
+                    coords, GLES20.GL_DYNAMIC_DRAW);
+            GlUtil.checkGlError("glBufferData");
+            mBufferDirty = false;
+        }
+    }
+
+    /**
+     * Returns our texture coordinate buffer, after bringing it up to date with the current
+     * scale.
+     */
+    @Override
+    public int getTexCoordBuffer() {
+        if (mTexCoordBuffer == 0) {
+            return super.getTexCoordBuffer();
+        }
+        if (mBufferDirty) {
+            FloatBuffer coords = getTexCoordArray();
+            GlState.get().bindBuffer(GLES20.GL_ARRAY_BUFFER, mTexCoordBuffer);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0,
+                    coords.capacity() * SIZEOF_FLOAT, coords);
+            GlUtil.checkGlError("glBufferSubData");
+            mBufferDirty = false;
+        }
+        return mTexCoordBuffer;
     }
 
     /**
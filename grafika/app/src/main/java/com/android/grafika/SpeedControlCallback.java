@@ -26,7 +26,8 @@ import android.util.Log;
  * <p>
  * This is not coordinated with VSYNC.  Since we can't control the display's refresh rate, and
  * the source material has time stamps that specify when each frame should be presented,
- * we will have to drop or repeat frames occasionally.
+ * we will have to drop or repeat frames occasionally.  We never drop frames ourselves; see
+ * VsyncFrameCallback for a callback that does.
  * <p>
  * Thread restrictions are noted in the method descriptions.  The FrameCallback overrides should
  * only be called from the MoviePlayer.
@@ -41,6 +42,7 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
     private long mPrevMonoUsec;
     private long mFixedFrameDurationUsec;
     private boolean mLoopReset;
+    private PlaybackStats mStats;
 
     /**
      * Sets a fixed playback rate.  If set, this will ignore the presentation time stamp
@@ -50,9 +52,17 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         mFixedFrameDurationUsec = ONE_MILLION / fps;
     }
 
+    /**
+     * Sets the stats object that presentation lateness is reported to.  Must be called
+     * before playback thread starts.
+     */
+    public void setPlaybackStats(PlaybackStats stats) {
+        mStats = stats;
+    }
+
     // runs on decode thread
     @Override
-    public void preRender(long presentationTimeUsec) {
+    public boolean preRender(long presentationTimeUsec) {
         // For the first frame, we grab the presentation time from the video
         // and the current monotonic clock time.  For subsequent frames, we
         // sleep for a bit to try to ensure that we're rendering frames at the
@@ -127,12 +137,16 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
                 } catch (InterruptedException ie) {}
                 nowUsec = System.nanoTime() / 1000;
             }
+            if (mStats != null) {
+                mStats.recordLateness(nowUsec - desiredUsec);
+            }
 
             // Advance times using calculated time values, not the post-sleep monotonic
             // clock time, to avoid drifting.
             mPrevMonoUsec += frameDelta;
             mPrevPresentUsec += frameDelta;
         }
+        return true;
     }
 
     // runs on decode thread
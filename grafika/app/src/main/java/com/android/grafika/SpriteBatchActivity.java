@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.res.Resources;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.GeneratedTexture;
+import com.android.grafika.gles.GlState;
+import com.android.grafika.gles.OffscreenSurface;
+import com.android.grafika.gles.PrefabBuffers;
+import com.android.grafika.gles.Sprite2d;
+import com.android.grafika.gles.SpriteBatch;
+import com.android.grafika.gles.Texture2dProgram;
+
+import java.util.Random;
+
+/**
+ * Compares drawing sprites one at a time with drawing them through a SpriteBatch.
+ * <p>
+ * For each sprite count, renders a number of frames of textured sprites (all sharing one
+ * texture, each with its own position, size, and a rotation that changes every frame) into
+ * an offscreen surface three ways: with Sprite2d.draw() from client-side arrays, with
+ * Sprite2d.draw() from buffer objects (Drawable2d.setBuffers()), and with SpriteBatch.
+ * Reports the average frame time and the number of draw calls per frame for each.
+ * <p>
+ * The frame time includes a glFinish(), so it covers the GPU work as well as the CPU side.
+ */
+public class SpriteBatchActivity extends Activity {
+    private static final String TAG = MainActivity.TAG;
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int[] SPRITE_COUNTS = { 16, 64, 256, 1024, 4096 };
+    private static final int WARMUP_FRAMES = 5;
+    private static final int FRAMES = 60;
+    private static final int BATCH_CAPACITY = 1024;
+
+    private volatile boolean mIsCanceled;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_sprite_batch);
+    }
+
+    /**
+     * Sets the text in the message field.
+     */
+    void setMessage(String msg) {
+        TextView result = (TextView) findViewById(R.id.spriteBatchResult_text);
+        result.setText(msg);
+    }
+
+    /**
+     * Creates and displays the progress dialog.
+     *
+     * @return the dialog
+     */
+    private AlertDialog showProgressDialog() {
+        // Put up the progress dialog.
+        AlertDialog.Builder builder = WorkDialog.create(this, R.string.running_test);
+        builder.setCancelable(false);   // only by button
+        builder.setNegativeButton(R.string.cancel,
+                new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                mIsCanceled = true;
+                // let the async task handle dismiss the dialog
+            }
+        });
+        return builder.show();
+    }
+
+    public void clickRunTest(@SuppressWarnings("unused") View unused) {
+        Resources res = getResources();
+        String running = res.getString(R.string.state_running);
+        setMessage(running);
+
+        AlertDialog dialog = showProgressDialog();
+        SpriteBatchTask task = new SpriteBatchTask(dialog);
+        mIsCanceled = false;
+        task.execute();
+    }
+
+
+    /**
+     * AsyncTask class that executes the test.
+     */
+    private class SpriteBatchTask extends AsyncTask<Void, Integer, String> {
+        private AlertDialog mDialog;
+        private ProgressBar mProgressBar;
+
+        private final float[] mProjectionMatrix = new float[16];
+
+        public SpriteBatchTask(AlertDialog dialog) {
+            mDialog = dialog;
+            mProgressBar = (ProgressBar) dialog.findViewById(R.id.work_progress);
+            mProgressBar.setMax(SPRITE_COUNTS.length * 3);
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            // See the note in TextureUploadActivity about AsyncTask thread priority.
+            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+
+            EglCore eglCore = null;
+            OffscreenSurface surface = null;
+            try {
+                eglCore = new EglCore(null, 0);
+                surface = new OffscreenSurface(eglCore, WIDTH, HEIGHT);
+                surface.makeCurrent();
+                return runTests();
+            } finally {
+                if (surface != null) {
+                    surface.release();
+                }
+                if (eglCore != null) {
+                    eglCore.release();
+                }
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... progress) {
+            mProgressBar.setProgress(progress[0]);
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            Log.d(TAG, "onPostExecute result=" + result);
+            mDialog.dismiss();
+            mDialog = null;
+
+            if (result == null) {
+                setMessage(getResources().getString(R.string.did_not_complete));
+            } else {
+                setMessage(result);
+            }
+        }
+
+        /**
+         * Runs each variant for each sprite count.
+         *
+         * @return Human-readable results, or null if canceled.
+         */
+        private String runTests() {
+            Matrix.orthoM(mProjectionMatrix, 0, 0, WIDTH, 0, HEIGHT, -1, 1);
+            Texture2dProgram texProgram =
+                    new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D);
+            SpriteBatch batch = new SpriteBatch(BATCH_CAPACITY);
+            PrefabBuffers prefabBuffers = new PrefabBuffers();
+            int texture = GeneratedTexture.createTestTexture(GeneratedTexture.Image.COARSE);
+            Drawable2d rectDrawable = new Drawable2d(Drawable2d.Prefab.RECTANGLE);
+            GlState state = GlState.get();
+
+            StringBuilder sb = new StringBuilder();
+            int step = 0;
+            try {
+                for (int count : SPRITE_COUNTS) {
+                    Sprite2d[] sprites = createSprites(rectDrawable, texture, count);
+
+                    publishProgress(step++);
+                    state.resetCounters();
+                    long singleNsec = runFrames(sprites, texProgram, null);
+                    long singleGlCalls = state.getIssuedCount() / (WARMUP_FRAMES + FRAMES);
+                    if (mIsCanceled) {
+                        return null;
+                    }
+
+                    publishProgress(step++);
+                    rectDrawable.setBuffers(prefabBuffers);
+                    state.resetCounters();
+                    long bufferNsec = runFrames(sprites, texProgram, null);
+                    long bufferGlCalls = state.getIssuedCount() / (WARMUP_FRAMES + FRAMES);
+                    rectDrawable.setBuffers(null);
+                    if (mIsCanceled) {
+                        return null;
+                    }
+
+                    publishProgress(step++);
+                    state.resetCounters();
+                    long batchNsec = runFrames(sprites, texProgram, batch);
+                    long batchGlCalls = state.getIssuedCount() / (WARMUP_FRAMES + FRAMES);
+                    if (mIsCanceled) {
+                        return null;
+                    }
+
+                    String line = count + " sprites: " +
+                            String.format("%.2f", singleNsec / 1000000.0) + " ms, " +
+                            count + " draws, " + singleGlCalls + " state calls / " +
+                            String.format("%.2f", bufferNsec / 1000000.0) + " ms, " +
+                            count + " draws, " + bufferGlCalls + " state calls / " +
+                            String.format("%.2f", batchNsec / 1000000.0) + " ms, " +
+                            batch.getDrawCallCount() + " draws, " + batchGlCalls +
+                            " state calls";
+                    Log.d(TAG, line);
+                    sb.append(line).append('\n');
+                }
+            } finally {
+                batch.release();
+                prefabBuffers.release();
+                texProgram.release();
+                state.deleteTextures(1, new int[] { texture }, 0);
+            }
+            return "arrays / buffers / batched, per frame\n" + sb.toString();
+        }
+
+        /**
+         * Creates sprites scattered across the surface.  The seed is fixed so all variants
+         * draw the same scene.
+         */
+        private Sprite2d[] createSprites(Drawable2d drawable, int texture, int count) {
+            Random rnd = new Random(count);
+            Sprite2d[] sprites = new Sprite2d[count];
+            for (int i = 0; i < count; i++) {
+                Sprite2d sprite = new Sprite2d(drawable);
+                float size = 8 + rnd.nextInt(32);
+                sprite.setScale(size, size);
+                sprite.setPosition(rnd.nextFloat() * WIDTH, rnd.nextFloat() * HEIGHT);
+                sprite.setTexture(texture);
+                sprites[i] = sprite;
+            }
+            return sprites;
+        }
+
+        /**
+         * Draws the sprites for a number of frames.
+         *
+         * @param batch Batch to draw with, or null to draw the sprites one at a time.
+         * @return Average time per frame, in nanoseconds, excluding warm-up frames.
+         */
+        private long runFrames(Sprite2d[] sprites, Texture2dProgram texProgram,
+                SpriteBatch batch) {
+            long startNsec = 0;
+            for (int frame = 0; frame < WARMUP_FRAMES + FRAMES; frame++) {
+                if (mIsCanceled) {
+                    break;
+                }
+                if (frame == WARMUP_FRAMES) {
+                    startNsec = System.nanoTime();
+                }
+
+                GLES20.glClearColor(0f, 0f, 0f, 1f);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                for (int i = 0; i < sprites.length; i++) {
+                    sprites[i].setRotation(frame * 3 + i);
+                }
+
+                if (batch == null) {
+                    for (Sprite2d sprite : sprites) {
+                        sprite.draw(texProgram, mProjectionMatrix);
+                    }
+                } else {
+                    batch.begin(mProjectionMatrix);
+                    for (Sprite2d sprite : sprites) {
+                        batch.drawTextured(sprite);
+                    }
+                    batch.end();
+                }
+                GLES20.glFinish();
+            }
+            return (System.nanoTime() - startNsec) / FRAMES;
+        }
+    }
+}
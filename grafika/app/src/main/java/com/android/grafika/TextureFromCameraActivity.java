@@ -36,6 +36,7 @@ import android.app.Activity;
 import com.android.grafika.gles.Drawable2d;
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.PrefabBuffers;
 import com.android.grafika.gles.Sprite2d;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
@@ -84,6 +85,9 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
     private static final int DEFAULT_SIZE_PERCENT = 50;     // 0-100
     private static final int DEFAULT_ROTATE_PERCENT = 0;    // 0-100
 
+    // Draw the rect from buffer objects rather than client-side arrays.  Flip to compare.
+    private static final boolean USE_BUFFERS = true;
+
     // Requested values; actual may differ.
     private static final int REQ_CAMERA_WIDTH = 1280;
     private static final int REQ_CAMERA_HEIGHT = 720;
@@ -456,6 +460,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
         private float[] mDisplayProjectionMatrix = new float[16];
 
         private Texture2dProgram mTexProgram;
+        private PrefabBuffers mPrefabBuffers;
         private final ScaledDrawable2d mRectDrawable =
                 new ScaledDrawable2d(Drawable2d.Prefab.RECTANGLE);
         private final Sprite2d mRect = new Sprite2d(mRectDrawable);
@@ -548,6 +553,10 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
             int textureId = mTexProgram.createTextureObject();
             mCameraTexture = new SurfaceTexture(textureId);
             mRect.setTexture(textureId);
+            if (USE_BUFFERS) {
+                mPrefabBuffers = new PrefabBuffers();
+                mRectDrawable.setBuffers(mPrefabBuffers);
+            }
 
             if (!newSurface) {
                 // This Surface was established on a previous run, so no surfaceChanged()
@@ -580,6 +589,11 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
                 mTexProgram.release();
                 mTexProgram = null;
             }
+            if (mPrefabBuffers != null) {
+                mRectDrawable.setBuffers(null);
+                mPrefabBuffers.release();
+                mPrefabBuffers = null;
+            }
             GlUtil.checkGlError("releaseGl done");
 
             mEglCore.makeNothingCurrent();
@@ -79,6 +79,7 @@ public class TextureMovieEncoder implements Runnable {
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private volatile EncoderStats mStats;
 
     private Object mReadyFence = new Object();      // guards ready/running
     private boolean mReady;
@@ -172,6 +173,14 @@ public class TextureMovieEncoder implements Runnable {
         }
     }
 
+    /**
+     * Returns the statistics for the current (or most recent) recording, or null if
+     * recording has never started.
+     */
+    public EncoderStats getStats() {
+        return mStats;
+    }
+
     /**
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
@@ -331,6 +340,7 @@ public class TextureMovieEncoder implements Runnable {
 
         mInputWindowSurface.setPresentationTime(timestampNanos);
         mInputWindowSurface.swapBuffers();
+        mVideoEncoder.getStats().frameSubmitted(timestampNanos);
     }
 
     /**
@@ -339,6 +349,7 @@ public class TextureMovieEncoder implements Runnable {
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
         mVideoEncoder.drainEncoder(true);
+        Log.d(TAG, mVideoEncoder.getStats().toString());
         releaseEncoder();
     }
 
@@ -366,7 +377,7 @@ public class TextureMovieEncoder implements Runnable {
         mEglCore.release();
 
         // Create a new EGLContext and recreate the window surface.
-        mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
+        mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
         mInputWindowSurface.recreate(mEglCore);
         mInputWindowSurface.makeCurrent();
 
@@ -382,7 +393,9 @@ public class TextureMovieEncoder implements Runnable {
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
+        mStats = mVideoEncoder.getStats();
+        // Try for GLES 3 to match CameraCaptureActivity's context; falls back to GLES 2.
+        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
         mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
         mInputWindowSurface.makeCurrent();
 
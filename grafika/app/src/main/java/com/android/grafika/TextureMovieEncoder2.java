@@ -53,6 +53,7 @@ public class TextureMovieEncoder2 implements Runnable {
     private VideoEncoderCore mVideoEncoder;
 
     // ----- accessed by multiple threads -----
+    private final EncoderStats mStats;
     private volatile EncoderHandler mHandler;
 
     private Object mReadyFence = new Object();      // guards ready/running
@@ -72,6 +73,7 @@ public class TextureMovieEncoder2 implements Runnable {
         Log.d(TAG, "Encoder: startRecording()");
 
         mVideoEncoder = encoderCore;
+        mStats = encoderCore.getStats();
 
         synchronized (mReadyFence) {
             if (mRunning) {
@@ -130,6 +132,24 @@ public class TextureMovieEncoder2 implements Runnable {
         mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE));
     }
 
+    /**
+     * Tells the video recorder that a frame was just submitted to the encoder's input
+     * surface.  Call right after swapBuffers(), from the thread that called it.
+     *
+     * @param presentationTimeNsec The time stamp passed to setPresentationTime().
+     */
+    public void frameSubmitted(long presentationTimeNsec) {
+        mStats.frameSubmitted(presentationTimeNsec);
+    }
+
+    /**
+     * Returns the encoder statistics.  Safe to call from any thread, during or after
+     * recording.
+     */
+    public EncoderStats getStats() {
+        return mStats;
+    }
+
     /**
      * Encoder thread entry point.  Establishes Looper/Handler and waits for messages.
      * <p>
@@ -203,6 +223,7 @@ public class TextureMovieEncoder2 implements Runnable {
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
         mVideoEncoder.drainEncoder(true);
+        Log.d(TAG, mStats.toString());
         mVideoEncoder.release();
     }
 }
@@ -33,6 +33,7 @@ import android.graphics.Bitmap;
 
 import com.android.grafika.gles.Drawable2d;
 import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.GlState;
 import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.OffscreenSurface;
 import com.android.grafika.gles.Sprite2d;
@@ -361,7 +362,7 @@ public class TextureUploadActivity extends Activity {
                         " trimmed=" + trimmedTime);
                 totalTime += trimmedTime;
 
-                GLES20.glDeleteTextures(TEX_PER_ITER, textureHandles, 0);
+                GlState.get().deleteTextures(TEX_PER_ITER, textureHandles, 0);
                 eglSurface.swapBuffers();
             }
 
@@ -34,8 +34,14 @@ import java.nio.ByteBuffer;
  * time stamp, and always call drainEncoder() before swapBuffers() to ensure that the
  * producer side doesn't get backed up.
  * <p>
+ * The output can be written with MediaMuxer, or as a fragmented MP4 with
+ * {@link FragmentedMp4Writer}, which flushes as it goes and keeps memory use constant.
+ * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * drainEncoder() feeds an {@link EncoderStats}.  The producer should report each frame it
+ * submits with getStats().frameSubmitted(), so the stats can compute latency.
  */
 public class VideoEncoderCore {
     private static final String TAG = MainActivity.TAG;
@@ -48,10 +54,12 @@ public class VideoEncoderCore {
 
     private Surface mInputSurface;
     private MediaMuxer mMuxer;
+    private FragmentedMp4Writer mFragmentedWriter;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    private final EncoderStats mStats = new EncoderStats("VideoEncoderCore");
 
 
     /**
@@ -59,6 +67,17 @@ public class VideoEncoderCore {
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
+        this(width, height, bitRate, outputFile, false);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param fragmented If set, write a fragmented MP4 with FragmentedMp4Writer instead of
+     *     using MediaMuxer.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            boolean fragmented) throws IOException {
         mBufferInfo = new MediaCodec.BufferInfo();
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
@@ -85,8 +104,12 @@ public class VideoEncoderCore {
         //
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        if (fragmented) {
+            mFragmentedWriter = new FragmentedMp4Writer(outputFile);
+        } else {
+            mMuxer = new MediaMuxer(outputFile.toString(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        }
 
         mTrackIndex = -1;
         mMuxerStarted = false;
@@ -99,6 +122,13 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    /**
+     * Returns the encoder statistics.  Safe to call from any thread.
+     */
+    public EncoderStats getStats() {
+        return mStats;
+    }
+
     /**
      * Releases encoder resources.
      */
@@ -116,6 +146,17 @@ public class VideoEncoderCore {
             mMuxer.release();
             mMuxer = null;
         }
+        if (mFragmentedWriter != null) {
+            if (mMuxerStarted) {
+                try {
+                    mFragmentedWriter.stop();
+                } catch (IOException ioe) {
+                    Log.w(TAG, "fragmented writer stop failed", ioe);
+                }
+            }
+            mFragmentedWriter.release();
+            mFragmentedWriter = null;
+        }
     }
 
     /**
@@ -137,9 +178,11 @@ public class VideoEncoderCore {
             mEncoder.signalEndOfInputStream();
         }
 
+        mStats.drainStarted();
         ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
         while (true) {
             int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            mStats.dequeueResult(encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
                 if (!endOfStream) {
@@ -159,8 +202,17 @@ public class VideoEncoderCore {
                 Log.d(TAG, "encoder output format changed: " + newFormat);
 
                 // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
+                if (mFragmentedWriter != null) {
+                    mTrackIndex = mFragmentedWriter.addTrack(newFormat);
+                    try {
+                        mFragmentedWriter.start();
+                    } catch (IOException ioe) {
+                        throw new RuntimeException("fragmented writer start failed", ioe);
+                    }
+                } else {
+                    mTrackIndex = mMuxer.addTrack(newFormat);
+                    mMuxer.start();
+                }
                 mMuxerStarted = true;
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
@@ -189,7 +241,17 @@ public class VideoEncoderCore {
                     encodedData.position(mBufferInfo.offset);
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    if (mFragmentedWriter != null) {
+                        try {
+                            mFragmentedWriter.writeSampleData(mTrackIndex, encodedData,
+                                    mBufferInfo);
+                        } catch (IOException ioe) {
+                            throw new RuntimeException("fragmented write failed", ioe);
+                        }
+                    } else {
+                        mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    }
+                    mStats.frameEncoded(mBufferInfo.presentationTimeUs, mBufferInfo.size);
                     if (VERBOSE) {
                         Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
                                 mBufferInfo.presentationTimeUs);
@@ -208,5 +270,6 @@ public class VideoEncoderCore {
                 }
             }
         }
+        mStats.drainFinished();
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Movie player callback that paces frames against the display's vsync.
+ * <p>
+ * Unlike SpeedControlCallback, which sleeps from one frame to the next, this hands each
+ * frame to a {@link FrameScheduler}.  Frames are assigned to vsync slots computed from a
+ * fixed anchor, so there's no drift, and a frame that would miss its slot (or would land on
+ * the same slot as the previous one) is dropped rather than shown late.
+ * <p>
+ * Vsync timing comes from Choreographer.  The object must be created on a thread with a
+ * Looper (normally the UI thread); Choreographer callbacks arrive there between
+ * {@link #start()} and {@link #stop()}.  The FrameCallback overrides are only called from
+ * the MoviePlayer, on its decode thread.
+ */
+public class VsyncFrameCallback implements MoviePlayer.FrameCallback,
+        Choreographer.FrameCallback {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final Choreographer mChoreographer;
+    private final FrameScheduler mScheduler;
+    private final long mRefreshPeriodNsec;
+    private final long mLatchLeadNsec;
+    private PlaybackStats mStats;
+    private boolean mRunning;           // UI thread only
+
+    /**
+     * @param refreshRate The display refresh rate, from Display.getRefreshRate().
+     */
+    public VsyncFrameCallback(float refreshRate) {
+        mChoreographer = Choreographer.getInstance();
+        mScheduler = new FrameScheduler(FrameScheduler.SYSTEM_CLOCK);
+        mRefreshPeriodNsec = (long) (1000000000L / refreshRate);
+
+        // Release frames half a refresh ahead of their vsync, which keeps the release
+        // times well away from the slot boundaries, where a little jitter would move a
+        // frame into the wrong slot.
+        mLatchLeadNsec = mRefreshPeriodNsec / 2;
+        mScheduler.setLatchLeadNsec(mLatchLeadNsec);
+    }
+
+    /**
+     * Sets the stats object that presentation lateness is reported to.  Must be called
+     * before playback thread starts.
+     */
+    public void setPlaybackStats(PlaybackStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Sets a fixed playback rate.  If set, this will ignore the presentation time stamp
+     * in the video file.  Must be called before playback thread starts.
+     */
+    public void setFixedPlaybackRate(int fps) {
+        mScheduler.setFixedPlaybackRate(fps);
+    }
+
+    /**
+     * Starts tracking vsync.  Call from the thread that created the object.
+     */
+    public void start() {
+        if (!mRunning) {
+            mRunning = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Stops tracking vsync.  Call from the thread that created the object.
+     */
+    public void stop() {
+        if (mRunning) {
+            mRunning = false;
+            mChoreographer.removeFrameCallback(this);
+            Log.d(TAG, mScheduler.toString());
+        }
+    }
+
+    /**
+     * Returns the scheduler, for its statistics.
+     */
+    public FrameScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    @Override   // Choreographer.FrameCallback; runs on the Looper thread
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        mScheduler.setVsync(frameTimeNanos, mRefreshPeriodNsec);
+        mChoreographer.postFrameCallback(this);
+    }
+
+    // runs on decode thread
+    @Override
+    public boolean preRender(long presentationTimeUsec) {
+        long slotNsec = mScheduler.schedule(presentationTimeUsec);
+        if (mStats != null && slotNsec != FrameScheduler.DROP) {
+            // How far past its release time the frame is going out.
+            mStats.recordLateness((System.nanoTime() - (slotNsec - mLatchLeadNsec)) / 1000);
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "pts=" + presentationTimeUsec + " slot=" +
+                    (slotNsec == FrameScheduler.DROP ? "drop" : Long.toString(slotNsec)));
+        }
+        return slotNsec != FrameScheduler.DROP;
+    }
+
+    // runs on decode thread
+    @Override public void postRender() {}
+
+    @Override
+    public void loopReset() {
+        mScheduler.loopReset();
+    }
+}
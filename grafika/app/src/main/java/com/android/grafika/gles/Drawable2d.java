@@ -98,6 +98,10 @@ public class Drawable2d {
     private int mTexCoordStride;
     private Prefab mPrefab;
 
+    // Buffer objects holding the same data, or 0 to draw from the client-side arrays.
+    private int mVertexBuffer;
+    private int mTexCoordBuffer;
+
     /**
      * Enum values for constructor.
      */
@@ -140,6 +144,49 @@ public class Drawable2d {
         mPrefab = shape;
     }
 
+    /**
+     * Switches between drawing from client-side arrays and drawing from buffer objects.
+     * <p>
+     * Client-side arrays are copied out of the FloatBuffer by the driver on every draw.  With
+     * buffers, the shape is uploaded to the GPU once and shared by every drawable of that
+     * shape.  The arrays stay available either way (SpriteBatch reads them, for one), so
+     * the two modes can be swapped freely for comparison.
+     * <p>
+     * Must be called with the buffers' EGL context current.
+     *
+     * @param buffers Shared prefab buffers, or null to go back to client-side arrays.
+     */
+    public void setBuffers(PrefabBuffers buffers) {
+        if (buffers == null) {
+            mVertexBuffer = mTexCoordBuffer = 0;
+        } else {
+            mVertexBuffer = buffers.getVertexBuffer(mPrefab, mVertexArray);
+            mTexCoordBuffer = buffers.getTexCoordBuffer(mPrefab, mTexCoordArray);
+        }
+    }
+
+    /**
+     * Returns true if the drawable should be drawn from buffer objects.
+     */
+    public boolean usesBuffers() {
+        return mVertexBuffer != 0;
+    }
+
+    /**
+     * Returns the buffer object with the vertices, or 0 if we're using client-side arrays.
+     */
+    public int getVertexBuffer() {
+        return mVertexBuffer;
+    }
+
+    /**
+     * Returns the buffer object with the texture coordinates, or 0 if we're using
+     * client-side arrays.
+     */
+    public int getTexCoordBuffer() {
+        return mTexCoordBuffer;
+    }
+
     /**
      * Returns the array of vertices.
      * <p>
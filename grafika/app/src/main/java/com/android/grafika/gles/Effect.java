@@ -0,0 +1,412 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A per-pixel image effect that can be fused with others into one fragment shader.  See
+ * {@link EffectChain}.
+ * <p>
+ * Each effect contributes a GLSL function "vec4 effectN(vec2 tc)" that returns its output
+ * color at texture coordinate tc, computed from "effect(N-1)" -- the output of the previous
+ * effect, or the source texture for the first one.  Point effects call it once at tc; the
+ * convolution calls it at each of its taps.
+ * <p>
+ * The generated code depends only on the kind of effect, never on its parameters, which
+ * are passed as uniforms.  Two chains with the same kinds of effects in the same order
+ * share a program.
+ */
+public abstract class Effect {
+    /**
+     * Returns a short name for the kind of effect.  Chains with the same sequence of
+     * signatures generate the same shader.
+     */
+    public abstract String getSignature();
+
+    /**
+     * Appends the uniform declarations and the function for this effect.
+     *
+     * @param index The effect's position in the chain, starting at 1.  Uniforms are suffixed
+     *        with it so each effect gets its own.
+     */
+    abstract void appendShader(StringBuilder sb, int index);
+
+    /**
+     * Returns the names of the uniforms, without the index suffix.
+     */
+    abstract String[] getUniformNames();
+
+    /**
+     * Sets the uniforms.  The program is in use.
+     *
+     * @param locations Locations of the uniforms named by getUniformNames(), in order.
+     * @param textureWidth Width of the source texture.
+     * @param textureHeight Height of the source texture.
+     * @param textureUnit First texture unit this effect may use, if it needs any.
+     */
+    abstract void setUniforms(GlState state, int[] locations, int textureWidth,
+            int textureHeight, int textureUnit);
+
+    /**
+     * Returns the number of texture units the effect needs, beyond the source's.
+     */
+    int getTextureCount() {
+        return 0;
+    }
+
+    /**
+     * Appends the opening of an effect function that fetches the previous color at tc.
+     */
+    static void appendPointHeader(StringBuilder sb, int index) {
+        sb.append("vec4 effect").append(index).append("(vec2 tc) {\n");
+        sb.append("    vec4 c = effect").append(index - 1).append("(tc);\n");
+    }
+
+
+    /**
+     * Transforms each color by a 4x4 matrix and adds an offset.  Covers black & white,
+     * sepia, saturation, channel swaps, brightness, and so on.
+     */
+    public static class ColorMatrix extends Effect {
+        private final float[] mMatrix = new float[16];
+        private final float[] mOffset = new float[4];
+
+        /**
+         * @param matrix 4x4 matrix, column-major (as for glUniformMatrix4fv), applied to
+         *        (r, g, b, a).
+         * @param offset Added to the result.
+         */
+        public ColorMatrix(float[] matrix, float[] offset) {
+            set(matrix, offset);
+        }
+
+        /**
+         * Returns a matrix that converts to gray with the same weights as
+         * Texture2dProgram's TEXTURE_EXT_BW, with alpha 1.
+         */
+        public static ColorMatrix blackWhite() {
+            return new ColorMatrix(new float[] {
+                    0.3f, 0.3f, 0.3f, 0f,
+                    0.59f, 0.59f, 0.59f, 0f,
+                    0.11f, 0.11f, 0.11f, 0f,
+                    0f, 0f, 0f, 0f },
+                    new float[] { 0f, 0f, 0f, 1f });
+        }
+
+        /**
+         * Returns the usual sepia-tone matrix.
+         */
+        public static ColorMatrix sepia() {
+            return new ColorMatrix(new float[] {
+                    0.393f, 0.349f, 0.272f, 0f,
+                    0.769f, 0.686f, 0.534f, 0f,
+                    0.189f, 0.168f, 0.131f, 0f,
+                    0f, 0f, 0f, 1f },
+                    new float[] { 0f, 0f, 0f, 0f });
+        }
+
+        /**
+         * Changes the matrix and offset.
+         */
+        public void set(float[] matrix, float[] offset) {
+            System.arraycopy(matrix, 0, mMatrix, 0, 16);
+            System.arraycopy(offset, 0, mOffset, 0, 4);
+        }
+
+        @Override
+        public String getSignature() {
+            return "matrix";
+        }
+
+        @Override
+        void appendShader(StringBuilder sb, int index) {
+            sb.append("uniform mat4 uColorMatrix").append(index).append(";\n");
+            sb.append("uniform vec4 uColorOffset").append(index).append(";\n");
+            appendPointHeader(sb, index);
+            sb.append("    return uColorMatrix").append(index).append(" * c + uColorOffset")
+                    .append(index).append(";\n");
+            sb.append("}\n");
+        }
+
+        @Override
+        String[] getUniformNames() {
+            return new String[] { "uColorMatrix", "uColorOffset" };
+        }
+
+        @Override
+        void setUniforms(GlState state, int[] locations, int textureWidth,
+                int textureHeight, int textureUnit) {
+            state.uniformMatrix4fv(locations[0], mMatrix, 0);
+            state.uniform4fv(locations[1], 1, mOffset, 0);
+        }
+    }
+
+
+    /**
+     * Maps colors through a 64x64x64 lookup table, stored as a 512x512 texture of 8x8 tiles
+     * (blue selects the tile, red and green the texel within it).  Blue is interpolated
+     * between tiles in the shader, red and green by the texture's linear filtering.
+     */
+    public static class Lut extends Effect {
+        public static final int SIZE = 512;
+        private static final int LEVELS = 64;
+        private static final int TILES = 8;
+
+        private int mTexture;
+        private float mIntensity;
+
+        /**
+         * @param texture LUT texture, e.g. from {@link #createCurvesTexture}.
+         * @param intensity How much of the LUT's output to use, 0 to 1.
+         */
+        public Lut(int texture, float intensity) {
+            mTexture = texture;
+            mIntensity = intensity;
+        }
+
+        public void setIntensity(float intensity) {
+            mIntensity = intensity;
+        }
+
+        /**
+         * Creates a LUT texture that applies a tone curve to each channel.  Each curve is a
+         * list of output values for evenly-spaced inputs from 0 to 1, interpolated linearly;
+         * { 0, 1 } is the identity.
+         */
+        public static int createCurvesTexture(float[] red, float[] green, float[] blue) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(SIZE * SIZE * 4);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            for (int y = 0; y < SIZE; y++) {
+                for (int x = 0; x < SIZE; x++) {
+                    int b = (y / LEVELS) * TILES + x / LEVELS;
+                    int r = x % LEVELS;
+                    int g = y % LEVELS;
+                    buf.put(toByte(evalCurve(red, r / (LEVELS - 1.0f))));
+                    buf.put(toByte(evalCurve(green, g / (LEVELS - 1.0f))));
+                    buf.put(toByte(evalCurve(blue, b / (LEVELS - 1.0f))));
+                    buf.put((byte) 0xff);
+                }
+            }
+            buf.position(0);
+            return GlUtil.createImageTexture(buf, SIZE, SIZE, GLES20.GL_RGBA);
+        }
+
+        private static float evalCurve(float[] curve, float value) {
+            float pos = value * (curve.length - 1);
+            int i = Math.min((int) pos, curve.length - 2);
+            float frac = pos - i;
+            return curve[i] + (curve[i + 1] - curve[i]) * frac;
+        }
+
+        private static byte toByte(float value) {
+            return (byte) Math.round(Math.max(0f, Math.min(1f, value)) * 255);
+        }
+
+        @Override
+        public String getSignature() {
+            return "lut";
+        }
+
+        @Override
+        void appendShader(StringBuilder sb, int index) {
+            sb.append("uniform sampler2D sLut").append(index).append(";\n");
+            sb.append("uniform float uLutIntensity").append(index).append(";\n");
+            appendPointHeader(sb, index);
+            sb.append("    vec4 k = clamp(c, 0.0, 1.0);\n");
+            sb.append("    float blue = k.b * 63.0;\n");
+            sb.append("    vec2 tile1;\n");
+            sb.append("    tile1.y = floor(floor(blue) / 8.0);\n");
+            sb.append("    tile1.x = floor(blue) - tile1.y * 8.0;\n");
+            sb.append("    vec2 tile2;\n");
+            sb.append("    tile2.y = floor(ceil(blue) / 8.0);\n");
+            sb.append("    tile2.x = ceil(blue) - tile2.y * 8.0;\n");
+            sb.append("    vec2 rg = k.rg * (63.0 / 512.0) + 0.5 / 512.0;\n");
+            sb.append("    vec4 lut1 = texture2D(sLut").append(index)
+                    .append(", tile1 * 0.125 + rg);\n");
+            sb.append("    vec4 lut2 = texture2D(sLut").append(index)
+                    .append(", tile2 * 0.125 + rg);\n");
+            sb.append("    vec3 mapped = mix(lut1.rgb, lut2.rgb, fract(blue));\n");
+            sb.append("    return vec4(mix(c.rgb, mapped, uLutIntensity").append(index)
+                    .append("), c.a);\n");
+            sb.append("}\n");
+        }
+
+        @Override
+        String[] getUniformNames() {
+            return new String[] { "sLut", "uLutIntensity" };
+        }
+
+        @Override
+        int getTextureCount() {
+            return 1;
+        }
+
+        @Override
+        void setUniforms(GlState state, int[] locations, int textureWidth,
+                int textureHeight, int textureUnit) {
+            state.activeTexture(GLES20.GL_TEXTURE0 + textureUnit);
+            state.bindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+            state.uniform1i(locations[0], textureUnit);
+            state.uniform1f(locations[1], mIntensity);
+        }
+    }
+
+
+    /**
+     * Darkens the image away from a center point.
+     */
+    public static class Vignette extends Effect {
+        private final float[] mCenter = new float[] { 0.5f, 0.5f };
+        private final float[] mRange = new float[2];
+        private float mAmount;
+
+        /**
+         * @param inner Distance from the center, in texture coordinates, where darkening
+         *        starts.
+         * @param outer Distance where it's at full strength.
+         * @param amount How dark the edges get, 0 to 1.
+         */
+        public Vignette(float inner, float outer, float amount) {
+            mRange[0] = inner;
+            mRange[1] = outer;
+            mAmount = amount;
+        }
+
+        public void setCenter(float x, float y) {
+            mCenter[0] = x;
+            mCenter[1] = y;
+        }
+
+        @Override
+        public String getSignature() {
+            return "vignette";
+        }
+
+        @Override
+        void appendShader(StringBuilder sb, int index) {
+            sb.append("uniform vec2 uVignetteCenter").append(index).append(";\n");
+            sb.append("uniform vec2 uVignetteRange").append(index).append(";\n");
+            sb.append("uniform float uVignetteAmount").append(index).append(";\n");
+            appendPointHeader(sb, index);
+            sb.append("    float d = distance(tc, uVignetteCenter").append(index).append(");\n");
+            sb.append("    float v = smoothstep(uVignetteRange").append(index)
+                    .append(".x, uVignetteRange").append(index).append(".y, d);\n");
+            sb.append("    return vec4(c.rgb * (1.0 - v * uVignetteAmount").append(index)
+                    .append("), c.a);\n");
+            sb.append("}\n");
+        }
+
+        @Override
+        String[] getUniformNames() {
+            return new String[] { "uVignetteCenter", "uVignetteRange", "uVignetteAmount" };
+        }
+
+        @Override
+        void setUniforms(GlState state, int[] locations, int textureWidth,
+                int textureHeight, int textureUnit) {
+            state.uniform2fv(locations[0], 1, mCenter, 0);
+            state.uniform2fv(locations[1], 1, mRange, 0);
+            state.uniform1f(locations[2], mAmount);
+        }
+    }
+
+
+    /**
+     * 3x3 convolution, like Texture2dProgram's TEXTURE_EXT_FILT (without the split-screen
+     * view).
+     * <p>
+     * The previous effects are evaluated at all nine taps, so their cost is multiplied by
+     * nine.  That's usually still cheaper than a separate full-screen pass, but two
+     * convolutions in one chain means 81 fetches per pixel; split such chains up.
+     */
+    public static class Convolution extends Effect {
+        public static final int KERNEL_SIZE = 9;
+
+        private final float[] mKernel = new float[KERNEL_SIZE];
+        private float mColorAdjust;
+        private final float[] mTexelSize = new float[2];
+
+        /**
+         * @param kernel Filter values, row by row from the top left; see
+         *        Texture2dProgram.setKernel().
+         * @param colorAdj Added to the color channels of the result.
+         */
+        public Convolution(float[] kernel, float colorAdj) {
+            setKernel(kernel, colorAdj);
+        }
+
+        public void setKernel(float[] kernel, float colorAdj) {
+            if (kernel.length != KERNEL_SIZE) {
+                throw new IllegalArgumentException("Kernel size is " + kernel.length +
+                        " vs. " + KERNEL_SIZE);
+            }
+            System.arraycopy(kernel, 0, mKernel, 0, KERNEL_SIZE);
+            mColorAdjust = colorAdj;
+        }
+
+        @Override
+        public String getSignature() {
+            return "conv3x3";
+        }
+
+        @Override
+        void appendShader(StringBuilder sb, int index) {
+            // The kernel is uploaded row-major into a mat3, so uKernel[row][col].
+            String kernel = "uKernel" + index;
+            String texel = "uTexelSize" + index;
+            String prev = "effect" + (index - 1);
+            sb.append("uniform mat3 ").append(kernel).append(";\n");
+            sb.append("uniform vec2 ").append(texel).append(";\n");
+            sb.append("uniform float uColorAdjust").append(index).append(";\n");
+            sb.append("vec4 effect").append(index).append("(vec2 tc) {\n");
+            sb.append("    vec4 c = ").append(prev).append("(tc);\n");
+            sb.append("    vec3 sum = c.rgb * ").append(kernel).append("[1][1];\n");
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    if (row == 1 && col == 1) {
+                        continue;
+                    }
+                    sb.append("    sum += ").append(prev).append("(tc + ").append(texel)
+                            .append(" * vec2(").append(col - 1).append(".0, ")
+                            .append(row - 1).append(".0)).rgb * ").append(kernel)
+                            .append('[').append(row).append("][").append(col).append("];\n");
+                }
+            }
+            sb.append("    return vec4(sum + uColorAdjust").append(index).append(", c.a);\n");
+            sb.append("}\n");
+        }
+
+        @Override
+        String[] getUniformNames() {
+            return new String[] { "uKernel", "uTexelSize", "uColorAdjust" };
+        }
+
+        @Override
+        void setUniforms(GlState state, int[] locations, int textureWidth,
+                int textureHeight, int textureUnit) {
+            mTexelSize[0] = 1.0f / textureWidth;
+            mTexelSize[1] = 1.0f / textureHeight;
+            state.uniformMatrix3fv(locations[0], mKernel, 0);
+            state.uniform2fv(locations[1], 1, mTexelSize, 0);
+            state.uniform1f(locations[2], mColorAdjust);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * A chain of full-screen {@link FilterPass}es.
+ * <p>
+ * Each pass reads the previous pass's output and renders into a framebuffer from a
+ * {@link FramebufferPool}; as soon as a pass is done with its input, the input goes back to
+ * the pool, so a long chain only needs a few textures (a ping-pong pair, plus one per
+ * distinct size).  The last pass renders into the default framebuffer.
+ * <p>
+ * Large blurs are built from separable passes, optionally at reduced resolution: halve the
+ * image a few times, blur the small one, and scale back up.  Each halving doubles the
+ * effective radius and quarters the number of pixels the blur has to touch.
+ * <p>
+ * If the context supports GL_EXT_disjoint_timer_query, the GPU time of each pass is
+ * measured; see {@link #getTimingReport()}.
+ * <p>
+ * Must be used with the EGL context current.
+ */
+public class FilterGraph {
+    private static final String TAG = GlUtil.TAG;
+
+    private final ArrayList<FilterPass> mPasses = new ArrayList<FilterPass>();
+    private final FramebufferPool mPool;
+    private final boolean mOwnsPool;
+    private GpuTimer mTimer;
+    private boolean mTimerChecked;
+    private int mFrameCount;
+
+    /**
+     * Creates an empty graph with its own framebuffer pool.
+     */
+    public FilterGraph() {
+        this(new FramebufferPool(), true);
+    }
+
+    /**
+     * Creates an empty graph that takes framebuffers from a shared pool.  The pool is not
+     * released with the graph.
+     */
+    public FilterGraph(FramebufferPool pool) {
+        this(pool, false);
+    }
+
+    private FilterGraph(FramebufferPool pool, boolean ownsPool) {
+        mPool = pool;
+        mOwnsPool = ownsPool;
+    }
+
+    /**
+     * Appends a pass.  Passes can't be added after the first draw.
+     */
+    public FilterGraph addPass(FilterPass pass) {
+        if (mTimerChecked) {
+            throw new IllegalStateException("Graph already in use");
+        }
+        mPasses.add(pass);
+        return this;
+    }
+
+    /**
+     * Appends a horizontal and a vertical Gaussian pass.
+     *
+     * @param radius Kernel radius, in texels at the current resolution.
+     */
+    public FilterGraph addGaussianBlur(int radius) {
+        float sigma = Math.max(radius / 3.0f, 1.0f);
+        float[] weights = SeparableFilterPass.gaussianWeights(radius, sigma);
+        addPass(new SeparableFilterPass("blurH" + radius, weights, true));
+        addPass(new SeparableFilterPass("blurV" + radius, weights, false));
+        return this;
+    }
+
+    /**
+     * Appends a downsample-blur-upsample pyramid: the image is halved "levels" times,
+     * blurred, and doubled back.  The effective radius is about radius * 2^levels texels.
+     */
+    public FilterGraph addPyramidBlur(int levels, int radius) {
+        for (int i = 0; i < levels; i++) {
+            addPass(new FilterPass("down" + (i + 1), 0.5f));
+        }
+        addGaussianBlur(radius);
+        for (int i = levels; i > 0; i--) {
+            addPass(new FilterPass("up" + i, 2.0f));
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of passes.
+     */
+    public int getPassCount() {
+        return mPasses.size();
+    }
+
+    /**
+     * Runs the passes.  The last one draws into framebuffer 0, with the given viewport.
+     *
+     * @param textureId Source texture.
+     * @param textureTarget GL_TEXTURE_2D or GL_TEXTURE_EXTERNAL_OES.
+     * @param texMatrix Texture matrix for the source, e.g. from SurfaceTexture.  Later passes
+     *        use the identity.
+     * @param width Width of the source texture.
+     * @param height Height of the source texture.
+     * @param outWidth Width of the output viewport.
+     * @param outHeight Height of the output viewport.
+     */
+    public void draw(int textureId, int textureTarget, float[] texMatrix, int width,
+            int height, int outWidth, int outHeight) {
+        if (mPasses.isEmpty()) {
+            throw new IllegalStateException("No passes");
+        }
+        if (!mTimerChecked) {
+            mTimerChecked = true;
+            if (GpuTimer.isSupported()) {
+                mTimer = new GpuTimer(mPasses.size());
+            } else {
+                Log.d(TAG, "FilterGraph: GPU timer queries not available");
+            }
+        }
+        if (mTimer != null) {
+            mTimer.poll();
+        }
+
+        GlState state = GlState.get();
+        FramebufferPool.Framebuffer input = null;
+        int lastPass = mPasses.size() - 1;
+        for (int i = 0; i <= lastPass; i++) {
+            FilterPass pass = mPasses.get(i);
+            FramebufferPool.Framebuffer output = null;
+            if (i == lastPass) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                GLES20.glViewport(0, 0, outWidth, outHeight);
+            } else {
+                output = mPool.acquire(pass.getOutputSize(width), pass.getOutputSize(height));
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, output.getFramebuffer());
+                GLES20.glViewport(0, 0, output.getWidth(), output.getHeight());
+            }
+
+            if (mTimer != null) {
+                mTimer.begin(i);
+            }
+            pass.draw(state, textureId, textureTarget, texMatrix, width, height);
+            if (mTimer != null) {
+                mTimer.end();
+            }
+
+            // The input is no longer needed.  The GPU may not have read it yet, but GL
+            // orders the commands for us, so the next pass can render into it right away.
+            if (input != null) {
+                mPool.recycle(input);
+            }
+            input = output;
+            if (output != null) {
+                textureId = output.getTexture();
+                textureTarget = GLES20.GL_TEXTURE_2D;
+                texMatrix = GlUtil.IDENTITY_MATRIX;
+                width = output.getWidth();
+                height = output.getHeight();
+            }
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * Returns the average GPU time of each pass since the last call, as a human-readable
+     * string, or null if timer queries aren't available.  Clears the averages.
+     */
+    public String getTimingReport() {
+        if (mTimer == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        long totalNsec = 0;
+        for (int i = 0; i < mPasses.size(); i++) {
+            long nsec = mTimer.getAverageNsec(i);
+            sb.append(mPasses.get(i).getName()).append('=');
+            if (nsec < 0) {
+                sb.append('?');
+            } else {
+                sb.append(String.format("%.3f", nsec / 1000000.0));
+                totalNsec += nsec;
+            }
+            sb.append(' ');
+        }
+        sb.append("total=").append(String.format("%.3f", totalNsec / 1000000.0))
+                .append(" ms over ").append(mFrameCount).append(" frames");
+        if (mTimer.getSkippedCount() != 0) {
+            sb.append(" (").append(mTimer.getSkippedCount()).append(" skipped)");
+        }
+        mTimer.reset();
+        mFrameCount = 0;
+        return sb.toString();
+    }
+
+    /**
+     * Releases the passes, the timer, and the pool (if we created it).
+     */
+    public void release() {
+        for (FilterPass pass : mPasses) {
+            pass.release();
+        }
+        if (mTimer != null) {
+            mTimer.release();
+            mTimer = null;
+        }
+        if (mOwnsPool) {
+            mPool.release();
+        }
+    }
+}
@@ -47,11 +47,14 @@ public class FlatShadedProgram {
     private int muMVPMatrixLoc = -1;
     private int maPositionLoc = -1;
 
+    private final GlState mState;
+
 
     /**
      * Prepares the program in the current EGL context.
      */
     public FlatShadedProgram() {
+        mState = GlState.get();
         mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
         if (mProgramHandle == 0) {
             throw new RuntimeException("Unable to create program");
@@ -72,12 +75,12 @@ public class FlatShadedProgram {
      * Releases the program.
      */
     public void release() {
-        GLES20.glDeleteProgram(mProgramHandle);
+        mState.deleteProgram(mProgramHandle);
         mProgramHandle = -1;
     }
 
     /**
-     * Issues the draw call.  Does the full setup on every call.
+     * Issues the draw call.  State that's already set (see {@link GlState}) isn't set again.
      *
      * @param mvpMatrix The 4x4 projection matrix.
      * @param color A 4-element color vector.
@@ -91,34 +94,63 @@ public class FlatShadedProgram {
     public void draw(float[] mvpMatrix, float[] color, FloatBuffer vertexBuffer,
             int firstVertex, int vertexCount, int coordsPerVertex, int vertexStride) {
         GlUtil.checkGlError("draw start");
+        GlState state = mState;
+        prepareDraw(state, mvpMatrix, color);
 
-        // Select the program.
-        GLES20.glUseProgram(mProgramHandle);
-        GlUtil.checkGlError("glUseProgram");
+        // Connect vertexBuffer to "aPosition".
+        state.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        state.vertexAttribPointer(maPositionLoc, coordsPerVertex,
+            GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+        GlUtil.checkGlError("glVertexAttribPointer");
 
-        // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+        // Draw the rect.
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
+        GlUtil.checkGlError("glDrawArrays");
 
-        // Copy the color vector in.
-        GLES20.glUniform4fv(muColorLoc, 1, color, 0);
-        GlUtil.checkGlError("glUniform4fv ");
+        // Leave the program and vertex array in place for the next draw.
+    }
 
-        // Enable the "aPosition" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maPositionLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+    /**
+     * Issues the draw call, with the vertex data in a buffer object rather than a
+     * client-side array.  Otherwise the same as the other draw().
+     *
+     * @param vertexVbo Buffer object with vertex data, starting at offset 0.
+     */
+    public void draw(float[] mvpMatrix, float[] color, int vertexVbo,
+            int firstVertex, int vertexCount, int coordsPerVertex, int vertexStride) {
+        GlUtil.checkGlError("draw start");
+        GlState state = mState;
+        prepareDraw(state, mvpMatrix, color);
 
-        // Connect vertexBuffer to "aPosition".
-        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
-            GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+        // Connect the buffer to "aPosition".
+        state.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexVbo);
+        state.vertexAttribPointer(maPositionLoc, coordsPerVertex,
+                GLES20.GL_FLOAT, false, vertexStride, 0);
         GlUtil.checkGlError("glVertexAttribPointer");
 
         // Draw the rect.
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
         GlUtil.checkGlError("glDrawArrays");
+    }
 
-        // Done -- disable vertex array and program.
-        GLES20.glDisableVertexAttribArray(maPositionLoc);
-        GLES20.glUseProgram(0);
+    /**
+     * Sets up everything but the vertex data.
+     */
+    private void prepareDraw(GlState state, float[] mvpMatrix, float[] color) {
+        // Select the program.
+        state.useProgram(mProgramHandle);
+        GlUtil.checkGlError("glUseProgram");
+
+        // Copy the model / view / projection matrix over.
+        state.uniformMatrix4fv(muMVPMatrixLoc, mvpMatrix, 0);
+        GlUtil.checkGlError("glUniformMatrix4fv");
+
+        // Copy the color vector in.
+        state.uniform4fv(muColorLoc, 1, color, 0);
+        GlUtil.checkGlError("glUniform4fv ");
+
+        // Enable the "aPosition" vertex attribute, and only that one.
+        state.setEnabledAttribs(1 << maPositionLoc);
+        GlUtil.checkGlError("glEnableVertexAttribArray");
     }
 }
@@ -70,6 +70,14 @@ public class FullFrameRect {
         mProgram = program;
     }
 
+    /**
+     * Draws from buffer objects instead of client-side arrays.  Pass null to switch back.
+     * See {@link Drawable2d#setBuffers(PrefabBuffers)}.
+     */
+    public void setBuffers(PrefabBuffers buffers) {
+        mRectDrawable.setBuffers(buffers);
+    }
+
     /**
      * Creates a texture object suitable for use with drawFrame().
      */
@@ -82,10 +90,18 @@ public class FullFrameRect {
      */
     public void drawFrame(int textureId, float[] texMatrix) {
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
-        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
-                mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
-                mRectDrawable.getVertexStride(),
-                texMatrix, mRectDrawable.getTexCoordArray(), textureId,
-                mRectDrawable.getTexCoordStride());
+        if (mRectDrawable.usesBuffers()) {
+            mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexBuffer(), 0,
+                    mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
+                    mRectDrawable.getVertexStride(),
+                    texMatrix, mRectDrawable.getTexCoordBuffer(), textureId,
+                    mRectDrawable.getTexCoordStride());
+        } else {
+            mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
+                    mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
+                    mRectDrawable.getVertexStride(),
+                    texMatrix, mRectDrawable.getTexCoordArray(), textureId,
+                    mRectDrawable.getTexCoordStride());
+        }
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Fused effect passes for one EGL context, by chain signature.
+ * <p>
+ * Switching between effect chains shouldn't mean compiling a shader every time, so the
+ * passes (and their programs) are kept until release().  Chains that differ only in their
+ * parameters share an entry.
+ */
+public class FusedEffectCache {
+    private static final String TAG = GlUtil.TAG;
+
+    private final HashMap<String, FusedEffectPass> mPasses =
+            new HashMap<String, FusedEffectPass>();
+
+    /**
+     * Returns a pass that draws the chain, with the chain's current parameters.
+     */
+    public FusedEffectPass getPass(EffectChain chain) {
+        String signature = chain.getSignature();
+        FusedEffectPass pass = mPasses.get(signature);
+        if (pass == null) {
+            pass = new FusedEffectPass(chain);
+            mPasses.put(signature, pass);
+            Log.d(TAG, "FusedEffectCache: new pass for " + signature + " (" +
+                    mPasses.size() + " cached)");
+        } else {
+            pass.setChain(chain);
+        }
+        return pass;
+    }
+
+    /**
+     * Returns the number of cached passes.
+     */
+    public int size() {
+        return mPasses.size();
+    }
+
+    /**
+     * Releases all cached passes.
+     */
+    public void release() {
+        for (FusedEffectPass pass : mPasses.values()) {
+            pass.release();
+        }
+        mPasses.clear();
+    }
+}
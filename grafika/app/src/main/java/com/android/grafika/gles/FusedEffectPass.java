@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+
+import java.util.List;
+
+/**
+ * A FilterPass that draws an {@link EffectChain} with one generated shader.
+ * <p>
+ * The program depends only on the chain's signature.  The parameters come from whichever
+ * chain was last given to {@link #setChain(EffectChain)}, so one pass can serve every chain
+ * with the same signature.
+ */
+public class FusedEffectPass extends FilterPass {
+    private final String mSignature;
+    private final String mFragmentBody;
+    private EffectChain mChain;
+
+    // Uniform locations for 2D and external sources: [sourceType][effect][uniform].
+    private final int[][][] mLocations = new int[2][][];
+
+    public FusedEffectPass(EffectChain chain) {
+        super("fused(" + chain.getSignature() + ")", 1.0f);
+        mSignature = chain.getSignature();
+        mFragmentBody = chain.getFragmentBody();
+        mChain = chain;
+    }
+
+    /**
+     * Switches to another chain with the same signature.
+     */
+    public void setChain(EffectChain chain) {
+        if (!mSignature.equals(chain.getSignature())) {
+            throw new IllegalArgumentException("Chain " + chain + " doesn't match " +
+                    mSignature);
+        }
+        mChain = chain;
+    }
+
+    @Override
+    protected String getFragmentBody(int sourceType) {
+        return mFragmentBody;
+    }
+
+    @Override
+    protected void onProgramCreated(int sourceType, int program) {
+        List<Effect> effects = mChain.getEffects();
+        int[][] locations = new int[effects.size()][];
+        for (int i = 0; i < effects.size(); i++) {
+            String[] names = effects.get(i).getUniformNames();
+            locations[i] = new int[names.length];
+            for (int j = 0; j < names.length; j++) {
+                String name = names[j] + (i + 1);
+                locations[i][j] = GLES20.glGetUniformLocation(program, name);
+                GlUtil.checkLocation(locations[i][j], name);
+            }
+        }
+        mLocations[sourceType] = locations;
+    }
+
+    @Override
+    protected void setUniforms(GlState state, int sourceType, int inputWidth,
+            int inputHeight) {
+        // The source is on unit 0; effects that need textures get the ones after it.
+        List<Effect> effects = mChain.getEffects();
+        int textureUnit = 1;
+        for (int i = 0; i < effects.size(); i++) {
+            Effect effect = effects.get(i);
+            effect.setUniforms(state, mLocations[sourceType][i], inputWidth, inputHeight,
+                    textureUnit);
+            textureUnit += effect.getTextureCount();
+        }
+    }
+}
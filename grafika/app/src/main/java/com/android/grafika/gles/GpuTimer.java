@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Measures GPU time for sections of a frame with GL_EXT_disjoint_timer_query.
+ * <p>
+ * Each section has a small ring of GL_TIME_ELAPSED queries.  Results are collected a few
+ * frames after they were issued, when the GPU has caught up, so reading them never stalls.
+ * If a section's oldest query still isn't done when we want to reuse it, that frame just
+ * isn't timed.  Results spanning a "disjoint" event (e.g. a GPU frequency change) are thrown
+ * away, as the extension requires.
+ * <p>
+ * The Java bindings for the query calls are in GLES30, so this needs a GLES 3 context as
+ * well as the extension.  Check {@link #isSupported()} first.  Only one section can be
+ * active at a time.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class GpuTimer {
+    private static final String TAG = GlUtil.TAG;
+
+    // From GL_EXT_disjoint_timer_query; not in the GLES30 class.
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    // Queries per section.  Results usually arrive within 2-3 frames.
+    private static final int RING_SIZE = 4;
+
+    private final int mSectionCount;
+    private final int[] mQueries;           // [section * RING_SIZE + slot]
+    private final boolean[] mPending;
+    private final int[] mNextSlot;
+    private final long[] mTotalNsec;
+    private final int[] mSampleCount;
+    private final int[] mValues = new int[1];
+    private int mActiveSection = -1;
+    private int mSkipped;
+
+    /**
+     * Returns true if the current context has timer queries.
+     */
+    public static boolean isSupported() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        // "OpenGL ES N.M vendor-specific-info"
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES ") || version.length() < 11 ||
+                version.charAt(10) < '3') {
+            return false;
+        }
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return extensions != null &&
+                (" " + extensions + " ").contains(" GL_EXT_disjoint_timer_query ");
+    }
+
+    /**
+     * Creates the queries.  The context must be current, and isSupported() must be true.
+     *
+     * @param sectionCount Number of sections to time, indexed from 0.
+     */
+    public GpuTimer(int sectionCount) {
+        mSectionCount = sectionCount;
+        mQueries = new int[sectionCount * RING_SIZE];
+        mPending = new boolean[mQueries.length];
+        mNextSlot = new int[sectionCount];
+        mTotalNsec = new long[sectionCount];
+        mSampleCount = new int[sectionCount];
+
+        GLES30.glGenQueries(mQueries.length, mQueries, 0);
+        GlUtil.checkGlError("glGenQueries");
+
+        // Reading the disjoint flag clears it; start clean.
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mValues, 0);
+    }
+
+    /**
+     * Collects any results that have arrived.  Call once per frame, before the first section.
+     */
+    public void poll() {
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mValues, 0);
+        boolean disjoint = mValues[0] != 0;
+        if (disjoint) {
+            Log.d(TAG, "GpuTimer: disjoint, discarding pending results");
+        }
+
+        for (int i = 0; i < mQueries.length; i++) {
+            if (!mPending[i]) {
+                continue;
+            }
+            if (disjoint) {
+                mPending[i] = false;
+                continue;
+            }
+            GLES30.glGetQueryObjectuiv(mQueries[i], GLES30.GL_QUERY_RESULT_AVAILABLE,
+                    mValues, 0);
+            if (mValues[0] != 0) {
+                GLES30.glGetQueryObjectuiv(mQueries[i], GLES30.GL_QUERY_RESULT, mValues, 0);
+                int section = i / RING_SIZE;
+                mTotalNsec[section] += mValues[0] & 0xffffffffL;
+                mSampleCount[section]++;
+                mPending[i] = false;
+            }
+        }
+        GlUtil.checkGlError("GpuTimer poll");
+    }
+
+    /**
+     * Starts timing a section.  If all of the section's queries are still in flight, the
+     * section isn't timed this frame.
+     */
+    public void begin(int section) {
+        if (mActiveSection >= 0) {
+            throw new RuntimeException("Section " + mActiveSection + " still active");
+        }
+        int index = section * RING_SIZE + mNextSlot[section];
+        if (mPending[index]) {
+            mSkipped++;
+            return;
+        }
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[index]);
+        mPending[index] = true;
+        mNextSlot[section] = (mNextSlot[section] + 1) % RING_SIZE;
+        mActiveSection = section;
+    }
+
+    /**
+     * Stops timing the current section.
+     */
+    public void end() {
+        if (mActiveSection >= 0) {
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            mActiveSection = -1;
+        }
+    }
+
+    /**
+     * Returns the average GPU time for a section, in nanoseconds, or -1 if there are no
+     * results yet.
+     */
+    public long getAverageNsec(int section) {
+        if (mSampleCount[section] == 0) {
+            return -1;
+        }
+        return mTotalNsec[section] / mSampleCount[section];
+    }
+
+    /**
+     * Returns the number of times a section was skipped because its queries were busy.
+     */
+    public int getSkippedCount() {
+        return mSkipped;
+    }
+
+    /**
+     * Clears the averages.  Queries in flight still count toward the new ones.
+     */
+    public void reset() {
+        for (int i = 0; i < mSectionCount; i++) {
+            mTotalNsec[i] = 0;
+            mSampleCount[i] = 0;
+        }
+        mSkipped = 0;
+    }
+
+    /**
+     * Deletes the queries.
+     */
+    public void release() {
+        end();
+        GLES30.glDeleteQueries(mQueries.length, mQueries, 0);
+        GlUtil.checkGlError("glDeleteQueries");
+    }
+}
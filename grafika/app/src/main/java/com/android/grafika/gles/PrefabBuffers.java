@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Buffer objects holding the Drawable2d prefab shapes, for one EGL context.
+ * <p>
+ * Each shape's vertices and texture coordinates are uploaded with GL_STATIC_DRAW the first
+ * time a drawable asks for them, and from then on are shared by every drawable of that
+ * shape that was given this object.  See {@link Drawable2d#setBuffers(PrefabBuffers)}.
+ * <p>
+ * Must be used with the EGL context current.  Call release() when done, unless the context
+ * is about to be destroyed anyway.
+ */
+public class PrefabBuffers {
+    private static final String TAG = GlUtil.TAG;
+    private static final int SIZEOF_FLOAT = 4;
+
+    // Vertices and texture coordinates for each Prefab, by ordinal.  0 until uploaded.
+    private final int[] mBuffers = new int[Drawable2d.Prefab.values().length * 2];
+
+    /**
+     * Returns the buffer object with the shape's vertices, uploading them if necessary.
+     */
+    int getVertexBuffer(Drawable2d.Prefab shape, FloatBuffer data) {
+        return getBuffer(shape.ordinal() * 2, data);
+    }
+
+    /**
+     * Returns the buffer object with the shape's texture coordinates, uploading them if
+     * necessary.
+     */
+    int getTexCoordBuffer(Drawable2d.Prefab shape, FloatBuffer data) {
+        return getBuffer(shape.ordinal() * 2 + 1, data);
+    }
+
+    /**
+     * Deletes the buffer objects.  Drawables that were using them must go back to client-side
+     * arrays (setBuffers(null)) or be discarded.
+     */
+    public void release() {
+        GlState state = GlState.get();
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] != 0) {
+                state.deleteBuffers(1, mBuffers, i);
+                mBuffers[i] = 0;
+            }
+        }
+    }
+
+    private int getBuffer(int index, FloatBuffer data) {
+        if (mBuffers[index] == 0) {
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            GlUtil.checkGlError("glGenBuffers");
+
+            GlState.get().bindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+            data.position(0);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.capacity() * SIZEOF_FLOAT, data,
+                    GLES20.GL_STATIC_DRAW);
+            GlUtil.checkGlError("glBufferData");
+            mBuffers[index] = buffers[0];
+            Log.d(TAG, "Uploaded " + Drawable2d.Prefab.values()[index / 2] +
+                    (index % 2 == 0 ? " vertices" : " tex coords") + " to buffer " + buffers[0]);
+        }
+        return mBuffers[index];
+    }
+}
@@ -159,6 +159,20 @@ public class Sprite2d {
         mTextureId = textureId;
     }
 
+    /**
+     * Returns the texture, or -1 if none has been set.
+     */
+    public int getTexture() {
+        return mTextureId;
+    }
+
+    /**
+     * Returns the drawable that gives the sprite its shape.
+     */
+    public Drawable2d getDrawable() {
+        return mDrawable;
+    }
+
     /**
      * Returns the color.
      * <p>
@@ -175,9 +189,15 @@ public class Sprite2d {
         // Compute model/view/projection matrix.
         Matrix.multiplyMM(mScratchMatrix, 0, projectionMatrix, 0, getModelViewMatrix(), 0);
 
-        program.draw(mScratchMatrix, mColor, mDrawable.getVertexArray(), 0,
-                mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
-                mDrawable.getVertexStride());
+        if (mDrawable.usesBuffers()) {
+            program.draw(mScratchMatrix, mColor, mDrawable.getVertexBuffer(), 0,
+                    mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
+                    mDrawable.getVertexStride());
+        } else {
+            program.draw(mScratchMatrix, mColor, mDrawable.getVertexArray(), 0,
+                    mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
+                    mDrawable.getVertexStride());
+        }
     }
 
     /**
@@ -187,10 +207,17 @@ public class Sprite2d {
         // Compute model/view/projection matrix.
         Matrix.multiplyMM(mScratchMatrix, 0, projectionMatrix, 0, getModelViewMatrix(), 0);
 
-        program.draw(mScratchMatrix, mDrawable.getVertexArray(), 0,
-                mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
-                mDrawable.getVertexStride(), GlUtil.IDENTITY_MATRIX, mDrawable.getTexCoordArray(),
-                mTextureId, mDrawable.getTexCoordStride());
+        if (mDrawable.usesBuffers()) {
+            program.draw(mScratchMatrix, mDrawable.getVertexBuffer(), 0,
+                    mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
+                    mDrawable.getVertexStride(), GlUtil.IDENTITY_MATRIX,
+                    mDrawable.getTexCoordBuffer(), mTextureId, mDrawable.getTexCoordStride());
+        } else {
+            program.draw(mScratchMatrix, mDrawable.getVertexArray(), 0,
+                    mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
+                    mDrawable.getVertexStride(), GlUtil.IDENTITY_MATRIX,
+                    mDrawable.getTexCoordArray(), mTextureId, mDrawable.getTexCoordStride());
+        }
     }
 
     @Override
@@ -127,6 +127,9 @@ public class Texture2dProgram {
 
     private int mTextureTarget;
 
+    private final GlState mState;
+    private int mAttribMask;
+
     private float[] mKernel = new float[KERNEL_SIZE];
     private float[] mTexOffset;
     private float mColorAdjust;
@@ -137,6 +140,7 @@ public class Texture2dProgram {
      */
     public Texture2dProgram(ProgramType programType) {
         mProgramType = programType;
+        mState = GlState.get();
 
         switch (programType) {
             case TEXTURE_2D:
@@ -169,6 +173,7 @@ public class Texture2dProgram {
         GlUtil.checkLocation(maPositionLoc, "aPosition");
         maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
         GlUtil.checkLocation(maTextureCoordLoc, "aTextureCoord");
+        mAttribMask = (1 << maPositionLoc) | (1 << maTextureCoordLoc);
         muMVPMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uMVPMatrix");
         GlUtil.checkLocation(muMVPMatrixLoc, "uMVPMatrix");
         muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
@@ -200,7 +205,7 @@ public class Texture2dProgram {
      */
     public void release() {
         Log.d(TAG, "deleting program " + mProgramHandle);
-        GLES20.glDeleteProgram(mProgramHandle);
+        mState.deleteProgram(mProgramHandle);
         mProgramHandle = -1;
     }
 
@@ -222,7 +227,7 @@ public class Texture2dProgram {
         GlUtil.checkGlError("glGenTextures");
 
         int texId = textures[0];
-        GLES20.glBindTexture(mTextureTarget, texId);
+        mState.bindTexture(mTextureTarget, texId);
         GlUtil.checkGlError("glBindTexture " + texId);
 
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
@@ -270,7 +275,7 @@ public class Texture2dProgram {
     }
 
     /**
-     * Issues the draw call.  Does the full setup on every call.
+     * Issues the draw call.  State that's already set (see {@link GlState}) isn't set again.
      *
      * @param mvpMatrix The 4x4 projection matrix.
      * @param vertexBuffer Buffer with vertex position data.
@@ -288,56 +293,91 @@ public class Texture2dProgram {
             int vertexCount, int coordsPerVertex, int vertexStride,
             float[] texMatrix, FloatBuffer texBuffer, int textureId, int texStride) {
         GlUtil.checkGlError("draw start");
+        GlState state = mState;
+        prepareDraw(state, mvpMatrix, texMatrix, textureId);
+
+        // Connect vertexBuffer to "aPosition".
+        state.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        state.vertexAttribPointer(maPositionLoc, coordsPerVertex,
+            GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+        GlUtil.checkGlError("glVertexAttribPointer");
+
+        // Connect texBuffer to "aTextureCoord".
+        state.vertexAttribPointer(maTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false, texStride, texBuffer);
+            GlUtil.checkGlError("glVertexAttribPointer");
+
+        finishDraw(state, firstVertex, vertexCount);
+    }
+
+    /**
+     * Issues the draw call, with the vertex data in buffer objects rather than client-side
+     * arrays.  Otherwise the same as the other draw().
+     *
+     * @param vertexVbo Buffer object with vertex position data, starting at offset 0.
+     * @param texVbo Buffer object with vertex texture data, starting at offset 0.
+     */
+    public void draw(float[] mvpMatrix, int vertexVbo, int firstVertex,
+            int vertexCount, int coordsPerVertex, int vertexStride,
+            float[] texMatrix, int texVbo, int textureId, int texStride) {
+        GlUtil.checkGlError("draw start");
+        GlState state = mState;
+        prepareDraw(state, mvpMatrix, texMatrix, textureId);
+
+        // Connect the buffers to "aPosition" and "aTextureCoord".
+        state.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexVbo);
+        state.vertexAttribPointer(maPositionLoc, coordsPerVertex,
+                GLES20.GL_FLOAT, false, vertexStride, 0);
+        state.bindBuffer(GLES20.GL_ARRAY_BUFFER, texVbo);
+        state.vertexAttribPointer(maTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false, texStride, 0);
+        GlUtil.checkGlError("glVertexAttribPointer");
 
+        finishDraw(state, firstVertex, vertexCount);
+    }
+
+    /**
+     * Sets up everything but the vertex data.
+     */
+    private void prepareDraw(GlState state, float[] mvpMatrix, float[] texMatrix,
+            int textureId) {
         // Select the program.
-        GLES20.glUseProgram(mProgramHandle);
+        state.useProgram(mProgramHandle);
         GlUtil.checkGlError("glUseProgram");
 
         // Set the texture.
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(mTextureTarget, textureId);
+        state.activeTexture(GLES20.GL_TEXTURE0);
+        state.bindTexture(mTextureTarget, textureId);
 
         // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        state.uniformMatrix4fv(muMVPMatrixLoc, mvpMatrix, 0);
         GlUtil.checkGlError("glUniformMatrix4fv");
 
         // Copy the texture transformation matrix over.
-        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+        state.uniformMatrix4fv(muTexMatrixLoc, texMatrix, 0);
         GlUtil.checkGlError("glUniformMatrix4fv");
 
-        // Enable the "aPosition" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        // Enable the "aPosition" and "aTextureCoord" vertex attributes.
+        state.setEnabledAttribs(mAttribMask);
         GlUtil.checkGlError("glEnableVertexAttribArray");
+    }
 
-        // Connect vertexBuffer to "aPosition".
-        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
-            GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
-        GlUtil.checkGlError("glVertexAttribPointer");
-
-        // Enable the "aTextureCoord" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
-
-        // Connect texBuffer to "aTextureCoord".
-        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
-                GLES20.GL_FLOAT, false, texStride, texBuffer);
-            GlUtil.checkGlError("glVertexAttribPointer");
-
+    /**
+     * Sets the kernel, if any, and draws.
+     */
+    private void finishDraw(GlState state, int firstVertex, int vertexCount) {
         // Populate the convolution kernel, if present.
         if (muKernelLoc >= 0) {
-            GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
-            GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
-            GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+            state.uniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
+            state.uniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
+            state.uniform1f(muColorAdjustLoc, mColorAdjust);
         }
 
         // Draw the rect.
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
         GlUtil.checkGlError("glDrawArrays");
 
-        // Done -- disable vertex array, texture, and program.
-        GLES20.glDisableVertexAttribArray(maPositionLoc);
-        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
-        GLES20.glBindTexture(mTextureTarget, 0);
-        GLES20.glUseProgram(0);
+        // Leave the program, texture, and vertex arrays in place.  GlState knows they're
+        // set, so if the next draw wants the same ones it doesn't have to do anything.
     }
 }
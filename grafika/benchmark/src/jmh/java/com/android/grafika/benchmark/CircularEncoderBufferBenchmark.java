@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import android.media.MediaCodec;
+
+import com.android.grafika.CircularEncoderBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the CircularEncoderBuffer operations on the encoder thread's path.
+ * <p>
+ * The buffer is filled to steady state before measurement starts, so every add() has to
+ * evict old packets the way it does on a device after the first few seconds.  add() is
+ * also measured in sample-time mode, which reports percentiles up to the maximum: the
+ * tail of that distribution is the cost of an I-frame pushing out a run of P-frames.
+ * <p>
+ * Run with the gc profiler (the default for this module) to see bytes allocated per op.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CircularEncoderBufferBenchmark {
+    private static final int FRAME_RATE = 30;
+
+    @Param({"2000000", "6000000", "20000000"})
+    public int bitRate;
+
+    @Param({"3", "7", "30"})
+    public int spanSec;
+
+    private CircularEncoderBuffer mBuffer;
+    private PacketStream mStream;
+    private MediaCodec.BufferInfo mInfo;
+    private int mIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mBuffer = new CircularEncoderBuffer(bitRate, FRAME_RATE, spanSec);
+        mStream = new PacketStream(bitRate, FRAME_RATE);
+        mInfo = new MediaCodec.BufferInfo();
+
+        // Two full spans guarantees the ring has wrapped and is evicting.
+        int warmFrames = FRAME_RATE * spanSec * 2;
+        for (int i = 0; i < warmFrames; i++) {
+            addNext();
+        }
+        mIndex = mBuffer.getFirstIndex();
+    }
+
+    private void addNext() {
+        ByteBuffer buf = mStream.next();
+        mBuffer.add(buf, mStream.flags(), mStream.ptsUsec());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void add() {
+        addNext();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void addLatency() {
+        addNext();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public int getFirstIndex() {
+        return mBuffer.getFirstIndex();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public long computeTimeSpanUsec() {
+        return mBuffer.computeTimeSpanUsec();
+    }
+
+    /**
+     * Walks the buffered packets the way the save thread does, one getChunk() per call.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public ByteBuffer getChunk() {
+        ByteBuffer buf = mBuffer.getChunk(mIndex, mInfo);
+        mIndex = mBuffer.getNextIndex(mIndex);
+        if (mIndex < 0) {
+            mIndex = mBuffer.getFirstIndex();
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import android.media.MediaCodec;
+
+import com.android.grafika.CircularEncoderBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the worst single add(): a full ring of minimum-size packets, followed by one
+ * packet big enough to evict most of them.
+ * <p>
+ * The ring has to be refilled before every invocation, so this uses Level.Invocation
+ * setup.  That's only reasonable because the operation being timed is long (thousands of
+ * evictions); don't copy the pattern for cheap operations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EvictionBenchmark {
+    private static final int FRAME_RATE = 30;
+    private static final int SMALL_PACKET = 64;
+
+    @Param({"6000000"})
+    public int bitRate;
+
+    @Param({"7", "30"})
+    public int spanSec;
+
+    private CircularEncoderBuffer mBuffer;
+    private ByteBuffer mSmall;
+    private ByteBuffer mLarge;
+    private long mPtsUsec;
+
+    @Setup(Level.Trial)
+    public void allocate() {
+        mSmall = ByteBuffer.allocate(SMALL_PACKET);
+        // Half the ring: evicts roughly half the buffered packets in one call.
+        mLarge = ByteBuffer.allocate(bitRate / 8 * spanSec / 2);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        mBuffer = new CircularEncoderBuffer(bitRate, FRAME_RATE, spanSec);
+        mPtsUsec = 0;
+        // The meta-data ring runs out long before the data ring with packets this small,
+        // so this fills the meta-data completely.
+        int count = FRAME_RATE * spanSec * 2;
+        for (int i = 0; i < count; i++) {
+            mSmall.clear();
+            mBuffer.add(mSmall, MediaCodec.BUFFER_FLAG_SYNC_FRAME, mPtsUsec);
+            mPtsUsec += 1000000 / FRAME_RATE;
+        }
+    }
+
+    @Benchmark
+    public void evict() {
+        mLarge.clear();
+        mBuffer.add(mLarge, MediaCodec.BUFFER_FLAG_SYNC_FRAME, mPtsUsec);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import com.android.grafika.FragmentedMp4Writer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FragmentedMp4Writer.writeSampleData() with the same synthetic stream as the
+ * buffer benchmarks.  Output goes to a temporary file, so the numbers include the
+ * occasional fragment flush through the file channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FragmentedMp4WriterBenchmark {
+    private static final int FRAME_RATE = 30;
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x1e };
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+    @Param({"2000000", "20000000"})
+    public int bitRate;
+
+    private PacketStream mStream;
+    private File mFile;
+    private FragmentedMp4Writer mWriter;
+    private int mTrack;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        mStream = new PacketStream(bitRate, FRAME_RATE);
+        mFile = File.createTempFile("fmp4-bench", ".mp4");
+        mWriter = new FragmentedMp4Writer(mFile);
+        mTrack = mWriter.addVideoTrack(1280, 720, SPS, PPS);
+        mWriter.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        mWriter.stop();
+        mWriter.release();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public void writeSampleData() throws IOException {
+        ByteBuffer buf = mStream.next();
+        mWriter.writeSampleData(mTrack, buf, 0, buf.limit(), mStream.ptsUsec(),
+                mStream.flags());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import com.android.grafika.FragmentedMp4Writer;
+import com.android.grafika.Mp4Demuxer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Mp4Demuxer: opening and parsing a file, and reading every sample through the
+ * SampleSource interface the way MoviePlayer does.
+ * <p>
+ * The file is shaped like the one MovieEightRects generates -- 320x240 at 2Mbps, one sync
+ * frame every 5 seconds, with its speeding-up frame times -- but written with
+ * FragmentedMp4Writer from synthetic packets, since there's no encoder on the JVM.  The
+ * 32-frame case is MovieEightRects itself; the longer one shows how the sample table scales.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Mp4DemuxerBenchmark {
+    // From MovieEightRects and GeneratedMovie.
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int BIT_RATE = 2000000;
+    private static final int FRAMES_PER_SECOND = 30;
+    private static final int IFRAME_INTERVAL = 5;
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x0d };
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+    @Param({"32", "9000"})
+    public int frames;
+
+    private File mFile;
+    private Mp4Demuxer mDemuxer;
+    private ByteBuffer mBuf;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("demux-bench", ".mp4");
+        writeMovie(mFile, frames);
+        mDemuxer = new Mp4Demuxer(mFile);
+        if (mDemuxer.getSampleCount() != frames) {
+            throw new IllegalStateException("wrote " + frames + " frames, read " +
+                    mDemuxer.getSampleCount());
+        }
+        int maxInputSize = mDemuxer.getFormat().getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        mBuf = ByteBuffer.allocateDirect(maxInputSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDemuxer.release();
+        mFile.delete();
+    }
+
+    /**
+     * Maps the file and builds the sample table.
+     */
+    @Benchmark
+    public int parse() throws IOException {
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        int count = demuxer.getSampleCount();
+        demuxer.release();
+        return count;
+    }
+
+    /**
+     * Rewinds and copies out every sample, with start codes, as MoviePlayer's input loop
+     * would.
+     */
+    @Benchmark
+    public long iterate() {
+        mDemuxer.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long total = 0;
+        while (true) {
+            int size = mDemuxer.readSampleData(mBuf, 0);
+            if (size < 0) {
+                break;
+            }
+            total += size + mDemuxer.getSampleTime();
+            mDemuxer.advance();
+        }
+        return total;
+    }
+
+    /**
+     * Writes a MovieEightRects-shaped movie.  Each packet is an Annex B access unit holding
+     * one slice NAL unit of random bytes, sized so the stream averages BIT_RATE.
+     */
+    private static void writeMovie(File file, int frameCount) throws IOException {
+        int gopFrames = FRAMES_PER_SECOND * IFRAME_INTERVAL;
+        double pSize = (BIT_RATE / 8.0 * IFRAME_INTERVAL) /
+                (gopFrames - 1 + PacketStream.I_FRAME_WEIGHT);
+        Random rand = new Random(1234);
+        byte[] payload = new byte[(int) (pSize * PacketStream.I_FRAME_WEIGHT * 2)];
+        rand.nextBytes(payload);
+        // Keep start codes out of the slice data.
+        for (int i = 0; i < payload.length; i++) {
+            if (payload[i] == 0) {
+                payload[i] = 1;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(payload.length + 5);
+
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        try {
+            int track = writer.addVideoTrack(WIDTH, HEIGHT, SPS, PPS);
+            writer.start();
+            for (int i = 0; i < frameCount; i++) {
+                boolean sync = i % gopFrames == 0;
+                double size = sync ? pSize * PacketStream.I_FRAME_WEIGHT : pSize;
+                int len = (int) Math.min(size * (1.0 + rand.nextGaussian() * 0.1),
+                        payload.length);
+                len = Math.max(len, 16);
+                buf.clear();
+                buf.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+                buf.put((byte) (sync ? 0x65 : 0x41));
+                buf.put(payload, 0, len);
+                buf.flip();
+                writer.writeSampleData(track, buf, 0, buf.limit(), presentationTimeUsec(i),
+                        sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            }
+            writer.stop();
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * MovieEightRects.computePresentationTimeNsec(), in microseconds: 8 frames at 8fps,
+     * 8 at 16fps, and the rest at 30fps.
+     */
+    private static long presentationTimeUsec(int frameIndex) {
+        if (frameIndex < 8) {
+            return frameIndex * 1000000L / 8;
+        }
+        frameIndex -= 8;
+        if (frameIndex < 8) {
+            return 1000000L + frameIndex * 1000000L / 16;
+        }
+        frameIndex -= 8;
+        return 1500000L + frameIndex * 1000000L / 30;
+    }
+}
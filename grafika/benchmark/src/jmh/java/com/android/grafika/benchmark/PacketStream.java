@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic H.264 packet stream, shaped like the output of CircularEncoder.
+ * <p>
+ * There's one sync frame per second.  Each I-frame is about I_FRAME_WEIGHT times the size of
+ * a P-frame, and sizes are jittered so packets don't line up neatly with the end of the
+ * ring.  The average bit rate matches the requested rate.  The sequence is generated once,
+ * with a fixed seed, and then replayed forever, so next() does no work beyond bookkeeping.
+ */
+final class PacketStream {
+    static final int I_FRAME_WEIGHT = 8;
+    private static final int GOPS = 16;         // length of the generated sequence
+
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long mFrameDurationUsec;
+    private final ByteBuffer mData;
+
+    private int mCursor;
+    private long mPtsUsec;
+
+    PacketStream(int bitRate, int frameRate) {
+        int frameCount = frameRate * GOPS;
+        mSizes = new int[frameCount];
+        mFlags = new int[frameCount];
+        mFrameDurationUsec = 1000000L / frameRate;
+
+        // Per GOP: 1 I-frame + (frameRate - 1) P-frames = bitRate / 8 bytes.
+        double pSize = (bitRate / 8.0) / (frameRate - 1 + I_FRAME_WEIGHT);
+        Random rand = new Random(1234);
+        int maxSize = 0;
+        for (int i = 0; i < frameCount; i++) {
+            double size;
+            if (i % frameRate == 0) {
+                mFlags[i] = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+                size = pSize * I_FRAME_WEIGHT * (1.0 + rand.nextGaussian() * 0.1);
+            } else {
+                size = pSize * (1.0 + rand.nextGaussian() * 0.25);
+            }
+            mSizes[i] = Math.max(16, (int) size);
+            maxSize = Math.max(maxSize, mSizes[i]);
+        }
+
+        byte[] bytes = new byte[maxSize];
+        rand.nextBytes(bytes);
+        mData = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Positions the shared data buffer over the next packet, and returns it.  Call
+     * {@link #flags()} and {@link #ptsUsec()} for the packet's meta-data.
+     */
+    ByteBuffer next() {
+        mCursor++;
+        if (mCursor == mSizes.length) {
+            mCursor = 0;
+        }
+        mPtsUsec += mFrameDurationUsec;
+        mData.clear();
+        mData.limit(mSizes[mCursor]);
+        return mData;
+    }
+
+    /** Returns the flags of the packet most recently returned by next(). */
+    int flags() {
+        return mFlags[mCursor];
+    }
+
+    /** Returns the presentation time of the packet most recently returned by next(). */
+    long ptsUsec() {
+        return mPtsUsec;
+    }
+
+    /** Returns the size of the largest packet in the sequence. */
+    int maxSize() {
+        return mData.capacity();
+    }
+}
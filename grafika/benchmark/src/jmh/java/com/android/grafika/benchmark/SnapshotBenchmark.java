@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.benchmark;
+
+import android.media.MediaCodec;
+
+import com.android.grafika.CircularEncoderBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a complete save pass over a 60-second ring: pin a snapshot, walk every packet in
+ * it with getChunk(), and release it.
+ * <p>
+ * Nothing on this path should allocate.  Run with the gc profiler (the default in
+ * build.gradle) and check that gc.alloc.rate.norm stays at about 0 B/op; anything that
+ * grows with the span means a per-packet allocation has crept in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SnapshotBenchmark {
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 60;
+
+    @Param({"2000000", "6000000"})
+    public int bitRate;
+
+    private CircularEncoderBuffer mBuffer;
+    private MediaCodec.BufferInfo mInfo;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mBuffer = new CircularEncoderBuffer(bitRate, FRAME_RATE, SPAN_SEC);
+        mInfo = new MediaCodec.BufferInfo();
+
+        // Two full spans, so the ring has wrapped and the snapshot straddles the end.
+        PacketStream stream = new PacketStream(bitRate, FRAME_RATE);
+        int warmFrames = FRAME_RATE * SPAN_SEC * 2;
+        for (int i = 0; i < warmFrames; i++) {
+            mBuffer.add(stream.next(), stream.flags(), stream.ptsUsec());
+        }
+    }
+
+    /**
+     * Walks the whole buffer the way the save thread does.  Returns the byte total so the
+     * loop can't be optimized away.
+     */
+    @Benchmark
+    public long walkSnapshot() {
+        long total = 0;
+        int index = mBuffer.beginSnapshot();
+        while (index >= 0) {
+            mBuffer.getChunk(index, mInfo);
+            total += mInfo.size;
+            index = mBuffer.getSnapshotNextIndex(index);
+        }
+        mBuffer.endSnapshot();
+        return total;
+    }
+}
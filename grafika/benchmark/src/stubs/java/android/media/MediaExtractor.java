@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.media;
+
+/**
+ * JVM stand-in for the android.media.MediaExtractor constants used by the tested classes.
+ * Constant values match the framework.
+ */
+public final class MediaExtractor {
+    public static final int SEEK_TO_PREVIOUS_SYNC = 0;
+    public static final int SEEK_TO_NEXT_SYNC = 1;
+    public static final int SEEK_TO_CLOSEST_SYNC = 2;
+
+    public static final int SAMPLE_FLAG_SYNC = 1;
+    public static final int SAMPLE_FLAG_ENCRYPTED = 2;
+
+    private MediaExtractor() {}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for android.media.MediaFormat: a plain key/value map.
+ */
+public final class MediaFormat {
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_DURATION = "durationUs";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+
+    private final Map<String, Object> mMap = new HashMap<String, Object>();
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public String getString(String name) {
+        return (String) mMap.get(name);
+    }
+
+    public void setString(String name, String value) {
+        mMap.put(name, value);
+    }
+
+    public int getInteger(String name) {
+        return (Integer) mMap.get(name);
+    }
+
+    public void setInteger(String name, int value) {
+        mMap.put(name, value);
+    }
+
+    public long getLong(String name) {
+        return (Long) mMap.get(name);
+    }
+
+    public void setLong(String name, long value) {
+        mMap.put(name, value);
+    }
+
+    public ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) mMap.get(name);
+    }
+
+    public void setByteBuffer(String name, ByteBuffer bytes) {
+        mMap.put(name, bytes);
+    }
+
+    public boolean containsKey(String name) {
+        return mMap.containsKey(name);
+    }
+}
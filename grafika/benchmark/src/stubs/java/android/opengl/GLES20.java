@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.opengl;
+
+/**
+ * JVM stand-in for the GLES20 constants referenced by the tested classes.  There are no
+ * functions; code that would issue GL calls is stubbed out at a higher level (see GlState
+ * and GlUtil).  Constant values match the framework.
+ */
+public final class GLES20 {
+    public static final int GL_TEXTURE_2D = 0x0DE1;
+    public static final int GL_RGBA = 0x1908;
+    public static final int GL_TEXTURE0 = 0x84C0;
+
+    private GLES20() {}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+/**
+ * Stand-in for the app's GlState.  Effects only reach it from setUniforms(), which needs a
+ * context, so every call is a no-op here.
+ */
+public final class GlState {
+    public void activeTexture(int unit) {}
+
+    public void bindTexture(int target, int texture) {}
+
+    public void uniformMatrix4fv(int location, float[] value, int offset) {}
+
+    public void uniformMatrix3fv(int location, float[] value, int offset) {}
+
+    public void uniform4fv(int location, int count, float[] value, int offset) {}
+
+    public void uniform2fv(int location, int count, float[] value, int offset) {}
+
+    public void uniform1f(int location, float value) {}
+
+    public void uniform1i(int location, int value) {}
+}
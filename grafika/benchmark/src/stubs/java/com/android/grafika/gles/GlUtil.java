@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stand-in for the app's GlUtil, covering the texture upload used by Effect.Lut.
+ */
+public final class GlUtil {
+    private GlUtil() {}
+
+    public static int createImageTexture(ByteBuffer data, int width, int height, int format) {
+        throw new UnsupportedOperationException("no GL on the JVM");
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that saving from a full CircularEncoderBuffer doesn't allocate.
+ */
+public class CircularEncoderBufferTest {
+    private static final int BIT_RATE = 6000000;
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 60;
+    private static final int WALKS = 10;
+
+    @Test
+    public void snapshotWalkDoesNotAllocate() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        // Fill the ring twice over, so it has wrapped and the snapshot straddles the end.
+        ByteBuffer packet = ByteBuffer.allocate(BIT_RATE / 8 / FRAME_RATE);
+        long frameUsec = 1000000L / FRAME_RATE;
+        for (int i = 0; i < FRAME_RATE * SPAN_SEC * 2; i++) {
+            int flags = (i % FRAME_RATE == 0) ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            packet.clear();
+            buffer.add(packet, flags, i * frameUsec);
+        }
+
+        // Only HotSpot-style VMs count allocations per thread.
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        // One pass first, so class loading and the like aren't counted.
+        int packets = walkSnapshot(buffer, info);
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < WALKS; i++) {
+            assertEquals(packets, walkSnapshot(buffer, info));
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - startBytes;
+
+        // Allow for the odd allocation in the measurement itself, but nothing that scales
+        // with the number of packets walked.
+        assertTrue(packets > FRAME_RATE * (SPAN_SEC - 2));
+        assertTrue("allocated " + allocated + " bytes over " + WALKS * packets + " packets",
+                allocated < 1024);
+    }
+
+    /** Walks the whole buffer the way the save thread does, and returns the packet count. */
+    private static int walkSnapshot(CircularEncoderBuffer buffer, MediaCodec.BufferInfo info) {
+        int count = 0;
+        int index = buffer.beginSnapshot();
+        while (index >= 0) {
+            buffer.getChunk(index, info);
+            assertTrue(info.size > 0);
+            count++;
+            index = buffer.getSnapshotNextIndex(index);
+        }
+        buffer.endSnapshot();
+        return count;
+    }
+}
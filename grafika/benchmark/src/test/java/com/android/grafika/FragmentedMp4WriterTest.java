@@ -0,0 +1,375 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes synthetic H.264 and AAC samples with FragmentedMp4Writer and walks the boxes in the
+ * result: the top-level layout, and what each fragment's "tfdt" and "trun" say about the
+ * samples in its "mdat".
+ */
+public class FragmentedMp4WriterTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 30;
+    private static final int GOP_FRAMES = FRAME_RATE;          // a sync frame every second
+    private static final int SAMPLE_RATE = 44100;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    // FragmentedMp4Writer.MAX_FRAGMENT_BYTES
+    private static final int MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x0d };
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+    private static final byte[] AUDIO_CONFIG = { 0x12, 0x10 };     // AAC-LC, 44.1kHz, stereo
+
+    private File mFile;
+
+    /**
+     * What we wrote for one track, in order: the size each sample should have in the file,
+     * its time in the track's timescale, and its first payload bytes.
+     */
+    private static class Expected {
+        final ArrayList<Integer> sizes = new ArrayList<Integer>();
+        final ArrayList<Long> times = new ArrayList<Long>();
+        final ArrayList<Boolean> syncs = new ArrayList<Boolean>();
+        final ArrayList<byte[]> heads = new ArrayList<byte[]>();
+    }
+
+    /**
+     * One "traf" from the file.  Offsets are absolute file positions.
+     */
+    private static class Run {
+        int trackId;
+        long decodeTime;
+        int[] durations, sizes, flags;
+        int dataStart;
+        int mdatStart, mdatEnd;         // payload of the mdat that follows the moof
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fmp4-test", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void videoAndAudio() throws IOException {
+        Expected video = new Expected();
+        Expected audio = new Expected();
+        int seconds = 3;
+
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        try {
+            int videoTrack = writer.addVideoTrack(WIDTH, HEIGHT, SPS, PPS);
+            int audioTrack = writer.addAudioTrack(SAMPLE_RATE, 2, AUDIO_CONFIG);
+            writer.start();
+
+            // Interleave by presentation time, the way the muxer sees them from the encoders.
+            int frameCount = seconds * FRAME_RATE;
+            int audioCount = seconds * SAMPLE_RATE / AAC_FRAME_SAMPLES;
+            int frame = 0;
+            int aac = 0;
+            while (frame < frameCount || aac < audioCount) {
+                long videoUsec = frame * 1000000L / FRAME_RATE;
+                long audioUsec = aac * AAC_FRAME_SAMPLES * 1000000L / SAMPLE_RATE;
+                if (frame < frameCount && (aac == audioCount || videoUsec <= audioUsec)) {
+                    writeVideo(writer, videoTrack, video, frame, videoUsec);
+                    frame++;
+                } else {
+                    writeAudio(writer, audioTrack, audio, aac, audioUsec, 200 + aac % 50);
+                    aac++;
+                }
+            }
+            writer.stop();
+        } finally {
+            writer.release();
+        }
+
+        byte[] file = readFile();
+        ArrayList<String> topLevel = new ArrayList<String>();
+        ArrayList<Run> runs = parse(file, topLevel);
+
+        // ftyp, moov, then a moof+mdat pair per fragment: one per second of video, since a
+        // fragment is closed at the first sync frame a second or more after it started.
+        assertEquals("ftyp", topLevel.get(0));
+        assertEquals("moov", topLevel.get(1));
+        assertEquals(2 + seconds * 2, topLevel.size());
+        for (int i = 2; i < topLevel.size(); i += 2) {
+            assertEquals("moof", topLevel.get(i));
+            assertEquals("mdat", topLevel.get(i + 1));
+        }
+
+        checkTrack(file, runs, 1, video, VIDEO_TIMESCALE / FRAME_RATE);
+        checkTrack(file, runs, 2, audio, AAC_FRAME_SAMPLES);
+
+        // Each fragment starts with a video sync frame.
+        for (Run run : runs) {
+            if (run.trackId == 1) {
+                assertEquals(SAMPLE_FLAGS_SYNC, run.flags[0]);
+            }
+        }
+    }
+
+    @Test
+    public void stalledVideoStillBoundsFragments() throws IOException {
+        Expected video = new Expected();
+        Expected audio = new Expected();
+        int audioSize = 64 * 1024;
+        int audioCount = (MAX_FRAGMENT_BYTES / audioSize) * 3;
+
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        try {
+            int videoTrack = writer.addVideoTrack(WIDTH, HEIGHT, SPS, PPS);
+            int audioTrack = writer.addAudioTrack(SAMPLE_RATE, 2, AUDIO_CONFIG);
+            writer.start();
+            // A couple of frames, then the video stops while audio carries on.
+            for (int i = 0; i < 2; i++) {
+                writeVideo(writer, videoTrack, video, i, i * 1000000L / FRAME_RATE);
+            }
+            for (int i = 0; i < audioCount; i++) {
+                writeAudio(writer, audioTrack, audio, i,
+                        i * AAC_FRAME_SAMPLES * 1000000L / SAMPLE_RATE, audioSize);
+            }
+            writer.stop();
+        } finally {
+            writer.release();
+        }
+
+        byte[] file = readFile();
+        ArrayList<String> topLevel = new ArrayList<String>();
+        ArrayList<Run> runs = parse(file, topLevel);
+        assertTrue("only " + topLevel.size() + " boxes", topLevel.size() >= 2 + 3 * 2);
+        for (Run run : runs) {
+            assertTrue("mdat of " + (run.mdatEnd - run.mdatStart),
+                    run.mdatEnd - run.mdatStart <= MAX_FRAGMENT_BYTES);
+        }
+        checkTrack(file, runs, 1, video, VIDEO_TIMESCALE / FRAME_RATE);
+        checkTrack(file, runs, 2, audio, AAC_FRAME_SAMPLES);
+    }
+
+    /**
+     * Writes a video frame as an Annex B access unit.  Sync frames carry an SEI with a
+     * 4-byte start code followed by the IDR slice with a 3-byte one, so both forms get
+     * converted; other frames are a single slice.
+     */
+    private static void writeVideo(FragmentedMp4Writer writer, int track, Expected expected,
+            int frame, long ptsUsec) throws IOException {
+        boolean sync = frame % GOP_FRAMES == 0;
+        int sliceLen = (sync ? 3000 : 500) + frame % 7;
+        ByteBuffer buf = ByteBuffer.allocate(sliceLen + 64);
+        int fileSize = 0;
+        byte[] head;
+        if (sync) {
+            buf.put(new byte[] { 0, 0, 0, 1, 0x06, 0x05, 0x01, (byte) 0x80 });
+            fileSize += 4 + 4;
+            buf.put(new byte[] { 0, 0, 1 });
+            head = new byte[] { 0, 0, 0, 4, 0x06 };
+        } else {
+            buf.put(new byte[] { 0, 0, 0, 1 });
+            head = new byte[] { 0, 0, (byte) (sliceLen >> 8), (byte) sliceLen, 0x41 };
+        }
+        buf.put((byte) (sync ? 0x65 : 0x41));
+        for (int i = 1; i < sliceLen; i++) {
+            buf.put((byte) (1 + (frame + i) % 250));        // no zeros, so no start codes
+        }
+        fileSize += 4 + sliceLen;
+        buf.flip();
+
+        // Padding in front, to check that the offset is honored.
+        ByteBuffer padded = ByteBuffer.allocate(buf.limit() + 3);
+        padded.position(3);
+        padded.put(buf);
+        writer.writeSampleData(track, padded, 3, buf.limit(), ptsUsec,
+                sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+
+        expected.sizes.add(fileSize);
+        expected.times.add(ptsUsec * VIDEO_TIMESCALE / 1000000);
+        expected.syncs.add(sync);
+        expected.heads.add(head);
+    }
+
+    /**
+     * Writes an AAC frame.  Like a real encoder's output, it isn't flagged as sync.
+     */
+    private static void writeAudio(FragmentedMp4Writer writer, int track, Expected expected,
+            int index, long ptsUsec, int size) throws IOException {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (index + i);
+        }
+        writer.writeSampleData(track, ByteBuffer.wrap(data), 0, size, ptsUsec, 0);
+
+        expected.sizes.add(size);
+        expected.times.add(ptsUsec * SAMPLE_RATE / 1000000);
+        expected.syncs.add(true);
+        expected.heads.add(new byte[] { data[0], data[1], data[2], data[3] });
+    }
+
+    /**
+     * Checks the runs for one track against what was written: sample count, sizes, flags,
+     * durations, tfdt, and that each data offset points at the sample inside the mdat.
+     */
+    private static void checkTrack(byte[] file, ArrayList<Run> runs, int trackId,
+            Expected expected, int frameDuration) {
+        int sample = 0;
+        for (Run run : runs) {
+            if (run.trackId != trackId) {
+                continue;
+            }
+            assertEquals("tfdt of track " + trackId + " at sample " + sample,
+                    (long) expected.times.get(sample), run.decodeTime);
+            int pos = run.dataStart;
+            for (int i = 0; i < run.sizes.length; i++, sample++) {
+                String where = "track " + trackId + " sample " + sample;
+                assertEquals(where, (int) expected.sizes.get(sample), run.sizes[i]);
+                assertEquals(where, expected.syncs.get(sample) ?
+                        SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC, run.flags[i]);
+                if (sample + 1 < expected.times.size()) {
+                    long delta = expected.times.get(sample + 1) - expected.times.get(sample);
+                    if (i + 1 < run.sizes.length) {
+                        assertEquals(where, delta, run.durations[i]);
+                    } else {
+                        // Unless this track closed the fragment, the writer doesn't know
+                        // the next time yet and repeats the last duration.
+                        assertTrue(where, Math.abs(run.durations[i] - delta) <= 1);
+                    }
+                } else {
+                    assertTrue(where, run.durations[i] > 0 &&
+                            run.durations[i] <= frameDuration + 1);
+                }
+
+                assertTrue(where + " data at " + pos, pos >= run.mdatStart &&
+                        pos + run.sizes[i] <= run.mdatEnd);
+                byte[] head = expected.heads.get(sample);
+                for (int j = 0; j < head.length; j++) {
+                    assertEquals(where + " byte " + j, head[j], file[pos + j]);
+                }
+                pos += run.sizes[i];
+            }
+        }
+        assertEquals("samples in track " + trackId, expected.sizes.size(), sample);
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Lists the top-level boxes, and returns the runs from each moof, with the payload
+     * bounds of the mdat that follows it.
+     */
+    private static ArrayList<Run> parse(byte[] file, ArrayList<String> topLevel) {
+        ByteBuffer buf = ByteBuffer.wrap(file);
+        ArrayList<Run> runs = new ArrayList<Run>();
+        ArrayList<Run> pending = new ArrayList<Run>();
+        int pos = 0;
+        while (pos < file.length) {
+            int size = buf.getInt(pos);
+            assertTrue("box size " + size + " at " + pos, size >= 8 &&
+                    pos + size <= file.length);
+            String type = fourCC(buf, pos + 4);
+            topLevel.add(type);
+            if (type.equals("moof")) {
+                assertTrue("moof without mdat", pending.isEmpty());
+                for (int child = pos + 8; child < pos + size; child += buf.getInt(child)) {
+                    if (fourCC(buf, child + 4).equals("traf")) {
+                        pending.add(parseTraf(buf, pos, child + 8, child + buf.getInt(child)));
+                    }
+                }
+            } else if (type.equals("mdat")) {
+                for (Run run : pending) {
+                    run.mdatStart = pos + 8;
+                    run.mdatEnd = pos + size;
+                }
+                runs.addAll(pending);
+                pending.clear();
+            }
+            pos += size;
+        }
+        assertEquals(file.length, pos);
+        assertTrue("moof without mdat", pending.isEmpty());
+        return runs;
+    }
+
+    private static Run parseTraf(ByteBuffer buf, int moof, int start, int end) {
+        Run run = new Run();
+        for (int pos = start; pos < end; pos += buf.getInt(pos)) {
+            String type = fourCC(buf, pos + 4);
+            int body = pos + 12;            // all full boxes
+            if (type.equals("tfhd")) {
+                // default-base-is-moof, and nothing else
+                assertEquals(0x020000, buf.getInt(pos + 8) & 0xffffff);
+                run.trackId = buf.getInt(body);
+            } else if (type.equals("tfdt")) {
+                assertEquals(1, buf.get(pos + 8));
+                run.decodeTime = buf.getLong(body);
+            } else if (type.equals("trun")) {
+                assertEquals(0x000701, buf.getInt(pos + 8) & 0xffffff);
+                int count = buf.getInt(body);
+                run.dataStart = moof + buf.getInt(body + 4);
+                run.durations = new int[count];
+                run.sizes = new int[count];
+                run.flags = new int[count];
+                for (int i = 0; i < count; i++) {
+                    int entry = body + 8 + i * 12;
+                    run.durations[i] = buf.getInt(entry);
+                    run.sizes[i] = buf.getInt(entry + 4);
+                    run.flags[i] = buf.getInt(entry + 8);
+                }
+            }
+        }
+        return run;
+    }
+
+    private static String fourCC(ByteBuffer buf, int pos) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) buf.get(pos + i);
+        }
+        return new String(chars);
+    }
+}
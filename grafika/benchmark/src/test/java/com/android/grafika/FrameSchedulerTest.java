@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives FrameScheduler with a fake clock.  Sleeping just moves the clock forward, so every
+ * decision is deterministic.
+ */
+public class FrameSchedulerTest {
+    private static final long VSYNC_NSEC = 1000000000L;
+    private static final long PERIOD_NSEC = 16666667L;         // 60Hz
+    private static final long LEAD_NSEC = 4000000L;
+    private static final long FRAME_USEC_30 = 33333;
+
+    // FrameScheduler.MAX_CONSECUTIVE_DROPS
+    private static final int MAX_CONSECUTIVE_DROPS = 8;
+
+    /**
+     * Clock that only moves when told to.  Each sleep overshoots by a fixed amount, like a
+     * real sleep usually does.
+     */
+    private static class FakeClock implements FrameScheduler.Clock {
+        long mNowNsec;
+        long mOversleepNsec;
+        int mSleepCount;
+
+        FakeClock(long startNsec) {
+            mNowNsec = startNsec;
+        }
+
+        @Override
+        public long nanoTime() {
+            return mNowNsec;
+        }
+
+        @Override
+        public void sleepNsec(long durationNsec) {
+            mNowNsec += durationNsec + mOversleepNsec;
+            mSleepCount++;
+        }
+    }
+
+    @Test
+    public void anchorsToFirstFrame() {
+        // No display timing, so no snapping: each frame is due at the anchor plus its PTS
+        // offset, however late the previous wake-ups were.
+        long startNsec = 5 * VSYNC_NSEC;
+        FakeClock clock = new FakeClock(startNsec);
+        clock.mOversleepNsec = 2000000;
+        FrameScheduler scheduler = new FrameScheduler(clock);
+
+        long firstPtsUsec = 7000000;
+        assertEquals(startNsec, scheduler.schedule(firstPtsUsec));
+        assertEquals(0, clock.mSleepCount);
+        for (int i = 1; i < 100; i++) {
+            long ptsUsec = firstPtsUsec + i * FRAME_USEC_30;
+            long slotNsec = scheduler.schedule(ptsUsec);
+            assertEquals("frame " + i, startNsec + i * FRAME_USEC_30 * 1000, slotNsec);
+            // Released once the clock reached the slot, give or take the oversleep.
+            assertEquals("frame " + i, slotNsec + clock.mOversleepNsec, clock.mNowNsec);
+        }
+        assertEquals(100, scheduler.getFramesRendered());
+        assertEquals(0, scheduler.getFramesDroppedLate() + scheduler.getFramesDroppedSlot());
+    }
+
+    @Test
+    public void snapsToVsync() {
+        FakeClock clock = new FakeClock(VSYNC_NSEC + 3000000);
+        FrameScheduler scheduler = new FrameScheduler(clock);
+        scheduler.setVsync(VSYNC_NSEC, PERIOD_NSEC);
+        scheduler.setLatchLeadNsec(LEAD_NSEC);
+
+        // The first frame gets the first vsync it can make, released one lead ahead of it.
+        long slotNsec = scheduler.schedule(0);
+        assertEquals(VSYNC_NSEC + PERIOD_NSEC, slotNsec);
+        assertEquals(slotNsec - LEAD_NSEC, clock.mNowNsec);
+
+        // 30fps on a 60Hz display: every other vsync.
+        for (int i = 1; i < 60; i++) {
+            slotNsec = scheduler.schedule(i * FRAME_USEC_30);
+            assertEquals("frame " + i, VSYNC_NSEC + (1 + 2 * i) * PERIOD_NSEC, slotNsec);
+            assertEquals("frame " + i, slotNsec - LEAD_NSEC, clock.mNowNsec);
+        }
+        assertEquals(0, scheduler.getFramesDroppedLate() + scheduler.getFramesDroppedSlot());
+        // Snapping moves each frame by well under half a period.
+        assertTrue(scheduler.getErrorPercentileUsec(100) <= PERIOD_NSEC / 2000 + 1);
+    }
+
+    @Test
+    public void dropsFrameWhoseSlotIsTaken() {
+        FakeClock clock = new FakeClock(VSYNC_NSEC + 3000000);
+        FrameScheduler scheduler = new FrameScheduler(clock);
+        scheduler.setVsync(VSYNC_NSEC, PERIOD_NSEC);
+        scheduler.setLatchLeadNsec(LEAD_NSEC);
+
+        // 120fps content on a 60Hz display: every other frame lands on a slot that's taken.
+        long frameUsec = 1000000 / 120;
+        long lastSlotNsec = 0;
+        int rendered = 0;
+        for (int i = 0; i < 40; i++) {
+            long slotNsec = scheduler.schedule(i * frameUsec);
+            if (slotNsec == FrameScheduler.DROP) {
+                continue;
+            }
+            rendered++;
+            assertTrue("frame " + i, slotNsec > lastSlotNsec);
+            assertEquals("frame " + i, 0, (slotNsec - VSYNC_NSEC) % PERIOD_NSEC);
+            lastSlotNsec = slotNsec;
+        }
+        assertEquals(rendered, scheduler.getFramesRendered());
+        assertEquals(40 - rendered, scheduler.getFramesDroppedSlot());
+        assertEquals(0, scheduler.getFramesDroppedLate());
+        assertEquals(20, rendered);
+    }
+
+    @Test
+    public void dropsLateFramesButNotTooMany() {
+        FakeClock clock = new FakeClock(VSYNC_NSEC + 3000000);
+        FrameScheduler scheduler = new FrameScheduler(clock);
+        scheduler.setVsync(VSYNC_NSEC, PERIOD_NSEC);
+        scheduler.setLatchLeadNsec(LEAD_NSEC);
+        assertTrue(scheduler.schedule(0) != FrameScheduler.DROP);
+
+        // The decoder stalls for a second.  Every frame after that has missed its slot, but
+        // after MAX_CONSECUTIVE_DROPS of them one is shown anyway.
+        clock.mNowNsec += 1000000000L;
+        int frame = 1;
+        for (int i = 0; i < MAX_CONSECUTIVE_DROPS; i++, frame++) {
+            assertEquals("frame " + frame, FrameScheduler.DROP,
+                    scheduler.schedule(frame * FRAME_USEC_30));
+        }
+        assertEquals(MAX_CONSECUTIVE_DROPS, scheduler.getFramesDroppedLate());
+
+        long nowNsec = clock.mNowNsec;
+        long slotNsec = scheduler.schedule(frame * FRAME_USEC_30);
+        frame++;
+        // It goes out on the next vsync it can make, released right away.
+        assertTrue(slotNsec >= nowNsec + LEAD_NSEC);
+        assertTrue(slotNsec < nowNsec + LEAD_NSEC + PERIOD_NSEC);
+        assertEquals(0, (slotNsec - VSYNC_NSEC) % PERIOD_NSEC);
+        assertEquals(nowNsec, clock.mNowNsec);
+        assertEquals(2, scheduler.getFramesRendered());
+
+        // That doesn't move the anchor.  Frames due before the one just shown lose their
+        // slots to it, and playback picks up again on the original timeline.
+        long firstSlotNsec = VSYNC_NSEC + PERIOD_NSEC;
+        long resumedNsec;
+        while ((resumedNsec = scheduler.schedule(frame * FRAME_USEC_30)) == FrameScheduler.DROP) {
+            frame++;
+        }
+        assertEquals(MAX_CONSECUTIVE_DROPS, scheduler.getFramesDroppedLate());
+        assertEquals(frame - 2 - MAX_CONSECUTIVE_DROPS, scheduler.getFramesDroppedSlot());
+        assertTrue(resumedNsec > slotNsec);
+        assertTrue(Math.abs(resumedNsec - (firstSlotNsec + frame * FRAME_USEC_30 * 1000)) <=
+                PERIOD_NSEC / 2);
+        assertEquals(3, scheduler.getFramesRendered());
+    }
+
+    @Test
+    public void reanchorsAfterLoopReset() {
+        FakeClock clock = new FakeClock(5 * VSYNC_NSEC);
+        FrameScheduler scheduler = new FrameScheduler(clock);
+
+        long startNsec = scheduler.schedule(0);
+        long slotNsec = startNsec;
+        int frameCount = 30;
+        for (int i = 1; i < frameCount; i++) {
+            slotNsec = scheduler.schedule(i * FRAME_USEC_30);
+        }
+        assertEquals(startNsec + (frameCount - 1) * FRAME_USEC_30 * 1000, slotNsec);
+
+        // The movie loops, and the PTS goes back to zero.  That isn't treated as a jump
+        // backward: the first frame of the new pass follows one frame after the last.
+        scheduler.loopReset();
+        long loopStartNsec = slotNsec + FRAME_USEC_30 * 1000;
+        assertEquals(loopStartNsec, scheduler.schedule(0));
+        for (int i = 1; i < 10; i++) {
+            assertEquals("frame " + i, loopStartNsec + i * FRAME_USEC_30 * 1000,
+                    scheduler.schedule(i * FRAME_USEC_30));
+        }
+        assertEquals(frameCount + 10, scheduler.getFramesRendered());
+        assertEquals(0, scheduler.getFramesDroppedLate() + scheduler.getFramesDroppedSlot());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that GopIndex's cache file round-trips, and that a damaged one is ignored rather
+ * than crashing playback.
+ */
+public class GopIndexTest {
+    private static final int FRAME_COUNT = 300;
+    private static final int GOP_FRAMES = 30;
+
+    // Offset of the frame count: magic, version, source length, source mtime.
+    private static final int FRAME_COUNT_OFFSET = 4 + 4 + 8 + 8;
+
+    private File mDir;
+    private File mSource;
+    private File mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("gopidx-test", "");
+        mDir.delete();
+        mDir.mkdir();
+        mSource = new File(mDir, "movie.mp4");
+        RandomAccessFile raf = new RandomAccessFile(mSource, "rw");
+        raf.setLength(12345);
+        raf.close();
+        mCache = GopIndex.getCacheFile(mDir, mSource);
+
+        GopIndex index = GopIndex.build(new SyntheticGopSource(FRAME_COUNT, GOP_FRAMES, 30));
+        index.save(mCache, mSource);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void roundTrip() {
+        GopIndex index = GopIndex.load(mCache, mSource);
+        assertNotNull(index);
+        assertEquals(FRAME_COUNT, index.getFrameCount());
+        assertEquals(FRAME_COUNT / GOP_FRAMES, index.getGopCount());
+        long frameUsec = 1000000 / 30;
+        assertEquals(GOP_FRAMES * frameUsec,
+                index.getSyncTimeAtOrBefore((2 * GOP_FRAMES - 1) * frameUsec));
+        assertEquals(5 * frameUsec, index.getFrameTimeAtOrBefore(5 * frameUsec + 1));
+
+        // Only the cache file is left; the temporary file was renamed over it.
+        assertEquals(2, mDir.listFiles().length);
+    }
+
+    @Test
+    public void ignoresStaleFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mSource, "rw");
+        raf.setLength(54321);
+        raf.close();
+        assertNull(GopIndex.load(mCache, mSource));
+    }
+
+    @Test
+    public void ignoresTruncatedFile() throws IOException {
+        long length = mCache.length();
+        for (long cut : new long[] { 1, 8, length - FRAME_COUNT_OFFSET - 2 }) {
+            truncate(length - cut);
+            assertNull("cut " + cut, GopIndex.load(mCache, mSource));
+        }
+    }
+
+    @Test
+    public void ignoresBadCounts() throws IOException {
+        for (int count : new int[] { -1, Integer.MAX_VALUE, FRAME_COUNT + 1, FRAME_COUNT - 1 }) {
+            writeInt(FRAME_COUNT_OFFSET, count);
+            assertNull("count " + count, GopIndex.load(mCache, mSource));
+        }
+    }
+
+    @Test
+    public void ignoresUnsortedTimes() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mCache, "rw");
+        try {
+            raf.seek(FRAME_COUNT_OFFSET + 4 + 8 * 10);
+            raf.writeLong(Long.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+        assertNull(GopIndex.load(mCache, mSource));
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mCache, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeInt(long offset, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mCache, "rw");
+        try {
+            raf.seek(offset);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+}
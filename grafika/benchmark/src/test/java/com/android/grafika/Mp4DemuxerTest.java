@@ -0,0 +1,555 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Reads movies shaped like the ones MovieEightRects and MovieSliders generate back through
+ * Mp4Demuxer.
+ * <p>
+ * Those are written by MediaMuxer, which puts the sample data in one "mdat" followed by a
+ * "moov" with the full sample table, using 4-byte NAL lengths and a 90kHz timescale.  We
+ * have no encoder or MediaMuxer here, so the files are built directly, with synthetic
+ * access units.  The fragmented case, as RecordFBOActivity writes it, goes through
+ * FragmentedMp4Writer.
+ */
+public class Mp4DemuxerTest {
+    private static final int TIMESCALE = 90000;
+
+    // GeneratedMovie.IFRAME_INTERVAL at 30fps.
+    private static final int GOP_FRAMES = 5 * 30;
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x0d };
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+    private static final byte[] NO_PPS = null;
+
+    private File mFile;
+
+    /**
+     * A video track to write: dimensions, parameter sets, and per-frame times and sync
+     * flags.  A null PPS writes an avcC with no PPS in it.
+     */
+    private static class TrackSpec {
+        final int width, height;
+        final byte[] pps;
+        final long[] ptsUsec;
+        final boolean[] sync;
+
+        TrackSpec(int width, int height, byte[] pps, long[] ptsUsec) {
+            this.width = width;
+            this.height = height;
+            this.pps = pps;
+            this.ptsUsec = ptsUsec;
+            sync = new boolean[ptsUsec.length];
+            for (int i = 0; i < sync.length; i++) {
+                sync[i] = i % GOP_FRAMES == 0;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("demux-test", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void movieEightRects() throws IOException {
+        // 320x240, 32 frames, speeding up from 8fps to 30fps.  Only the first is a sync
+        // frame.
+        long[] pts = new long[32];
+        for (int i = 0; i < pts.length; i++) {
+            pts[i] = eightRectsPtsUsec(i);
+        }
+        TrackSpec track = new TrackSpec(320, 240, PPS, pts);
+        writeProgressive(mFile, track);
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        try {
+            checkTrack(demuxer, track);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void movieSliders() throws IOException {
+        // 480x640, 240 frames at 30fps, so sync frames at 0 and 5 seconds.
+        TrackSpec track = new TrackSpec(480, 640, PPS, fixedRatePts(240, 30));
+        writeProgressive(mFile, track);
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        try {
+            checkTrack(demuxer, track);
+            checkSeeks(demuxer);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void fragmentedMovieSliders() throws IOException {
+        TrackSpec track = new TrackSpec(480, 640, PPS, fixedRatePts(240, 30));
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        try {
+            int index = writer.addVideoTrack(track.width, track.height, SPS, PPS);
+            writer.start();
+            for (int i = 0; i < track.ptsUsec.length; i++) {
+                ByteBuffer au = ByteBuffer.wrap(annexB(accessUnit(i, track.sync[i])));
+                writer.writeSampleData(index, au, 0, au.limit(), track.ptsUsec[i],
+                        track.sync[i] ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            }
+            writer.stop();
+        } finally {
+            writer.release();
+        }
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        try {
+            checkTrack(demuxer, track);
+            checkSeeks(demuxer);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test
+    public void skipsAvcCWithoutPps() throws IOException {
+        // The first video track has an SPS but no PPS.  It can't be decoded, so the second
+        // one should be used.
+        TrackSpec bad = new TrackSpec(640, 480, NO_PPS, fixedRatePts(10, 30));
+        TrackSpec good = new TrackSpec(320, 240, PPS, fixedRatePts(32, 30));
+        writeProgressive(mFile, bad, good);
+
+        Mp4Demuxer demuxer = new Mp4Demuxer(mFile);
+        try {
+            checkTrack(demuxer, good);
+        } finally {
+            demuxer.release();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOnlyAvcCWithoutPps() throws IOException {
+        writeProgressive(mFile, new TrackSpec(320, 240, NO_PPS, fixedRatePts(10, 30)));
+        new Mp4Demuxer(mFile);
+    }
+
+    /**
+     * Checks the format, and every sample through both the indexed accessors and the
+     * SampleSource interface.
+     */
+    private static void checkTrack(Mp4Demuxer demuxer, TrackSpec track) {
+        int count = track.ptsUsec.length;
+        assertEquals(count, demuxer.getSampleCount());
+        assertEquals(track.width, demuxer.getWidth());
+        assertEquals(track.height, demuxer.getHeight());
+
+        MediaFormat format = demuxer.getFormat();
+        assertEquals("video/avc", format.getString(MediaFormat.KEY_MIME));
+        assertEquals(ByteBuffer.wrap(annexB(new byte[][] { SPS })),
+                format.getByteBuffer("csd-0"));
+        assertEquals(ByteBuffer.wrap(annexB(new byte[][] { PPS })),
+                format.getByteBuffer("csd-1"));
+        ByteBuffer buf = ByteBuffer.allocate(format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+
+        demuxer.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        for (int i = 0; i < count; i++) {
+            String where = "sample " + i;
+            byte[][] nals = accessUnit(i, track.sync[i]);
+            byte[] expected = annexB(nals);
+
+            // As stored: one 4-byte length per NAL unit instead of a start code.
+            int storedSize = 0;
+            for (byte[] nal : nals) {
+                storedSize += 4 + nal.length;
+            }
+            assertEquals(where, storedSize, demuxer.getSampleSize(i));
+            assertEquals(where, storedSize, demuxer.getSampleData(i).remaining());
+
+            // Times go through the 90kHz timescale, so they can be a few usec off.
+            long ptsUsec = (track.ptsUsec[i] * TIMESCALE / 1000000) * 1000000 / TIMESCALE;
+            assertEquals(where, ptsUsec, demuxer.getSamplePtsUsec(i));
+            assertEquals(where, track.sync[i], demuxer.isSyncSample(i));
+
+            assertEquals(where, demuxer.getSamplePtsUsec(i), demuxer.getSampleTime());
+            assertEquals(where, track.sync[i] ? MediaExtractor.SAMPLE_FLAG_SYNC : 0,
+                    demuxer.getSampleFlags());
+            buf.clear();
+            buf.put(0, (byte) 0x55);
+            int size = demuxer.readSampleData(buf, 1);
+            assertEquals(where, expected.length, size);
+            assertEquals(where, (byte) 0x55, buf.get(0));
+            for (int j = 0; j < size; j++) {
+                assertEquals(where + " byte " + j, expected[j], buf.get(1 + j));
+            }
+            assertEquals(where, 0, buf.position());
+            assertEquals(i + 1 < count, demuxer.advance());
+        }
+        assertEquals(-1, demuxer.readSampleData(buf, 0));
+        assertEquals(-1, demuxer.getSampleTime());
+        assertFalse(demuxer.advance());
+    }
+
+    /**
+     * Checks seeks in a 240-frame, 30fps movie, with sync frames at 0 and 150.
+     */
+    private static void checkSeeks(Mp4Demuxer demuxer) {
+        long syncUsec = demuxer.getSamplePtsUsec(GOP_FRAMES);
+        demuxer.seekTo(6000000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(GOP_FRAMES, demuxer.getCurrentIndex());
+        demuxer.seekTo(syncUsec - 1, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(0, demuxer.getCurrentIndex());
+        demuxer.seekTo(1000000, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        assertEquals(GOP_FRAMES, demuxer.getCurrentIndex());
+        demuxer.seekTo(1000000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        assertEquals(0, demuxer.getCurrentIndex());
+        demuxer.seekTo(4000000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        assertEquals(GOP_FRAMES, demuxer.getCurrentIndex());
+        demuxer.seekTo(syncUsec + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        assertEquals(-1, demuxer.getSampleTime());
+    }
+
+    /**
+     * MovieEightRects.computePresentationTimeNsec(), in microseconds.
+     */
+    private static long eightRectsPtsUsec(int frameIndex) {
+        if (frameIndex < 8) {
+            return frameIndex * 1000000L / 8;
+        }
+        frameIndex -= 8;
+        if (frameIndex < 8) {
+            return 1000000L + frameIndex * 1000000L / 16;
+        }
+        frameIndex -= 8;
+        return 1500000L + frameIndex * 1000000L / 30;
+    }
+
+    private static long[] fixedRatePts(int frameCount, int frameRate) {
+        long[] pts = new long[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            pts[i] = i * 1000000L / frameRate;
+        }
+        return pts;
+    }
+
+    /**
+     * Returns the NAL units of a synthetic access unit.  Sync frames have an SEI and an IDR
+     * slice; others have one non-IDR slice.  Sizes vary, and nothing contains a zero byte.
+     */
+    private static byte[][] accessUnit(int frame, boolean sync) {
+        byte[] slice = new byte[(sync ? 3000 : 400) + frame % 13 * 17];
+        slice[0] = (byte) (sync ? 0x65 : 0x41);
+        for (int i = 1; i < slice.length; i++) {
+            slice[i] = (byte) (1 + (frame * 7 + i) % 255);
+        }
+        if (sync) {
+            byte[] sei = { 0x06, 0x05, 0x01, (byte) (1 + frame % 255), (byte) 0x80 };
+            return new byte[][] { sei, slice };
+        }
+        return new byte[][] { slice };
+    }
+
+    /**
+     * Joins NAL units with 4-byte start codes, as MediaCodec and MediaExtractor do.
+     */
+    private static byte[] annexB(byte[][] nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            buf.putInt(1);
+            buf.put(nal);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Writes the tracks the way MediaMuxer lays out a file: "ftyp", one "mdat" with every
+     * track's samples in chunks of five, then "moov".
+     */
+    private static void writeProgressive(File file, TrackSpec... tracks) throws IOException {
+        BoxBuilder out = new BoxBuilder();
+        out.begin("ftyp");
+        out.putFourCC("isom");
+        out.putInt(0);
+        out.putFourCC("isom");
+        out.putFourCC("mp42");
+        out.end();
+
+        int[][] chunkOffsets = new int[tracks.length][];
+        out.begin("mdat");
+        for (int t = 0; t < tracks.length; t++) {
+            TrackSpec track = tracks[t];
+            int count = track.ptsUsec.length;
+            chunkOffsets[t] = new int[(count + 4) / 5];
+            for (int i = 0; i < count; i++) {
+                if (i % 5 == 0) {
+                    chunkOffsets[t][i / 5] = out.position();
+                }
+                for (byte[] nal : accessUnit(i, track.sync[i])) {
+                    out.putInt(nal.length);
+                    out.putBytes(nal);
+                }
+            }
+        }
+        out.end();
+
+        out.begin("moov");
+        out.beginFull("mvhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(1000);
+        out.putInt(0);
+        out.putInt(0x00010000);
+        out.putInt(0x01000000);
+        out.putZeros(8 + 36 + 24);
+        out.putInt(tracks.length + 1);
+        out.end();
+        for (int t = 0; t < tracks.length; t++) {
+            writeTrak(out, tracks[t], t + 1, chunkOffsets[t]);
+        }
+        out.end();
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(out.toByteArray());
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void writeTrak(BoxBuilder out, TrackSpec track, int trackId,
+            int[] chunkOffsets) {
+        int count = track.ptsUsec.length;
+        long[] ticks = new long[count];
+        for (int i = 0; i < count; i++) {
+            ticks[i] = track.ptsUsec[i] * TIMESCALE / 1000000;
+        }
+        long lastDelta = count > 1 ? ticks[count - 1] - ticks[count - 2] : TIMESCALE / 30;
+
+        out.begin("trak");
+        out.beginFull("tkhd", 0, 3);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(trackId);
+        out.putInt(0);
+        out.putInt(0);
+        out.putZeros(8 + 8 + 36);
+        out.putInt(track.width << 16);
+        out.putInt(track.height << 16);
+        out.end();
+
+        out.begin("mdia");
+        out.beginFull("mdhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TIMESCALE);
+        out.putInt((int) (ticks[count - 1] + lastDelta));
+        out.putInt(0x55c40000);
+        out.end();
+        out.beginFull("hdlr", 0, 0);
+        out.putInt(0);
+        out.putFourCC("vide");
+        out.putZeros(12);
+        out.putBytes(new byte[] { 'V', 'i', 'd', 'e', 'o', 0 });
+        out.end();
+
+        out.begin("minf");
+        out.beginFull("vmhd", 0, 1);
+        out.putZeros(8);
+        out.end();
+        out.begin("stbl");
+
+        out.beginFull("stsd", 0, 0);
+        out.putInt(1);
+        out.begin("avc1");
+        out.putZeros(6);
+        out.putShort(1);
+        out.putZeros(16);
+        out.putShort(track.width);
+        out.putShort(track.height);
+        out.putInt(0x00480000);
+        out.putInt(0x00480000);
+        out.putInt(0);
+        out.putShort(1);
+        out.putZeros(32);
+        out.putShort(0x18);
+        out.putShort(0xffff);
+        out.begin("avcC");
+        out.putBytes(new byte[] { 1, SPS[1], SPS[2], SPS[3], (byte) 0xff, (byte) 0xe1 });
+        out.putShort(SPS.length);
+        out.putBytes(SPS);
+        if (track.pps == null) {
+            out.putBytes(new byte[] { 0 });
+        } else {
+            out.putBytes(new byte[] { 1 });
+            out.putShort(track.pps.length);
+            out.putBytes(track.pps);
+        }
+        out.end();      // avcC
+        out.end();      // avc1
+        out.end();      // stsd
+
+        out.beginFull("stts", 0, 0);
+        out.putInt(count);
+        for (int i = 0; i < count; i++) {
+            out.putInt(1);
+            out.putInt((int) (i + 1 < count ? ticks[i + 1] - ticks[i] : lastDelta));
+        }
+        out.end();
+
+        int syncCount = 0;
+        for (boolean sync : track.sync) {
+            if (sync) syncCount++;
+        }
+        out.beginFull("stss", 0, 0);
+        out.putInt(syncCount);
+        for (int i = 0; i < count; i++) {
+            if (track.sync[i]) out.putInt(i + 1);
+        }
+        out.end();
+
+        out.beginFull("stsz", 0, 0);
+        out.putInt(0);
+        out.putInt(count);
+        for (int i = 0; i < count; i++) {
+            int size = 0;
+            for (byte[] nal : accessUnit(i, track.sync[i])) {
+                size += 4 + nal.length;
+            }
+            out.putInt(size);
+        }
+        out.end();
+
+        // Five samples per chunk, and whatever's left over in the last one.
+        int lastChunkSamples = count - (chunkOffsets.length - 1) * 5;
+        out.beginFull("stsc", 0, 0);
+        out.putInt(lastChunkSamples == 5 ? 1 : 2);
+        out.putInt(1);
+        out.putInt(5);
+        out.putInt(1);
+        if (lastChunkSamples != 5) {
+            out.putInt(chunkOffsets.length);
+            out.putInt(lastChunkSamples);
+            out.putInt(1);
+        }
+        out.end();
+
+        out.beginFull("stco", 0, 0);
+        out.putInt(chunkOffsets.length);
+        for (int offset : chunkOffsets) {
+            out.putInt(offset);
+        }
+        out.end();
+
+        out.end();      // stbl
+        out.end();      // minf
+        out.end();      // mdia
+        out.end();      // trak
+    }
+
+    /**
+     * Appends big-endian values and boxes to a growable buffer.  Box sizes are filled in by
+     * end().
+     */
+    private static class BoxBuilder {
+        private ByteBuffer mBuf = ByteBuffer.allocate(64 * 1024);
+        private final int[] mStack = new int[16];
+        private int mDepth;
+
+        int position() {
+            return mBuf.position();
+        }
+
+        void begin(String type) {
+            mStack[mDepth++] = mBuf.position();
+            putInt(0);
+            putFourCC(type);
+        }
+
+        void beginFull(String type, int version, int flags) {
+            begin(type);
+            putInt((version << 24) | flags);
+        }
+
+        void end() {
+            int start = mStack[--mDepth];
+            mBuf.putInt(start, mBuf.position() - start);
+        }
+
+        void putShort(int value) {
+            ensure(2);
+            mBuf.putShort((short) value);
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            mBuf.putInt(value);
+        }
+
+        void putBytes(byte[] bytes) {
+            ensure(bytes.length);
+            mBuf.put(bytes);
+        }
+
+        void putZeros(int count) {
+            putBytes(new byte[count]);
+        }
+
+        void putFourCC(String type) {
+            putBytes(type.getBytes());
+        }
+
+        byte[] toByteArray() {
+            byte[] out = new byte[mBuf.position()];
+            System.arraycopy(mBuf.array(), 0, out, 0, out.length);
+            return out;
+        }
+
+        private void ensure(int bytes) {
+            if (mBuf.remaining() < bytes) {
+                ByteBuffer buf = ByteBuffer.allocate(
+                        Math.max(mBuf.capacity() * 2, mBuf.position() + bytes));
+                mBuf.flip();
+                buf.put(mBuf);
+                mBuf = buf;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaExtractor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how many samples MoviePlayer hands to the decoder, by driving a SampleFeeder over
+ * a synthetic stream the way feedInputBuffer() does.
+ */
+public class SampleFeederTest {
+    private static final int FRAME_RATE = 30;
+    private static final int GOP_FRAMES = 15;           // a sync sample every 0.5 sec
+    private static final int FRAME_COUNT = FRAME_RATE * 20;
+    private static final float TRICK_RATE = 8.0f;
+
+    private final ByteBuffer mBuf = ByteBuffer.allocate(16);
+
+    @Test
+    public void normalRateFeedsEverySample() {
+        SyntheticGopSource source = new SyntheticGopSource(FRAME_COUNT, GOP_FRAMES, FRAME_RATE);
+        SampleFeeder feeder = new SampleFeeder(source);
+        feed(feeder, 1.0f, Integer.MAX_VALUE);
+        assertEquals(FRAME_COUNT, feeder.getSampleCount());
+    }
+
+    @Test
+    public void trickPlayFeedsOnlySyncSamples() {
+        SyntheticGopSource source = new SyntheticGopSource(FRAME_COUNT, GOP_FRAMES, FRAME_RATE);
+        SampleFeeder feeder = new SampleFeeder(source);
+        feed(feeder, TRICK_RATE, Integer.MAX_VALUE);
+
+        // At most one sample per GOP, and no more than MAX_KEYFRAMES_PER_SEC per second of
+        // playback.
+        int count = feeder.getSampleCount();
+        int perSecondBudget = (int) (source.getDurationUsec() / 1000000.0 *
+                SampleFeeder.MAX_KEYFRAMES_PER_SEC / TRICK_RATE) + 1;
+        assertTrue(count + " samples for " + source.getGopCount() + " GOPs",
+                count <= source.getGopCount());
+        assertTrue(count + " samples, budget " + perSecondBudget, count <= perSecondBudget);
+        // ...but it didn't just give up: the whole movie was covered.
+        assertTrue(count >= perSecondBudget / 2);
+        assertEquals(-1, source.getSampleTime());
+    }
+
+    @Test
+    public void trickPlaySeekStaysWithinBudget() {
+        SyntheticGopSource source = new SyntheticGopSource(FRAME_COUNT, GOP_FRAMES, FRAME_RATE);
+        SampleFeeder feeder = new SampleFeeder(source);
+        feed(feeder, TRICK_RATE, 10);
+
+        // Seek back to the middle, as MoviePlayer.handleSeek() does: the decoder restarts
+        // at the sync sample before the target.  In trick play that sync sample is the
+        // whole pre-roll.
+        long targetUsec = source.getDurationUsec() / 2 + source.getFrameUsec() * 7;
+        source.seekTo(targetUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(0, source.getSampleTime() % (GOP_FRAMES * source.getFrameUsec()));
+        int beforeSeek = feeder.getSampleCount();
+        feed(feeder, TRICK_RATE, Integer.MAX_VALUE);
+
+        int remainingGops = source.getGopCount() / 2;
+        assertTrue(feeder.getSampleCount() - beforeSeek <= remainingGops);
+        assertTrue(feeder.getSampleCount() <= source.getGopCount() + 1);
+    }
+
+    @Test
+    public void exactSeekPrerollIsBoundedByGop() {
+        SyntheticGopSource source = new SyntheticGopSource(FRAME_COUNT, GOP_FRAMES, FRAME_RATE);
+        SampleFeeder feeder = new SampleFeeder(source);
+
+        // At normal rate, an exact seek decodes from the sync sample up to the target.
+        int targetFrame = FRAME_COUNT / 2 + GOP_FRAMES - 1;
+        long targetUsec = targetFrame * source.getFrameUsec();
+        source.seekTo(targetUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        while (source.getSampleTime() < targetUsec) {
+            feed(feeder, 1.0f, 1);
+        }
+        feed(feeder, 1.0f, 1);      // the target itself
+        assertEquals(GOP_FRAMES, feeder.getSampleCount());
+
+        // Switching to trick play from there goes straight to the next sync sample.
+        int beforeTrick = feeder.getSampleCount();
+        feed(feeder, TRICK_RATE, Integer.MAX_VALUE);
+        assertTrue(feeder.getSampleCount() - beforeTrick <= source.getGopCount() / 2);
+    }
+
+    @Test
+    public void trickPlayPastLastSyncRunsToEnd() {
+        // One GOP: after the first sample there's nothing left worth decoding.
+        SyntheticGopSource source = new SyntheticGopSource(GOP_FRAMES, GOP_FRAMES, FRAME_RATE);
+        SampleFeeder feeder = new SampleFeeder(source);
+        feed(feeder, TRICK_RATE, Integer.MAX_VALUE);
+        assertEquals(1, feeder.getSampleCount());
+        assertEquals(-1, source.getSampleTime());
+    }
+
+    /**
+     * Reads and "queues" up to limit samples, until the end of the stream.  At trick-play
+     * rates, checks that each one is a sync sample.
+     */
+    private void feed(SampleFeeder feeder, float rate, int limit) {
+        SampleSource source = feeder.getSource();
+        for (int i = 0; i < limit; i++) {
+            if (source.readSampleData(mBuf, 0) < 0) {
+                break;
+            }
+            if (rate >= SampleFeeder.KEYFRAME_ONLY_RATE) {
+                assertEquals("non-sync sample at " + source.getSampleTime(),
+                        MediaExtractor.SAMPLE_FLAG_SYNC,
+                        source.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC);
+            }
+            feeder.sampleQueued(source.getSampleTime(), rate);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A SampleSource with fixed-length GOPs and no B-frames, so decode order is presentation
+ * order.  Samples are one byte long and carry their index.  Seeks behave like
+ * MediaExtractor's.
+ */
+class SyntheticGopSource implements SampleSource {
+    private final int mFrameCount;
+    private final int mGopFrames;
+    private final long mFrameUsec;
+    private int mIndex;
+
+    /**
+     * @param frameCount Number of samples.
+     * @param gopFrames Samples per GOP; the first sample of each is a sync sample.
+     * @param frameRate Frames per second.
+     */
+    SyntheticGopSource(int frameCount, int gopFrames, int frameRate) {
+        mFrameCount = frameCount;
+        mGopFrames = gopFrames;
+        mFrameUsec = 1000000 / frameRate;
+    }
+
+    int getGopCount() {
+        return (mFrameCount + mGopFrames - 1) / mGopFrames;
+    }
+
+    long getDurationUsec() {
+        return mFrameCount * mFrameUsec;
+    }
+
+    long getFrameUsec() {
+        return mFrameUsec;
+    }
+
+    @Override
+    public MediaFormat getFormat() {
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, "video/avc");
+        return format;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buf, int offset) {
+        if (mIndex >= mFrameCount) {
+            return -1;
+        }
+        buf.put(offset, (byte) mIndex);
+        return 1;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mIndex < mFrameCount ? mIndex * mFrameUsec : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        if (mIndex >= mFrameCount) {
+            return 0;
+        }
+        return mIndex % mGopFrames == 0 ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mIndex >= mFrameCount) {
+            return false;
+        }
+        mIndex++;
+        return mIndex < mFrameCount;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        timeUs = Math.max(timeUs, 0);
+        // The last sync sample at or before timeUs, and the first at or after it.
+        int frame = (int) Math.min(timeUs / mFrameUsec, mFrameCount - 1);
+        int before = frame - frame % mGopFrames;
+        int firstAfter = (int) ((timeUs + mFrameUsec - 1) / mFrameUsec);
+        int after = (firstAfter + mGopFrames - 1) / mGopFrames * mGopFrames;
+        switch (mode) {
+            case MediaExtractor.SEEK_TO_PREVIOUS_SYNC:
+                mIndex = before;
+                break;
+            case MediaExtractor.SEEK_TO_NEXT_SYNC:
+                // Past the last sync sample, MediaExtractor runs off the end.
+                mIndex = Math.min(after, mFrameCount);
+                break;
+            default:
+                mIndex = (after < mFrameCount &&
+                        after * mFrameUsec - timeUs < timeUs - before * mFrameUsec) ?
+                        after : before;
+                break;
+        }
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the fragment shaders EffectChain generates.  Nothing here compiles GLSL, so the
+ * checks are structural: the effect functions are chained in order, main() calls the last
+ * one, and every uniform FusedEffectPass will look up is declared.
+ */
+public class EffectChainTest {
+    private static final float[] SHARPEN = {
+            0f, -1f, 0f,
+            -1f, 5f, -1f,
+            0f, -1f, 0f };
+    private static final float[] BLUR = {
+            1f / 16, 2f / 16, 1f / 16,
+            2f / 16, 4f / 16, 2f / 16,
+            1f / 16, 2f / 16, 1f / 16 };
+
+    @Test
+    public void emptyChainCopies() {
+        EffectChain chain = new EffectChain();
+        assertEquals("copy", chain.getSignature());
+        assertEquals(
+                "vec4 effect0(vec2 tc) {\n" +
+                "    return texture2D(sTexture, tc);\n" +
+                "}\n" +
+                "void main() {\n" +
+                "    gl_FragColor = effect0(vTextureCoord);\n" +
+                "}\n",
+                chain.getFragmentBody());
+    }
+
+    @Test
+    public void colorMatrix() {
+        EffectChain chain = new EffectChain().add(Effect.ColorMatrix.blackWhite());
+        assertEquals("matrix", chain.getSignature());
+        String body = chain.getFragmentBody();
+        assertTrue(body.contains("uniform mat4 uColorMatrix1;\n"));
+        assertTrue(body.contains("uniform vec4 uColorOffset1;\n"));
+        assertTrue(body.contains("    vec4 c = effect0(tc);\n" +
+                "    return uColorMatrix1 * c + uColorOffset1;\n"));
+        checkStructure(chain);
+    }
+
+    @Test
+    public void lutVignette() {
+        EffectChain chain = new EffectChain()
+                .add(new Effect.Lut(1, 0.8f))
+                .add(new Effect.Vignette(0.3f, 0.8f, 0.6f));
+        assertEquals("lut+vignette", chain.getSignature());
+        String body = chain.getFragmentBody();
+        assertTrue(body.contains("uniform sampler2D sLut1;\n"));
+        assertTrue(body.contains("texture2D(sLut1, tile1 * 0.125 + rg)"));
+        assertTrue(body.contains("uniform vec2 uVignetteCenter2;\n"));
+        // The vignette works on the LUT's output, not on the source.
+        assertTrue(body.contains("vec4 effect2(vec2 tc) {\n    vec4 c = effect1(tc);\n"));
+        checkStructure(chain);
+    }
+
+    @Test
+    public void convolutionMatrixVignette() {
+        EffectChain chain = new EffectChain()
+                .add(new Effect.Convolution(SHARPEN, 0f))
+                .add(Effect.ColorMatrix.sepia())
+                .add(new Effect.Vignette(0.3f, 0.8f, 0.6f));
+        assertEquals("conv3x3+matrix+vignette", chain.getSignature());
+        String body = chain.getFragmentBody();
+        // Center tap plus the eight neighbors, all taken from the source.
+        assertEquals(9, count(body, "effect0(tc"));
+        assertTrue(body.contains("uniform mat3 uKernel1;\n"));
+        assertTrue(body.contains("uKernel1[0][0]"));
+        assertTrue(body.contains("uKernel1[2][2]"));
+        assertTrue(body.contains("    vec4 c = effect1(tc);\n" +
+                "    return uColorMatrix2 * c + uColorOffset2;\n"));
+        assertTrue(body.contains("distance(tc, uVignetteCenter3)"));
+        checkStructure(chain);
+    }
+
+    @Test
+    public void signatureIgnoresParameters() {
+        EffectChain a = new EffectChain()
+                .add(new Effect.Convolution(SHARPEN, 0f))
+                .add(Effect.ColorMatrix.blackWhite())
+                .add(new Effect.Vignette(0.3f, 0.8f, 0.6f));
+        EffectChain b = new EffectChain()
+                .add(new Effect.Convolution(BLUR, 0.1f))
+                .add(Effect.ColorMatrix.sepia())
+                .add(new Effect.Vignette(0.1f, 0.5f, 1.0f));
+        assertEquals(a.getSignature(), b.getSignature());
+        assertEquals(a.getFragmentBody(), b.getFragmentBody());
+
+        EffectChain lutA = new EffectChain().add(new Effect.Lut(1, 0.25f));
+        EffectChain lutB = new EffectChain().add(new Effect.Lut(7, 1.0f));
+        assertEquals(lutA.getSignature(), lutB.getSignature());
+        assertEquals(lutA.getFragmentBody(), lutB.getFragmentBody());
+
+        // Changing a parameter in place doesn't change the shader either.
+        String before = lutA.getFragmentBody();
+        ((Effect.Lut) lutA.getEffects().get(0)).setIntensity(0.75f);
+        assertEquals(before, lutA.getFragmentBody());
+    }
+
+    @Test
+    public void orderMatters() {
+        EffectChain a = new EffectChain()
+                .add(Effect.ColorMatrix.sepia())
+                .add(new Effect.Vignette(0.3f, 0.8f, 0.6f));
+        EffectChain b = new EffectChain()
+                .add(new Effect.Vignette(0.3f, 0.8f, 0.6f))
+                .add(Effect.ColorMatrix.sepia());
+        assertFalse(a.getSignature().equals(b.getSignature()));
+        assertFalse(a.getFragmentBody().equals(b.getFragmentBody()));
+    }
+
+    /**
+     * Checks what FusedEffectPass depends on: each effect function is defined once, main()
+     * calls the last one, and each name from getUniformNames() plus the effect's index is
+     * declared as a uniform exactly once.
+     */
+    private static void checkStructure(EffectChain chain) {
+        String body = chain.getFragmentBody();
+        int count = chain.getEffects().size();
+        for (int i = 0; i <= count; i++) {
+            assertEquals("effect" + i + " definitions", 1,
+                    count(body, "vec4 effect" + i + "(vec2 tc) {\n"));
+        }
+        assertEquals(0, count(body, "effect" + (count + 1) + "("));
+        assertTrue(body.endsWith("gl_FragColor = effect" + count + "(vTextureCoord);\n}\n"));
+
+        for (int i = 0; i < count; i++) {
+            Effect effect = chain.getEffects().get(i);
+            for (String name : effect.getUniformNames()) {
+                String uniform = name + (i + 1);
+                Pattern decl = Pattern.compile("^uniform \\w+ " + uniform + ";$",
+                        Pattern.MULTILINE);
+                Matcher m = decl.matcher(body);
+                assertTrue(uniform + " not declared", m.find());
+                assertFalse(uniform + " declared twice", m.find());
+            }
+        }
+    }
+
+    private static int count(String haystack, String needle) {
+        int n = 0;
+        for (int i = haystack.indexOf(needle); i >= 0; i = haystack.indexOf(needle, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+}